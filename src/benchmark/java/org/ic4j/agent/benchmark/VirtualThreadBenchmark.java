@@ -0,0 +1,190 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.VirtualThreads;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.types.Principal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/*
+ * Many virtual threads calling VirtualThreads.queryBlocking at once through one Agent.
+ *
+ * The stand-in replica is an in-process ReplicaTransport answering every query with the same
+ * reply after a fixed latency, without holding a thread while it waits, like an asynchronous HTTP
+ * client would. All callers are started first and released together, the run reports wall time,
+ * throughput and latency percentiles. The virtualThreadBenchmark task runs it with
+ * -Djdk.tracePinnedThreads=short, so any pinning shows up as stack traces.
+ *
+ *   gradle virtualThreadBenchmark -Dcallers=100000 -Dlatency=20
+ */
+public final class VirtualThreadBenchmark {
+	static final Principal CANISTER_ID = Principal.fromString("rrkah-fqaaa-aaaaa-aaaaq-cai");
+
+	static final AtomicInteger FAILED = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int callers = Integer.getInteger("callers", 100_000);
+		long latency = Long.getLong("latency", 20);
+
+		StandInReplica replica = new StandInReplica(latency);
+		Agent agent = new AgentBuilder().transport(replica).build();
+
+		byte[] arg = IDLArgs.create(List.of(IDLValue.create("ic4j"))).toBytes();
+
+		// warm up the request path before timing it
+		run(agent, arg, Math.min(callers, 10_000));
+		FAILED.set(0);
+
+		long[] latencies = new long[callers];
+
+		long elapsed = run(agent, arg, latencies);
+
+		Arrays.sort(latencies);
+
+		System.out.printf("%d callers, %d ms replica latency: %d ms, %.0f calls/s, %d failed%n", callers, latency,
+				TimeUnit.NANOSECONDS.toMillis(elapsed), callers / (elapsed / 1e9), FAILED.get());
+		System.out.printf("latency p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+				percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+				latencies[callers - 1] / 1e6);
+
+		agent.close();
+	}
+
+	static long run(Agent agent, byte[] arg, int callers) throws InterruptedException {
+		return run(agent, arg, new long[callers]);
+	}
+
+	/*
+	 * Start a virtual thread per caller, release them together and wait for all of them.
+	 */
+	static long run(Agent agent, byte[] arg, long[] latencies) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		long begin;
+
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < latencies.length; i++) {
+				int caller = i;
+
+				executor.submit(() -> {
+					start.await();
+
+					long sent = System.nanoTime();
+
+					try {
+						VirtualThreads.queryBlocking(agent, CANISTER_ID, "greet", arg);
+					} catch (AgentError e) {
+						FAILED.incrementAndGet();
+					}
+
+					latencies[caller] = System.nanoTime() - sent;
+
+					return null;
+				});
+			}
+
+			begin = System.nanoTime();
+			start.countDown();
+		}
+
+		return System.nanoTime() - begin;
+	}
+
+	static double percentile(long[] sorted, double percentile) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+	}
+
+	/*
+	 * Replies to every query with the candid text "Hello, ic4j!" after latency milliseconds.
+	 */
+	static final class StandInReplica implements ReplicaTransport {
+		final long latency;
+		final byte[] reply;
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+				.daemon().name("stand-in-replica").factory());
+
+		StandInReplica(long latency) throws IOException {
+			this.latency = latency;
+
+			Map<String, Object> replied = new LinkedHashMap<String, Object>();
+			replied.put("status", "replied");
+			replied.put("reply", Map.of("arg", IDLArgs.create(List.of(IDLValue.create("Hello, ic4j!"))).toBytes()));
+
+			this.reply = new ObjectMapper(new CBORFactory()).writeValueAsBytes(replied);
+		}
+
+		public CompletableFuture<ReplicaResponse> status() {
+			return this.unsupported();
+		}
+
+		public CompletableFuture<ReplicaResponse> query(Principal canisterId, byte[] envelope, Map<String, String> headers) {
+			CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
+
+			this.scheduler.schedule(() -> {
+				ReplicaResponse replicaResponse = new ReplicaResponse();
+				replicaResponse.payload = this.reply;
+				replicaResponse.headers = Map.of();
+
+				response.complete(replicaResponse);
+			}, this.latency, TimeUnit.MILLISECONDS);
+
+			return response;
+		}
+
+		public CompletableFuture<ReplicaResponse> call(Principal canisterId, byte[] envelope, RequestId requestId,
+				Map<String, String> headers) {
+			return this.unsupported();
+		}
+
+		public CompletableFuture<ReplicaResponse> readState(Principal canisterId, byte[] envelope,
+				Map<String, String> headers) {
+			return this.unsupported();
+		}
+
+		CompletableFuture<ReplicaResponse> unsupported() {
+			return CompletableFuture.failedFuture(
+					AgentError.create(AgentError.AgentErrorCode.TRANSPORT_ERROR, "stand-in replica only answers queries"));
+		}
+
+		public void close() {
+			this.scheduler.shutdownNow();
+		}
+	}
+}
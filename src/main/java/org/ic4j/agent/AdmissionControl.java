@@ -0,0 +1,613 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.ic4j.candid.ByteUtils;
+import org.ic4j.types.Principal;
+
+/*
+ * Client side admission control in front of the ReplicaTransport, so that bursts are smoothed
+ * out instead of being answered with 429s by the boundary node. Every request, retries included,
+ * takes a token from the bucket of the endpoint and from those of its canister and subnet, if
+ * limits are set for them, and counts against maxInFlight. Without a token or a free slot it waits
+ * in a bounded queue, and fails fast with ADMISSION_REJECTED when the queue is full.
+ *
+ * The queue is served by Priority: by arrival time plus the slack of the request's class, so
+ * interactive requests overtake queued bulk ones for a bounded time. A request waiting for a token
+ * of its canister does not hold up requests to other canisters.
+ *
+ * With adaptive(true) the rates follow AIMD: halved on 429 and 503 responses, at most once per
+ * DECREASE_INTERVAL, and raised step by step on successful responses up to the configured limit.
+ * Set on an Agent with AgentBuilder.admissionControl().
+ */
+public final class AdmissionControl {
+	public static final int DEFAULT_MAX_QUEUED = 1024;
+	public static final int DEFAULT_MAX_CANISTERS = 10000;
+
+	static final int TOO_MANY_REQUESTS = 429;
+	static final int SERVICE_UNAVAILABLE = 503;
+
+	static final long DECREASE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	// additive increase per successful response, as a fraction of the configured rate
+	static final double INCREASE = 0.01;
+	// adaptive rates do not go below this fraction of the configured rate
+	static final double MIN_RATE = 0.05;
+
+	Limit endpointLimit;
+	Limit canisterLimit;
+	Limit subnetLimit;
+
+	boolean adaptive;
+	int maxQueued = DEFAULT_MAX_QUEUED;
+	int maxInFlight;
+	int maxCanisters = DEFAULT_MAX_CANISTERS;
+
+	volatile TokenBucket endpoint;
+	final ConcurrentMap<Principal, TokenBucket> canisters = new ConcurrentHashMap<Principal, TokenBucket>();
+	final ConcurrentMap<Principal, TokenBucket> subnets = new ConcurrentHashMap<Principal, TokenBucket>();
+	final List<SubnetRanges> subnetRanges = new CopyOnWriteArrayList<SubnetRanges>();
+
+	final ReentrantLock lock = new ReentrantLock();
+	// guarded by lock
+	final TreeSet<Waiting> waiting = new TreeSet<Waiting>();
+	long sequence;
+	int inFlight;
+	ScheduledFuture<?> drainTimer;
+	long drainAt;
+
+	final AtomicInteger queued = new AtomicInteger();
+
+	final LongAdder admitted = new LongAdder();
+	final LongAdder rejected = new LongAdder();
+	final LongAdder throttled = new LongAdder();
+	final LongAdder[] queueWaitNanos = new LongAdder[Priority.values().length];
+	final LongAdder networkNanos = new LongAdder();
+
+	AdmissionControl() {
+		for (int i = 0; i < this.queueWaitNanos.length; i++)
+			this.queueWaitNanos[i] = new LongAdder();
+	}
+
+	public static AdmissionControl create() {
+		return new AdmissionControl();
+	}
+
+	/*
+	 * Limit all requests sent through the transport, that is to one boundary node, to permitsPerSecond
+	 * with bursts of up to burst requests.
+	 */
+	public AdmissionControl endpointLimit(double permitsPerSecond, int burst) {
+		this.endpointLimit = new Limit(permitsPerSecond, burst);
+		this.endpoint = new TokenBucket(this.endpointLimit);
+		return this;
+	}
+
+	/*
+	 * Limit the requests to each effective canister id.
+	 */
+	public AdmissionControl canisterLimit(double permitsPerSecond, int burst) {
+		this.canisterLimit = new Limit(permitsPerSecond, burst);
+		this.canisters.clear();
+		return this;
+	}
+
+	/*
+	 * Limit the requests to each subnet registered with subnet().
+	 */
+	public AdmissionControl subnetLimit(double permitsPerSecond, int burst) {
+		this.subnetLimit = new Limit(permitsPerSecond, burst);
+		this.subnets.clear();
+		return this;
+	}
+
+	/*
+	 * Count requests to canisters in subnet's ranges, as returned by Agent.getSubnet(), against subnetId.
+	 */
+	public AdmissionControl subnet(Principal subnetId, Subnet subnet) {
+		this.subnetRanges.add(new SubnetRanges(subnetId, subnet.ranges));
+		return this;
+	}
+
+	public AdmissionControl adaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+		return this;
+	}
+
+	/*
+	 * Requests waiting for a token at most, further ones are rejected.
+	 */
+	public AdmissionControl maxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+		return this;
+	}
+
+	/*
+	 * Requests in flight at most, sized to the transport's connection pool so that requests queue
+	 * here, by priority, rather than in the pool. 0, the default, is unlimited.
+	 */
+	public AdmissionControl maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	/*
+	 * Canister buckets kept at most, idle ones are dropped beyond that.
+	 */
+	public AdmissionControl maxCanisters(int maxCanisters) {
+		this.maxCanisters = maxCanisters;
+		return this;
+	}
+
+	/*
+	 * Requests sent to the transport.
+	 */
+	public long getAdmitted() {
+		return this.admitted.sum();
+	}
+
+	/*
+	 * Requests failed because the queue was full.
+	 */
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/*
+	 * 429 and 503 responses.
+	 */
+	public long getThrottled() {
+		return this.throttled.sum();
+	}
+
+	public int getQueued() {
+		return this.queued.get();
+	}
+
+	/*
+	 * Time requests spent waiting for a token, in total.
+	 */
+	public Duration getQueueWaitTime() {
+		long nanos = 0;
+
+		for (LongAdder adder : this.queueWaitNanos)
+			nanos += adder.sum();
+
+		return Duration.ofNanos(nanos);
+	}
+
+	/*
+	 * Time requests of priority spent waiting for a token, in total.
+	 */
+	public Duration getQueueWaitTime(Priority priority) {
+		return Duration.ofNanos(this.queueWaitNanos[priority.ordinal()].sum());
+	}
+
+	/*
+	 * Time from handing requests to the transport until their responses, in total.
+	 */
+	public Duration getNetworkTime() {
+		return Duration.ofNanos(this.networkNanos.sum());
+	}
+
+	/*
+	 * Current rate of canisterId's bucket, adapted if adaptive, or 0 without a canister limit.
+	 */
+	public double getCanisterRate(Principal canisterId) {
+		TokenBucket bucket = this.canisters.get(canisterId);
+
+		if (bucket != null)
+			return bucket.rate();
+
+		return this.canisterLimit == null ? 0 : this.canisterLimit.rate;
+	}
+
+	/*
+	 * Send request once it is admitted, as a request to canisterId, null for the status endpoint.
+	 */
+	CompletableFuture<ReplicaResponse> submit(Principal canisterId, Priority priority,
+			Supplier<CompletableFuture<ReplicaResponse>> request) {
+		long now = System.nanoTime();
+
+		Waiting waiting = new Waiting(priority, now, this.buckets(canisterId), request);
+
+		boolean admitted = false;
+		boolean full = false;
+		List<Waiting> ready = null;
+
+		this.lock.lock();
+		try {
+			// nothing queued that would be served first
+			if (this.waiting.isEmpty() && this.acquire(waiting.buckets, now))
+				admitted = true;
+			else if (this.waiting.size() >= this.maxQueued)
+				full = true;
+			else {
+				waiting.sequence = this.sequence++;
+				this.waiting.add(waiting);
+				this.queued.incrementAndGet();
+
+				ready = this.drain(now);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (admitted)
+			return this.send(waiting.buckets, request);
+
+		if (full) {
+			this.rejected.increment();
+
+			waiting.response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.ADMISSION_REJECTED,
+					canisterId != null ? canisterId.toString() : "the endpoint"));
+			return waiting.response;
+		}
+
+		this.start(ready);
+
+		// cancelled while queued
+		waiting.response.whenComplete((input, ex) -> {
+			if (ex == null)
+				return;
+
+			this.lock.lock();
+			try {
+				if (!this.waiting.remove(waiting))
+					return;
+			} finally {
+				this.lock.unlock();
+			}
+
+			this.dequeued(waiting);
+		});
+
+		return waiting.response;
+	}
+
+	/*
+	 * Admit the waiting requests that can go now, in order, and time the next drain for
+	 * the first one that waits for a token. Called with the lock held.
+	 */
+	List<Waiting> drain(long now) {
+		List<Waiting> ready = new ArrayList<Waiting>();
+
+		long next = Long.MAX_VALUE;
+
+		Iterator<Waiting> iterator = this.waiting.iterator();
+
+		while (iterator.hasNext()) {
+			// a request completing drains again
+			if (this.maxInFlight > 0 && this.inFlight >= this.maxInFlight)
+				break;
+
+			Waiting waiting = iterator.next();
+
+			long wait = 0;
+
+			for (TokenBucket bucket : waiting.buckets)
+				wait = Math.max(wait, bucket.untilToken(now));
+
+			if (wait == 0 && this.acquire(waiting.buckets, now)) {
+				iterator.remove();
+				ready.add(waiting);
+			} else
+				next = Math.min(next, wait);
+		}
+
+		if (next != Long.MAX_VALUE && (this.drainTimer == null || now + next - this.drainAt < 0)) {
+			if (this.drainTimer != null)
+				this.drainTimer.cancel(false);
+
+			this.drainAt = now + next;
+			this.drainTimer = Timeouts.SCHEDULER.schedule(this::timedDrain, next, TimeUnit.NANOSECONDS);
+		}
+
+		return ready;
+	}
+
+	void timedDrain() {
+		List<Waiting> ready;
+
+		this.lock.lock();
+		try {
+			this.drainTimer = null;
+			ready = this.drain(System.nanoTime());
+		} finally {
+			this.lock.unlock();
+		}
+
+		this.start(ready);
+	}
+
+	// take a token of every bucket and a slot, or nothing. Called with the lock held.
+	boolean acquire(List<TokenBucket> buckets, long now) {
+		if (this.maxInFlight > 0 && this.inFlight >= this.maxInFlight)
+			return false;
+
+		for (TokenBucket bucket : buckets)
+			if (bucket.untilToken(now) > 0)
+				return false;
+
+		for (TokenBucket bucket : buckets)
+			bucket.take();
+
+		this.inFlight++;
+
+		return true;
+	}
+
+	void release() {
+		List<Waiting> ready;
+
+		this.lock.lock();
+		try {
+			this.inFlight--;
+			ready = this.waiting.isEmpty() ? null : this.drain(System.nanoTime());
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (ready != null)
+			this.start(ready);
+	}
+
+	void dequeued(Waiting waiting) {
+		this.queued.decrementAndGet();
+		this.queueWaitNanos[waiting.priority.ordinal()].add(System.nanoTime() - waiting.enqueued);
+	}
+
+	// the transport is neither called on the timer thread nor with the lock held
+	void start(List<Waiting> ready) {
+		for (Waiting waiting : ready)
+			ForkJoinPool.commonPool().execute(() -> {
+				this.dequeued(waiting);
+
+				// cancelled after it was admitted
+				if (waiting.response.isDone()) {
+					this.release();
+					return;
+				}
+
+				Agent.cancelledWith(waiting.response, this.send(waiting.buckets, waiting.request)).whenComplete((input, ex) -> {
+					if (ex != null)
+						waiting.response.completeExceptionally(ex);
+					else if (!waiting.response.complete(input) && input != null)
+						input.release();
+				});
+			});
+	}
+
+	// send an admitted request
+	CompletableFuture<ReplicaResponse> send(List<TokenBucket> buckets, Supplier<CompletableFuture<ReplicaResponse>> request) {
+		this.admitted.increment();
+
+		long start = System.nanoTime();
+
+		CompletableFuture<ReplicaResponse> response;
+		try {
+			response = request.get();
+		} catch (Throwable t) {
+			response = new CompletableFuture<ReplicaResponse>();
+			response.completeExceptionally(t);
+		}
+
+		response.whenComplete((input, ex) -> {
+			long end = System.nanoTime();
+
+			this.networkNanos.add(end - start);
+
+			if (input != null) {
+				if (input.statusCode == TOO_MANY_REQUESTS || input.statusCode == SERVICE_UNAVAILABLE) {
+					this.throttled.increment();
+
+					if (this.adaptive)
+						for (TokenBucket bucket : buckets)
+							bucket.decrease(end);
+				} else if (this.adaptive && input.statusCode < 400)
+					for (TokenBucket bucket : buckets)
+						bucket.increase();
+			}
+
+			this.release();
+		});
+
+		return response;
+	}
+
+	List<TokenBucket> buckets(Principal canisterId) {
+		List<TokenBucket> buckets = new ArrayList<TokenBucket>(3);
+
+		TokenBucket endpoint = this.endpoint;
+
+		if (endpoint != null)
+			buckets.add(endpoint);
+
+		if (canisterId == null)
+			return buckets;
+
+		if (this.canisterLimit != null) {
+			TokenBucket bucket = this.canisters.get(canisterId);
+
+			if (bucket == null) {
+				if (this.canisters.size() >= this.maxCanisters)
+					this.dropIdle();
+
+				bucket = this.canisters.computeIfAbsent(canisterId, key -> new TokenBucket(this.canisterLimit));
+			}
+
+			buckets.add(bucket);
+		}
+
+		if (this.subnetLimit != null) {
+			Principal subnetId = this.subnetOf(canisterId);
+
+			if (subnetId != null)
+				buckets.add(this.subnets.computeIfAbsent(subnetId, key -> new TokenBucket(this.subnetLimit)));
+		}
+
+		return buckets;
+	}
+
+	Principal subnetOf(Principal canisterId) {
+		byte[] value = canisterId.getValue();
+
+		for (SubnetRanges subnet : this.subnetRanges)
+			for (PrincipalRange range : subnet.ranges)
+				if (ByteUtils.compareByteArrays(value, range.low.getValue()) >= 0
+						&& ByteUtils.compareByteArrays(value, range.high.getValue()) <= 0)
+					return subnet.subnetId;
+
+		return null;
+	}
+
+	// buckets that are full have not been used for a while
+	void dropIdle() {
+		long now = System.nanoTime();
+
+		this.canisters.values().removeIf(bucket -> bucket.isIdle(now));
+	}
+
+	/*
+	 * Request waiting for admission, served by due time, then by arrival.
+	 */
+	static final class Waiting implements Comparable<Waiting> {
+		final Priority priority;
+		final long enqueued;
+		final long due;
+		final List<TokenBucket> buckets;
+		final Supplier<CompletableFuture<ReplicaResponse>> request;
+		final CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
+		long sequence;
+
+		Waiting(Priority priority, long enqueued, List<TokenBucket> buckets, Supplier<CompletableFuture<ReplicaResponse>> request) {
+			this.priority = priority;
+			this.enqueued = enqueued;
+			this.due = priority.due(enqueued);
+			this.buckets = buckets;
+			this.request = request;
+		}
+
+		@Override
+		public int compareTo(Waiting other) {
+			long difference = this.due - other.due;
+
+			if (difference != 0)
+				return difference < 0 ? -1 : 1;
+
+			return Long.compare(this.sequence, other.sequence);
+		}
+	}
+
+	static final class Limit {
+		final double rate;
+		final double burst;
+
+		Limit(double rate, int burst) {
+			this.rate = rate;
+			this.burst = Math.max(burst, 1);
+		}
+	}
+
+	static final class SubnetRanges {
+		final Principal subnetId;
+		final List<PrincipalRange> ranges;
+
+		SubnetRanges(Principal subnetId, List<PrincipalRange> ranges) {
+			this.subnetId = subnetId;
+			this.ranges = ranges;
+		}
+	}
+
+	static final class TokenBucket {
+		final Limit limit;
+
+		double rate;
+		double tokens;
+		long updated;
+		long decreased;
+
+		TokenBucket(Limit limit) {
+			this.limit = limit;
+			this.rate = limit.rate;
+			this.tokens = limit.burst;
+			this.updated = System.nanoTime();
+			this.decreased = this.updated - DECREASE_INTERVAL;
+		}
+
+		// nanos until a token is available, 0 if there is one
+		synchronized long untilToken(long now) {
+			this.refill(now);
+
+			if (this.tokens >= 1)
+				return 0;
+
+			return Math.max((long) ((1 - this.tokens) / this.rate * TimeUnit.SECONDS.toNanos(1)), 1);
+		}
+
+		synchronized void take() {
+			this.tokens -= 1;
+		}
+
+		synchronized void decrease(long now) {
+			if (now - this.decreased < DECREASE_INTERVAL)
+				return;
+
+			this.refill(now);
+			this.rate = Math.max(this.rate / 2, this.limit.rate * MIN_RATE);
+			this.decreased = now;
+		}
+
+		synchronized void increase() {
+			this.refill(System.nanoTime());
+			this.rate = Math.min(this.rate + this.limit.rate * INCREASE, this.limit.rate);
+		}
+
+		synchronized double rate() {
+			return this.rate;
+		}
+
+		synchronized boolean isIdle(long now) {
+			this.refill(now);
+
+			return this.tokens >= this.limit.burst;
+		}
+
+		void refill(long now) {
+			this.tokens = Math.min(this.tokens + (now - this.updated) * this.rate / TimeUnit.SECONDS.toNanos(1),
+					this.limit.burst);
+			this.updated = now;
+		}
+	}
+}
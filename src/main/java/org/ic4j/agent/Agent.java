@@ -18,6 +18,7 @@ package org.ic4j.agent;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -38,6 +39,11 @@ import java.util.Optional;
 import java.util.WeakHashMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
@@ -48,6 +54,11 @@ import org.ic4j.agent.certification.Delegation;
 import org.ic4j.agent.certification.hashtree.Label;
 import org.ic4j.agent.identity.Identity;
 import org.ic4j.agent.identity.Signature;
+import org.ic4j.agent.metrics.AgentMetrics;
+import org.ic4j.agent.metrics.Outcome;
+import org.ic4j.agent.metrics.Phase;
+import org.ic4j.agent.metrics.RequestTags;
+import org.ic4j.agent.metrics.RequestType;
 import org.ic4j.agent.replicaapi.CallRequestContent;
 import org.ic4j.agent.replicaapi.Envelope;
 import org.ic4j.agent.replicaapi.NodeSignature;
@@ -68,6 +79,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
@@ -84,11 +96,38 @@ public final class Agent {
 
 	static final Logger LOG = LoggerFactory.getLogger(Agent.class);
 
+	// reads pooled response bodies, ObjectMapper is thread safe once configured
+	static final ObjectMapper BODY_MAPPER = new ObjectMapper(new CBORFactory()).registerModule(new Jdk8Module());
+
 	ReplicaTransport transport;
 	Duration ingressExpiryDuration;
 	Identity identity;
 	NonceFactory nonceFactory;
-	Optional<byte[]> rootKey;
+	volatile Optional<byte[]> rootKey;
+	Optional<RetryPolicy> retryPolicy;
+
+	// signed read_state envelopes reused within an expiry bucket, null if not configured
+	ReadStateEnvelopeCache readStateEnvelopeCache;
+
+	// replies of queries with a TTL, null if not configured
+	QueryCache queryCache;
+
+	// single-flight of identical queries, null if not configured
+	QueryCoalescer queryCoalescer;
+	AdmissionControl admissionControl;
+
+	// fails calls to canisters that keep failing, null if not configured
+	CircuitBreaker circuitBreaker;
+
+	// receives phase timings of every request, null if not configured
+	AgentMetrics metrics;
+
+	// thread transport responses are handed to, null to stay on the transport's thread
+	Executor completionExecutor;
+	Priority priority = Priority.NORMAL;
+
+	// false for agents created by withIdentity, the transport belongs to the original Agent
+	boolean ownsTransport = true;
 	
 	static Map<Principal, Subnet> subnetCache = new WeakHashMap<Principal,Subnet>();
 	
@@ -127,8 +166,63 @@ public final class Agent {
 
 		this.nonceFactory = builder.config.nonceFactory;	
 
+		this.retryPolicy = builder.config.retryPolicy;
+
+		if (builder.config.readStateBucket.isPresent())
+			this.readStateEnvelopeCache = new ReadStateEnvelopeCache(builder.config.readStateBucket.get(),
+					builder.config.readStateEnvelopeCacheSize);
+
+		this.queryCache = builder.config.queryCache;
+		this.queryCoalescer = builder.config.queryCoalescer;
+		this.admissionControl = builder.config.admissionControl;
+		this.circuitBreaker = builder.config.circuitBreaker;
+		this.metrics = builder.config.metrics;
+		this.completionExecutor = builder.config.completionExecutor;
+
 		this.rootKey = Optional.of(IC_ROOT_KEY);
 	}
+
+	Agent(Agent agent, Identity identity) {
+		this.verify = agent.verify;
+		this.transport = agent.transport;
+		this.ingressExpiryDuration = agent.ingressExpiryDuration;
+		this.identity = identity;
+		this.nonceFactory = agent.nonceFactory;
+		this.retryPolicy = agent.retryPolicy;
+		this.readStateEnvelopeCache = agent.readStateEnvelopeCache;
+		this.queryCache = agent.queryCache;
+		this.queryCoalescer = agent.queryCoalescer;
+		this.admissionControl = agent.admissionControl;
+		this.circuitBreaker = agent.circuitBreaker;
+		this.metrics = agent.metrics;
+		this.completionExecutor = agent.completionExecutor;
+		this.priority = agent.priority;
+		this.rootKey = agent.rootKey;
+		this.ownsTransport = false;
+	}
+
+	/*
+	 * Agent signing requests with another identity, for services calling on behalf of many users.
+	 * It shares transport, nonce factory, retry policy, root key, verification setting and
+	 * subnet cache with this Agent and is cheap enough to create per call. Closing it leaves the
+	 * shared transport open. The root key is copied, fetch it on this Agent first.
+	 */
+	public Agent withIdentity(Identity identity) {
+		return new Agent(this, identity);
+	}
+
+	/*
+	 * Agent sending its requests with priority, sharing everything else with this Agent like withIdentity().
+	 */
+	public Agent withPriority(Priority priority) {
+		Agent agent = new Agent(this, this.identity);
+		agent.priority = priority;
+		return agent;
+	}
+
+	public Priority getPriority() {
+		return this.priority;
+	}
 	
 	public void setVerify(boolean verify)
 	{
@@ -144,6 +238,18 @@ public final class Agent {
 				.toNanos();
 	}
 
+	/*
+	 * Expiry of read_state requests, rounded down to a bucket when read_state envelopes are cached.
+	 */
+	Long getReadStateExpiryDate() {
+		Long ingressExpiry = this.getExpiryDate();
+
+		if (this.readStateEnvelopeCache != null)
+			return this.readStateEnvelopeCache.bucket(ingressExpiry);
+
+		return ingressExpiry;
+	}
+
 	/*
 	 * By default, the agent is configured to talk to the main Internet Computer,
 	 * and verifies responses using a hard-coded public key.
@@ -184,7 +290,7 @@ public final class Agent {
 	 * beforehand.
 	 */
 
-	public synchronized void setRootKey(byte[] rootKey) throws AgentError {
+	public void setRootKey(byte[] rootKey) throws AgentError {
 		this.rootKey = Optional.of(rootKey);
 	}
 
@@ -210,11 +316,17 @@ public final class Agent {
 
 		CompletableFuture<Status> response = new CompletableFuture<Status>();
 
-		transport.status().whenComplete((input, ex) -> {
+		RequestTags tags = this.tags(null, null, RequestType.STATUS);
+
+		cancelledWith(response, this.send(null, tags, () -> transport.status(), Long.MAX_VALUE)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					try {
-						Status status = objectMapper.readValue(input.payload, Status.class);
+						long start = start(tags);
+
+						Status status = readValue(objectMapper, input, Status.class);
+
+						this.measure(Phase.DECODE, tags, start);
 						response.complete(status);
 					}
 					catch ( AgentError e) {
@@ -225,6 +337,9 @@ public final class Agent {
 						response.completeExceptionally(
 								AgentError.create(AgentError.AgentErrorCode.INVALID_CBOR_DATA, e, input));
 					}
+					finally {
+						input.release();
+					}
 
 				} else {
 					response.completeExceptionally(
@@ -266,6 +381,40 @@ public final class Agent {
 	
 	public CompletableFuture<Response<byte[]>> queryRaw(Principal canisterId, Principal effectiveCanisterId, String method, Request<byte[]> request
 			, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures) throws AgentError {
+		return this.queryRaw(canisterId, effectiveCanisterId, method, request, ingressExpiryDatetime, explicitVerifyQuerySignatures, null);
+	}
+
+	/*
+	 * Query through the QueryCache, if there is one and the method has a TTL, and the QueryCoalescer,
+	 * if there is one. A null cacheTtl uses the TTL configured on the cache.
+	 */
+	CompletableFuture<Response<byte[]>> queryRaw(Principal canisterId, Principal effectiveCanisterId, String method, Request<byte[]> request
+			, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures, Duration cacheTtl) throws AgentError {
+		Duration ttl = this.getCacheTtl(method, cacheTtl);
+		boolean coalesce = this.queryCoalescer != null && (request.getHeaders() == null || request.getHeaders().isEmpty());
+
+		if (ttl != null || coalesce)
+			return this.queryShared(canisterId, effectiveCanisterId, method, request.getPayload(), explicitVerifyQuerySignatures, ttl, coalesce,
+					() -> this.queryUncached(canisterId, effectiveCanisterId, method, request, ingressExpiryDatetime, explicitVerifyQuerySignatures));
+
+		return this.queryUncached(canisterId, effectiveCanisterId, method, request, ingressExpiryDatetime, explicitVerifyQuerySignatures);
+	}
+
+	CompletableFuture<Response<byte[]>> queryShared(Principal canisterId, Principal effectiveCanisterId, String method, byte[] arg,
+			boolean explicitVerifyQuerySignatures, Duration ttl, boolean coalesce, Supplier<CompletableFuture<Response<byte[]>>> query) throws AgentError {
+		Supplier<CompletableFuture<Response<byte[]>>> send = query;
+
+		if (coalesce)
+			send = () -> this.queryCoalescer.execute(canisterId, method, arg, this.identity.sender(), explicitVerifyQuerySignatures, this.priority, query);
+
+		if (ttl != null)
+			return this.queryCache.get(this, canisterId, effectiveCanisterId, method, arg, explicitVerifyQuerySignatures, ttl, send);
+
+		return send.get();
+	}
+
+	CompletableFuture<Response<byte[]>> queryUncached(Principal canisterId, Principal effectiveCanisterId, String method, Request<byte[]> request
+			, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures) throws AgentError {
 		QueryContent queryContent = new QueryContent();
 
 		queryContent.queryRequest.methodName = method;
@@ -280,7 +429,7 @@ public final class Agent {
 
 		CompletableFuture<Response<byte[]>> response = new CompletableFuture<Response<byte[]>>();
 
-		this.queryEndpoint(effectiveCanisterId, queryContent,explicitVerifyQuerySignatures, request.getHeaders()).whenComplete((input, ex) -> {
+		cancelledWith(response, this.queryEndpoint(effectiveCanisterId, queryContent,explicitVerifyQuerySignatures, request.getHeaders())).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					if (input.replied.isPresent()) {
@@ -291,7 +440,7 @@ public final class Agent {
 						response.complete(queryResponse);
 					} else if (input.rejected.isPresent()) {
 						response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,
-								input.rejected.get().rejectCode, input.rejected.get().rejectMessage));
+								input.rejected.get().rejectCode, input.rejected.get().rejectMessage).withRejectCode(input.rejected.get().getRejectCode()));
 					} else
 						response.completeExceptionally(
 								AgentError.create(AgentError.AgentErrorCode.INVALID_REPLICA_STATUS));
@@ -314,6 +463,24 @@ public final class Agent {
 	
 	public CompletableFuture<byte[]> queryRaw(Principal canisterId, Principal effectiveCanisterId, String method,
 			byte[] arg, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures) throws AgentError {
+		return this.queryRaw(canisterId, effectiveCanisterId, method, arg, ingressExpiryDatetime, explicitVerifyQuerySignatures, (Duration) null);
+	}
+
+	CompletableFuture<byte[]> queryRaw(Principal canisterId, Principal effectiveCanisterId, String method,
+			byte[] arg, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures, Duration cacheTtl) throws AgentError {
+		Duration ttl = this.getCacheTtl(method, cacheTtl);
+		boolean coalesce = this.queryCoalescer != null;
+
+		if (ttl != null || coalesce)
+			return this.queryShared(canisterId, effectiveCanisterId, method, arg, explicitVerifyQuerySignatures, ttl, coalesce,
+					() -> this.queryUncached(canisterId, effectiveCanisterId, method, arg, ingressExpiryDatetime, explicitVerifyQuerySignatures)
+							.thenApply(reply -> new Response<byte[]>(reply, null))).thenApply(Response::getPayload);
+
+		return this.queryUncached(canisterId, effectiveCanisterId, method, arg, ingressExpiryDatetime, explicitVerifyQuerySignatures);
+	}
+
+	CompletableFuture<byte[]> queryUncached(Principal canisterId, Principal effectiveCanisterId, String method,
+			byte[] arg, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures) throws AgentError {
 		QueryContent queryContent = new QueryContent();
 
 		queryContent.queryRequest.methodName = method;
@@ -328,7 +495,7 @@ public final class Agent {
 
 		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
 
-		this.queryEndpoint(effectiveCanisterId, queryContent,explicitVerifyQuerySignatures, null).whenComplete((input, ex) -> {
+		cancelledWith(response, this.queryEndpoint(effectiveCanisterId, queryContent,explicitVerifyQuerySignatures, null)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					if (input.replied.isPresent()) {	
@@ -336,7 +503,7 @@ public final class Agent {
 						response.complete(out);
 					} else if (input.rejected.isPresent()) {
 						response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,
-								input.rejected.get().rejectCode, input.rejected.get().rejectMessage));
+								input.rejected.get().rejectCode, input.rejected.get().rejectMessage).withRejectCode(input.rejected.get().getRejectCode()));
 					} else
 						response.completeExceptionally(
 								AgentError.create(AgentError.AgentErrorCode.INVALID_REPLICA_STATUS));
@@ -351,6 +518,98 @@ public final class Agent {
 		return response;
 	}
 	
+	/*
+	 * Query without copying the reply out of the response body. The reader gets a read-only
+	 * view of the reply arg, which is only valid while the reader runs; with a pooled transport
+	 * the underlying buffer goes back to the pool right after.
+	 */
+	public <T> CompletableFuture<T> queryRaw(Principal canisterId, Principal effectiveCanisterId, String method,
+			byte[] arg, Optional<Long> ingressExpiryDatetime, boolean explicitVerifyQuerySignatures,
+			Function<ByteBuffer, T> reader) throws AgentError {
+		QueryContent queryContent = new QueryContent();
+
+		queryContent.queryRequest.methodName = method;
+		queryContent.queryRequest.canisterId = canisterId;
+		queryContent.queryRequest.arg = arg;
+		queryContent.queryRequest.sender = this.identity.sender();
+
+		if (ingressExpiryDatetime.isPresent())
+			queryContent.queryRequest.ingressExpiry = ingressExpiryDatetime.get();
+		else
+			queryContent.queryRequest.ingressExpiry = this.getExpiryDate();
+
+		return this.queryEndpoint(effectiveCanisterId, queryContent, explicitVerifyQuerySignatures, null, input -> {
+			if (input.replied.isPresent())
+				return reader.apply(input.replied.get().getArgBuffer());
+			else if (input.rejected.isPresent())
+				throw AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR, input.rejected.get().rejectCode,
+						input.rejected.get().rejectMessage).withRejectCode(input.rejected.get().getRejectCode());
+			else
+				throw AgentError.create(AgentError.AgentErrorCode.INVALID_REPLICA_STATUS);
+		});
+	}
+
+	// positive TTL to cache a query to method with, or null
+	Duration getCacheTtl(String method, Duration cacheTtl) {
+		if (this.queryCache == null)
+			return null;
+
+		Duration ttl = cacheTtl != null ? cacheTtl : this.queryCache.getTtl(method);
+
+		if (ttl == null || ttl.isZero() || ttl.isNegative())
+			return null;
+
+		return ttl;
+	}
+
+	public QueryCache getQueryCache() {
+		return this.queryCache;
+	}
+
+	public QueryCoalescer getQueryCoalescer() {
+		return this.queryCoalescer;
+	}
+
+	public AdmissionControl getAdmissionControl() {
+		return this.admissionControl;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	public AgentMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/*
+	 * Bounded-concurrency submission of many update calls, see BulkUpdater.
+	 */
+	public BulkUpdater bulkUpdater() {
+		return BulkUpdater.create(this);
+	}
+
+	/*
+	 * The same query method on many canisters with deadlines, see ScatterQuery.
+	 */
+	public ScatterQuery scatterQuery(String methodName) {
+		return ScatterQuery.create(this, methodName);
+	}
+
+	/*
+	 * Change-only watch of a query reply, see Watch. Call start() on it after adding listeners.
+	 */
+	public Watch<byte[]> watch(Principal canisterId, String methodName, byte[] arg) {
+		return Watch.query(this, canisterId, methodName, arg);
+	}
+
+	/*
+	 * Change-only watch of certified read_state paths, see Watch.
+	 */
+	public Watch<Certificate> watch(Principal effectiveCanisterId, List<List<byte[]>> paths) {
+		return Watch.paths(this, effectiveCanisterId, paths);
+	}
+
 	public void verifySignatures(QueryResponse response, Principal effectiveCanisterId, RequestId requestId) throws AgentError {
 		if(response.signatures == null || response.signatures.isEmpty())
 			throw AgentError.create(AgentError.AgentErrorCode.MISSING_SIGNATURE);
@@ -432,13 +691,39 @@ public final class Agent {
 
 	public CompletableFuture<QueryResponse> queryEndpoint(Principal effectiveCanisterId, QueryContent request,boolean explicitVerifyQuerySignatures, Map<String,String> headers)
 			throws AgentError {
+		// the reply is copied out before a pooled body is released
+		return this.queryEndpoint(effectiveCanisterId, request, explicitVerifyQuerySignatures, headers, queryResponse -> {
+			if (queryResponse.replied != null && queryResponse.replied.isPresent())
+				queryResponse.replied.get().getArg();
+
+			return queryResponse;
+		});
+	}
+
+	/*
+	 * The handler runs while the response body is still held, a pooled body is released
+	 * as soon as it returns.
+	 */
+	<T> CompletableFuture<T> queryEndpoint(Principal effectiveCanisterId, QueryContent request,boolean explicitVerifyQuerySignatures, Map<String,String> headers,
+			Function<QueryResponse, T> handler) throws AgentError {
+		CompletableFuture<T> open = this.shortCircuit(request.queryRequest.canisterId, request.queryRequest.methodName);
+
+		if (open != null)
+			return open;
+
+		RequestTags tags = this.tags(request.queryRequest.canisterId, request.queryRequest.methodName, RequestType.QUERY);
+		long start = start(tags);
 
 		RequestId requestId = RequestId.toRequestId(request);
 
+		start = this.measure(Phase.REQUEST_ID, tags, start);
+
 		byte[] msg = this.constructMessage(requestId);
 
 		Signature signature = this.identity.sign(msg);
 
+		start = this.measure(Phase.SIGN, tags, start);
+
 		ObjectMapper objectMapper = new ObjectMapper(new CBORFactory()).registerModule(new Jdk8Module());
 
 		ObjectWriter objectWriter = objectMapper.writerFor(Envelope.class).withAttribute("request_type", "query");
@@ -457,32 +742,62 @@ public final class Agent {
 			// normally, rethrow exception here - or don't catch it at all.
 		}
 
-		CompletableFuture<QueryResponse> response = new CompletableFuture<QueryResponse>();
+		this.measure(Phase.ENCODE, tags, start);
+
+		byte[] envelopeBytes = bytes;
+
+		return this.recordedQuery(request.queryRequest.canisterId, request.queryRequest.methodName, handler,
+				recording -> this.sendQuery(effectiveCanisterId, tags, requestId, envelopeBytes, request.queryRequest.ingressExpiry,
+						explicitVerifyQuerySignatures, headers, recording));
+	}
+
+	/*
+	 * Send an already signed and encoded query envelope.
+	 */
+	<T> CompletableFuture<T> sendQuery(Principal effectiveCanisterId, RequestTags tags, RequestId requestId, byte[] envelopeBytes,
+			Long ingressExpiry, boolean explicitVerifyQuerySignatures, Map<String, String> headers,
+			Function<QueryResponse, T> handler) throws AgentError {
+		CompletableFuture<T> response = new CompletableFuture<T>();
+
+		cancelledWith(response, this.send(effectiveCanisterId, tags, () -> transport.query(effectiveCanisterId, envelopeBytes, headers), ingressExpiry)).whenComplete((input, ex) -> {
+			// the caller gave up already, skip parsing and verification
+			if (response.isDone()) {
+				if (input != null)
+					input.release();
+				return;
+			}
 
-		transport.query(effectiveCanisterId, bytes, headers).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					try {
-						QueryResponse queryResponse = objectMapper.readValue(input.payload, QueryResponse.class);
+						QueryResponse queryResponse;
+
+						long start = start(tags);
+
+						if (input.body != null)
+							queryResponse = QueryResponse.read(BODY_MAPPER, input.body);
+						else
+							queryResponse = BODY_MAPPER.readValue(input.payload, QueryResponse.class);
+
+						this.measure(Phase.DECODE, tags, queryResponse.rejected != null && queryResponse.rejected.isPresent()
+								? Outcome.REJECTED : Outcome.SUCCESS, start);
+
 						if(explicitVerifyQuerySignatures)
 						{
-							try
-							{
-								this.verifySignatures(queryResponse, effectiveCanisterId, requestId);
+							start = start(tags);
 
-								queryResponse.headers = input.headers;
-								response.complete(queryResponse);
-							}							
-							catch( AgentError e)
-							{
-								response.completeExceptionally(e);
+							try {
+								this.verifySignatures(queryResponse, effectiveCanisterId, requestId);
+							} catch (AgentError e) {
+								this.measure(Phase.QUERY_SIGNATURE_VERIFY, tags, Outcome.ERROR, start);
+								throw e;
 							}
+
+							this.measure(Phase.QUERY_SIGNATURE_VERIFY, tags, start);
 						}
-						else
-						{
-							queryResponse.headers = input.headers;
-							response.complete(queryResponse);
-						}
+
+						queryResponse.headers = input.headers;
+						response.complete(handler.apply(queryResponse));
 					}
 					catch ( AgentError e) {
 						response.completeExceptionally(e);
@@ -490,7 +805,10 @@ public final class Agent {
 					catch (Exception e) {
 						LOG.debug(e.getLocalizedMessage(), e);
 						response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.MESSAGE_ERROR, e,
-								new String(input.payload, StandardCharsets.UTF_8)));
+								new String(input.toByteArray(), StandardCharsets.UTF_8)));
+					}
+					finally {
+						input.release();
 					}
 
 				} else {
@@ -533,7 +851,7 @@ public final class Agent {
 
 		CompletableFuture<Response<RequestId>> response = new CompletableFuture<Response<RequestId>>();
 
-		this.callEndpoint(effectiveCanisterId, callRequestContent, request.getHeaders()).whenComplete((input, ex) -> {
+		cancelledWith(response, this.callEndpoint(effectiveCanisterId, callRequestContent, request.getHeaders())).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					Response<RequestId> updateResponse = new Response<RequestId>(input.requestId,input.headers);
@@ -573,7 +891,7 @@ public final class Agent {
 
 		CompletableFuture<RequestId> response = new CompletableFuture<RequestId>();
 
-		this.callEndpoint(effectiveCanisterId, callRequestContent, null).whenComplete((input, ex) -> {
+		cancelledWith(response, this.callEndpoint(effectiveCanisterId, callRequestContent, null)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					response.complete(input.requestId);
@@ -589,11 +907,24 @@ public final class Agent {
 
 	public CompletableFuture<UpdateResponse> callEndpoint(Principal effectiveCanisterId, CallRequestContent request, Map<String,String> headers)
 			throws AgentError {
+		CompletableFuture<UpdateResponse> open = this.shortCircuit(request.callRequest.canisterId, request.callRequest.methodName);
+
+		if (open != null)
+			return open;
+
+		RequestTags tags = this.tags(request.callRequest.canisterId, request.callRequest.methodName, RequestType.CALL);
+		long start = start(tags);
+
 		RequestId requestId = RequestId.toRequestId(request);
+
+		start = this.measure(Phase.REQUEST_ID, tags, start);
+
 		byte[] msg = this.constructMessage(requestId);
 
 		Signature signature = this.identity.sign(msg);
 
+		start = this.measure(Phase.SIGN, tags, start);
+
 		ObjectMapper objectMapper = new ObjectMapper(new CBORFactory()).registerModule(new Jdk8Module());
 
 		ObjectWriter objectWriter = objectMapper.writerFor(Envelope.class).withAttribute("request_type", "call");
@@ -612,11 +943,26 @@ public final class Agent {
 			// normally, rethrow exception here - or don't catch it at all.
 		}
 
+		this.measure(Phase.ENCODE, tags, start);
+
+		// the outcome of an accepted call is only known once it is polled, see UpdateBuilder
+		return this.recordedFailure(request.callRequest.canisterId, request.callRequest.methodName,
+				this.sendCall(effectiveCanisterId, tags, requestId, bytes, request.callRequest.ingressExpiry, headers));
+	}
+
+	/*
+	 * Send an already signed and encoded call envelope.
+	 */
+	CompletableFuture<UpdateResponse> sendCall(Principal effectiveCanisterId, RequestTags tags, RequestId requestId, byte[] envelopeBytes,
+			Long ingressExpiry, Map<String, String> headers) throws AgentError {
 		CompletableFuture<UpdateResponse> response = new CompletableFuture<UpdateResponse>();
 
-		transport.call(effectiveCanisterId, bytes, requestId, headers).whenComplete((input, ex) -> {
+		// a retried update carries the identical envelope, so the replica sees the same RequestId
+		cancelledWith(response, this.send(effectiveCanisterId, tags, () -> transport.call(effectiveCanisterId, envelopeBytes, requestId, headers), ingressExpiry)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
+					input.release();
+
 					UpdateResponse updateResponse = new UpdateResponse();
 					updateResponse.requestId = requestId;
 					updateResponse.headers = input.headers;
@@ -652,7 +998,7 @@ public final class Agent {
 
 		CompletableFuture<Response<RequestStatusResponse>> response = new CompletableFuture<Response<RequestStatusResponse>>();
 
-		this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, request.getHeaders()).whenComplete((input, ex) -> {
+		cancelledWith(response, this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, request.getHeaders())).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 
@@ -728,7 +1074,7 @@ public final class Agent {
 
 		CompletableFuture<RequestStatusResponse> response = new CompletableFuture<RequestStatusResponse>();
 
-		this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null).whenComplete((input, ex) -> {
+		cancelledWith(response, this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 
@@ -801,7 +1147,7 @@ public final class Agent {
 
 		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
 
-		this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null).whenComplete((input, ex) -> {
+		cancelledWith(response, this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 
@@ -834,6 +1180,55 @@ public final class Agent {
 		return response;
 	}
 	
+	/*
+	 * SHA-256 of the installed Wasm module, a much smaller read_state than the metadata itself.
+	 * Fails with LOOKUP_PATH_ABSENT if the canister is empty.
+	 */
+	public CompletableFuture<byte[]> moduleHashRaw(Principal canisterId, Principal effectiveCanisterId)
+			throws AgentError {
+		List<List<byte[]>> paths = new ArrayList<List<byte[]>>();
+
+		List<byte[]> path = new ArrayList<byte[]>();
+		path.add("canister".getBytes());
+		path.add(canisterId.getValue());
+		path.add("module_hash".getBytes());
+		paths.add(path);
+
+		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+
+		cancelledWith(response, this.readStateRaw(effectiveCanisterId, paths, false, null)).whenComplete((input, ex) -> {
+			if (ex == null) {
+				if (input != null) {
+					try {
+						response.complete(ResponseAuthentication.lookupModuleHash(input.certificate, canisterId));
+					} catch (AgentError e) {
+						response.completeExceptionally(e);
+					} catch (Exception e) {
+						response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e));
+					}
+				} else {
+					response.completeExceptionally(
+							AgentError.create(AgentError.AgentErrorCode.INVALID_CBOR_DATA, input));
+				}
+			} else
+				response.completeExceptionally(ex);
+		});
+
+		return response;
+	}
+
+	public byte[] getModuleHash(Principal canisterId) throws AgentError {
+		try {
+			return this.moduleHashRaw(canisterId, canisterId).get();
+		} catch (InterruptedException e) {
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof AgentError)
+				throw (AgentError) e.getCause();
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		}
+	}
+
 	public CompletableFuture<Certificate> fetchCertificate(Principal canisterId, Principal effectiveCanisterId, String name)
 			throws AgentError {
 		return this.fetchCertificate(canisterId, effectiveCanisterId,name, false);
@@ -851,7 +1246,7 @@ public final class Agent {
 
 		CompletableFuture<Certificate> response = new CompletableFuture<Certificate>();
 
-		this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null).whenComplete((input, ex) -> {
+		cancelledWith(response, this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 
@@ -920,7 +1315,7 @@ public final class Agent {
 
 		CompletableFuture<SubnetResponse> response = new CompletableFuture<SubnetResponse>();
 
-		this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null).whenComplete((input, ex) -> {
+		cancelledWith(response, this.readStateRaw(effectiveCanisterId, paths,disableRangeCheck, null)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 
@@ -970,16 +1365,26 @@ public final class Agent {
 
 		readStateContent.readStateRequest.paths = paths;
 		readStateContent.readStateRequest.sender = this.identity.sender();
-		readStateContent.readStateRequest.ingressExpiry = this.getExpiryDate();
+		readStateContent.readStateRequest.ingressExpiry = this.getReadStateExpiryDate();
 
 		CompletableFuture<CertificateResponse> response = new CompletableFuture<CertificateResponse>();
 
-		this.readStateEndpoint(effectiveCanisterId, readStateContent, headers, ReadStateResponse.class)
+		RequestTags tags = this.tags(effectiveCanisterId, null, RequestType.READ_STATE);
+
+		cancelledWith(response, this.readStateEndpoint(effectiveCanisterId, readStateContent, headers, ReadStateResponse.class))
 				.whenComplete((input, ex) -> {
+					// the caller gave up already, skip certificate verification
+					if (response.isDone())
+						return;
+
 					if (ex == null) {
 						if (input != null) {
 							try {
+								long start = start(tags);
+
 								Certificate cert = objectMapper.readValue(input.state.certificate, Certificate.class);
+
+								start = this.measure(Phase.CERTIFICATE_PARSE, tags, start);
 													
 								CertificateResponse certificateResponse = new CertificateResponse();
 								certificateResponse.certificate = cert;
@@ -987,10 +1392,16 @@ public final class Agent {
 								
 								try {
 									if(this.verify)
+									{
 										this.verify(cert,effectiveCanisterId,disableRangeCheck );
+										this.measure(Phase.BLS_VERIFY, tags, start);
+									}
 									
 									response.complete(certificateResponse);									
 								}catch ( AgentError e) {
+									if(this.verify)
+										this.measure(Phase.BLS_VERIFY, tags, Outcome.ERROR, start);
+									
 									if(e.code == AgentError.AgentErrorCode.CERTIFICATE_VERIFICATION_FAILED || e.code == AgentError.AgentErrorCode.CERTIFICATE_NOT_AUTHORIZED)
 										e.setResponse(certificateResponse);
 									response.completeExceptionally(e);
@@ -1123,37 +1534,26 @@ public final class Agent {
 	public <T> CompletableFuture<StateResponse<T>> readStateEndpoint(Principal effectiveCanisterId, ReadStateContent request, Map<String,String> headers,
 			Class<T> clazz) throws AgentError {
 
-		RequestId requestId = RequestId.toRequestId(request);
+		byte[] envelopeBytes;
 
-		byte[] msg = this.constructMessage(requestId);
-
-		Signature signature = this.identity.sign(msg);
-
-		ObjectMapper objectMapper = new ObjectMapper(new CBORFactory()).registerModule(new Jdk8Module());
+		RequestTags tags = this.tags(effectiveCanisterId, null, RequestType.READ_STATE);
 
-		ObjectWriter objectWriter = objectMapper.writerFor(Envelope.class).withAttribute("request_type", "read_state");
-
-		Envelope<ReadStateContent> envelope = new Envelope<ReadStateContent>();
-
-		envelope.content = request;
-		envelope.senderPubkey = signature.publicKey;
-		envelope.senderSig = signature.signature;
-
-		byte[] bytes = null;
-		try {
-			bytes = objectWriter.writeValueAsBytes(envelope);
-		} catch (JsonProcessingException e) {
-			throw AgentError.create(AgentError.AgentErrorCode.INVALID_CBOR_DATA, e, envelope);
-			// normally, rethrow exception here - or don't catch it at all.
-		}
+		if (this.readStateEnvelopeCache != null)
+			envelopeBytes = this.readStateEnvelopeCache.get(request, () -> this.encodeReadState(request, tags));
+		else
+			envelopeBytes = this.encodeReadState(request, tags);
 
 		CompletableFuture<StateResponse<T>> response = new CompletableFuture<StateResponse<T>>();
 
-		transport.readState(effectiveCanisterId, bytes, headers).whenComplete((input, ex) -> {
+		cancelledWith(response, this.send(effectiveCanisterId, tags, () -> transport.readState(effectiveCanisterId, envelopeBytes, headers), request.readStateRequest.ingressExpiry)).whenComplete((input, ex) -> {
 			if (ex == null) {
 				if (input != null) {
 					try {
-						T readStateResponse = objectMapper.readValue(input.payload, clazz);
+						long start = start(tags);
+
+						T readStateResponse = readValue(BODY_MAPPER, input, clazz);
+
+						this.measure(Phase.DECODE, tags, start);
 						
 						StateResponse<T> stateResponse = new StateResponse<T>();
 						
@@ -1163,7 +1563,9 @@ public final class Agent {
 					} catch (Exception e) {
 						LOG.debug(e.getLocalizedMessage(), e);
 						response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.MESSAGE_ERROR, e,
-								new String(input.payload, StandardCharsets.UTF_8)));
+								new String(input.toByteArray(), StandardCharsets.UTF_8)));
+					} finally {
+						input.release();
 					}
 
 				} else {
@@ -1178,7 +1580,232 @@ public final class Agent {
 
 		return response;
 	}
+
+	byte[] encodeReadState(ReadStateContent request, RequestTags tags) throws AgentError {
+		long start = start(tags);
+
+		RequestId requestId = RequestId.toRequestId(request);
+
+		start = this.measure(Phase.REQUEST_ID, tags, start);
+
+		byte[] msg = this.constructMessage(requestId);
+
+		Signature signature = this.identity.sign(msg);
+
+		start = this.measure(Phase.SIGN, tags, start);
+
+		ObjectMapper objectMapper = new ObjectMapper(new CBORFactory()).registerModule(new Jdk8Module());
+
+		ObjectWriter objectWriter = objectMapper.writerFor(Envelope.class).withAttribute("request_type", "read_state");
+
+		Envelope<ReadStateContent> envelope = new Envelope<ReadStateContent>();
+
+		envelope.content = request;
+		envelope.senderPubkey = signature.publicKey;
+		envelope.senderSig = signature.signature;
+
+		byte[] bytes = null;
+		try {
+			bytes = objectWriter.writeValueAsBytes(envelope);
+		} catch (JsonProcessingException e) {
+			throw AgentError.create(AgentError.AgentErrorCode.INVALID_CBOR_DATA, e, envelope);
+			// normally, rethrow exception here - or don't catch it at all.
+		}
+
+		this.measure(Phase.ENCODE, tags, start);
+
+		return bytes;
+	}
 	
+	/*
+	 * Send through the retry policy, if there is one. The supplier has to send the same envelope every time.
+	 * With admission control, every attempt waits for its turn; effectiveCanisterId is null for status.
+	 * Each attempt's round trip is measured from the moment it reaches the transport.
+	 */
+	CompletableFuture<ReplicaResponse> send(Principal effectiveCanisterId, RequestTags tags, Supplier<CompletableFuture<ReplicaResponse>> transportRequest, Long ingressExpiry) {
+		AdmissionControl admissionControl = this.admissionControl;
+		Priority priority = this.priority;
+
+		Supplier<CompletableFuture<ReplicaResponse>> timed = tags == null ? transportRequest : () -> {
+			long start = System.nanoTime();
+
+			CompletableFuture<ReplicaResponse> attempt = transportRequest.get();
+			attempt.whenComplete((input, ex) -> this.measure(Phase.ROUND_TRIP, tags, Outcome.of(ex), start));
+
+			return attempt;
+		};
+
+		Supplier<CompletableFuture<ReplicaResponse>> request = admissionControl == null ? timed
+				: () -> admissionControl.submit(effectiveCanisterId, priority, timed);
+
+		if (!this.retryPolicy.isPresent())
+			return this.completeOn(request.get());
+
+		return this.completeOn(this.retryPolicy.get().execute(request, ingressExpiry == null ? Long.MAX_VALUE : ingressExpiry));
+	}
+
+	/*
+	 * Hand the transport response to the completion executor, the only hop of a request. Everything
+	 * chained on it, up to the future returned to the caller, then runs on the executor thread.
+	 */
+	CompletableFuture<ReplicaResponse> completeOn(CompletableFuture<ReplicaResponse> response) {
+		Executor executor = this.completionExecutor;
+
+		if (executor == null)
+			return response;
+
+		CompletableFuture<ReplicaResponse> completion = new CompletableFuture<ReplicaResponse>();
+
+		response.whenComplete((input, ex) -> {
+			Runnable complete = () -> {
+				if (ex != null)
+					completion.completeExceptionally(ex);
+				else if (!completion.complete(input) && input != null)
+					input.release();
+			};
+
+			try {
+				if (executor instanceof PriorityExecutor)
+					((PriorityExecutor) executor).execute(this.priority, complete);
+				else
+					executor.execute(complete);
+			} catch (RejectedExecutionException e) {
+				complete.run();
+			}
+		});
+
+		// cancelling the caller's side cancels the request
+		cancelledWith(completion, response);
+
+		return completion;
+	}
+
+	/*
+	 * Tags of a request's measurements, null without AgentMetrics so that nothing is measured.
+	 */
+	RequestTags tags(Principal canisterId, String method, RequestType requestType) {
+		return this.metrics != null ? RequestTags.create(canisterId, method, requestType) : null;
+	}
+
+	static long start(RequestTags tags) {
+		return tags != null ? System.nanoTime() : 0;
+	}
+
+	/*
+	 * Record the time since start for a phase that succeeded, and return now as the start of the next one.
+	 */
+	long measure(Phase phase, RequestTags tags, long start) {
+		return this.measure(phase, tags, Outcome.SUCCESS, start);
+	}
+
+	long measure(Phase phase, RequestTags tags, Outcome outcome, long start) {
+		if (tags == null)
+			return 0;
+
+		long now = System.nanoTime();
+
+		this.metrics.record(phase, tags, outcome, now - start);
+
+		return now;
+	}
+
+	/*
+	 * Failed future if the CircuitBreaker keeps calls to canisterId's method from going through,
+	 * otherwise null.
+	 */
+	<T> CompletableFuture<T> shortCircuit(Principal canisterId, String method) {
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+
+		if (circuitBreaker == null)
+			return null;
+
+		AgentError error = circuitBreaker.check(canisterId, method);
+
+		if (error == null)
+			return null;
+
+		CompletableFuture<T> response = new CompletableFuture<T>();
+		response.completeExceptionally(error);
+
+		return response;
+	}
+
+	/*
+	 * Report to the CircuitBreaker how a call ended.
+	 */
+	<T> CompletableFuture<T> recorded(Principal canisterId, String method, CompletableFuture<T> response) {
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+
+		if (circuitBreaker != null)
+			response.whenComplete((input, ex) -> circuitBreaker.record(canisterId, method, ex));
+
+		return response;
+	}
+
+	<T> CompletableFuture<T> recordedFailure(Principal canisterId, String method, CompletableFuture<T> response) {
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+
+		if (circuitBreaker != null)
+			response.whenComplete((input, ex) -> {
+				if (ex != null)
+					circuitBreaker.record(canisterId, method, ex);
+			});
+
+		return response;
+	}
+
+	/*
+	 * Report to the CircuitBreaker how a query ended: with the reject code if the replica answered,
+	 * handled before the reply is turned into a value or error, otherwise with the error.
+	 */
+	<T> CompletableFuture<T> recordedQuery(Principal canisterId, String method, Function<QueryResponse, T> handler,
+			Function<Function<QueryResponse, T>, CompletableFuture<T>> query) {
+		CircuitBreaker circuitBreaker = this.circuitBreaker;
+
+		if (circuitBreaker == null)
+			return query.apply(handler);
+
+		AtomicBoolean answered = new AtomicBoolean();
+
+		CompletableFuture<T> response = query.apply(queryResponse -> {
+			answered.set(true);
+			circuitBreaker.recordReply(canisterId, method, queryResponse.rejected != null && queryResponse.rejected.isPresent()
+					? queryResponse.rejected.get().getRejectCode() : null);
+
+			return handler.apply(queryResponse);
+		});
+
+		response.whenComplete((input, ex) -> {
+			if (!answered.get())
+				circuitBreaker.record(canisterId, method, ex);
+		});
+
+		return response;
+	}
+
+	/*
+	 * Cancel a request once the caller's side fails first, cancelled or past its deadline, so that
+	 * the transport aborts the exchange and gives the connection back right away.
+	 */
+	static <T> CompletableFuture<T> cancelledWith(CompletableFuture<?> response, CompletableFuture<T> request) {
+		response.whenComplete((input, ex) -> {
+			if (ex != null && !request.isDone())
+				request.cancel(true);
+		});
+
+		return request;
+	}
+
+	/*
+	 * Parse a response body, streaming it from the pooled buffer if the transport uses one.
+	 */
+	static <T> T readValue(ObjectMapper objectMapper, ReplicaResponse input, Class<T> clazz) throws IOException {
+		if (input.body != null)
+			return objectMapper.readValue(new ByteBufferBackedInputStream(input.body.duplicate()), clazz);
+		else
+			return objectMapper.readValue(input.payload, clazz);
+	}
+
 	static Principal getSubnetId(Certificate certificate, byte[] rootKey) {
 		Principal subnetId;
 		
@@ -1207,7 +1834,7 @@ public final class Agent {
 	
 	public void close()
 	{
-		if(this.transport != null)
+		if(this.transport != null && this.ownsTransport)
 			this.transport.close();
 	}
 	
@@ -18,8 +18,10 @@ package org.ic4j.agent;
 
 import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import org.ic4j.agent.identity.Identity;
+import org.ic4j.agent.metrics.AgentMetrics;
 
 
 public class AgentBuilder {
@@ -31,6 +33,17 @@ public class AgentBuilder {
 	 */
 	public Agent build()
 	{
+		// checked here, the ingress expiry may be set after the cache
+		if (this.config.readStateBucket.isPresent()) {
+			Duration ingressExpiry = this.config.ingressExpiryDuration
+					.orElse(Duration.ofSeconds(Agent.DEFAULT_INGRESS_EXPIRY_DURATION))
+					.minusSeconds(Agent.DEFAULT_PERMITTED_DRIFT);
+			
+			if (this.config.readStateBucket.get().compareTo(ingressExpiry) >= 0)
+				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR,
+						"Read state envelope bucket must be below the ingress expiry of " + ingressExpiry.getSeconds() + "s");
+		}
+		
 		Agent agent = new Agent(this);
 		
 		return agent;
@@ -75,6 +88,122 @@ public class AgentBuilder {
 		return this;
 	}
 	
+	/*
+	* Retry transport requests that fail on the connection or with 429 and 5xx responses.
+	* By default, nothing is retried. The transport is left as it is: its own HTTP retries,
+	* which do not know the ingress expiry, stay on until turned off with
+	* ReplicaTransport.setAutomaticRetries(false). Agents sharing the transport lose them too.
+	*/
+	
+	public AgentBuilder retryPolicy(RetryPolicy retryPolicy)
+	{
+		this.config.retryPolicy = Optional.of(retryPolicy);
+		return this;
+	}
+	
+	/*
+	* Round the ingress expiry of read_state requests down to multiples of bucket and reuse
+	* signed read_state envelopes with the same sender, paths and expiry. Request status polls
+	* within one bucket then send the same bytes without signing again. The bucket has to be
+	* well below the ingress expiry duration, an envelope is sent until its bucket ends.
+	*/
+	
+	public AgentBuilder readStateEnvelopeCache(Duration bucket)
+	{
+		return this.readStateEnvelopeCache(bucket, ReadStateEnvelopeCache.DEFAULT_MAX_ENTRIES);
+	}
+	
+	public AgentBuilder readStateEnvelopeCache(Duration bucket, int maxEntries)
+	{
+		if (bucket.isNegative() || bucket.isZero())
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Read state envelope bucket must be positive");
+		
+		if (maxEntries <= 0)
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Read state envelope cache size must be positive");
+		
+		this.config.readStateBucket = Optional.of(bucket);
+		this.config.readStateEnvelopeCacheSize = maxEntries;
+		return this;
+	}
+	
+	/*
+	* Serve replies of queries with a TTL from cache, see QueryCache. By default, nothing is cached.
+	*/
+	
+	public AgentBuilder queryCache(QueryCache queryCache)
+	{
+		this.config.queryCache = queryCache;
+		return this;
+	}
+	
+	/*
+	* Send identical queries in flight at the same time only once, see QueryCoalescer.
+	* By default, every query is sent.
+	*/
+	
+	public AgentBuilder queryCoalescer(QueryCoalescer queryCoalescer)
+	{
+		this.config.queryCoalescer = queryCoalescer;
+		return this;
+	}
+	
+	/*
+	* Rate limit requests per endpoint, canister and subnet before they reach the transport,
+	* see AdmissionControl. Retries are admitted like any other request.
+	*/
+	
+	public AgentBuilder admissionControl(AdmissionControl admissionControl)
+	{
+		this.config.admissionControl = admissionControl;
+		return this;
+	}
+	
+	/*
+	* Fail calls to canisters that keep failing right away with CIRCUIT_OPEN, see CircuitBreaker.
+	*/
+	
+	public AgentBuilder circuitBreaker(CircuitBreaker circuitBreaker)
+	{
+		this.config.circuitBreaker = circuitBreaker;
+		return this;
+	}
+	
+	/*
+	* Report hashing, signing, encoding, round trip, decoding and verification times of every request,
+	* and poll counts and latency of update calls, see AgentMetrics and HistogramMetrics.
+	*/
+	
+	public AgentBuilder metrics(AgentMetrics metrics)
+	{
+		this.config.metrics = metrics;
+		return this;
+	}
+	
+	/*
+	* Complete the futures the Agent returns on executor instead of the transport's thread, the
+	* I/O reactor of the Apache transport, so that slow callbacks do not hold up other requests.
+	* Each request moves to the executor once, right after the transport replied; decoding,
+	* verification and callbacks then run there without further hops. A PriorityExecutor runs
+	* them by the Priority of the request.
+	*/
+	
+	public AgentBuilder completionExecutor(Executor completionExecutor)
+	{
+		this.config.completionExecutor = completionExecutor;
+		return this;
+	}
+	
+	/*
+	* Complete the futures the Agent returns on the transport's thread, without a context switch.
+	* This is the default, for callbacks that are short and latency sensitive.
+	*/
+	
+	public AgentBuilder completeInline()
+	{
+		this.config.completionExecutor = null;
+		return this;
+	}
+	
 	
 
 }
@@ -18,9 +18,11 @@ package org.ic4j.agent;
 
 import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import org.ic4j.agent.identity.AnonymousIdentity;
 import org.ic4j.agent.identity.Identity;
+import org.ic4j.agent.metrics.AgentMetrics;
 
 /** 
  * A configuration for an agent.
@@ -35,4 +37,13 @@ class AgentConfig
 	Optional<Duration> ingressExpiryDuration  = Optional.empty();
 	Identity identity = new AnonymousIdentity();
 	NonceFactory nonceFactory = new NonceFactory();
+	Optional<RetryPolicy> retryPolicy = Optional.empty();
+	Optional<Duration> readStateBucket = Optional.empty();
+	int readStateEnvelopeCacheSize = ReadStateEnvelopeCache.DEFAULT_MAX_ENTRIES;
+	QueryCache queryCache;
+	QueryCoalescer queryCoalescer;
+	AdmissionControl admissionControl;
+	CircuitBreaker circuitBreaker;
+	AgentMetrics metrics;
+	Executor completionExecutor;
 }
@@ -18,6 +18,8 @@ package org.ic4j.agent;
 
 import java.text.MessageFormat;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 public final class AgentError extends Error {
 	/**
@@ -31,6 +33,9 @@ public final class AgentError extends Error {
 	AgentErrorCode code;
 	
 	Object response;
+	
+	// reject code of a REPLICA_ERROR, 0 if unknown
+	int rejectCode;
 
 	static {
 		properties = ResourceBundle.getBundle(RESOURCE_BUNDLE_FILE);
@@ -54,6 +59,23 @@ public final class AgentError extends Error {
 		return new AgentError(code,t, message);
 	}	
 
+	/**
+	 * @return the AgentError behind a failed future, CompletionException and ExecutionException
+	 *         unwrapped, any other cause wrapped in a CUSTOM_ERROR
+	 */
+	public static AgentError unwrap(Throwable ex) {
+		Throwable cause = ex;
+
+		while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+				&& cause.getCause() != null)
+			cause = cause.getCause();
+
+		if (cause instanceof AgentError)
+			return (AgentError) cause;
+
+		return create(AgentErrorCode.CUSTOM_ERROR, cause, cause.getLocalizedMessage());
+	}
+
 	private AgentError(AgentErrorCode code, String message) {
 		super(message);
 		this.code = code;
@@ -68,6 +90,19 @@ public final class AgentError extends Error {
 		return code;
 	}
 	
+	/**
+	 * @return the reject code of a REPLICA_ERROR, 0 if unknown
+	 */
+	public int getRejectCode() {
+		return rejectCode;
+	}
+	
+	AgentError withRejectCode(Integer rejectCode) {
+		if (rejectCode != null)
+			this.rejectCode = rejectCode;
+		return this;
+	}
+	
 	/**
 	 * @return the response
 	 */
@@ -116,7 +151,10 @@ public final class AgentError extends Error {
 		MALFORMED_SIGNATURE("MalformedSignature"),
 		MALFORMED_PUBLIC_KEY("MalformedSignature"),
 		TOO_MANY_SIGNATURES("TooManySignatures"),
-		QUERY_SIGNATURE_VERIFICATION_FAILED("QuerySignatureVerificationFailed")
+		QUERY_SIGNATURE_VERIFICATION_FAILED("QuerySignatureVerificationFailed"),
+		DEADLINE_EXCEEDED("DeadlineExceeded"),
+		ADMISSION_REJECTED("AdmissionRejected"),
+		CIRCUIT_OPEN("CircuitOpen")
 		;
 		
 		public String label;
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.ic4j.agent.annotations.IdentityType;
+import org.ic4j.agent.annotations.Transport;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.ic4j.agent.identity.AnonymousIdentity;
+import org.ic4j.agent.identity.BasicIdentity;
+import org.ic4j.agent.identity.Identity;
+import org.ic4j.agent.identity.PemError;
+import org.ic4j.agent.identity.Prime256v1Identity;
+import org.ic4j.agent.identity.Secp256k1Identity;
+
+/*
+ * Agents built for interfaces annotated with @Agent. Proxies with the same transport url,
+ * identity type, PEM file and fetchRootKey share one Agent, and so one HTTP client with its
+ * I/O reactor and connection pool. The Agent is closed when the last proxy using it is released
+ * with ProxyBuilder.release.
+ *
+ * A BASIC identity without PEM file is generated once per shared Agent, not per proxy.
+ */
+final class AgentRegistry {
+	static final AgentRegistry INSTANCE = new AgentRegistry();
+
+	// guards agents and the reference counts. Agents are created outside of it, fetchRootKey
+	// goes to the network, so proxies for other agents are not held up by it
+	final ReentrantLock lock = new ReentrantLock();
+	final Map<Key, SharedAgent> agents = new HashMap<Key, SharedAgent>();
+
+	Lease acquire(org.ic4j.agent.annotations.Agent agentAnnotation) throws AgentError {
+		Key key = new Key(agentAnnotation);
+
+		SharedAgent sharedAgent;
+		boolean creator = false;
+
+		this.lock.lock();
+
+		try {
+			sharedAgent = this.agents.get(key);
+
+			if (sharedAgent == null) {
+				sharedAgent = new SharedAgent(key);
+				this.agents.put(key, sharedAgent);
+
+				creator = true;
+			}
+
+			sharedAgent.references++;
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (creator) {
+			try {
+				sharedAgent.agent.complete(create(agentAnnotation));
+			} catch (RuntimeException e) {
+				this.failed(sharedAgent, e);
+				throw e;
+			}
+		}
+
+		// proxies for the same agent wait for the one creating it
+		try {
+			return new Lease(sharedAgent, sharedAgent.agent.join());
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof AgentError)
+				throw (AgentError) e.getCause();
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e.getCause());
+		}
+	}
+
+	/*
+	 * Waiting proxies get the creation error, later ones try again.
+	 */
+	void failed(SharedAgent sharedAgent, RuntimeException e) {
+		this.lock.lock();
+
+		try {
+			this.agents.remove(sharedAgent.key, sharedAgent);
+		} finally {
+			this.lock.unlock();
+		}
+
+		sharedAgent.agent.completeExceptionally(e);
+	}
+
+	void release(SharedAgent sharedAgent) {
+		this.lock.lock();
+
+		try {
+			if (--sharedAgent.references > 0)
+				return;
+
+			this.agents.remove(sharedAgent.key, sharedAgent);
+		} finally {
+			this.lock.unlock();
+		}
+
+		sharedAgent.agent.join().close();
+	}
+
+	int size() {
+		this.lock.lock();
+
+		try {
+			return this.agents.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	static Agent create(org.ic4j.agent.annotations.Agent agentAnnotation) throws AgentError {
+		Transport transportAnnotation = agentAnnotation.transport();
+		org.ic4j.agent.annotations.Identity identityAnnotation = agentAnnotation.identity();
+
+		ReplicaTransport transport;
+
+		try {
+			transport = ReplicaApacheHttpTransport.create(transportAnnotation.url());
+		} catch (URISyntaxException e) {
+			throw AgentError.create(AgentError.AgentErrorCode.INVALID_REPLICA_URL, e, transportAnnotation.url());
+		}
+
+		try {
+			Identity identity = new AnonymousIdentity();
+
+			switch (identityAnnotation.type()) {
+			case ANONYMOUS:
+				identity = new AnonymousIdentity();
+				break;
+			case BASIC:
+				if ("".equals(identityAnnotation.pem_file())) {
+					KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+					identity = BasicIdentity.fromKeyPair(keyPair);
+				} else {
+					Path path = Paths.get(identityAnnotation.pem_file());
+
+					identity = BasicIdentity.fromPEMFile(path);
+				}
+				break;
+			case SECP256K1:
+				Path path = Paths.get(identityAnnotation.pem_file());
+
+				identity = Secp256k1Identity.fromPEMFile(path);
+				break;
+
+			case PRIME256V1:
+				path = Paths.get(identityAnnotation.pem_file());
+
+				identity = Prime256v1Identity.fromPEMFile(path);
+				break;
+			}
+
+			Agent agent = new AgentBuilder().transport(transport).identity(identity).build();
+
+			if (agentAnnotation.fetchRootKey())
+				agent.fetchRootKey();
+
+			return agent;
+		} catch (NoSuchAlgorithmException e) {
+			transport.close();
+			throw PemError.create(PemError.PemErrorCode.PEM_ERROR, e, identityAnnotation.pem_file());
+		} catch (RuntimeException e) {
+			transport.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * HTTP, the only transport type, is always built with ReplicaApacheHttpTransport, so the type
+	 * does not tell agents apart.
+	 */
+	static final class Key {
+		final String url;
+		final IdentityType identityType;
+		final String pemFile;
+		final boolean fetchRootKey;
+
+		Key(org.ic4j.agent.annotations.Agent agentAnnotation) {
+			this.url = agentAnnotation.transport().url();
+			this.identityType = agentAnnotation.identity().type();
+			this.pemFile = agentAnnotation.identity().pem_file();
+			this.fetchRootKey = agentAnnotation.fetchRootKey();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key key = (Key) obj;
+
+			return this.url.equals(key.url) && this.identityType == key.identityType
+					&& this.pemFile.equals(key.pemFile) && this.fetchRootKey == key.fetchRootKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.url, this.identityType, this.pemFile, this.fetchRootKey);
+		}
+	}
+
+	static final class SharedAgent {
+		final Key key;
+		// completed by the first proxy asking for it
+		final CompletableFuture<Agent> agent = new CompletableFuture<Agent>();
+		// guarded by the registry
+		int references;
+
+		SharedAgent(Key key) {
+			this.key = key;
+		}
+	}
+
+	/*
+	 * One proxy's reference to a shared Agent, released at most once.
+	 */
+	final class Lease {
+		final SharedAgent sharedAgent;
+		final Agent agent;
+		final AtomicBoolean released = new AtomicBoolean();
+
+		Lease(SharedAgent sharedAgent, Agent agent) {
+			this.sharedAgent = sharedAgent;
+			this.agent = agent;
+		}
+
+		Agent getAgent() {
+			return this.agent;
+		}
+
+		void release() {
+			if (this.released.compareAndSet(false, true))
+				AgentRegistry.this.release(this.sharedAgent);
+		}
+	}
+}
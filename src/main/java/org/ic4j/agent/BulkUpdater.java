@@ -0,0 +1,535 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Many update calls without a thread per call.
+ *
+ * Items are taken from an iterator only while the run has room: at most maxInFlight calls
+ * overall and maxInFlightPerCanister per effective canister are submitted or polled at a time,
+ * and completed results waiting for the consumer count against the same window. Calls are signed
+ * on the signing executor. Every pollInterval the shared timer thread hands one check of the
+ * request status of all calls in flight to the common ForkJoinPool, like Watch does, without
+ * blocking a thread per call.
+ *
+ * The item iterator is advanced from the thread calling submit, the thread taking results and the
+ * threads completing calls: the signing executor and the transport's I/O threads. It is only used
+ * under the run's lock, one thread at a time, so it need not be thread safe, but it must not block.
+ *
+ * Results come back through Run, in item order or as completed, and Run reports progress while
+ * the calls are running.
+ */
+public final class BulkUpdater {
+	static final Logger LOG = LoggerFactory.getLogger(BulkUpdater.class);
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+	public static final int DEFAULT_MAX_IN_FLIGHT_PER_CANISTER = 32;
+	public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofMillis(500);
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
+	final Agent agent;
+
+	Executor signingExecutor = ForkJoinPool.commonPool();
+	int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	int maxInFlightPerCanister = DEFAULT_MAX_IN_FLIGHT_PER_CANISTER;
+	Duration pollInterval = DEFAULT_POLL_INTERVAL;
+	Duration timeout = DEFAULT_TIMEOUT;
+	boolean ordered;
+
+	BulkUpdater(Agent agent) {
+		this.agent = agent;
+	}
+
+	public static BulkUpdater create(Agent agent) {
+		return new BulkUpdater(agent);
+	}
+
+	/*
+	 * Executor signing and sending the calls, the common ForkJoinPool by default.
+	 */
+	public BulkUpdater signingExecutor(Executor signingExecutor) {
+		this.signingExecutor = signingExecutor;
+		return this;
+	}
+
+	public BulkUpdater maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public BulkUpdater maxInFlightPerCanister(int maxInFlightPerCanister) {
+		this.maxInFlightPerCanister = maxInFlightPerCanister;
+		return this;
+	}
+
+	public BulkUpdater pollInterval(Duration pollInterval) {
+		this.pollInterval = pollInterval;
+		return this;
+	}
+
+	/*
+	 * Time a call may take from submission to its reply before it fails.
+	 */
+	public BulkUpdater timeout(Duration timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/*
+	 * Deliver results in the order of the items instead of as completed.
+	 */
+	public BulkUpdater ordered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	public Run submit(Stream<Item> items) {
+		return this.submit(items.iterator());
+	}
+
+	public Run submit(Iterator<Item> items) {
+		Run run = new Run(items);
+
+		run.dispatch();
+
+		return run;
+	}
+
+	public static final class Item {
+		final Principal canisterId;
+		final Principal effectiveCanisterId;
+		final String methodName;
+		final byte[] arg;
+
+		Item(Principal canisterId, Principal effectiveCanisterId, String methodName, byte[] arg) {
+			this.canisterId = canisterId;
+			this.effectiveCanisterId = effectiveCanisterId;
+			this.methodName = methodName;
+			this.arg = arg;
+		}
+
+		public static Item create(Principal canisterId, String methodName, byte[] arg) {
+			return new Item(canisterId, canisterId, methodName, arg);
+		}
+
+		public static Item create(Principal canisterId, Principal effectiveCanisterId, String methodName, byte[] arg) {
+			return new Item(canisterId, effectiveCanisterId, methodName, arg);
+		}
+
+		public Principal getCanisterId() {
+			return this.canisterId;
+		}
+
+		public String getMethodName() {
+			return this.methodName;
+		}
+	}
+
+	public static final class Result {
+		final long index;
+		final Item item;
+		final byte[] reply;
+		final AgentError error;
+
+		Result(long index, Item item, byte[] reply, AgentError error) {
+			this.index = index;
+			this.item = item;
+			this.reply = reply;
+			this.error = error;
+		}
+
+		/*
+		 * Position of the item in the submitted iterator, starting at 0.
+		 */
+		public long getIndex() {
+			return this.index;
+		}
+
+		public Item getItem() {
+			return this.item;
+		}
+
+		public boolean isSuccess() {
+			return this.error == null;
+		}
+
+		public byte[] getReply() {
+			return this.reply;
+		}
+
+		public AgentError getError() {
+			return this.error;
+		}
+	}
+
+	/*
+	 * A running submission. Iterating blocks until the next result is available; taking results
+	 * makes room for further items. Closing stops taking items, calls in flight still complete.
+	 */
+	public final class Run implements Iterator<Result>, AutoCloseable {
+		final Iterator<Item> items;
+
+		final ScheduledFuture<?> poller;
+		// by request id bytes, RequestId has no equals
+		final ConcurrentMap<ByteBuffer, Poll> polls = new ConcurrentHashMap<ByteBuffer, Poll>();
+
+		final Map<Principal, Integer> inFlightPerCanister = new HashMap<Principal, Integer>();
+		final ArrayDeque<Result> ready = new ArrayDeque<Result>();
+		final TreeMap<Long, Result> reordered = new TreeMap<Long, Result>();
+
+		final long startTime = System.nanoTime();
+
+		// item taken from the iterator, waiting for room in its canister's window
+		Item next;
+		long nextIndex;
+		long nextDelivered;
+		boolean exhausted;
+		boolean closed;
+
+		int inFlight;
+		long submitted;
+		long completed;
+		long failed;
+
+		Run(Iterator<Item> items) {
+			this.items = items;
+
+			long interval = BulkUpdater.this.pollInterval.toNanos();
+
+			this.poller = Timeouts.SCHEDULER.scheduleWithFixedDelay(this::tick, interval, interval,
+					TimeUnit.NANOSECONDS);
+		}
+
+		/*
+		 * Calls submitted so far.
+		 */
+		public synchronized long getSubmitted() {
+			return this.submitted;
+		}
+
+		/*
+		 * Calls that got a reply.
+		 */
+		public synchronized long getCompleted() {
+			return this.completed;
+		}
+
+		/*
+		 * Calls that failed, were rejected or timed out.
+		 */
+		public synchronized long getFailed() {
+			return this.failed;
+		}
+
+		public synchronized int getInFlight() {
+			return this.inFlight;
+		}
+
+		/*
+		 * Finished calls per second since the run started.
+		 */
+		public synchronized double getThroughput() {
+			double seconds = (System.nanoTime() - this.startTime) / 1e9;
+
+			return seconds > 0 ? (this.completed + this.failed) / seconds : 0;
+		}
+
+		/*
+		 * True once every taken item finished and there are no more items to take.
+		 */
+		public synchronized boolean isDone() {
+			return (this.exhausted || this.closed) && this.next == null && this.inFlight == 0;
+		}
+
+		@Override
+		public synchronized boolean hasNext() {
+			while (this.ready.isEmpty()) {
+				if (this.isDone() && this.reordered.isEmpty())
+					return false;
+
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public Result next() {
+			Result result;
+
+			synchronized (this) {
+				if (!this.hasNext())
+					throw new NoSuchElementException();
+
+				result = this.ready.poll();
+			}
+
+			// the result left the window
+			this.dispatch();
+
+			return result;
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				this.closed = true;
+				this.next = null;
+				this.notifyAll();
+			}
+
+			this.shutdownIfDone();
+		}
+
+		/*
+		 * Take and submit items while the windows have room.
+		 */
+		void dispatch() {
+			this.submitItems();
+			this.shutdownIfDone();
+		}
+
+		void submitItems() {
+			while (true) {
+				Item item;
+				long index;
+
+				synchronized (this) {
+					if (this.closed)
+						return;
+
+					if (this.inFlight + this.ready.size() + this.reordered.size() >= BulkUpdater.this.maxInFlight)
+						return;
+
+					if (this.next == null) {
+						if (this.exhausted)
+							return;
+
+						if (!this.items.hasNext()) {
+							this.exhausted = true;
+							this.notifyAll();
+							return;
+						}
+
+						this.next = this.items.next();
+					}
+
+					Integer canisterInFlight = this.inFlightPerCanister.get(this.next.effectiveCanisterId);
+
+					if (canisterInFlight != null && canisterInFlight >= BulkUpdater.this.maxInFlightPerCanister)
+						return;
+
+					item = this.next;
+					index = this.nextIndex++;
+
+					this.next = null;
+					this.inFlight++;
+					this.submitted++;
+					this.inFlightPerCanister.merge(item.effectiveCanisterId, 1, Integer::sum);
+				}
+
+				this.submit(item, index);
+			}
+		}
+
+		void submit(Item item, long index) {
+			long deadline = System.nanoTime() + BulkUpdater.this.timeout.toNanos();
+
+			CompletableFuture<RequestId> call;
+
+			try {
+				call = CompletableFuture.supplyAsync(() -> BulkUpdater.this.agent.updateRaw(item.canisterId,
+						item.effectiveCanisterId, item.methodName, item.arg, Optional.empty()),
+						BulkUpdater.this.signingExecutor).thenCompose(response -> response);
+			} catch (RejectedExecutionException e) {
+				// still inside submitItems, which takes the next item once this one left the window
+				this.finished(item, index, null, e);
+				return;
+			}
+
+			call.thenCompose(requestId -> this.register(requestId, item.effectiveCanisterId, deadline).reply)
+					.whenComplete((reply, ex) -> this.complete(item, index, reply, ex));
+		}
+
+		/*
+		 * Poll of a request id. Identical items have identical request ids, they share one poll.
+		 */
+		Poll register(RequestId requestId, Principal effectiveCanisterId, long deadline) {
+			Poll poll = new Poll(requestId, effectiveCanisterId, deadline);
+
+			Poll existing = this.polls.putIfAbsent(poll.key, poll);
+
+			return existing == null ? poll : existing;
+		}
+
+		void complete(Item item, long index, byte[] reply, Throwable ex) {
+			this.finished(item, index, reply, ex);
+			this.dispatch();
+		}
+
+		void finished(Item item, long index, byte[] reply, Throwable ex) {
+			Result result = new Result(index, item, reply, ex == null ? null : AgentError.unwrap(ex));
+
+			synchronized (this) {
+				this.inFlight--;
+				this.inFlightPerCanister.computeIfPresent(item.effectiveCanisterId,
+						(canisterId, count) -> count > 1 ? count - 1 : null);
+
+				if (result.isSuccess())
+					this.completed++;
+				else
+					this.failed++;
+
+				if (BulkUpdater.this.ordered) {
+					this.reordered.put(index, result);
+
+					while (!this.reordered.isEmpty() && this.reordered.firstKey() == this.nextDelivered) {
+						this.ready.add(this.reordered.pollFirstEntry().getValue());
+						this.nextDelivered++;
+					}
+				} else
+					this.ready.add(result);
+
+				this.notifyAll();
+			}
+		}
+
+		// the timer thread is shared, the read_state requests are signed off it
+		void tick() {
+			if (!this.polls.isEmpty())
+				ForkJoinPool.commonPool().execute(this::poll);
+		}
+
+		/*
+		 * One poll: check the status of every call not already being checked. A read_state
+		 * can only carry request_status paths of one request id, so each call is one read_state.
+		 */
+		void poll() {
+			long now = System.nanoTime();
+
+			for (Poll poll : this.polls.values()) {
+				if (now - poll.deadline > 0) {
+					this.polls.remove(poll.key, poll);
+					poll.reply.completeExceptionally(
+							AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE));
+					continue;
+				}
+
+				if (!poll.polling.compareAndSet(false, true))
+					continue;
+
+				try {
+					BulkUpdater.this.agent.requestStatusRaw(poll.requestId, poll.effectiveCanisterId)
+							.whenComplete((status, ex) -> {
+								poll.polling.set(false);
+
+								if (ex != null) {
+									LOG.debug(ex.getLocalizedMessage(), ex);
+
+									// with a retry policy transient errors were already retried, what gets here is final
+									if (BulkUpdater.this.agent.retryPolicy.isPresent())
+										this.finish(poll, null, ex);
+
+									return;
+								}
+
+								switch (status.status) {
+								case REPLIED_STATUS:
+									this.finish(poll, status.replied.get().arg, null);
+									break;
+								case REJECTED_STATUS:
+									this.finish(poll, null, AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,
+											status.rejected.get().rejectCode, status.rejected.get().rejectMessage).withRejectCode(status.rejected.get().rejectCode));
+									break;
+								case DONE_STATUS:
+									this.finish(poll, null, AgentError.create(
+											AgentError.AgentErrorCode.REQUEST_STATUS_DONE_NO_REPLY,
+											poll.requestId.toHexString()));
+									break;
+								default:
+									break;
+								}
+							});
+				} catch (AgentError e) {
+					poll.polling.set(false);
+					LOG.debug(e.getLocalizedMessage(), e);
+				}
+			}
+		}
+
+		void finish(Poll poll, byte[] reply, Throwable ex) {
+			this.polls.remove(poll.key, poll);
+
+			if (ex == null)
+				poll.reply.complete(reply);
+			else
+				poll.reply.completeExceptionally(ex);
+		}
+
+		void shutdownIfDone() {
+			if (this.isDone())
+				this.poller.cancel(false);
+		}
+	}
+
+	static final class Poll {
+		final RequestId requestId;
+		final ByteBuffer key;
+		final Principal effectiveCanisterId;
+		final long deadline;
+		final CompletableFuture<byte[]> reply = new CompletableFuture<byte[]>();
+		final AtomicBoolean polling = new AtomicBoolean();
+
+		Poll(RequestId requestId, Principal effectiveCanisterId, long deadline) {
+			this.requestId = requestId;
+			this.key = ByteBuffer.wrap(requestId.get());
+			this.effectiveCanisterId = effectiveCanisterId;
+			this.deadline = deadline;
+		}
+	}
+}
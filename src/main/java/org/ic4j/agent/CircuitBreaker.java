@@ -0,0 +1,452 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ic4j.types.Principal;
+
+/*
+ * Per canister circuit breaker, optionally per method. It counts how the last windowSize calls
+ * ended and opens once at least minimumCalls were made and failureRate of them failed. While
+ * open, calls fail with CIRCUIT_OPEN before they are signed or sent. After openDuration it lets
+ * halfOpenCalls probe calls through: they close the circuit if they all succeed, and reopen it
+ * if one fails.
+ *
+ * Failures are replica rejects with a reject code in failOn, by default every code but
+ * CANISTER_REJECT (4) which is the canister's own answer, and errors like transport failures,
+ * certificate errors and request status timeouts. Cancelled calls and calls past their Deadline
+ * do not count.
+ *
+ * Circuits only exist for canisters with failures in their window: once a circuit closes, or its
+ * last failure slides out of the window, it is dropped. Circuits not used for idleTimeout are
+ * dropped as well, when a new one is made.
+ * Set on an Agent with AgentBuilder.circuitBreaker().
+ */
+public final class CircuitBreaker {
+	public static final double DEFAULT_FAILURE_RATE = 0.5;
+	public static final int DEFAULT_MINIMUM_CALLS = 10;
+	public static final int DEFAULT_WINDOW_SIZE = 50;
+	public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(30);
+	public static final int DEFAULT_HALF_OPEN_CALLS = 1;
+	public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	double failureRate = DEFAULT_FAILURE_RATE;
+	int minimumCalls = DEFAULT_MINIMUM_CALLS;
+	int windowSize = DEFAULT_WINDOW_SIZE;
+	long openNanos = DEFAULT_OPEN_DURATION.toNanos();
+	int halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+	long idleNanos = DEFAULT_IDLE_TIMEOUT.toNanos();
+	boolean perMethod;
+	int[] failOn = { 1, 2, 3, 5 };
+
+	final ConcurrentMap<Key, Circuit> circuits = new ConcurrentHashMap<Key, Circuit>();
+
+	final LongAdder opened = new LongAdder();
+	final LongAdder shortCircuited = new LongAdder();
+
+	CircuitBreaker() {
+	}
+
+	public static CircuitBreaker create() {
+		return new CircuitBreaker();
+	}
+
+	public CircuitBreaker failureRate(double failureRate) {
+		this.failureRate = failureRate;
+		return this;
+	}
+
+	public CircuitBreaker minimumCalls(int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+		return this;
+	}
+
+	public CircuitBreaker windowSize(int windowSize) {
+		this.windowSize = windowSize;
+		return this;
+	}
+
+	public CircuitBreaker openDuration(Duration openDuration) {
+		this.openNanos = openDuration.toNanos();
+		return this;
+	}
+
+	public CircuitBreaker halfOpenCalls(int halfOpenCalls) {
+		this.halfOpenCalls = halfOpenCalls;
+		return this;
+	}
+
+	/*
+	 * Time after which a circuit nobody called is dropped, closing it if it was open.
+	 */
+	public CircuitBreaker idleTimeout(Duration idleTimeout) {
+		this.idleNanos = idleTimeout.toNanos();
+		return this;
+	}
+
+	/*
+	 * Keep a circuit per method of a canister instead of one per canister.
+	 */
+	public CircuitBreaker perMethod(boolean perMethod) {
+		this.perMethod = perMethod;
+		return this;
+	}
+
+	/*
+	 * Reject codes counted as failures.
+	 */
+	public CircuitBreaker failOn(int... rejectCodes) {
+		this.failOn = rejectCodes.clone();
+		return this;
+	}
+
+	public State getState(Principal canisterId) {
+		return this.getState(canisterId, null);
+	}
+
+	public State getState(Principal canisterId, String method) {
+		Circuit circuit = this.circuits.get(this.key(canisterId, method));
+
+		return circuit != null ? circuit.state() : State.CLOSED;
+	}
+
+	/*
+	 * Times a circuit opened, reopening after a failed probe included.
+	 */
+	public long getOpened() {
+		return this.opened.sum();
+	}
+
+	/*
+	 * Calls failed fast with CIRCUIT_OPEN.
+	 */
+	public long getShortCircuited() {
+		return this.shortCircuited.sum();
+	}
+
+	/*
+	 * Circuits currently open or half open.
+	 */
+	public int getOpenCircuits() {
+		int count = 0;
+
+		for (Circuit circuit : this.circuits.values())
+			if (circuit.state() != State.CLOSED)
+				count++;
+
+		return count;
+	}
+
+	/*
+	 * Circuits kept, the closed ones with failures in their window included.
+	 */
+	public int getCircuits() {
+		return this.circuits.size();
+	}
+
+	/*
+	 * CIRCUIT_OPEN if a call to canisterId's method may not go through now, otherwise null.
+	 */
+	AgentError check(Principal canisterId, String method) {
+		Key key = this.key(canisterId, method);
+
+		Circuit circuit = this.circuits.get(key);
+
+		if (circuit == null)
+			return null;
+
+		long wait = circuit.admit(System.nanoTime());
+
+		if (wait < 0)
+			return null;
+
+		this.shortCircuited.increment();
+
+		return AgentError.create(AgentError.AgentErrorCode.CIRCUIT_OPEN,
+				this.perMethod ? canisterId + " " + method : canisterId.toString(), TimeUnit.NANOSECONDS.toMillis(wait));
+	}
+
+	/*
+	 * Count a call to canisterId's method that ended with error, null if it succeeded.
+	 */
+	void record(Principal canisterId, String method, Throwable error) {
+		Boolean failure = this.isFailure(error);
+
+		if (failure != null)
+			this.record(canisterId, method, failure.booleanValue());
+	}
+
+	/*
+	 * Count a query the replica answered, rejectCode is null if it replied.
+	 */
+	void recordReply(Principal canisterId, String method, Integer rejectCode) {
+		this.record(canisterId, method, rejectCode != null && this.failsOn(rejectCode));
+	}
+
+	void record(Principal canisterId, String method, boolean failure) {
+		Key key = this.key(canisterId, method);
+		long now = System.nanoTime();
+
+		while (true) {
+			Circuit circuit = this.circuits.get(key);
+
+			if (circuit == null) {
+				// circuits only exist for canisters that failed
+				if (!failure)
+					return;
+
+				this.dropIdle(now);
+
+				circuit = this.circuits.computeIfAbsent(key, k -> new Circuit(this.windowSize, now));
+			}
+
+			switch (circuit.record(failure, now)) {
+			case OPENED:
+				this.opened.increment();
+				return;
+			case CLEARED:
+				this.circuits.remove(key, circuit);
+				return;
+			case DROPPED:
+				// dropped meanwhile, the outcome goes to the circuit replacing it
+				this.circuits.remove(key, circuit);
+				continue;
+			default:
+				return;
+			}
+		}
+	}
+
+	void dropIdle(long now) {
+		for (Map.Entry<Key, Circuit> entry : this.circuits.entrySet())
+			if (entry.getValue().dropIfIdle(now))
+				this.circuits.remove(entry.getKey(), entry.getValue());
+	}
+
+	// null for outcomes that say nothing about the canister
+	Boolean isFailure(Throwable error) {
+		if (error == null)
+			return false;
+
+		if (error instanceof CancellationException || error.getCause() instanceof CancellationException)
+			return null;
+
+		AgentError agentError = AgentError.unwrap(error);
+
+		switch (agentError.getCode()) {
+		case CIRCUIT_OPEN:
+		case ADMISSION_REJECTED:
+		case DEADLINE_EXCEEDED:
+			return null;
+		case REPLICA_ERROR:
+			return this.failsOn(agentError.getRejectCode());
+		default:
+			return true;
+		}
+	}
+
+	boolean failsOn(int rejectCode) {
+		for (int code : this.failOn)
+			if (code == rejectCode)
+				return true;
+
+		return false;
+	}
+
+	Key key(Principal canisterId, String method) {
+		return new Key(canisterId, this.perMethod ? method : null);
+	}
+
+	static final class Key {
+		final Principal canisterId;
+		final String method;
+
+		Key(Principal canisterId, String method) {
+			this.canisterId = canisterId;
+			this.method = method;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key))
+				return false;
+
+			Key key = (Key) other;
+
+			return this.canisterId.equals(key.canisterId) && Objects.equals(this.method, key.method);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.canisterId.hashCode() * 31 + Objects.hashCode(this.method);
+		}
+	}
+
+	enum Recorded {
+		COUNTED, OPENED, CLEARED, DROPPED
+	}
+
+	/*
+	 * Outcomes of the last calls in a ring, and the state of one circuit.
+	 */
+	final class Circuit {
+		final boolean[] outcomes;
+		int next;
+		int calls;
+		int failures;
+
+		State state = State.CLOSED;
+		long openedAt;
+		int probes;
+		int probeSuccesses;
+
+		long lastUsed;
+		boolean dropped;
+
+		Circuit(int windowSize, long now) {
+			this.outcomes = new boolean[Math.max(windowSize, 1)];
+			this.lastUsed = now;
+		}
+
+		synchronized State state() {
+			return this.state;
+		}
+
+		// -1 if the call may go through, otherwise nanos until the next probe
+		synchronized long admit(long now) {
+			this.lastUsed = now;
+
+			switch (this.state) {
+			case CLOSED:
+				return -1;
+			case OPEN:
+				if (now - this.openedAt < openNanos)
+					return openNanos - (now - this.openedAt);
+
+				this.state = State.HALF_OPEN;
+				this.openedAt = now;
+				this.probes = 0;
+				this.probeSuccesses = 0;
+
+				return this.probe(now);
+			default:
+				return this.probe(now);
+			}
+		}
+
+		// admit a probe while half open, called with the monitor held
+		long probe(long now) {
+			// probes that never reported back, cancelled ones, do not keep it half open forever
+			if (now - this.openedAt >= openNanos) {
+				this.openedAt = now;
+				this.probes = 0;
+			}
+
+			if (this.probes < halfOpenCalls) {
+				this.probes++;
+				return -1;
+			}
+
+			return openNanos - (now - this.openedAt);
+		}
+
+		synchronized Recorded record(boolean failure, long now) {
+			if (this.dropped)
+				return Recorded.DROPPED;
+
+			this.lastUsed = now;
+
+			switch (this.state) {
+			case OPEN:
+				return Recorded.COUNTED;
+			case HALF_OPEN:
+				if (failure) {
+					this.open(now);
+					return Recorded.OPENED;
+				}
+
+				if (++this.probeSuccesses >= halfOpenCalls) {
+					this.state = State.CLOSED;
+					this.reset();
+					this.dropped = true;
+
+					return Recorded.CLEARED;
+				}
+
+				return Recorded.COUNTED;
+			default:
+				if (this.calls == this.outcomes.length) {
+					if (this.outcomes[this.next])
+						this.failures--;
+				} else
+					this.calls++;
+
+				this.outcomes[this.next] = failure;
+				this.next = (this.next + 1) % this.outcomes.length;
+
+				if (failure)
+					this.failures++;
+
+				if (this.calls >= minimumCalls && this.failures >= failureRate * this.calls) {
+					this.open(now);
+					return Recorded.OPENED;
+				}
+
+				if (this.failures == 0) {
+					this.dropped = true;
+					return Recorded.CLEARED;
+				}
+
+				return Recorded.COUNTED;
+			}
+		}
+
+		synchronized boolean dropIfIdle(long now) {
+			if (now - this.lastUsed < idleNanos)
+				return false;
+
+			this.dropped = true;
+
+			return true;
+		}
+
+		void open(long now) {
+			this.state = State.OPEN;
+			this.openedAt = now;
+			this.reset();
+		}
+
+		void reset() {
+			this.next = 0;
+			this.calls = 0;
+			this.failures = 0;
+		}
+	}
+}
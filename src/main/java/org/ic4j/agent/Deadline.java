@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * End-to-end deadline of one call, covering the transport, request status polling and verification.
+ * Once it expires or is cancelled, every future bound to it fails, the requests behind them are
+ * cancelled and polling stops.
+ */
+public final class Deadline {
+	final long timeoutNanos;
+	final long expiresAt;
+
+	volatile boolean cancelled;
+
+	final CountDownLatch stopped = new CountDownLatch(1);
+	final Set<CompletableFuture<?>> bound = ConcurrentHashMap.newKeySet();
+
+	Deadline(long timeoutNanos) {
+		this.timeoutNanos = timeoutNanos;
+		this.expiresAt = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeoutNanos;
+	}
+
+	public static Deadline after(Duration timeout) {
+		return new Deadline(timeout.toNanos());
+	}
+
+	/*
+	 * No time limit, the call can only be cancelled.
+	 */
+	public static Deadline none() {
+		return new Deadline(Long.MAX_VALUE);
+	}
+
+	/*
+	 * Cancel the call, failing everything bound to this deadline now.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		this.stopped.countDown();
+
+		for (CompletableFuture<?> future : this.bound)
+			future.cancel(true);
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	public boolean isExpired() {
+		return this.remainingNanos() <= 0;
+	}
+
+	// expired or cancelled
+	public boolean isDone() {
+		return this.cancelled || this.isExpired();
+	}
+
+	public Duration remaining() {
+		return Duration.ofNanos(Math.max(this.remainingNanos(), 0));
+	}
+
+	long remainingNanos() {
+		if (this.timeoutNanos == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+
+		return this.expiresAt - System.nanoTime();
+	}
+
+	/*
+	 * Future completing like future, or failing once this deadline is done, cancelling future.
+	 */
+	<T> CompletableFuture<T> bind(CompletableFuture<T> future) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+
+		long remaining = this.remainingNanos();
+
+		if (this.cancelled || remaining <= 0) {
+			future.cancel(true);
+			this.fail(result);
+			return result;
+		}
+
+		this.bound.add(result);
+
+		ScheduledFuture<?> timer = remaining == Long.MAX_VALUE ? null
+				: Timeouts.SCHEDULER.schedule(() -> this.fail(result), remaining, TimeUnit.NANOSECONDS);
+
+		result.whenComplete((value, ex) -> {
+			if (timer != null)
+				timer.cancel(false);
+
+			this.bound.remove(result);
+		});
+
+		future.whenComplete((value, ex) -> {
+			if (ex == null)
+				result.complete(value);
+			else
+				result.completeExceptionally(ex);
+		});
+
+		Agent.cancelledWith(result, future);
+
+		// cancelled while binding
+		if (this.cancelled)
+			result.cancel(true);
+
+		return result;
+	}
+
+	/*
+	 * Fail future the way this deadline ended, cancelled or with DEADLINE_EXCEEDED.
+	 */
+	void fail(CompletableFuture<?> future) {
+		if (this.cancelled)
+			future.cancel(true);
+		else
+			future.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.DEADLINE_EXCEEDED,
+					TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos)));
+	}
+
+	/*
+	 * Sleep for up to millis, waking up early once this deadline is done. True if it is done.
+	 */
+	boolean sleep(long millis) throws InterruptedException {
+		// in nanos, a remaining time truncated to millis would wake up just before the deadline
+		long nanos = Math.min(TimeUnit.MILLISECONDS.toNanos(millis), this.remainingNanos());
+
+		if (this.stopped.await(Math.max(nanos, 0), TimeUnit.NANOSECONDS))
+			return true;
+
+		return this.isDone();
+	}
+}
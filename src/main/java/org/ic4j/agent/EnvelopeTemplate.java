@@ -0,0 +1,199 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.ic4j.agent.identity.Signature;
+import org.ic4j.agent.replicaapi.CallRequestContent;
+import org.ic4j.agent.replicaapi.QueryContent;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.agent.requestid.RequestIdTemplate;
+import org.ic4j.types.Principal;
+
+/*
+ * Query or call envelope whose sender, canister_id, method_name and arg are encoded once.
+ * Each request only encodes ingress_expiry, the nonce and the signature around them.
+ * The bytes are the same as the ObjectMapper writes for Envelope, field order included.
+ */
+final class EnvelopeTemplate {
+	static final int MAJOR_UNSIGNED = 0;
+	static final int MAJOR_BYTES = 2;
+	static final int MAJOR_TEXT = 3;
+
+	static final int MAP_START = 0xBF;
+	static final int MAP_END = 0xFF;
+
+	static final String[] VARIABLE_KEYS = { "ingress_expiry", "nonce" };
+
+	final RequestIdTemplate requestIdTemplate;
+
+	// {"content": {"request_type": type
+	final byte[] head;
+	// "sender": .., "canister_id": .., "method_name": ..
+	final byte[] fixed;
+	// "arg": ..}
+	final byte[] arg;
+
+	EnvelopeTemplate(RequestIdTemplate requestIdTemplate, byte[] head, byte[] fixed, byte[] arg) {
+		this.requestIdTemplate = requestIdTemplate;
+		this.head = head;
+		this.fixed = fixed;
+		this.arg = arg;
+	}
+
+	static EnvelopeTemplate query(Principal sender, Principal canisterId, String methodName, byte[] arg) {
+		QueryContent queryContent = new QueryContent();
+
+		queryContent.queryRequest.sender = sender;
+		queryContent.queryRequest.canisterId = canisterId;
+		queryContent.queryRequest.methodName = methodName;
+		queryContent.queryRequest.arg = arg;
+
+		return create(RequestIdTemplate.create(queryContent, VARIABLE_KEYS), "query", sender, canisterId, methodName,
+				arg);
+	}
+
+	static EnvelopeTemplate call(Principal sender, Principal canisterId, String methodName, byte[] arg) {
+		CallRequestContent callRequestContent = new CallRequestContent();
+
+		callRequestContent.callRequest.nonce = Optional.empty();
+		callRequestContent.callRequest.sender = sender;
+		callRequestContent.callRequest.canisterId = canisterId;
+		callRequestContent.callRequest.methodName = methodName;
+		callRequestContent.callRequest.arg = arg;
+
+		return create(RequestIdTemplate.create(callRequestContent, VARIABLE_KEYS), "call", sender, canisterId,
+				methodName, arg);
+	}
+
+	static EnvelopeTemplate create(RequestIdTemplate requestIdTemplate, String requestType, Principal sender,
+			Principal canisterId, String methodName, byte[] arg) {
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+		head.write(MAP_START);
+		writeText(head, "content");
+		head.write(MAP_START);
+		writeText(head, "request_type");
+		writeText(head, requestType);
+
+		ByteArrayOutputStream fixed = new ByteArrayOutputStream();
+
+		writeText(fixed, "sender");
+		writeBytes(fixed, sender.getValue());
+		writeText(fixed, "canister_id");
+		writeBytes(fixed, canisterId.getValue());
+		writeText(fixed, "method_name");
+		writeText(fixed, methodName);
+
+		return new EnvelopeTemplate(requestIdTemplate, head.toByteArray(), fixed.toByteArray(), encodeArg(arg));
+	}
+
+	/*
+	 * Same envelope with another arg, only the arg is hashed and encoded again.
+	 */
+	EnvelopeTemplate withArg(byte[] arg) {
+		return new EnvelopeTemplate(this.requestIdTemplate.with("arg", arg), this.head, this.fixed, encodeArg(arg));
+	}
+
+	RequestId requestId(long ingressExpiry, byte[] nonce) {
+		return this.requestIdTemplate.toRequestId(ingressExpiry, nonce);
+	}
+
+	byte[] encode(long ingressExpiry, byte[] nonce, Signature signature) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				this.head.length + this.fixed.length + this.arg.length + 256);
+
+		out.write(this.head, 0, this.head.length);
+
+		if (nonce != null) {
+			writeText(out, "nonce");
+			writeBytes(out, nonce);
+		}
+
+		writeText(out, "ingress_expiry");
+		writeHeader(out, MAJOR_UNSIGNED, ingressExpiry);
+
+		out.write(this.fixed, 0, this.fixed.length);
+		out.write(this.arg, 0, this.arg.length);
+
+		if (signature.publicKey != null && signature.publicKey.isPresent()) {
+			writeText(out, "sender_pubkey");
+			writeBytes(out, signature.publicKey.get());
+		}
+
+		if (signature.signature != null && signature.signature.isPresent()) {
+			writeText(out, "sender_sig");
+			writeBytes(out, signature.signature.get());
+		}
+
+		out.write(MAP_END);
+
+		return out.toByteArray();
+	}
+
+	static byte[] encodeArg(byte[] arg) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(arg.length + 16);
+
+		writeText(out, "arg");
+		writeBytes(out, arg);
+		out.write(MAP_END);
+
+		return out.toByteArray();
+	}
+
+	static void writeText(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+		writeHeader(out, MAJOR_TEXT, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static void writeBytes(ByteArrayOutputStream out, byte[] value) {
+		writeHeader(out, MAJOR_BYTES, value.length);
+		out.write(value, 0, value.length);
+	}
+
+	// shortest form, as CBORGenerator writes it
+	static void writeHeader(ByteArrayOutputStream out, int major, long value) {
+		int type = major << 5;
+
+		if (value < 24)
+			out.write(type | (int) value);
+		else if (value <= 0xFFL) {
+			out.write(type | 24);
+			out.write((int) value);
+		} else if (value <= 0xFFFFL) {
+			out.write(type | 25);
+			writeLong(out, value, 2);
+		} else if (value <= 0xFFFFFFFFL) {
+			out.write(type | 26);
+			writeLong(out, value, 4);
+		} else {
+			out.write(type | 27);
+			writeLong(out, value, 8);
+		}
+	}
+
+	static void writeLong(ByteArrayOutputStream out, long value, int length) {
+		for (int i = length - 1; i >= 0; i--)
+			out.write((int) (value >>> (i * 8)));
+	}
+}
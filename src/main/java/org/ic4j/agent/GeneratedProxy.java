@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+import org.ic4j.types.Principal;
+
+/*
+ * Base class of the canister proxies generated by the ic4j-agent-processor annotation processor.
+ * For an interface a.b.Hello the processor generates a.b.HelloImpl, nested interfaces are flattened
+ * with '_' (a.b.Outer_HelloImpl). ProxyBuilder.getProxy uses the generated class when it is on the
+ * classpath and falls back to java.lang.reflect.Proxy otherwise.
+ */
+public abstract class GeneratedProxy {
+	static final String SUFFIX = "Impl";
+
+	static final ClassValue<Optional<Constructor<?>>> CONSTRUCTORS = new ClassValue<Optional<Constructor<?>>>() {
+		@Override
+		protected Optional<Constructor<?>> computeValue(Class<?> interfaceClass) {
+			return constructor(interfaceClass);
+		}
+	};
+
+	protected final Agent agent;
+	protected final Principal canisterId;
+	protected final Principal effectiveCanisterId;
+	protected final Optional<Long> ingressExpiryDatetime;
+	protected final Waiter waiter;
+
+	// set by ProxyBuilder if the Agent comes from the AgentRegistry
+	AgentRegistry.Lease lease;
+
+	// set by ProxyBuilder.executor
+	Executor executor;
+
+	// set by ProxyBuilder.deadline
+	Duration deadline;
+
+	protected GeneratedProxy(Agent agent, Principal canisterId, Principal effectiveCanisterId,
+			Optional<Long> ingressExpiryDatetime, Waiter waiter) {
+		this.agent = agent;
+		this.canisterId = canisterId;
+		this.effectiveCanisterId = effectiveCanisterId;
+		this.ingressExpiryDatetime = ingressExpiryDatetime;
+		this.waiter = waiter;
+	}
+
+	protected final Object invoke(InvocationPlan plan, Object[] args) throws AgentError {
+		return plan.invoke(this.executor, this.deadline, this.agent, this.canisterId, this.effectiveCanisterId,
+				this.ingressExpiryDatetime, this.waiter, args);
+	}
+
+	/*
+	 * Instance of the generated class for the interface, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T create(Class<T> interfaceClass, Agent agent, Principal canisterId, Principal effectiveCanisterId,
+			Optional<Long> ingressExpiryDatetime, Waiter waiter) {
+		Optional<Constructor<?>> constructor = CONSTRUCTORS.get(interfaceClass);
+
+		if (!constructor.isPresent())
+			return null;
+
+		try {
+			return (T) constructor.get().newInstance(agent, canisterId, effectiveCanisterId, ingressExpiryDatetime,
+					waiter);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof AgentError)
+				throw (AgentError) e.getCause();
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e.getCause());
+		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException e) {
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		}
+	}
+
+	static String className(Class<?> interfaceClass) {
+		String name = interfaceClass.getName();
+
+		Package pkg = interfaceClass.getPackage();
+
+		if (pkg == null || pkg.getName().isEmpty())
+			return name.replace('$', '_') + SUFFIX;
+
+		return pkg.getName() + '.' + name.substring(pkg.getName().length() + 1).replace('$', '_') + SUFFIX;
+	}
+
+	static Optional<Constructor<?>> constructor(Class<?> interfaceClass) {
+		if (!interfaceClass.isInterface())
+			return Optional.empty();
+
+		try {
+			Class<?> generatedClass = Class.forName(className(interfaceClass), true, interfaceClass.getClassLoader());
+
+			// a hand written class with the same name is not ours to instantiate
+			if (!GeneratedProxy.class.isAssignableFrom(generatedClass) || !interfaceClass.isAssignableFrom(generatedClass))
+				return Optional.empty();
+
+			return Optional.of(generatedClass.getConstructor(Agent.class, Principal.class, Principal.class,
+					Optional.class, Waiter.class));
+		} catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.ic4j.agent.Agent.CertificateResponse;
+import org.ic4j.candid.parser.IDLParser;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Candid service types of canisters, keyed by canister id and module hash.
+ *
+ * The first level is an LRU map in memory, shared by all ProxyBuilders using the same cache
+ * (by default IDLCache.getDefault()). The optional second level keeps the raw candid:service
+ * text on disk as <canister id>-<module hash>.did, so restarts skip the metadata download.
+ *
+ * An entry older than revalidateAfter is checked by reading only the canister's module_hash.
+ * When the hash changed, module hash and candid:service are fetched together in one read_state,
+ * so the stored IDL always belongs to the stored hash.
+ */
+public final class IDLCache {
+	static final Logger LOG = LoggerFactory.getLogger(IDLCache.class);
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	public static final long DEFAULT_MAX_DISK_BYTES = 64L * 1024 * 1024;
+	public static final Duration DEFAULT_REVALIDATE_AFTER = Duration.ofMinutes(1);
+
+	// striped load locks stay bounded however many canisters pass through the cache,
+	// canisters sharing a stripe only wait for each other when they miss at the same time
+	static final int LOCK_STRIPES = 64;
+
+	static final String SUFFIX = ".did";
+	static final String CANDID_SERVICE = "candid:service";
+
+	static volatile IDLCache defaultCache = new IDLCache(null, DEFAULT_MAX_ENTRIES, 0, DEFAULT_REVALIDATE_AFTER);
+
+	final Path directory;
+	final int maxEntries;
+	final long maxDiskBytes;
+	final long revalidateAfter;
+
+	final Map<String, CachedIDL> entries;
+	final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+	IDLCache(Path directory, int maxEntries, long maxDiskBytes, Duration revalidateAfter) {
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+		this.maxDiskBytes = maxDiskBytes;
+		this.revalidateAfter = revalidateAfter.toNanos();
+
+		for (int i = 0; i < this.locks.length; i++)
+			this.locks[i] = new ReentrantLock();
+
+		this.entries = new LinkedHashMap<String, CachedIDL>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedIDL> eldest) {
+				return this.size() > IDLCache.this.maxEntries;
+			}
+		};
+
+		if (directory != null)
+			try {
+				Files.createDirectories(directory);
+			} catch (IOException e) {
+				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
+			}
+	}
+
+	/*
+	 * In memory only cache
+	 */
+	public static IDLCache create() {
+		return new IDLCache(null, DEFAULT_MAX_ENTRIES, 0, DEFAULT_REVALIDATE_AFTER);
+	}
+
+	public static IDLCache create(int maxEntries, Duration revalidateAfter) {
+		return new IDLCache(null, maxEntries, 0, revalidateAfter);
+	}
+
+	/*
+	 * In memory cache backed by the directory
+	 */
+	public static IDLCache create(Path directory) {
+		return new IDLCache(directory, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_DISK_BYTES, DEFAULT_REVALIDATE_AFTER);
+	}
+
+	/*
+	 * maxEntries bounds both the memory map and the number of files, maxDiskBytes the size of
+	 * the files. Least recently used entries are evicted first.
+	 */
+	public static IDLCache create(Path directory, int maxEntries, long maxDiskBytes, Duration revalidateAfter) {
+		return new IDLCache(directory, maxEntries, maxDiskBytes, revalidateAfter);
+	}
+
+	/*
+	 * JVM wide cache used by ProxyBuilder unless it is given another one.
+	 */
+	public static IDLCache getDefault() {
+		return defaultCache;
+	}
+
+	public static void setDefault(IDLCache cache) {
+		defaultCache = cache;
+	}
+
+	/*
+	 * Service type declared by the canister's candid:service metadata, null if the IDL declares no
+	 * service. A canister without candid:service metadata fails with LOOKUP_PATH_ABSENT.
+	 */
+	public IDLType getServiceType(Agent agent, Principal canisterId) throws AgentError {
+		return this.get(agent, canisterId).serviceType;
+	}
+
+	public String getIDL(Agent agent, Principal canisterId) throws AgentError {
+		return this.get(agent, canisterId).idl;
+	}
+
+	public void invalidate(Principal canisterId) {
+		synchronized (this.entries) {
+			this.entries.remove(canisterId.toString());
+		}
+	}
+
+	public void clear() {
+		synchronized (this.entries) {
+			this.entries.clear();
+		}
+	}
+
+	CachedIDL get(Agent agent, Principal canisterId) throws AgentError {
+		String key = canisterId.toString();
+
+		CachedIDL entry = this.entry(key);
+
+		if (entry != null && entry.isFresh(this.revalidateAfter))
+			return entry;
+
+		// concurrent proxies for the same canister wait for one load, a lock rather than a monitor
+		// so that virtual threads waiting for the network do not pin their carrier
+		ReentrantLock lock = this.lock(key);
+
+		lock.lock();
+
+		try {
+			entry = this.entry(key);
+
+			if (entry != null && entry.isFresh(this.revalidateAfter))
+				return entry;
+
+			String moduleHash = Hex.encodeHexString(agent.getModuleHash(canisterId));
+
+			if (entry != null && entry.moduleHash.equals(moduleHash)) {
+				entry.validatedAt = System.nanoTime();
+				return entry;
+			}
+
+			String idl = this.read(key, moduleHash);
+
+			if (idl == null) {
+				String[] fetched = fetch(agent, canisterId);
+
+				moduleHash = fetched[0];
+				idl = fetched[1];
+
+				this.write(key, moduleHash, idl);
+			}
+
+			entry = new CachedIDL(moduleHash, idl, parse(new StringReader(idl)));
+
+			synchronized (this.entries) {
+				this.entries.put(key, entry);
+			}
+
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	ReentrantLock lock(String key) {
+		int hash = key.hashCode();
+
+		return this.locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+	}
+
+	CachedIDL entry(String key) {
+		synchronized (this.entries) {
+			return this.entries.get(key);
+		}
+	}
+
+	/*
+	 * Module hash and candid:service from the same certificate.
+	 */
+	static String[] fetch(Agent agent, Principal canisterId) throws AgentError {
+		List<List<byte[]>> paths = new ArrayList<List<byte[]>>();
+
+		List<byte[]> path = new ArrayList<byte[]>();
+		path.add("canister".getBytes());
+		path.add(canisterId.getValue());
+		path.add("module_hash".getBytes());
+		paths.add(path);
+
+		path = new ArrayList<byte[]>();
+		path.add("canister".getBytes());
+		path.add(canisterId.getValue());
+		path.add("metadata".getBytes());
+		path.add(CANDID_SERVICE.getBytes());
+		paths.add(path);
+
+		try {
+			CertificateResponse response = agent.readStateRaw(canisterId, paths, null).get();
+
+			byte[] moduleHash = ResponseAuthentication.lookupModuleHash(response.certificate, canisterId);
+			byte[] idl = ResponseAuthentication.lookupMetadata(response.certificate, canisterId, CANDID_SERVICE);
+
+			return new String[] { Hex.encodeHexString(moduleHash), new String(idl, StandardCharsets.UTF_8) };
+		} catch (InterruptedException e) {
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof AgentError)
+				throw (AgentError) e.getCause();
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		}
+	}
+
+	static IDLType parse(Reader idlReader) {
+		IDLParser idlParser = new IDLParser(idlReader);
+		idlParser.parse();
+
+		Map<String, IDLType> serviceTypes = idlParser.getServices();
+
+		if (serviceTypes.isEmpty())
+			return null;
+
+		return serviceTypes.values().iterator().next();
+	}
+
+	Path file(String key, String moduleHash) {
+		return this.directory.resolve(key + '-' + moduleHash + SUFFIX);
+	}
+
+	/*
+	 * Disk errors only cost a download, they are logged and otherwise ignored.
+	 */
+	String read(String key, String moduleHash) {
+		if (this.directory == null)
+			return null;
+
+		Path file = this.file(key, moduleHash);
+
+		if (!Files.exists(file))
+			return null;
+
+		try {
+			String idl = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+
+			// last modified time orders the files for eviction
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+			return idl;
+		} catch (IOException e) {
+			LOG.warn("Cannot read cached IDL " + file, e);
+			return null;
+		}
+	}
+
+	void write(String key, String moduleHash, String idl) {
+		if (this.directory == null)
+			return;
+
+		Path file = this.file(key, moduleHash);
+
+		try {
+			Path tmp = Files.createTempFile(this.directory, key, ".tmp");
+
+			try {
+				Files.write(tmp, idl.getBytes(StandardCharsets.UTF_8));
+
+				try {
+					Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+
+			// IDL of previous module versions
+			try (DirectoryStream<Path> stale = Files.newDirectoryStream(this.directory, key + "-*" + SUFFIX)) {
+				for (Path path : stale)
+					if (!path.equals(file))
+						Files.deleteIfExists(path);
+			}
+
+			this.evict();
+		} catch (IOException e) {
+			LOG.warn("Cannot write cached IDL " + file, e);
+		}
+	}
+
+	void evict() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		long size = 0;
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+			for (Path path : stream) {
+				files.add(path);
+				size += Files.size(path);
+			}
+		}
+
+		if (files.size() <= this.maxEntries && size <= this.maxDiskBytes)
+			return;
+
+		Map<Path, FileTime> modified = new LinkedHashMap<Path, FileTime>();
+
+		for (Path path : files)
+			modified.put(path, Files.getLastModifiedTime(path));
+
+		Collections.sort(files, Comparator.comparing(modified::get));
+
+		int count = files.size();
+
+		for (Path path : files) {
+			if (count <= this.maxEntries && size <= this.maxDiskBytes)
+				break;
+
+			size -= Files.size(path);
+			count--;
+
+			Files.deleteIfExists(path);
+		}
+	}
+
+	static final class CachedIDL {
+		final String moduleHash;
+		final String idl;
+		final IDLType serviceType;
+
+		volatile long validatedAt = System.nanoTime();
+
+		CachedIDL(String moduleHash, String idl, IDLType serviceType) {
+			this.moduleHash = moduleHash;
+			this.idl = idl;
+			this.serviceType = serviceType;
+		}
+
+		boolean isFresh(long revalidateAfter) {
+			return System.nanoTime() - this.validatedAt < revalidateAfter;
+		}
+	}
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.ic4j.agent.annotations.Argument;
+import org.ic4j.agent.annotations.Cached;
+import org.ic4j.agent.annotations.QUERY;
+import org.ic4j.agent.annotations.UPDATE;
+import org.ic4j.agent.annotations.Verify;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.candid.ObjectDeserializer;
+import org.ic4j.candid.ObjectSerializer;
+import org.ic4j.candid.annotations.Ignore;
+import org.ic4j.candid.annotations.Modes;
+import org.ic4j.candid.annotations.Name;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.pojo.PojoDeserializer;
+import org.ic4j.candid.pojo.PojoSerializer;
+import org.ic4j.candid.types.Mode;
+import org.ic4j.candid.types.Type;
+import org.ic4j.types.Principal;
+
+/*
+ * Everything a proxy call needs to know about its interface method, read from the
+ * annotations once and cached per Method. Serializer and deserializer instances are
+ * shared by all calls of the method, so custom ones have to be thread safe.
+ * Classes generated by the ic4j-agent-processor build their plans at compile time
+ * through InvocationPlan.query/update/oneway instead of reading annotations.
+ */
+public final class InvocationPlan {
+	static final ClassValue<ConcurrentMap<Method, InvocationPlan>> PLANS = new ClassValue<ConcurrentMap<Method, InvocationPlan>>() {
+		@Override
+		protected ConcurrentMap<Method, InvocationPlan> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<Method, InvocationPlan>();
+		}
+	};
+
+	final MethodType methodType;
+	final String methodName;
+	final boolean verify;
+	final boolean disableRangeCheck;
+
+	final ArgumentPlan[] arguments;
+
+	final ObjectDeserializer deserializer;
+
+	final Class<?> returnType;
+	final boolean returnsFuture;
+	// type the reply is decoded to, only for methods returning CompletableFuture
+	final Class<?> responseClass;
+
+	// @Waiter timeout and sleep, timeout is -1 if the method has no @Waiter
+	final int waiterTimeout;
+	final int waiterSleep;
+
+	// @Cached TTL of query replies, null to use the TTL of the Agent's QueryCache
+	final Duration cacheTtl;
+	// @Priority of the method, null to keep the Agent's
+	final Priority priority;
+
+	InvocationPlan(Method method) {
+		this.methodType = methodType(method);
+
+		if (method.isAnnotationPresent(Name.class))
+			this.methodName = method.getAnnotation(Name.class).value();
+		else
+			this.methodName = method.getName();
+
+		this.verify = method.isAnnotationPresent(Verify.class);
+
+		UPDATE updateMethod = method.getAnnotation(UPDATE.class);
+		this.disableRangeCheck = updateMethod != null && updateMethod.disableRangeCheck();
+
+		Parameter[] parameters = method.getParameters();
+		Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+
+		this.arguments = new ArgumentPlan[parameters.length];
+
+		for (int i = 0; i < parameters.length; i++)
+			this.arguments[i] = new ArgumentPlan(parameters[i], parameterAnnotations[i]);
+
+		if (method.isAnnotationPresent(org.ic4j.candid.annotations.Deserializer.class))
+			this.deserializer = newInstance(method.getAnnotation(org.ic4j.candid.annotations.Deserializer.class).value());
+		else
+			this.deserializer = new PojoDeserializer();
+
+		this.returnType = method.getReturnType();
+		this.returnsFuture = this.returnType.equals(CompletableFuture.class);
+
+		if (this.returnsFuture || this.methodType != MethodType.QUERY)
+			this.responseClass = responseClass(method);
+		else
+			this.responseClass = null;
+
+		org.ic4j.agent.annotations.Waiter waiter = method.getAnnotation(org.ic4j.agent.annotations.Waiter.class);
+
+		if (waiter != null) {
+			this.waiterTimeout = waiter.timeout();
+			this.waiterSleep = waiter.sleep();
+		} else {
+			this.waiterTimeout = -1;
+			this.waiterSleep = 0;
+		}
+
+		Cached cached = method.getAnnotation(Cached.class);
+
+		this.cacheTtl = cached != null ? Duration.ofSeconds(cached.ttl()) : null;
+
+		org.ic4j.agent.annotations.Priority priority = method.getAnnotation(org.ic4j.agent.annotations.Priority.class);
+
+		this.priority = priority != null ? priority.value() : null;
+	}
+
+	InvocationPlan(Builder builder) {
+		this.methodType = builder.methodType;
+		this.methodName = builder.methodName;
+		this.verify = builder.verify;
+		this.disableRangeCheck = builder.disableRangeCheck;
+		this.arguments = builder.arguments.toArray(new ArgumentPlan[builder.arguments.size()]);
+		this.deserializer = builder.deserializer != null ? builder.deserializer : new PojoDeserializer();
+		this.returnType = builder.returnType;
+		this.returnsFuture = this.returnType.equals(CompletableFuture.class);
+
+		if (this.returnsFuture || this.methodType != MethodType.QUERY)
+			this.responseClass = builder.responseClass;
+		else
+			this.responseClass = null;
+
+		this.waiterTimeout = builder.waiterTimeout;
+		this.waiterSleep = builder.waiterSleep;
+		this.cacheTtl = builder.cacheTtl;
+		this.priority = builder.priority;
+	}
+
+	public static Builder query(String methodName) {
+		return new Builder(MethodType.QUERY, methodName);
+	}
+
+	public static Builder update(String methodName) {
+		return new Builder(MethodType.UPDATE, methodName);
+	}
+
+	public static Builder oneway(String methodName) {
+		return new Builder(MethodType.ONEWAY, methodName);
+	}
+
+	static InvocationPlan get(Method method) {
+		ConcurrentMap<Method, InvocationPlan> plans = PLANS.get(method.getDeclaringClass());
+
+		InvocationPlan plan = plans.get(method);
+
+		if (plan == null)
+			plan = plans.computeIfAbsent(method, InvocationPlan::new);
+
+		return plan;
+	}
+
+	byte[] encode(Object[] args) {
+		ArrayList<IDLValue> candidArgs = new ArrayList<IDLValue>(this.arguments.length);
+
+		if (args != null)
+			for (int i = 0; i < args.length; i++) {
+				ArgumentPlan argument = this.arguments[i];
+
+				if (argument.skip)
+					continue;
+
+				if (argument.idlType != null)
+					candidArgs.add(IDLValue.create(args[i], argument.serializer, argument.idlType));
+				else
+					candidArgs.add(IDLValue.create(args[i], argument.serializer));
+			}
+
+		return IDLArgs.create(candidArgs).toBytes();
+	}
+
+	Waiter createWaiter(int defaultTimeout, int defaultSleep) {
+		if (this.waiterTimeout >= 0)
+			return Waiter.create(this.waiterTimeout, this.waiterSleep);
+		else
+			return Waiter.create(defaultTimeout, defaultSleep);
+	}
+
+	/*
+	 * Run the call on executor if there is one and the method returns a CompletableFuture, so the
+	 * calling thread does not wait while the call is sent and an update's status is polled.
+	 * The call gets a Deadline of timeout if there is one, and cancelling a returned future cancels it.
+	 */
+	@SuppressWarnings("unchecked")
+	Object invoke(Executor executor, Duration timeout, Agent proxyAgent, Principal canisterId, Principal effectiveCanisterId,
+			Optional<Long> ingressExpiryDatetime, Waiter waiter, Object[] args) throws AgentError {
+		Agent agent = this.priority != null && this.priority != proxyAgent.priority ? proxyAgent.withPriority(this.priority)
+				: proxyAgent;
+
+		Deadline deadline = timeout != null ? Deadline.after(timeout) : this.returnsFuture ? Deadline.none() : null;
+
+		if (executor == null || !this.returnsFuture)
+			return this.cancelOnFailure(deadline,
+					this.invoke(deadline, agent, canisterId, effectiveCanisterId, ingressExpiryDatetime, waiter, args));
+
+		return this.cancelOnFailure(deadline, CompletableFuture.supplyAsync(
+				() -> (CompletableFuture<Object>) this.invoke(deadline, agent, canisterId, effectiveCanisterId, ingressExpiryDatetime, waiter, args),
+				executor).thenCompose(response -> response));
+	}
+
+	// a returned future failing first, cancelled by the caller, cancels whatever the call still waits for
+	Object cancelOnFailure(Deadline deadline, Object response) {
+		if (deadline != null && response instanceof CompletableFuture)
+			((CompletableFuture<?>) response).whenComplete((input, ex) -> {
+				if (ex != null)
+					deadline.cancel();
+			});
+
+		return response;
+	}
+
+	/*
+	 * Run the call described by this plan, shared by the dynamic proxy and generated proxies.
+	 */
+	Object invoke(Deadline deadline, Agent agent, Principal canisterId, Principal effectiveCanisterId,
+			Optional<Long> ingressExpiryDatetime, Waiter waiter, Object[] args) throws AgentError {
+		MethodType methodType = this.methodType;
+
+		String methodName = this.methodName;
+
+		boolean verify = this.verify;
+
+		byte[] buf = this.encode(args);
+
+		ObjectDeserializer objectDeserializer = this.deserializer;
+
+		switch (methodType) {
+		case QUERY: {
+			QueryBuilder queryBuilder = QueryBuilder.create(agent, canisterId, methodName);
+
+			queryBuilder.effectiveCanisterId = effectiveCanisterId;
+			queryBuilder.ingressExpiryDatetime = ingressExpiryDatetime;
+			queryBuilder.cacheTtl = this.cacheTtl;
+			queryBuilder.deadline = deadline;
+
+			CompletableFuture<Response<byte[]>> builderResponse;
+			
+			if(verify)
+				builderResponse = queryBuilder.arg(buf).callWithVerification(null);
+			else
+				builderResponse = queryBuilder.arg(buf).call(null);
+
+			try {
+				if (this.returnsFuture) {
+					CompletableFuture<Object> response = new CompletableFuture<Object>();
+
+					builderResponse.whenComplete((input, ex) -> {
+						if (ex == null) {
+							if (input != null) {
+								IDLArgs outArgs = IDLArgs.fromBytes(input.getPayload());
+
+								if (outArgs.getArgs().isEmpty())
+									response.completeExceptionally(AgentError.create(
+											AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
+								else {
+									Class<?> responseClass = this.responseClass;
+
+									if (responseClass != null) {
+										if (responseClass.isAssignableFrom(IDLArgs.class))
+											response.complete(outArgs);
+										else if (responseClass.isAssignableFrom(Response.class))
+											response.complete(input);
+										else
+											response.complete(outArgs.getArgs().get(0).getValue(objectDeserializer,
+													responseClass));
+									} else
+										response.complete(outArgs.getArgs().get(0).getValue());
+								}
+							} else
+								response.completeExceptionally(AgentError
+										.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
+						} else
+							response.completeExceptionally(ex);
+					});
+					return response;
+				} else {
+					if (this.returnType.equals(Response.class))
+						return builderResponse.get();
+
+					byte[] output = builderResponse.get().getPayload();
+
+					IDLArgs outArgs = IDLArgs.fromBytes(output);
+
+					if (this.returnType.equals(IDLArgs.class))
+						return outArgs;
+
+					if (outArgs.getArgs().isEmpty())
+						throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value");
+
+					return outArgs.getArgs().get(0).getValue(objectDeserializer, this.returnType);
+				}
+
+			} catch (AgentError e) {
+				throw e;
+			} catch (ExecutionException e) {
+				// an open circuit keeps its own code, so callers can tell it from a failed call
+				if (e.getCause() instanceof AgentError
+						&& ((AgentError) e.getCause()).getCode() == AgentError.AgentErrorCode.CIRCUIT_OPEN)
+					throw (AgentError) e.getCause();
+
+				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
+			} catch (Exception e) {
+				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
+			}
+		}
+		case ONEWAY:
+		case UPDATE: {
+			boolean disableRangeCheck = this.disableRangeCheck;
+
+			UpdateBuilder updateBuilder = UpdateBuilder.create(agent, canisterId, methodName);
+
+			updateBuilder.effectiveCanisterId = effectiveCanisterId;
+			updateBuilder.ingressExpiryDatetime = ingressExpiryDatetime;
+			updateBuilder.deadline = deadline;
+
+			CompletableFuture<Object> response = new CompletableFuture<Object>();
+
+			CompletableFuture<Response<RequestId>> requestResponse = updateBuilder.arg(buf).call(null);
+
+			if (methodType == MethodType.ONEWAY) {
+				response.complete(null);
+
+				return response;
+			}
+
+			RequestId requestId;
+			try {
+				requestId = requestResponse.get().getPayload();
+			} catch (ExecutionException e) {
+				if (e.getCause() != null && e.getCause() instanceof AgentError)
+					throw (AgentError) e.getCause();
+				else
+					throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
+			} catch (InterruptedException e) {
+				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
+			}
+
+			if (waiter == null)
+				waiter = this.createWaiter(ProxyBuilder.WAITER_TIMEOUT, ProxyBuilder.WAITER_SLEEP);
+
+			CompletableFuture<Response<byte[]>> builderResponse = updateBuilder.getState(requestId, null,
+					disableRangeCheck, waiter);
+
+			builderResponse.whenComplete((input, ex) -> {
+				if (ex == null) {
+					if (input != null) {
+						IDLArgs outArgs = IDLArgs.fromBytes(input.getPayload());
+
+						if (outArgs.getArgs().isEmpty()) {
+							if (this.returnType.equals(Void.TYPE))
+								response.complete(null);
+							else {
+								Class<?> responseClass = this.responseClass;
+
+								if (responseClass != null) {
+									if (responseClass.isAssignableFrom(Void.class))
+										response.complete(null);
+									else
+										response.completeExceptionally(AgentError.create(
+												AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
+								} else
+									response.completeExceptionally(AgentError.create(
+											AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
+							}
+						} else {
+							Class<?> responseClass = this.responseClass;
+
+							if (responseClass != null) {
+								if (responseClass.isAssignableFrom(IDLArgs.class))
+									response.complete(outArgs);
+								else if (responseClass.isAssignableFrom(Response.class))
+									response.complete(input);
+								else
+									response.complete(
+											outArgs.getArgs().get(0).getValue(objectDeserializer, responseClass));
+							} else
+								response.complete(outArgs.getArgs().get(0).getValue());
+						}
+					} else if (this.returnType.equals(Void.TYPE))
+						response.complete(null);
+					else {
+						Class<?> responseClass = this.responseClass;
+
+						if (responseClass != null) {
+							if (responseClass.isAssignableFrom(Void.class))
+								response.complete(null);
+							else
+								response.completeExceptionally(AgentError
+										.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
+						} else
+							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR,
+									"Missing return value"));
+					}
+				} else {
+					if (ex instanceof AgentError)
+						response.completeExceptionally(ex);
+					else
+						response.completeExceptionally(
+								AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, ex));
+				}
+
+			});
+			return response;
+		}
+		default:
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Invalid Candid method type");
+		}
+	}
+
+	static MethodType methodType(Method method) {
+		MethodType methodType = MethodType.UPDATE;
+
+		if (method.isAnnotationPresent(QUERY.class))
+			methodType = MethodType.QUERY;
+		else if (method.isAnnotationPresent(UPDATE.class))
+			methodType = MethodType.UPDATE;
+
+		// the new way how to define operation type
+		if (method.isAnnotationPresent(Modes.class)) {
+			Mode[] modes = method.getAnnotation(Modes.class).value();
+
+			if (modes.length > 0) {
+				switch (modes[0]) {
+				case QUERY:
+					methodType = MethodType.QUERY;
+					break;
+				case ONEWAY:
+					methodType = MethodType.ONEWAY;
+					break;
+				default:
+					methodType = MethodType.UPDATE;
+					break;
+				}
+			}
+		}
+
+		return methodType;
+	}
+
+	/*
+	 * Methods not returning a generic type have no response class, unless annotated with one.
+	 */
+	static Class<?> responseClass(Method method) {
+		try {
+			return ProxyBuilder.getMethodClass(method);
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T newInstance(Class<?> clazz) {
+		try {
+			return (T) clazz.getConstructor().newInstance();
+		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
+				| InvocationTargetException | NoSuchMethodException | SecurityException e) {
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		}
+	}
+
+	/*
+	 * Plan built from values precomputed by the annotation processor, in the order of
+	 * the method parameters.
+	 */
+	public static final class Builder {
+		final MethodType methodType;
+		final String methodName;
+		boolean verify;
+		boolean disableRangeCheck;
+		final ArrayList<ArgumentPlan> arguments = new ArrayList<ArgumentPlan>();
+		ObjectDeserializer deserializer;
+		Class<?> returnType = Object.class;
+		Class<?> responseClass;
+		int waiterTimeout = -1;
+		int waiterSleep;
+		Duration cacheTtl;
+		Priority priority;
+
+		Builder(MethodType methodType, String methodName) {
+			this.methodType = methodType;
+			this.methodName = methodName;
+		}
+
+		public Builder verify() {
+			this.verify = true;
+			return this;
+		}
+
+		public Builder disableRangeCheck() {
+			this.disableRangeCheck = true;
+			return this;
+		}
+
+		public Builder argument(ObjectSerializer serializer, IDLType idlType) {
+			this.arguments.add(new ArgumentPlan(false, serializer, idlType));
+			return this;
+		}
+
+		/* Parameter annotated with @Ignore */
+		public Builder ignore() {
+			this.arguments.add(new ArgumentPlan(true, null, null));
+			return this;
+		}
+
+		public Builder deserializer(ObjectDeserializer deserializer) {
+			this.deserializer = deserializer;
+			return this;
+		}
+
+		public Builder returns(Class<?> returnType, Class<?> responseClass) {
+			this.returnType = returnType;
+			this.responseClass = responseClass;
+			return this;
+		}
+
+		public Builder waiter(int timeout, int sleep) {
+			this.waiterTimeout = timeout;
+			this.waiterSleep = sleep;
+			return this;
+		}
+
+		/* Query method annotated with @Cached */
+		public Builder cached(int ttl) {
+			this.cacheTtl = Duration.ofSeconds(ttl);
+			return this;
+		}
+
+		/* Method annotated with @Priority */
+		public Builder priority(Priority priority) {
+			this.priority = priority;
+			return this;
+		}
+
+		public InvocationPlan build() {
+			return new InvocationPlan(this);
+		}
+	}
+
+	static final class ArgumentPlan {
+		final boolean skip;
+		final ObjectSerializer serializer;
+		final IDLType idlType;
+
+		ArgumentPlan(boolean skip, ObjectSerializer serializer, IDLType idlType) {
+			this.skip = skip;
+			this.serializer = serializer != null ? serializer : new PojoSerializer();
+			this.idlType = idlType;
+		}
+
+		ArgumentPlan(Parameter parameter, Annotation[] annotations) {
+			boolean skip = false;
+			Argument argumentAnnotation = null;
+			ObjectSerializer serializer = null;
+
+			for (Annotation annotation : annotations) {
+				if (Ignore.class.isInstance(annotation)) {
+					skip = true;
+					continue;
+				}
+				if (Argument.class.isInstance(annotation))
+					argumentAnnotation = (Argument) annotation;
+				if (org.ic4j.candid.annotations.Serializer.class.isInstance(annotation))
+					serializer = newInstance(((org.ic4j.candid.annotations.Serializer) annotation).value());
+			}
+
+			this.skip = skip;
+			this.serializer = serializer != null ? serializer : new PojoSerializer();
+
+			if (argumentAnnotation != null) {
+				Type type = argumentAnnotation.value();
+
+				if (parameter.getType().isArray())
+					this.idlType = IDLType.createType(Type.VEC, IDLType.createType(type));
+				else
+					this.idlType = IDLType.createType(type);
+			} else
+				this.idlType = null;
+		}
+	}
+}
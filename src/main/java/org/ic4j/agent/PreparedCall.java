@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.ic4j.agent.identity.Signature;
+import org.ic4j.agent.metrics.Phase;
+import org.ic4j.agent.metrics.RequestTags;
+import org.ic4j.agent.metrics.RequestType;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+
+/*
+ * An update call prepared once and executed many times. The request id hashes and the CBOR
+ * encoding of sender, canister_id, method_name and arg are computed by UpdateBuilder.prepare();
+ * an execution only hashes and encodes ingress_expiry and the nonce (and the arg, if a new one
+ * is passed), signs and sends.
+ */
+public final class PreparedCall {
+	final Agent agent;
+	final Principal canisterId;
+	final Principal effectiveCanisterId;
+	final String methodName;
+	final Optional<Long> ingressExpiryDatetime;
+	final EnvelopeTemplate template;
+
+	PreparedCall(Agent agent, Principal canisterId, Principal effectiveCanisterId, String methodName, byte[] arg,
+			Optional<Long> ingressExpiryDatetime) {
+		this.agent = agent;
+		this.canisterId = canisterId;
+		this.effectiveCanisterId = effectiveCanisterId;
+		this.methodName = methodName;
+		this.ingressExpiryDatetime = ingressExpiryDatetime;
+		this.template = EnvelopeTemplate.call(agent.identity.sender(), canisterId, methodName, arg);
+	}
+
+	/*
+	 * Make the prepared update call. This will return a RequestId.
+	 */
+	public CompletableFuture<RequestId> call() throws AgentError {
+		return this.execute(this.template);
+	}
+
+	/*
+	 * Make the prepared update call with another arg.
+	 */
+	public CompletableFuture<RequestId> call(byte[] arg) throws AgentError {
+		return this.execute(this.template.withArg(arg));
+	}
+
+	/*
+	 * Make the prepared update call and wait for its reply. As with UpdateBuilder.callAndWait, a call
+	 * that cannot be submitted fails the returned future with its AgentError, CIRCUIT_OPEN included.
+	 */
+	public CompletableFuture<byte[]> callAndWait(Waiter waiter) throws AgentError {
+		return this.getState(this.call(), waiter);
+	}
+
+	public CompletableFuture<byte[]> callAndWait(byte[] arg, Waiter waiter) throws AgentError {
+		return this.getState(this.call(arg), waiter);
+	}
+
+	CompletableFuture<byte[]> getState(CompletableFuture<RequestId> call, Waiter waiter) throws AgentError {
+		RequestId requestId;
+		try {
+			requestId = call.get();
+		} catch (InterruptedException | ExecutionException e) {
+			// execute already reported the failure to the CircuitBreaker
+			CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+			failed.completeExceptionally(AgentError.unwrap(e));
+
+			return failed;
+		}
+
+		return UpdateBuilder.create(this.agent, this.canisterId, this.methodName)
+				.effectiveCanisterId(this.effectiveCanisterId).getState(requestId, waiter);
+	}
+
+	CompletableFuture<RequestId> execute(EnvelopeTemplate template) throws AgentError {
+		CompletableFuture<RequestId> open = this.agent.shortCircuit(this.canisterId, this.methodName);
+
+		if (open != null)
+			return open;
+
+		long ingressExpiry = this.ingressExpiryDatetime.isPresent() ? this.ingressExpiryDatetime.get()
+				: this.agent.getExpiryDate();
+
+		byte[] nonce = this.agent.nonceFactory != null ? this.agent.nonceFactory.generate() : null;
+
+		RequestTags tags = this.agent.tags(this.canisterId, this.methodName, RequestType.CALL);
+		long start = Agent.start(tags);
+
+		RequestId requestId = template.requestId(ingressExpiry, nonce);
+
+		start = this.agent.measure(Phase.REQUEST_ID, tags, start);
+
+		Signature signature = this.agent.identity.sign(this.agent.constructMessage(requestId));
+
+		start = this.agent.measure(Phase.SIGN, tags, start);
+
+		byte[] envelope = template.encode(ingressExpiry, nonce, signature);
+
+		this.agent.measure(Phase.ENCODE, tags, start);
+
+		return this.agent.recordedFailure(this.canisterId, this.methodName,
+				this.agent.sendCall(this.effectiveCanisterId, tags, requestId, envelope, ingressExpiry, null))
+				.thenApply(response -> response.requestId);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.ic4j.agent.identity.Signature;
+import org.ic4j.agent.metrics.Phase;
+import org.ic4j.agent.metrics.RequestTags;
+import org.ic4j.agent.metrics.RequestType;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+
+/*
+ * A query prepared once and executed many times. The request id hashes and the CBOR encoding
+ * of sender, canister_id, method_name and arg are computed by QueryBuilder.prepare(); an
+ * execution only hashes and encodes ingress_expiry (and the arg, if a new one is passed),
+ * signs and sends.
+ */
+public final class PreparedQuery {
+	final Agent agent;
+	final Principal canisterId;
+	final Principal effectiveCanisterId;
+	final String methodName;
+	final Optional<Long> ingressExpiryDatetime;
+	final EnvelopeTemplate template;
+
+	PreparedQuery(Agent agent, Principal canisterId, Principal effectiveCanisterId, String methodName, byte[] arg,
+			Optional<Long> ingressExpiryDatetime) {
+		this.agent = agent;
+		this.canisterId = canisterId;
+		this.effectiveCanisterId = effectiveCanisterId;
+		this.methodName = methodName;
+		this.ingressExpiryDatetime = ingressExpiryDatetime;
+		this.template = EnvelopeTemplate.query(agent.identity.sender(), canisterId, methodName, arg);
+	}
+
+	/*
+	 * Make the prepared query call. This will return a byte vector.
+	 */
+	public CompletableFuture<byte[]> call() throws AgentError {
+		return this.execute(this.template, false);
+	}
+
+	/*
+	 * Make the prepared query call with another arg.
+	 */
+	public CompletableFuture<byte[]> call(byte[] arg) throws AgentError {
+		return this.execute(this.template.withArg(arg), false);
+	}
+
+	/*
+	 * Make the prepared query call, always verifying the signature of the query response.
+	 */
+	public CompletableFuture<byte[]> callWithVerification() throws AgentError {
+		return this.execute(this.template, true);
+	}
+
+	public CompletableFuture<byte[]> callWithVerification(byte[] arg) throws AgentError {
+		return this.execute(this.template.withArg(arg), true);
+	}
+
+	CompletableFuture<byte[]> execute(EnvelopeTemplate template, boolean explicitVerifyQuerySignatures)
+			throws AgentError {
+		CompletableFuture<byte[]> open = this.agent.shortCircuit(this.canisterId, this.methodName);
+
+		if (open != null)
+			return open;
+
+		long ingressExpiry = this.ingressExpiryDatetime.isPresent() ? this.ingressExpiryDatetime.get()
+				: this.agent.getExpiryDate();
+
+		RequestTags tags = this.agent.tags(this.canisterId, this.methodName, RequestType.QUERY);
+		long start = Agent.start(tags);
+
+		RequestId requestId = template.requestId(ingressExpiry, null);
+
+		start = this.agent.measure(Phase.REQUEST_ID, tags, start);
+
+		Signature signature = this.agent.identity.sign(this.agent.constructMessage(requestId));
+
+		start = this.agent.measure(Phase.SIGN, tags, start);
+
+		byte[] envelope = template.encode(ingressExpiry, null, signature);
+
+		this.agent.measure(Phase.ENCODE, tags, start);
+
+		return this.agent.recordedQuery(this.canisterId, this.methodName, input -> {
+					if (input.replied.isPresent())
+						return input.replied.get().getArg();
+					else if (input.rejected.isPresent())
+						throw AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,
+								input.rejected.get().rejectCode, input.rejected.get().rejectMessage).withRejectCode(input.rejected.get().getRejectCode());
+					else
+						throw AgentError.create(AgentError.AgentErrorCode.INVALID_REPLICA_STATUS);
+				}, handler -> this.agent.sendQuery(this.effectiveCanisterId, tags, requestId, envelope, ingressExpiry,
+						explicitVerifyQuerySignatures, null, handler));
+	}
+}
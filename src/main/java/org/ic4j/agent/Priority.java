@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Priority class of a request, for sharing an Agent between user facing and batch traffic.
+ * Queues in front of the transport (AdmissionControl) and of the completion executor
+ * (PriorityExecutor) serve requests by arrival time plus the slack of their class: a request
+ * lets those of a higher class go first that arrive up to the difference in slack after it,
+ * never more, so batch traffic is slowed down but not starved.
+ */
+public enum Priority {
+	INTERACTIVE(0),
+	NORMAL(100),
+	BULK(1000);
+
+	final long slackNanos;
+
+	Priority(long slackMillis) {
+		this.slackNanos = TimeUnit.MILLISECONDS.toNanos(slackMillis);
+	}
+
+	// the time a request of this class arriving at nanoTime is served by
+	long due(long nanoTime) {
+		return nanoTime + this.slackNanos;
+	}
+}
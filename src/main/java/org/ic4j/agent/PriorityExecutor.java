@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Completion executor running tasks by the Priority of the Agent they come from, so that decoding
+ * and verification of interactive replies do not queue up behind a bulk job's. Tasks are ordered by
+ * arrival time plus the slack of their class, which bounds how long a bulk task can be overtaken.
+ * Set on an Agent with AgentBuilder.completionExecutor().
+ */
+public final class PriorityExecutor implements Executor {
+	final ThreadPoolExecutor executor;
+	final AtomicLong sequence = new AtomicLong();
+
+	PriorityExecutor(int threads) {
+		AtomicInteger count = new AtomicInteger();
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "ic4j-completion-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	public static PriorityExecutor create(int threads) {
+		return new PriorityExecutor(threads);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		this.execute(Priority.NORMAL, command);
+	}
+
+	public void execute(Priority priority, Runnable command) {
+		this.executor.execute(new Task(priority.due(System.nanoTime()), this.sequence.getAndIncrement(), command));
+	}
+
+	public int getQueued() {
+		return this.executor.getQueue().size();
+	}
+
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	static final class Task implements Runnable, Comparable<Task> {
+		final long due;
+		final long sequence;
+		final Runnable command;
+
+		Task(long due, long sequence, Runnable command) {
+			this.due = due;
+			this.sequence = sequence;
+			this.command = command;
+		}
+
+		@Override
+		public void run() {
+			this.command.run();
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			// nanoTime values are compared by difference
+			long difference = this.due - other.due;
+
+			if (difference != 0)
+				return difference < 0 ? -1 : 1;
+
+			return Long.compare(this.sequence, other.sequence);
+		}
+	}
+}
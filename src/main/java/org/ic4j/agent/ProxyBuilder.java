@@ -18,21 +18,13 @@ package org.ic4j.agent;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
-import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.time.Duration;
 import java.time.LocalDateTime;
@@ -43,33 +35,22 @@ import java.util.Optional;
 import java.util.WeakHashMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.ic4j.agent.annotations.Canister;
 import org.ic4j.agent.annotations.EffectiveCanister;
-import org.ic4j.agent.annotations.Transport;
 import org.ic4j.agent.annotations.QUERY;
 import org.ic4j.agent.annotations.ResponseClass;
 import org.ic4j.agent.annotations.UPDATE;
-import org.ic4j.agent.annotations.Verify;
-import org.ic4j.agent.http.ReplicaApacheHttpTransport;
-import org.ic4j.agent.identity.AnonymousIdentity;
-import org.ic4j.agent.identity.BasicIdentity;
 import org.ic4j.agent.identity.Identity;
-import org.ic4j.agent.identity.PemError;
-import org.ic4j.agent.identity.Prime256v1Identity;
-import org.ic4j.agent.identity.Secp256k1Identity;
 import org.ic4j.agent.requestid.RequestId;
-import org.ic4j.agent.annotations.Argument;
 import org.ic4j.candid.ObjectDeserializer;
 import org.ic4j.candid.ObjectSerializer;
-import org.ic4j.candid.annotations.Ignore;
-import org.ic4j.candid.annotations.Modes;
 import org.ic4j.candid.annotations.Name;
 import org.ic4j.candid.parser.IDLArgs;
-import org.ic4j.candid.parser.IDLParser;
 import org.ic4j.candid.parser.IDLType;
 import org.ic4j.candid.parser.IDLValue;
 import org.ic4j.candid.pojo.PojoDeserializer;
@@ -98,6 +79,10 @@ public final class ProxyBuilder {
 	Map<Principal,IDLType> serviceTypes = new WeakHashMap<Principal,IDLType>();
 	
 	Path idlFile;
+
+	IDLCache idlCache;
+
+	Identity identity;
 	
 	private boolean disableRangeCheck = false;
 	
@@ -105,6 +90,10 @@ public final class ProxyBuilder {
 
 	private Waiter waiter;
 
+	private Executor executor;
+	private Duration deadline;
+	private Priority priority;
+
 	ProxyBuilder(Agent agent) {
 		Security.addProvider(new BouncyCastleProvider());
 
@@ -184,11 +173,50 @@ public final class ProxyBuilder {
 		return this;
 	}
 
+	/*
+	 * Sign the proxy's calls with identity instead of the Agent's own, sharing the Agent's transport.
+	 */
+	public ProxyBuilder identity(Identity identity) {
+		this.identity = identity;
+
+		return this;
+	}
+
 	public ProxyBuilder waiter(Waiter waiter) {
 		this.waiter = waiter;
 
 		return this;
 	}
+
+	/*
+	 * Run calls of proxy methods returning CompletableFuture on executor instead of the calling
+	 * thread, which otherwise sends the call and polls an update's status before returning. Meant
+	 * for a virtual thread per task executor (VirtualThreads.executor() on JDK 21).
+	 */
+	public ProxyBuilder executor(Executor executor) {
+		this.executor = executor;
+
+		return this;
+	}
+
+	/*
+	 * Give every call of a proxy method its own Deadline of timeout, from sending the call through
+	 * polling an update's status and verification. Cancelling a returned CompletableFuture cancels the call.
+	 */
+	public ProxyBuilder deadline(Duration timeout) {
+		this.deadline = timeout;
+
+		return this;
+	}
+
+	/*
+	 * Send calls of proxy methods with priority, unless the method is annotated with another @Priority.
+	 */
+	public ProxyBuilder priority(Priority priority) {
+		this.priority = priority;
+
+		return this;
+	}
 	
 	
 	/* Candid IDL file describing service
@@ -201,6 +229,15 @@ public final class ProxyBuilder {
 		return this;
 	}
 	
+	/* Cache for Candid IDL loaded from the canister, IDLCache.getDefault() if not set
+	 * 
+	 */
+	public ProxyBuilder idlCache(IDLCache idlCache) {
+		this.idlCache = idlCache;
+
+		return this;
+	}
+	
 	/* Disable Range Check
 	 * 
 	 */
@@ -234,9 +271,19 @@ public final class ProxyBuilder {
 		if (func != null && func.getPrincipal() != null)
 			this.canisterId = func.getPrincipal();
 		
-		AgentInvocationHandler agentInvocationHandler = this.getAgentInvocationHandler(interfaceClass);	
-		
 		Object proxy = this.getProxy(interfaceClass);
+
+		AgentInvocationHandler agentInvocationHandler;
+
+		if (proxy instanceof GeneratedProxy) {
+			GeneratedProxy generatedProxy = (GeneratedProxy) proxy;
+
+			agentInvocationHandler = new AgentInvocationHandler(generatedProxy.agent, generatedProxy.canisterId,
+					generatedProxy.effectiveCanisterId, generatedProxy.ingressExpiryDatetime, generatedProxy.waiter);
+			agentInvocationHandler.executor = generatedProxy.executor;
+			agentInvocationHandler.deadline = generatedProxy.deadline;
+		} else
+			agentInvocationHandler = (AgentInvocationHandler) Proxy.getInvocationHandler(proxy);
 		
 		Method[] methods = interfaceClass.getDeclaredMethods();
 		
@@ -277,74 +324,56 @@ public final class ProxyBuilder {
 	public <T> T getProxy(Class<T> interfaceClass) {
 		
 		
-		AgentInvocationHandler agentInvocationHandler = this.getAgentInvocationHandler(interfaceClass);		
-		
-		T proxy = (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[] { interfaceClass },
-				agentInvocationHandler);
+		AgentInvocationHandler agentInvocationHandler = this.getAgentInvocationHandler(interfaceClass);
+
+		// class generated by ic4j-agent-processor, if the interface was compiled with it
+		T proxy = GeneratedProxy.create(interfaceClass, agentInvocationHandler.agent, agentInvocationHandler.canisterId,
+				agentInvocationHandler.effectiveCanisterId, agentInvocationHandler.ingressExpiryDatetime,
+				agentInvocationHandler.waiter);
+
+		if (proxy == null)
+			proxy = (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[] { interfaceClass },
+					agentInvocationHandler);
+		else {
+			((GeneratedProxy) proxy).lease = agentInvocationHandler.lease;
+			((GeneratedProxy) proxy).executor = agentInvocationHandler.executor;
+			((GeneratedProxy) proxy).deadline = agentInvocationHandler.deadline;
+		}
 		
-		this.parseServiceType();
+		try {
+			this.parseServiceType();
+		} catch (RuntimeException e) {
+			release(proxy);
+			throw e;
+		}
 
 		return proxy;
 	}
-	
-	<T> AgentInvocationHandler getAgentInvocationHandler(Class<T> interfaceClass) {
 
-		Agent agent = this.agent;
-
-		if (agent == null) {
-			if (interfaceClass.isAnnotationPresent(org.ic4j.agent.annotations.Agent.class)) {
-				org.ic4j.agent.annotations.Agent agentAnnotation = interfaceClass
-						.getAnnotation(org.ic4j.agent.annotations.Agent.class);
-
-				Transport transportAnnotation = agentAnnotation.transport();
-				Identity identity = new AnonymousIdentity();
+	/*
+	 * Give back the shared Agent of a proxy configured by @Agent. The Agent and its transport
+	 * are closed once all proxies using them are released. Proxies built with an explicit
+	 * Agent are left alone, the caller owns that Agent.
+	 */
+	public static void release(Object proxy) {
+		AgentRegistry.Lease lease = null;
 
-				org.ic4j.agent.annotations.Identity identityAnnotation = agentAnnotation.identity();
+		if (proxy instanceof GeneratedProxy)
+			lease = ((GeneratedProxy) proxy).lease;
+		else if (proxy != null && Proxy.isProxyClass(proxy.getClass())
+				&& Proxy.getInvocationHandler(proxy) instanceof AgentInvocationHandler)
+			lease = ((AgentInvocationHandler) Proxy.getInvocationHandler(proxy)).lease;
 
-				try {
-					ReplicaTransport transport = ReplicaApacheHttpTransport.create(transportAnnotation.url());
-
-					switch (identityAnnotation.type()) {
-					case ANONYMOUS:
-						identity = new AnonymousIdentity();
-						break;
-					case BASIC:
-						if ("".equals(identityAnnotation.pem_file())) {
-							KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
-							identity = BasicIdentity.fromKeyPair(keyPair);
-						} else {
-							Path path = Paths.get(identityAnnotation.pem_file());
-
-							identity = BasicIdentity.fromPEMFile(path);
-						}
-						break;
-					case SECP256K1:
-						Path path = Paths.get(identityAnnotation.pem_file());
-
-						identity = Secp256k1Identity.fromPEMFile(path);
-						break;
-						
-					case PRIME256V1:
-						path = Paths.get(identityAnnotation.pem_file());
+		if (lease != null)
+			lease.release();
+	}
+	
+	<T> AgentInvocationHandler getAgentInvocationHandler(Class<T> interfaceClass) {
 
-						identity = Prime256v1Identity.fromPEMFile(path);
-						break;					}
-					
+		Agent agent = this.agent;
 
-					agent = new AgentBuilder().transport(transport).identity(identity).build();
-					
-					if(agentAnnotation.fetchRootKey())
-						agent.fetchRootKey();
-					
-				} catch (URISyntaxException e) {
-					throw AgentError.create(AgentError.AgentErrorCode.INVALID_REPLICA_URL, e,
-							transportAnnotation.url());
-				} catch (NoSuchAlgorithmException e) {
-					throw PemError.create(PemError.PemErrorCode.PEM_ERROR, e, identityAnnotation.pem_file());
-				}
-			} else
-				throw AgentError.create(AgentError.AgentErrorCode.MISSING_REPLICA_TRANSPORT);
-		}
+		if (agent == null && !interfaceClass.isAnnotationPresent(org.ic4j.agent.annotations.Agent.class))
+			throw AgentError.create(AgentError.AgentErrorCode.MISSING_REPLICA_TRANSPORT);
 
 		Principal canisterId = this.canisterId;
 		Principal effectiveCanisterId = this.effectiveCanisterId;
@@ -383,8 +412,28 @@ public final class ProxyBuilder {
 				this.loadIDL = true;
 		}
 
-		return new AgentInvocationHandler(agent, canisterId,
+		AgentRegistry.Lease lease = null;
+
+		// shared with the other proxies of the same @Agent configuration
+		if (agent == null) {
+			lease = AgentRegistry.INSTANCE.acquire(interfaceClass.getAnnotation(org.ic4j.agent.annotations.Agent.class));
+			agent = lease.getAgent();
+		}
+
+		if (this.identity != null)
+			agent = agent.withIdentity(this.identity);
+
+		if (this.priority != null)
+			agent = agent.withPriority(this.priority);
+
+		AgentInvocationHandler agentInvocationHandler = new AgentInvocationHandler(agent, canisterId,
 				effectiveCanisterId, this.ingressExpiryDatetime, waiter);
+
+		agentInvocationHandler.lease = lease;
+		agentInvocationHandler.executor = this.executor;
+		agentInvocationHandler.deadline = this.deadline;
+
+		return agentInvocationHandler;
 	}
 
 	class AgentInvocationHandler implements InvocationHandler {
@@ -393,6 +442,10 @@ public final class ProxyBuilder {
 		Principal effectiveCanisterId;
 		Optional<Long> ingressExpiryDatetime;
 		Waiter waiter;
+		// set if the Agent comes from the AgentRegistry
+		AgentRegistry.Lease lease;
+		Executor executor;
+		Duration deadline;
 
 		AgentInvocationHandler(Agent agent, Principal canisterId, Principal effectiveCanisterId,
 				Optional<Long> ingressExpiryDatetime, Waiter waiter) {
@@ -405,300 +458,8 @@ public final class ProxyBuilder {
 
 		@Override
 		public Object invoke(Object proxy, Method method, Object[] args) throws AgentError {
-
-			MethodType methodType = MethodType.UPDATE;
-
-			String methodName = method.getName();
-			
-			boolean verify = false;
-			
-			if (method.isAnnotationPresent(Verify.class))
-				verify = true;
-
-			if (method.isAnnotationPresent(QUERY.class))	
-				methodType = MethodType.QUERY;
-			else if (method.isAnnotationPresent(UPDATE.class))
-				methodType = MethodType.UPDATE;
-
-			// the new way how to define operation type
-			if (method.isAnnotationPresent(Modes.class)) {
-				Mode[] modes = method.getAnnotation(Modes.class).value();
-
-				if (modes.length > 0) {
-					switch (modes[0]) {
-					case QUERY:
-						methodType = MethodType.QUERY;
-						break;
-					case ONEWAY:
-						methodType = MethodType.ONEWAY;
-						break;
-					default:
-						methodType = MethodType.UPDATE;
-						break;
-					}
-				}
-			}
-
-			if (method.isAnnotationPresent(Name.class)) {
-				Name nameAnnotation = method.getAnnotation(Name.class);
-				methodName = nameAnnotation.value();
-			}
-
-			Parameter[] parameters = method.getParameters();
-
-			ArrayList<IDLValue> candidArgs = new ArrayList<IDLValue>();
-
-			if (args != null)
-				for (int i = 0; i < args.length; i++) {
-					Object arg = args[i];
-					Argument argumentAnnotation = null;
-
-					boolean skip = false;
-
-					ObjectSerializer objectSerializer = new PojoSerializer();
-
-					for (Annotation annotation : method.getParameterAnnotations()[i]) {
-						if (Ignore.class.isInstance(annotation)) {
-							skip = true;
-							continue;
-						}
-						if (Argument.class.isInstance(annotation))
-							argumentAnnotation = (Argument) annotation;
-						if (org.ic4j.candid.annotations.Serializer.class.isInstance(annotation)) {
-							Class<ObjectSerializer> serializerClass = (Class<ObjectSerializer>) ((org.ic4j.candid.annotations.Serializer) annotation)
-									.value();
-							try {
-								objectSerializer = serializerClass.getConstructor().newInstance();
-							} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-									| InvocationTargetException | NoSuchMethodException | SecurityException e) {
-								throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
-							}
-						}
-					}
-
-					if (skip)
-						continue;
-
-					{
-						if (argumentAnnotation != null) {
-							Type type = argumentAnnotation.value();
-
-							IDLType idlType;
-
-							if (parameters[i].getType().isArray())
-								idlType = IDLType.createType(Type.VEC, IDLType.createType(type));
-							else
-								idlType = IDLType.createType(type);
-
-							IDLValue idlValue = IDLValue.create(arg, objectSerializer, idlType);
-
-							candidArgs.add(idlValue);
-						} else
-							candidArgs.add(IDLValue.create(arg, objectSerializer));
-					}
-				}
-
-			IDLArgs idlArgs = IDLArgs.create(candidArgs);
-
-			byte[] buf = idlArgs.toBytes();
-
-			ObjectDeserializer objectDeserializer;
-
-			if (method.isAnnotationPresent(org.ic4j.candid.annotations.Deserializer.class)) {
-				Class<ObjectDeserializer> deserializerClass = (Class<ObjectDeserializer>) method
-						.getAnnotation(org.ic4j.candid.annotations.Deserializer.class).value();
-				try {
-					objectDeserializer = deserializerClass.getConstructor().newInstance();
-				} catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-						| InvocationTargetException | NoSuchMethodException | SecurityException e) {
-					throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
-				}
-			} else
-				objectDeserializer = new PojoDeserializer();
-			switch (methodType) {
-			case QUERY: {
-				QueryBuilder queryBuilder = QueryBuilder.create(agent, this.canisterId, methodName);
-
-				queryBuilder.effectiveCanisterId = this.effectiveCanisterId;
-				queryBuilder.ingressExpiryDatetime = this.ingressExpiryDatetime;
-
-				CompletableFuture<Response<byte[]>> builderResponse;
-				
-				if(verify)
-					builderResponse = queryBuilder.arg(buf).callWithVerification(null);
-				else
-					builderResponse = queryBuilder.arg(buf).call(null);
-
-				try {
-					if (method.getReturnType().equals(CompletableFuture.class)) {
-						CompletableFuture<Object> response = new CompletableFuture();
-
-						builderResponse.whenComplete((input, ex) -> {
-							if (ex == null) {
-								if (input != null) {
-									IDLArgs outArgs = IDLArgs.fromBytes(input.getPayload());
-
-									if (outArgs.getArgs().isEmpty())
-										response.completeExceptionally(AgentError.create(
-												AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
-									else {
-										Class<?> responseClass = getMethodClass(method);
-
-										if (responseClass != null) {
-											if (responseClass.isAssignableFrom(IDLArgs.class))
-												response.complete(outArgs);
-											else if (responseClass.isAssignableFrom(Response.class))
-												response.complete(input);
-											else
-												response.complete(outArgs.getArgs().get(0).getValue(objectDeserializer,
-														responseClass));
-										} else
-											response.complete(outArgs.getArgs().get(0).getValue());
-									}
-								} else
-									response.completeExceptionally(AgentError
-											.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
-							} else
-								response.completeExceptionally(ex);
-						});
-						return response;
-					} else {
-						if (method.getReturnType().equals(Response.class))
-							return builderResponse.get();
-
-						byte[] output = builderResponse.get().getPayload();
-
-						IDLArgs outArgs = IDLArgs.fromBytes(output);
-
-						if (method.getReturnType().equals(IDLArgs.class))
-							return outArgs;
-
-						if (outArgs.getArgs().isEmpty())
-							throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value");
-
-						return outArgs.getArgs().get(0).getValue(objectDeserializer, method.getReturnType());
-					}
-
-				} catch (AgentError e) {
-					throw e;
-				} catch (Exception e) {
-					throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
-				}
-			}
-			case ONEWAY:
-			case UPDATE: {
-				boolean disableRangeCheck = false;
-				UPDATE updateMethod = method.getAnnotation(UPDATE.class);
-
-				if (updateMethod != null) {
-					disableRangeCheck = updateMethod.disableRangeCheck();
-				}
-
-				UpdateBuilder updateBuilder = UpdateBuilder.create(this.agent, this.canisterId, methodName);
-
-				updateBuilder.effectiveCanisterId = this.effectiveCanisterId;
-				updateBuilder.ingressExpiryDatetime = this.ingressExpiryDatetime;
-
-				CompletableFuture<Object> response = new CompletableFuture<Object>();
-
-				CompletableFuture<Response<RequestId>> requestResponse = updateBuilder.arg(buf).call(null);
-
-				if (methodType == MethodType.ONEWAY) {
-					response.complete(null);
-
-					return response;
-				}
-
-				RequestId requestId;
-				try {
-					requestId = requestResponse.get().getPayload();
-				} catch (ExecutionException e) {
-					if (e.getCause() != null && e.getCause() instanceof AgentError)
-						throw (AgentError) e.getCause();
-					else
-						throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
-				} catch (InterruptedException e) {
-					throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
-				}
-
-				Waiter waiter = this.waiter;
-
-				if (waiter == null) {
-					if (method.isAnnotationPresent(org.ic4j.agent.annotations.Waiter.class)) {
-						org.ic4j.agent.annotations.Waiter waiterAnnotation = method
-								.getAnnotation(org.ic4j.agent.annotations.Waiter.class);
-						waiter = Waiter.create(waiterAnnotation.timeout(), waiterAnnotation.sleep());
-					} else
-						waiter = Waiter.create(WAITER_TIMEOUT, WAITER_SLEEP);
-				}
-
-				CompletableFuture<Response<byte[]>> builderResponse = updateBuilder.getState(requestId, null,
-						disableRangeCheck, waiter);
-
-				builderResponse.whenComplete((input, ex) -> {
-					if (ex == null) {
-						if (input != null) {
-							IDLArgs outArgs = IDLArgs.fromBytes(input.getPayload());
-
-							if (outArgs.getArgs().isEmpty()) {
-								if (method.getReturnType().equals(Void.TYPE))
-									response.complete(null);
-								else {
-									Class<?> responseClass = getMethodClass(method);
-
-									if (responseClass != null) {
-										if (responseClass.isAssignableFrom(Void.class))
-											response.complete(null);
-										else
-											response.completeExceptionally(AgentError.create(
-													AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
-									} else
-										response.completeExceptionally(AgentError.create(
-												AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
-								}
-							} else {
-								Class<?> responseClass = getMethodClass(method);
-
-								if (responseClass != null) {
-									if (responseClass.isAssignableFrom(IDLArgs.class))
-										response.complete(outArgs);
-									else if (responseClass.isAssignableFrom(Response.class))
-										response.complete(input);
-									else
-										response.complete(
-												outArgs.getArgs().get(0).getValue(objectDeserializer, responseClass));
-								} else
-									response.complete(outArgs.getArgs().get(0).getValue());
-							}
-						} else if (method.getReturnType().equals(Void.TYPE))
-							response.complete(null);
-						else {
-							Class<?> responseClass = getMethodClass(method);
-
-							if (responseClass != null) {
-								if (responseClass.isAssignableFrom(Void.class))
-									response.complete(null);
-								else
-									response.completeExceptionally(AgentError
-											.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing return value"));
-							} else
-								response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR,
-										"Missing return value"));
-						}
-					} else {
-						if (ex instanceof AgentError)
-							response.completeExceptionally(ex);
-						else
-							response.completeExceptionally(
-									AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, ex));
-					}
-
-				});
-				return response;
-			}
-			default:
-				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Invalid Candid method type");
-			}
+			return InvocationPlan.get(method).invoke(this.executor, this.deadline, this.agent, this.canisterId, this.effectiveCanisterId,
+					this.ingressExpiryDatetime, this.waiter, args);
 		}
 
 	}
@@ -708,6 +469,11 @@ public final class ProxyBuilder {
 	<T> T invoke(Func func, IDLType funcType,Class<T> responseClass, Mode[] modes, ObjectSerializer[] serializers, ObjectDeserializer deserializer, Object[] args) throws AgentError {
 		MethodType methodType = MethodType.UPDATE;
 
+		Agent agent = this.identity != null ? this.agent.withIdentity(this.identity) : this.agent;
+
+		if (this.priority != null)
+			agent = agent.withPriority(this.priority);
+
 		String methodName = func.getMethod();
 		
 		if(modes == null && funcType != null)
@@ -856,7 +622,7 @@ public final class ProxyBuilder {
 		}
 		case ONEWAY:
 		case UPDATE: {
-			UpdateBuilder updateBuilder = UpdateBuilder.create(this.agent, this.canisterId, methodName);
+			UpdateBuilder updateBuilder = UpdateBuilder.create(agent, this.canisterId, methodName);
 
 			updateBuilder.effectiveCanisterId = this.effectiveCanisterId;
 			
@@ -1023,12 +789,10 @@ public final class ProxyBuilder {
 		if(this.serviceType != null)
 			return;
 		
-		Reader idlReader;
-		
 		if(this.idlFile != null)
 		{
-			try {
-				idlReader = Files.newBufferedReader(this.idlFile);
+			try (Reader idlReader = Files.newBufferedReader(this.idlFile)) {
+				this.serviceType = IDLCache.parse(idlReader);
 			} catch (IOException e) {
 				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Invalid Candid IDL file %s", idlFile.getFileName());
 			}
@@ -1041,21 +805,12 @@ public final class ProxyBuilder {
 			if(this.agent == null)
 				throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Missing Agent");
 			
-			String serviceIDL = this.agent.getIDL(canisterId);
-			
-			LOG.debug(serviceIDL);
-			
-			idlReader = new StringReader(serviceIDL);
+			// shared across ProxyBuilders, revalidated against the canister module hash
+			IDLCache idlCache = this.idlCache != null ? this.idlCache : IDLCache.getDefault();
+
+			this.serviceType = idlCache.getServiceType(this.agent, this.canisterId);
 		}
 		
-		IDLParser idlParser = new IDLParser(idlReader);
-		idlParser.parse();
-		
-		Map<String,IDLType> serviceTypes = idlParser.getServices();
-		
-		if(!serviceTypes.isEmpty())
-			this.serviceType = serviceTypes.values().iterator().next();	
-		
 		this.serviceTypes.put(this.canisterId, this.serviceType);
 	}
 
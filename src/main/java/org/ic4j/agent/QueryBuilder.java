@@ -16,14 +16,17 @@
 
 package org.ic4j.agent;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.ic4j.agent.identity.Identity;
 import org.ic4j.types.Principal;
 
 /*
@@ -38,6 +41,8 @@ public final class QueryBuilder {
 	String methodName;
 	byte[] arg;
 	Optional<Long> ingressExpiryDatetime;
+	Duration cacheTtl;
+	Deadline deadline;
 	
 	QueryBuilder(Agent agent, Principal canisterId,String methodName )
 	{
@@ -60,6 +65,24 @@ public final class QueryBuilder {
 		return this;	
 	}
 	
+	/*
+	 * Sign this call with identity instead of the Agent's own, sharing the Agent's transport.
+	 */
+	public QueryBuilder identity(Identity identity)
+	{
+		this.agent = this.agent.withIdentity(identity);
+		return this;
+	}
+	
+	/*
+	 * Send this call with priority, ahead of or behind other traffic of the Agent, see Priority.
+	 */
+	public QueryBuilder priority(Priority priority)
+	{
+		this.agent = this.agent.withPriority(priority);
+		return this;
+	}
+	
 	public QueryBuilder arg(byte[] arg)
 	{
 		this.arg = arg;
@@ -93,13 +116,58 @@ public final class QueryBuilder {
 		return this;
 	}
 	
+	/*
+	 * Prepare this query for repeated execution. The request id hashes and encoding of everything
+	 * but ingress_expiry are computed now, with the current identity and arg.
+	 */
+	 
+	public PreparedQuery prepare()
+	{
+		return new PreparedQuery(this.agent, this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime);
+	}
+	
+	/*
+	 * Serve this query from the Agent's QueryCache for ttl, overriding the TTL configured on the cache.
+	 * Duration.ZERO bypasses the cache.
+	 */
+	public QueryBuilder cacheTtl(Duration ttl)
+	{
+		this.cacheTtl = ttl;
+		return this;
+	}
+	
+	/*
+	 * Bound this query by deadline, including signature verification. Once it expires or is cancelled
+	 * the returned future fails and the request is aborted.
+	 */
+	public QueryBuilder deadline(Deadline deadline)
+	{
+		this.deadline = deadline;
+		return this;
+	}
+	
+	<T> CompletableFuture<T> bind(CompletableFuture<T> future)
+	{
+		return this.deadline == null ? future : this.deadline.bind(future);
+	}
+	
 	/*
 	 * Make a query call. This will return a byte vector.
 	 */
 	 
 	public CompletableFuture<byte[]> call() throws AgentError
 	{
-		return agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime);
+		return this.bind(agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime, false, this.cacheTtl));
+	}
+	
+	/*
+	 * Make a query call and pass the reply to reader as a read-only ByteBuffer, without copying it.
+	 * The buffer is only valid until reader returns.
+	 */
+	 
+	public <T> CompletableFuture<T> callBuffer(Function<ByteBuffer, T> reader) throws AgentError
+	{
+		return this.bind(agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime, false, reader));
 	}
 	
 	/*
@@ -110,7 +178,7 @@ public final class QueryBuilder {
 	{
 		Request<byte[]> request = new Request<byte[]>(this.arg, headers);
 		
-		return agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, request, this.ingressExpiryDatetime);
+		return this.bind(agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, request, this.ingressExpiryDatetime, false, this.cacheTtl));
 	}	
 	
 	/*
@@ -122,7 +190,7 @@ public final class QueryBuilder {
 	 
 	public CompletableFuture<byte[]> callWithVerification() throws AgentError
 	{
-		return agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime, true);
+		return this.bind(agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime, true, this.cacheTtl));
 	}
 	
 	/*
@@ -136,6 +204,6 @@ public final class QueryBuilder {
 	{
 		Request<byte[]> request = new Request<byte[]>(this.arg, headers);
 		
-		return agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, request, this.ingressExpiryDatetime,true);
+		return this.bind(agent.queryRaw(this.canisterId, this.effectiveCanisterId, this.methodName, request, this.ingressExpiryDatetime, true, this.cacheTtl));
 	}	
 }
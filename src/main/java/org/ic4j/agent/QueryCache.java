@@ -0,0 +1,401 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.ic4j.agent.certification.Certificate;
+import org.ic4j.agent.certification.hashtree.Label;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Replies of query calls, keyed by canister, method, arg hash and sender, so results are
+ * never shared across principals. Set on an Agent with AgentBuilder.queryCache().
+ *
+ * Only methods with a TTL are cached: set per call with QueryBuilder.cacheTtl(), per proxy
+ * method with @Cached, per method name with ttl(), or for all methods with a default TTL.
+ * Entries are evicted least recently used first once their total size exceeds maxBytes.
+ *
+ * With invalidateOnModuleHashChange() or invalidateOnPathChange(), a cache lookup at most once
+ * per validateAfter reads the watched certified values of the canister in the background and
+ * drops all of its entries when one of them changed, e.g. after an upgrade.
+ *
+ * Cached replies are shared between callers and must not be modified.
+ */
+public final class QueryCache {
+	static final Logger LOG = LoggerFactory.getLogger(QueryCache.class);
+
+	public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+	public static final Duration DEFAULT_VALIDATE_AFTER = Duration.ofSeconds(30);
+
+	// map entry, key and reply object overhead counted for each entry
+	static final int ENTRY_OVERHEAD = 128;
+
+	static final byte[] MODULE_HASH = "module_hash".getBytes(StandardCharsets.UTF_8);
+
+	final long maxBytes;
+	final Duration defaultTtl;
+	final ConcurrentMap<String, Duration> ttls = new ConcurrentHashMap<String, Duration>();
+
+	final Map<ByteBuffer, CachedReply> entries = new LinkedHashMap<ByteBuffer, CachedReply>(16, 0.75f, true);
+	long bytes;
+
+	// bumped by every invalidation, replies of queries sent before are not stored
+	final AtomicLong generation = new AtomicLong();
+
+	volatile boolean watchModuleHash;
+	volatile long validateAfter = DEFAULT_VALIDATE_AFTER.toNanos();
+	final ConcurrentMap<Principal, CanisterWatch> watches = new ConcurrentHashMap<Principal, CanisterWatch>();
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+	final LongAdder invalidations = new LongAdder();
+
+	QueryCache(long maxBytes, Duration defaultTtl) {
+		this.maxBytes = maxBytes;
+		this.defaultTtl = defaultTtl;
+	}
+
+	public static QueryCache create() {
+		return new QueryCache(DEFAULT_MAX_BYTES, null);
+	}
+
+	public static QueryCache create(long maxBytes) {
+		return new QueryCache(maxBytes, null);
+	}
+
+	/*
+	 * Cache for up to maxBytes of replies, caching every query method for defaultTtl unless a
+	 * method has its own TTL.
+	 */
+	public static QueryCache create(long maxBytes, Duration defaultTtl) {
+		return new QueryCache(maxBytes, defaultTtl);
+	}
+
+	/*
+	 * TTL of all queries to methods named methodName, Duration.ZERO disables caching them.
+	 */
+	public QueryCache ttl(String methodName, Duration ttl) {
+		this.ttls.put(methodName, ttl);
+		return this;
+	}
+
+	public Duration getTtl(String methodName) {
+		Duration ttl = this.ttls.get(methodName);
+
+		return ttl != null ? ttl : this.defaultTtl;
+	}
+
+	/*
+	 * Drop the entries of a canister when its certified module_hash changes.
+	 */
+	public QueryCache invalidateOnModuleHashChange() {
+		this.watchModuleHash = true;
+		return this;
+	}
+
+	/*
+	 * Drop the entries of a canister when the certified value at path changes,
+	 * e.g. canister/<id>/certified_data.
+	 */
+	public QueryCache invalidateOnPathChange(Principal canisterId, List<byte[]> path) {
+		this.watches.computeIfAbsent(canisterId, CanisterWatch::new).paths.add(path);
+		return this;
+	}
+
+	/*
+	 * How often the watched values of a canister are read, 30 seconds by default.
+	 */
+	public QueryCache validateAfter(Duration validateAfter) {
+		this.validateAfter = validateAfter.toNanos();
+		return this;
+	}
+
+	public void invalidate(Principal canisterId) {
+		this.generation.incrementAndGet();
+
+		synchronized (this.entries) {
+			Iterator<CachedReply> iterator = this.entries.values().iterator();
+
+			while (iterator.hasNext()) {
+				CachedReply reply = iterator.next();
+
+				if (reply.canisterId.equals(canisterId)) {
+					iterator.remove();
+					this.bytes -= reply.size;
+					this.invalidations.increment();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		this.generation.incrementAndGet();
+
+		synchronized (this.entries) {
+			this.entries.clear();
+			this.bytes = 0;
+		}
+	}
+
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	public long getInvalidations() {
+		return this.invalidations.sum();
+	}
+
+	public long getBytes() {
+		synchronized (this.entries) {
+			return this.bytes;
+		}
+	}
+
+	public int getSize() {
+		synchronized (this.entries) {
+			return this.entries.size();
+		}
+	}
+
+	/*
+	 * Cached reply, or the reply of query, stored for ttl if it succeeds.
+	 */
+	CompletableFuture<Response<byte[]>> get(Agent agent, Principal canisterId, Principal effectiveCanisterId,
+			String methodName, byte[] arg, boolean verify, Duration ttl,
+			Supplier<CompletableFuture<Response<byte[]>>> query) throws AgentError {
+		this.validate(agent, canisterId, effectiveCanisterId);
+
+		ByteBuffer key = key(canisterId, methodName, arg, agent.identity.sender(), verify);
+
+		long now = System.nanoTime();
+
+		synchronized (this.entries) {
+			CachedReply reply = this.entries.get(key);
+
+			if (reply != null) {
+				if (reply.expiresAt - now > 0) {
+					this.hits.increment();
+					return CompletableFuture.completedFuture(reply.response);
+				}
+
+				this.entries.remove(key);
+				this.bytes -= reply.size;
+			}
+		}
+
+		this.misses.increment();
+
+		long generation = this.generation.get();
+
+		return query.get().thenApply(response -> {
+			this.put(key, new CachedReply(canisterId, response, now + ttl.toNanos(),
+					key.capacity() + response.getPayload().length + ENTRY_OVERHEAD), generation);
+
+			return response;
+		});
+	}
+
+	void put(ByteBuffer key, CachedReply reply, long generation) {
+		if (reply.size > this.maxBytes)
+			return;
+
+		synchronized (this.entries) {
+			if (this.generation.get() != generation)
+				return;
+
+			CachedReply previous = this.entries.put(key, reply);
+
+			if (previous != null)
+				this.bytes -= previous.size;
+
+			this.bytes += reply.size;
+
+			Iterator<CachedReply> iterator = this.entries.values().iterator();
+
+			while (this.bytes > this.maxBytes && iterator.hasNext()) {
+				CachedReply eldest = iterator.next();
+
+				iterator.remove();
+				this.bytes -= eldest.size;
+				this.evictions.increment();
+			}
+		}
+	}
+
+	/*
+	 * Read the watched values of the canister in the background if they are due.
+	 */
+	void validate(Agent agent, Principal canisterId, Principal effectiveCanisterId) {
+		CanisterWatch watch;
+
+		if (this.watchModuleHash)
+			watch = this.watches.computeIfAbsent(canisterId, CanisterWatch::new);
+		else {
+			watch = this.watches.get(canisterId);
+
+			if (watch == null)
+				return;
+		}
+
+		if (System.nanoTime() - watch.checkedAt < this.validateAfter || !watch.checking.compareAndSet(false, true))
+			return;
+
+		List<List<byte[]>> paths = new ArrayList<List<byte[]>>();
+
+		if (this.watchModuleHash)
+			paths.add(Arrays.asList("canister".getBytes(StandardCharsets.UTF_8), canisterId.getValue(), MODULE_HASH));
+
+		paths.addAll(watch.paths);
+
+		try {
+			agent.readStateRaw(effectiveCanisterId, paths, null).whenComplete((input, ex) -> {
+				try {
+					if (ex != null)
+						LOG.debug("Cannot validate cached queries of " + canisterId, ex);
+					else if (watch.update(input.certificate, paths)) {
+						LOG.debug("Certified state of " + canisterId + " changed, invalidating cached queries");
+						this.invalidate(canisterId);
+					}
+				} finally {
+					watch.checkedAt = System.nanoTime();
+					watch.checking.set(false);
+				}
+			});
+		} catch (AgentError e) {
+			LOG.debug("Cannot validate cached queries of " + canisterId, e);
+			watch.checkedAt = System.nanoTime();
+			watch.checking.set(false);
+		}
+	}
+
+	static ByteBuffer key(Principal canisterId, String methodName, byte[] arg, Principal sender, boolean verify) {
+		byte[] canister = canisterId.getValue();
+		byte[] method = methodName.getBytes(StandardCharsets.UTF_8);
+		byte[] argHash = DigestUtils.sha256(arg);
+		byte[] principal = sender.getValue();
+
+		ByteBuffer key = ByteBuffer.allocate(4 * Integer.BYTES + canister.length + method.length + argHash.length
+				+ principal.length + 1);
+
+		key.putInt(canister.length).put(canister);
+		key.putInt(method.length).put(method);
+		key.putInt(argHash.length).put(argHash);
+		key.putInt(principal.length).put(principal);
+		key.put((byte) (verify ? 1 : 0));
+
+		key.flip();
+
+		return key;
+	}
+
+	static final class CachedReply {
+		final Principal canisterId;
+		final Response<byte[]> response;
+		final long expiresAt;
+		final int size;
+
+		CachedReply(Principal canisterId, Response<byte[]> response, long expiresAt, int size) {
+			this.canisterId = canisterId;
+			this.response = response;
+			this.expiresAt = expiresAt;
+			this.size = size;
+		}
+	}
+
+	static final class CanisterWatch {
+		final Principal canisterId;
+		final List<List<byte[]>> paths = new CopyOnWriteArrayList<List<byte[]>>();
+
+		// last certified value of each watched path, empty if absent
+		final Map<ByteBuffer, byte[]> values = new ConcurrentHashMap<ByteBuffer, byte[]>();
+
+		volatile long checkedAt = System.nanoTime() - Long.MAX_VALUE / 2;
+		final AtomicBoolean checking = new AtomicBoolean();
+
+		CanisterWatch(Principal canisterId) {
+			this.canisterId = canisterId;
+		}
+
+		/*
+		 * Record the certified values, true if one of them changed since the last check.
+		 */
+		boolean update(Certificate certificate, List<List<byte[]>> paths) {
+			boolean changed = false;
+
+			for (List<byte[]> path : paths) {
+				List<Label> labels = new ArrayList<Label>(path.size());
+				int size = 0;
+
+				for (byte[] segment : path) {
+					labels.add(new Label(segment));
+					size += Integer.BYTES + segment.length;
+				}
+
+				ByteBuffer pathKey = ByteBuffer.allocate(size);
+
+				for (byte[] segment : path)
+					pathKey.putInt(segment.length).put(segment);
+
+				pathKey.flip();
+
+				byte[] value;
+
+				try {
+					value = ResponseAuthentication.lookupValue(certificate, labels);
+				} catch (AgentError e) {
+					value = new byte[0];
+				}
+
+				byte[] previous = this.values.put(pathKey, value);
+
+				if (previous != null && !Arrays.equals(previous, value))
+					changed = true;
+			}
+
+			return changed;
+		}
+	}
+}
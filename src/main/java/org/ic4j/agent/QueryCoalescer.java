@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.ic4j.types.Principal;
+
+/*
+ * Single-flight for queries. A query identical to one already in flight (same canister, method,
+ * arg, sender, verification and Priority) is not sent again, its caller gets the reply of the query
+ * in flight. Replies are never shared across senders, and an interactive query never waits for a
+ * bulk one queued behind the interactive traffic. Set on an Agent with AgentBuilder.queryCoalescer().
+ *
+ * Only queries without request headers are coalesced. Every caller gets its own future, so
+ * cancelling one does not affect the others.
+ */
+public final class QueryCoalescer {
+	final ConcurrentMap<ByteBuffer, CompletableFuture<Response<byte[]>>> inFlight = new ConcurrentHashMap<ByteBuffer, CompletableFuture<Response<byte[]>>>();
+
+	final LongAdder sent = new LongAdder();
+	final LongAdder coalesced = new LongAdder();
+
+	QueryCoalescer() {
+	}
+
+	public static QueryCoalescer create() {
+		return new QueryCoalescer();
+	}
+
+	/*
+	 * Queries sent to the replica.
+	 */
+	public long getSent() {
+		return this.sent.sum();
+	}
+
+	/*
+	 * Queries that got the reply of an identical query in flight.
+	 */
+	public long getCoalesced() {
+		return this.coalesced.sum();
+	}
+
+	public int getInFlight() {
+		return this.inFlight.size();
+	}
+
+	CompletableFuture<Response<byte[]>> execute(Principal canisterId, String methodName, byte[] arg, Principal sender,
+			boolean verify, Priority priority, Supplier<CompletableFuture<Response<byte[]>>> query) throws AgentError {
+		ByteBuffer key = key(canisterId, methodName, arg, sender, verify, priority);
+
+		CompletableFuture<Response<byte[]>> leader = new CompletableFuture<Response<byte[]>>();
+
+		CompletableFuture<Response<byte[]>> existing = this.inFlight.putIfAbsent(key, leader);
+
+		if (existing != null) {
+			this.coalesced.increment();
+			return copy(existing);
+		}
+
+		this.sent.increment();
+
+		try {
+			query.get().whenComplete((response, ex) -> {
+				// removed first, so callers arriving after completion send a new query
+				this.inFlight.remove(key, leader);
+
+				if (ex == null)
+					leader.complete(response);
+				else
+					leader.completeExceptionally(ex);
+			});
+		} catch (RuntimeException e) {
+			this.inFlight.remove(key, leader);
+			leader.completeExceptionally(e);
+		}
+
+		return copy(leader);
+	}
+
+	// the QueryCache key of the query, followed by its priority
+	static ByteBuffer key(Principal canisterId, String methodName, byte[] arg, Principal sender, boolean verify,
+			Priority priority) {
+		ByteBuffer query = QueryCache.key(canisterId, methodName, arg, sender, verify);
+
+		ByteBuffer key = ByteBuffer.allocate(query.remaining() + 1);
+
+		key.put(query).put((byte) priority.ordinal());
+
+		key.flip();
+
+		return key;
+	}
+
+	static <T> CompletableFuture<T> copy(CompletableFuture<T> source) {
+		CompletableFuture<T> copy = new CompletableFuture<T>();
+
+		source.whenComplete((response, ex) -> {
+			if (ex == null)
+				copy.complete(response);
+			else
+				copy.completeExceptionally(ex);
+		});
+
+		return copy;
+	}
+}
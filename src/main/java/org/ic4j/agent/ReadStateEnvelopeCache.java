@@ -0,0 +1,121 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.ic4j.agent.replicaapi.ReadStateContent;
+
+/*
+ * Signed read_state envelopes keyed by sender, paths and ingress expiry.
+ *
+ * With the expiry rounded down to a bucket, all polls of a request status within one bucket
+ * have the same content, so they can send the same bytes without hashing, signing or encoding
+ * again. Entries of past buckets simply age out of the LRU.
+ */
+final class ReadStateEnvelopeCache {
+	static final int DEFAULT_MAX_ENTRIES = 64;
+
+	final long bucket;
+	final Map<ByteBuffer, byte[]> envelopes;
+
+	ReadStateEnvelopeCache(Duration bucket, int maxEntries) {
+		this.bucket = bucket.toNanos();
+
+		this.envelopes = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+				return this.size() > maxEntries;
+			}
+		};
+	}
+
+	/*
+	 * Round down, so the envelope never expires later than the Agent's own ingress expiry.
+	 */
+	long bucket(long ingressExpiry) {
+		return ingressExpiry - ingressExpiry % this.bucket;
+	}
+
+	byte[] get(ReadStateContent request, Supplier<byte[]> envelope) {
+		ByteBuffer key = key(request);
+
+		synchronized (this.envelopes) {
+			byte[] bytes = this.envelopes.get(key);
+
+			if (bytes != null)
+				return bytes;
+		}
+
+		// signed outside the lock, two concurrent misses just sign the same content twice
+		byte[] bytes = envelope.get();
+
+		synchronized (this.envelopes) {
+			this.envelopes.put(key, bytes);
+		}
+
+		return bytes;
+	}
+
+	void clear() {
+		synchronized (this.envelopes) {
+			this.envelopes.clear();
+		}
+	}
+
+	// length prefixed sender, expiry and path segments, compared by content
+	static ByteBuffer key(ReadStateContent request) {
+		byte[] sender = request.readStateRequest.sender.getValue();
+		List<List<byte[]>> paths = request.readStateRequest.paths;
+
+		int size = Integer.BYTES + sender.length + Long.BYTES + Integer.BYTES;
+
+		if (paths != null)
+			for (List<byte[]> path : paths) {
+				size += Integer.BYTES;
+
+				for (byte[] segment : path)
+					size += Integer.BYTES + segment.length;
+			}
+
+		ByteBuffer key = ByteBuffer.allocate(size);
+
+		key.putInt(sender.length).put(sender);
+		key.putLong(request.readStateRequest.ingressExpiry);
+		key.putInt(paths == null ? 0 : paths.size());
+
+		if (paths != null)
+			for (List<byte[]> path : paths) {
+				key.putInt(path.size());
+
+				for (byte[] segment : path)
+					key.putInt(segment.length).put(segment);
+			}
+
+		key.flip();
+
+		return key;
+	}
+}
@@ -16,9 +16,53 @@
 
 package org.ic4j.agent;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class ReplicaResponse {
 	public byte[] payload;
 	public Map<String,String> headers;
+
+	// HTTP status code, 0 if the transport does not report it
+	public int statusCode;
+
+	/*
+	 * Read-only view of a pooled response body, set instead of payload when the transport
+	 * streams into a ByteBufferPool. The view is only valid until release() is called.
+	 */
+	public ByteBuffer body;
+
+	final AtomicReference<Runnable> releaser = new AtomicReference<Runnable>();
+
+	/*
+	 * Called by the transport to register how the body buffer goes back to its pool.
+	 */
+	public void onRelease(Runnable releaser) {
+		this.releaser.set(releaser);
+	}
+
+	/*
+	 * Give the body buffer back to its pool. Safe to call more than once.
+	 */
+	public void release() {
+		Runnable releaser = this.releaser.getAndSet(null);
+
+		if (releaser != null)
+			releaser.run();
+	}
+
+	/*
+	 * Response body as an array, copying it out of the pooled buffer if necessary.
+	 */
+	public byte[] toByteArray() {
+		if (this.payload != null || this.body == null)
+			return this.payload;
+
+		ByteBuffer body = this.body.duplicate();
+		byte[] bytes = new byte[body.remaining()];
+		body.get(bytes);
+
+		return bytes;
+	}
 }
@@ -34,5 +34,13 @@ public interface ReplicaTransport {
 	public CompletableFuture<ReplicaResponse> readState(Principal canisterId, byte[] envelope, Map<String,String> headers);
 	
 	public void close();
+	
+	/*
+	 * Turn the HTTP client's own retries on or off, for every Agent using this transport.
+	 * Turn them off when retrying with a RetryPolicy, the Agent never changes it.
+	 * Transports without such retries ignore it.
+	 */
+	public default void setAutomaticRetries(boolean automaticRetries) {
+	}
 
 }
@@ -243,6 +243,15 @@ public final class ResponseAuthentication {
 		return metadataData;
 	}
 
+	static byte[] lookupModuleHash(Certificate certificate, Principal canisterId) {
+		List<Label> path = new ArrayList<Label>();
+		path.add(new Label("canister"));
+		path.add(new Label(canisterId.getValue()));
+		path.add(new Label("module_hash"));
+
+		return lookupValue(certificate, path);
+	}
+
 	static byte[] lookupValue(Certificate certificate, List<Label> path) {
 		return lookupValue(certificate.tree, path);
 	}
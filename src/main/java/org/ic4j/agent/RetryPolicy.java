@@ -0,0 +1,168 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Retries transport requests on connection failures, 429 and 5xx responses, with
+ * exponential backoff and jitter. The same envelope bytes are sent again, so an update
+ * keeps its RequestId and the replica deduplicates it. No retry is scheduled that would
+ * go out after the request's ingress expiry.
+ */
+public final class RetryPolicy {
+	static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofMillis(250);
+	public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(8);
+
+	static final int TOO_MANY_REQUESTS = 429;
+
+	final int maxAttempts;
+	final long initialBackoffMillis;
+	final long maxBackoffMillis;
+
+	RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoff.toMillis();
+		this.maxBackoffMillis = maxBackoff.toMillis();
+	}
+
+	public static RetryPolicy create() {
+		return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/*
+	 * maxAttempts counts the first request as well.
+	 */
+	public static RetryPolicy create(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+		return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff);
+	}
+
+	/*
+	 * Send the request, and send it again while it fails in a retryable way. The last
+	 * response or error is passed on once attempts or the ingress expiry run out.
+	 */
+	CompletableFuture<ReplicaResponse> execute(Supplier<CompletableFuture<ReplicaResponse>> request,
+			long ingressExpiryNanos) {
+		CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
+
+		this.attempt(request, ingressExpiryNanos, 1, response);
+
+		return response;
+	}
+
+	void attempt(Supplier<CompletableFuture<ReplicaResponse>> request, long ingressExpiryNanos, int attempt,
+			CompletableFuture<ReplicaResponse> response) {
+		// the caller gave up during the backoff
+		if (response.isDone())
+			return;
+
+		CompletableFuture<ReplicaResponse> result;
+		try {
+			result = request.get();
+		} catch (Throwable t) {
+			result = new CompletableFuture<ReplicaResponse>();
+			result.completeExceptionally(t);
+		}
+
+		Agent.cancelledWith(response, result).whenComplete((input, ex) -> {
+			boolean retryable = ex == null ? isRetryable(input) : isRetryable(ex);
+
+			long backoff = this.backoffMillis(attempt);
+
+			if (!retryable || attempt >= this.maxAttempts || response.isDone()
+					|| !beforeExpiry(ingressExpiryNanos, backoff)) {
+				if (ex == null) {
+					if (!response.complete(input))
+						input.release();
+				} else
+					response.completeExceptionally(ex);
+
+				return;
+			}
+
+			if (ex == null) {
+				LOG.debug("Retrying after HTTP status " + input.statusCode + " in " + backoff + "ms");
+				input.release();
+			} else
+				LOG.debug("Retrying after " + ex + " in " + backoff + "ms");
+
+			Scheduler.INSTANCE.schedule(() -> this.attempt(request, ingressExpiryNanos, attempt + 1, response),
+					backoff, TimeUnit.MILLISECONDS);
+		});
+	}
+
+	/*
+	 * Exponential backoff with equal jitter, between half and all of the exponential delay.
+	 */
+	long backoffMillis(int attempt) {
+		long backoff = this.initialBackoffMillis << Math.min(attempt - 1, 30);
+
+		if (backoff <= 0 || backoff > this.maxBackoffMillis)
+			backoff = this.maxBackoffMillis;
+
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	static boolean beforeExpiry(long ingressExpiryNanos, long backoffMillis) {
+		return System.currentTimeMillis() + backoffMillis < TimeUnit.NANOSECONDS.toMillis(ingressExpiryNanos);
+	}
+
+	static boolean isRetryable(ReplicaResponse response) {
+		return response.statusCode == TOO_MANY_REQUESTS || (response.statusCode >= 500 && response.statusCode < 600);
+	}
+
+	/*
+	 * Connection level failures, the transports report them as HTTP errors caused by an IOException.
+	 */
+	static boolean isRetryable(Throwable ex) {
+		while (ex instanceof CompletionException || ex instanceof ExecutionException)
+			ex = ex.getCause();
+
+		if (ex instanceof AgentError && ((AgentError) ex).getCode() != AgentError.AgentErrorCode.HTTP_ERROR)
+			return false;
+
+		for (Throwable cause = ex; cause != null; cause = cause.getCause())
+			if (cause instanceof IOException)
+				return true;
+
+		return false;
+	}
+
+	static final class Scheduler {
+		static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ic4j-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.ic4j.types.Principal;
+
+/*
+ * The same query method on many canisters at once.
+ *
+ * At most maxConcurrency queries run at a time. Each query gets callTimeout, and the whole
+ * scatter-gather completes by its timeout with whatever replies arrived; canisters still
+ * running or never started then get a DEADLINE_EXCEEDED error, so stragglers cannot hold up
+ * the batch. Cancelling the returned future cancels the running queries and starts no more.
+ */
+public final class ScatterQuery {
+	public static final int DEFAULT_MAX_CONCURRENCY = 64;
+	public static final Duration DEFAULT_CALL_TIMEOUT = Duration.ofSeconds(10);
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+	final Agent agent;
+	final String methodName;
+
+	byte[] arg = ArrayUtils.EMPTY_BYTE_ARRAY;
+	int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	Duration callTimeout = DEFAULT_CALL_TIMEOUT;
+	Duration timeout = DEFAULT_TIMEOUT;
+	boolean verify;
+
+	ScatterQuery(Agent agent, String methodName) {
+		this.agent = agent;
+		this.methodName = methodName;
+	}
+
+	public static ScatterQuery create(Agent agent, String methodName) {
+		return new ScatterQuery(agent, methodName);
+	}
+
+	/*
+	 * Arg sent to every canister, unless call() gets one per canister.
+	 */
+	public ScatterQuery arg(byte[] arg) {
+		this.arg = arg;
+		return this;
+	}
+
+	public ScatterQuery maxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+		return this;
+	}
+
+	/*
+	 * Deadline of each query.
+	 */
+	public ScatterQuery callTimeout(Duration callTimeout) {
+		this.callTimeout = callTimeout;
+		return this;
+	}
+
+	/*
+	 * Deadline of the whole scatter-gather.
+	 */
+	public ScatterQuery timeout(Duration timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/*
+	 * Always verify the signatures of the query responses.
+	 */
+	public ScatterQuery verify(boolean verify) {
+		this.verify = verify;
+		return this;
+	}
+
+	public CompletableFuture<Results> call(Collection<Principal> canisterIds) throws AgentError {
+		Map<Principal, byte[]> args = new LinkedHashMap<Principal, byte[]>();
+
+		for (Principal canisterId : canisterIds)
+			args.put(canisterId, this.arg);
+
+		return this.call(args);
+	}
+
+	/*
+	 * Query each canister with its own arg.
+	 */
+	public CompletableFuture<Results> call(Map<Principal, byte[]> args) throws AgentError {
+		Gather gather = new Gather(args);
+
+		gather.start();
+
+		return gather.results;
+	}
+
+	/*
+	 * Replies and errors by canister. Canisters that did not reply in time have a
+	 * DEADLINE_EXCEEDED error.
+	 */
+	public static final class Results {
+		final Map<Principal, byte[]> replies;
+		final Map<Principal, AgentError> errors;
+
+		Results(Map<Principal, byte[]> replies, Map<Principal, AgentError> errors) {
+			this.replies = Collections.unmodifiableMap(replies);
+			this.errors = Collections.unmodifiableMap(errors);
+		}
+
+		public Map<Principal, byte[]> getReplies() {
+			return this.replies;
+		}
+
+		public Map<Principal, AgentError> getErrors() {
+			return this.errors;
+		}
+
+		/*
+		 * True if every canister replied.
+		 */
+		public boolean isComplete() {
+			return this.errors.isEmpty();
+		}
+	}
+
+	final class Gather {
+		final Iterator<Map.Entry<Principal, byte[]>> pending;
+		final int size;
+
+		final Map<Principal, byte[]> replies = new LinkedHashMap<Principal, byte[]>();
+		final Map<Principal, AgentError> errors = new LinkedHashMap<Principal, AgentError>();
+		final Map<Principal, CompletableFuture<byte[]>> running = new LinkedHashMap<Principal, CompletableFuture<byte[]>>();
+
+		final CompletableFuture<Results> results = new CompletableFuture<Results>();
+
+		final long deadline;
+		ScheduledFuture<?> timer;
+		boolean finished;
+
+		int launchable;
+		boolean launching;
+
+		Gather(Map<Principal, byte[]> args) {
+			this.pending = new LinkedHashMap<Principal, byte[]>(args).entrySet().iterator();
+			this.size = args.size();
+			this.deadline = System.nanoTime() + ScatterQuery.this.timeout.toNanos();
+		}
+
+		void start() {
+			synchronized (this) {
+				this.timer = Timeouts.SCHEDULER.schedule(this::expire, ScatterQuery.this.timeout.toNanos(),
+						TimeUnit.NANOSECONDS);
+
+				this.launchable = ScatterQuery.this.maxConcurrency;
+			}
+
+			this.results.whenComplete((results, ex) -> {
+				if (ex instanceof CancellationException)
+					this.cancel();
+			});
+
+			this.launch();
+			this.finishIfDone();
+		}
+
+		/*
+		 * Start queries while there are free slots. Queries completing right away (e.g. from the
+		 * query cache) only add a slot here instead of recursing.
+		 */
+		void launch() {
+			synchronized (this) {
+				if (this.launching)
+					return;
+
+				this.launching = true;
+			}
+
+			while (true) {
+				Principal canisterId;
+				byte[] arg;
+
+				synchronized (this) {
+					if (this.finished || this.launchable == 0 || !this.pending.hasNext()) {
+						this.launching = false;
+						return;
+					}
+
+					Map.Entry<Principal, byte[]> entry = this.pending.next();
+
+					canisterId = entry.getKey();
+					arg = entry.getValue();
+
+					// running from here on, without its query yet, so expire() does not lose it
+					this.running.put(canisterId, null);
+
+					this.launchable--;
+				}
+
+				this.query(canisterId, arg);
+			}
+		}
+
+		void query(Principal canisterId, byte[] arg) {
+			long remaining = Math.min(ScatterQuery.this.callTimeout.toNanos(), this.deadline - System.nanoTime());
+
+			CompletableFuture<byte[]> query;
+
+			try {
+				query = Timeouts.within(ScatterQuery.this.agent.queryRaw(canisterId, canisterId,
+						ScatterQuery.this.methodName, arg, Optional.empty(), ScatterQuery.this.verify, (Duration) null),
+						remaining);
+			} catch (AgentError e) {
+				query = new CompletableFuture<byte[]>();
+				query.completeExceptionally(e);
+			}
+
+			boolean expired;
+
+			synchronized (this) {
+				expired = this.finished;
+
+				if (!expired)
+					this.running.put(canisterId, query);
+			}
+
+			// expire() already gave the canister its error
+			if (expired)
+				query.cancel(true);
+
+			query.whenComplete((reply, ex) -> {
+				synchronized (this) {
+					this.running.remove(canisterId);
+
+					if (this.finished)
+						return;
+
+					if (ex == null)
+						this.replies.put(canisterId, reply);
+					else
+						this.errors.put(canisterId, AgentError.unwrap(ex));
+
+					this.launchable++;
+				}
+
+				this.launch();
+				this.finishIfDone();
+			});
+		}
+
+		void finishIfDone() {
+			Results results;
+
+			synchronized (this) {
+				if (this.finished || this.replies.size() + this.errors.size() < this.size)
+					return;
+
+				results = this.finish();
+			}
+
+			this.results.complete(results);
+		}
+
+		/*
+		 * Overall deadline: give up on running and pending canisters.
+		 */
+		void expire() {
+			Results results;
+			Collection<CompletableFuture<byte[]>> running;
+
+			synchronized (this) {
+				if (this.finished)
+					return;
+
+				long millis = ScatterQuery.this.timeout.toMillis();
+
+				for (Principal canisterId : this.running.keySet())
+					this.errors.put(canisterId, AgentError.create(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, millis));
+
+				while (this.pending.hasNext())
+					this.errors.put(this.pending.next().getKey(),
+							AgentError.create(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, millis));
+
+				running = this.started();
+				results = this.finish();
+			}
+
+			for (CompletableFuture<byte[]> query : running)
+				query.cancel(true);
+
+			this.results.complete(results);
+		}
+
+		/*
+		 * The results were cancelled: cancel the running queries, and start no more.
+		 */
+		void cancel() {
+			Collection<CompletableFuture<byte[]>> running;
+
+			synchronized (this) {
+				if (this.finished)
+					return;
+
+				running = this.started();
+				this.finish();
+			}
+
+			for (CompletableFuture<byte[]> query : running)
+				query.cancel(true);
+		}
+
+		// running queries, without those still being started, called with the monitor held
+		Collection<CompletableFuture<byte[]>> started() {
+			Collection<CompletableFuture<byte[]>> started = new ArrayList<CompletableFuture<byte[]>>();
+
+			for (CompletableFuture<byte[]> query : this.running.values())
+				if (query != null)
+					started.add(query);
+
+			return started;
+		}
+
+		Results finish() {
+			this.finished = true;
+
+			if (this.timer != null)
+				this.timer.cancel(false);
+
+			return new Results(new LinkedHashMap<Principal, byte[]>(this.replies),
+					new LinkedHashMap<Principal, AgentError>(this.errors));
+		}
+	}
+}
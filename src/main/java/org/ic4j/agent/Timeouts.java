@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Deadlines on futures, timed by one shared daemon thread.
+ */
+final class Timeouts {
+	static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "ic4j-timeout");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		// timers of calls that completed in time leave the queue right away
+		SCHEDULER.setRemoveOnCancelPolicy(true);
+	}
+
+	/*
+	 * Future completing like future, or with DEADLINE_EXCEEDED once nanos passed, cancelling future.
+	 * Cancelling it cancels future as well.
+	 */
+	static <T> CompletableFuture<T> within(CompletableFuture<T> future, long nanos) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+
+		if (nanos <= 0) {
+			future.cancel(true);
+			result.completeExceptionally(
+					AgentError.create(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, TimeUnit.NANOSECONDS.toMillis(nanos)));
+			return result;
+		}
+
+		ScheduledFuture<?> timer = SCHEDULER.schedule(() -> {
+			if (result.completeExceptionally(
+					AgentError.create(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, TimeUnit.NANOSECONDS.toMillis(nanos))))
+				future.cancel(true);
+		}, nanos, TimeUnit.NANOSECONDS);
+
+		Agent.cancelledWith(result, future);
+
+		future.whenComplete((value, ex) -> {
+			timer.cancel(false);
+
+			if (ex == null)
+				result.complete(value);
+			else
+				result.completeExceptionally(ex);
+		});
+
+		return result;
+	}
+}
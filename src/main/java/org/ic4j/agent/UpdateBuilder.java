@@ -21,11 +21,18 @@ import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.ic4j.agent.Agent.CertificateResponse;
+import org.ic4j.agent.identity.Identity;
+import org.ic4j.agent.metrics.Outcome;
+import org.ic4j.agent.metrics.Phase;
+import org.ic4j.agent.metrics.RequestTags;
+import org.ic4j.agent.metrics.RequestType;
 import org.ic4j.agent.requestid.RequestId;
 import org.ic4j.types.Principal;
 import org.slf4j.Logger;
@@ -45,6 +52,7 @@ public final class UpdateBuilder {
 	String methodName;
 	byte[] arg;
 	Optional<Long> ingressExpiryDatetime;
+	Deadline deadline;
 	
 	UpdateBuilder(Agent agent, Principal canisterId,String methodName )
 	{
@@ -67,6 +75,24 @@ public final class UpdateBuilder {
 		return this;	
 	}
 	
+	/*
+	 * Sign this call with identity instead of the Agent's own, sharing the Agent's transport.
+	 */
+	public UpdateBuilder identity(Identity identity)
+	{
+		this.agent = this.agent.withIdentity(identity);
+		return this;
+	}
+	
+	/*
+	 * Send this call with priority, ahead of or behind other traffic of the Agent, see Priority.
+	 */
+	public UpdateBuilder priority(Priority priority)
+	{
+		this.agent = this.agent.withPriority(priority);
+		return this;
+	}
+	
 	public UpdateBuilder arg(byte[] arg)
 	{
 		this.arg = arg;
@@ -100,59 +126,174 @@ public final class UpdateBuilder {
 		return this;
 	}
 	
+	/*
+	 * Bound this call by deadline, from submission through request status polling and certificate
+	 * verification. Once it expires or is cancelled, the pending request is aborted and polling stops.
+	 */
+	public UpdateBuilder deadline(Deadline deadline)
+	{
+		this.deadline = deadline;
+		return this;
+	}
+	
+	<T> CompletableFuture<T> bind(CompletableFuture<T> future)
+	{
+		return this.deadline == null ? future : this.deadline.bind(future);
+	}
+	
+	// fail response if the deadline is expired or cancelled
+	boolean stopped(CompletableFuture<?> response)
+	{
+		if(this.deadline == null || !this.deadline.isDone())
+			return false;
+		
+		this.deadline.fail(response);
+		return true;
+	}
+	
+	// report how the call ended to the agent's CircuitBreaker, and its latency and polls to its AgentMetrics
+	<T> CompletableFuture<T> recorded(CompletableFuture<T> response, AtomicInteger polls)
+	{
+		RequestTags tags = agent.tags(this.canisterId, this.methodName, RequestType.CALL);
+		
+		if(tags != null)
+		{
+			long start = System.nanoTime();
+			
+			response.whenComplete((input, ex) -> {
+				Outcome outcome = Outcome.of(ex);
+				
+				agent.metrics.record(Phase.POLLS, tags, outcome, polls.get());
+				agent.measure(Phase.UPDATE_LATENCY, tags, outcome, start);
+			});
+		}
+		
+		return agent.recorded(this.canisterId, this.methodName, response);
+	}
+	
+	// fail response, which the caller never sees, so that the timeout is recorded
+	AgentError timedOut(CompletableFuture<?> response)
+	{
+		AgentError error = AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE);
+		
+		response.completeExceptionally(error);
+		
+		return error;
+	}
+	
+	// complete response with the reply or error of a final request status, false while it is pending
+	static boolean completed(RequestStatusResponse statusResponse, RequestId requestId, CompletableFuture<byte[]> response)
+	{
+		switch(statusResponse.status)
+		{
+			case REPLIED_STATUS:
+				response.complete(statusResponse.replied.get().arg);
+				return true;
+			case REJECTED_STATUS:
+				response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage).withRejectCode(statusResponse.rejected.get().rejectCode));
+				return true;
+			case DONE_STATUS:	
+				response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REQUEST_STATUS_DONE_NO_REPLY,requestId.toHexString()));
+				return true;
+			default:
+				return false;
+		}
+	}
+	
 	/*
 	 * Make a update call. This will return a byte vector.
+	 * A call that cannot be submitted, CIRCUIT_OPEN included, fails the returned future with its
+	 * AgentError, as a rejected call does. Only TIMEOUT_WAITING_FOR_RESPONSE, once the waiter gives
+	 * up, is thrown.
 	 */
 	 
 	public CompletableFuture<byte[]> callAndWait(Waiter waiter) throws AgentError
 	{
+		AtomicInteger polls = new AtomicInteger();
+		CompletableFuture<byte[]> response = this.recorded(new CompletableFuture<byte[]>(), polls);
+		
 		RequestId requestId;
 		try {
-			requestId = agent.updateRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime).get();
-		} catch (InterruptedException | ExecutionException | AgentError e) {
-			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e, e.getLocalizedMessage());
+			requestId = this.bind(agent.updateRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime)).get();
+		} catch (InterruptedException | ExecutionException | CancellationException | AgentError e) {
+			if(this.stopped(response))
+				return response;
+			
+			AgentError error = AgentError.unwrap(e);
+			
+			// the circuit of the canister is open, recorded like any other call to it
+			if(error.getCode() == AgentError.AgentErrorCode.CIRCUIT_OPEN)
+			{
+				response.completeExceptionally(error);
+				return response;
+			}
+			
+			// updateRaw already reported the failed submission to the CircuitBreaker
+			CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+			failed.completeExceptionally(error);
+			
+			return failed;
 		}
 		
-		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
-		
 		do
 		{
 				try {
-					RequestStatusResponse statusResponse = agent.requestStatusRaw(requestId, effectiveCanisterId).get();
+					polls.incrementAndGet();
 					
-					switch(statusResponse.status)
-					{
-						case REPLIED_STATUS:
-							response.complete(statusResponse.replied.get().arg);
-							return response;
-						case REJECTED_STATUS:
-							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage));
-							return response;
-						case DONE_STATUS:	
-							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REQUEST_STATUS_DONE_NO_REPLY,requestId.toHexString()));
-							return response;							
-							
-					}
+					RequestStatusResponse statusResponse = this.bind(agent.requestStatusRaw(requestId, effectiveCanisterId)).get();
+					
+					if(completed(statusResponse, requestId, response))
+						return response;
 				} catch (InterruptedException | ExecutionException e) {
 					LOG.debug(e.getLocalizedMessage(),e);
+					
+					// with a retry policy transient errors were already retried, what gets here is final
+					if(agent.retryPolicy.isPresent())
+					{
+						response.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+						return response;
+					}
 				}
 				catch(AgentError e)
 				{
 					LOG.debug(e.getLocalizedMessage(),e);
+					
+					if(agent.retryPolicy.isPresent())
+					{
+						response.completeExceptionally(e);
+						return response;
+					}
+				}
+				catch(CancellationException e)
+				{
+					LOG.debug("Request status polling cancelled");
 				}
 
-		}while(waiter.waitUntil());
+		}while(waiter.waitUntil(this.deadline));
 		
-		throw AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE);
+		if(this.stopped(response))
+			return response;
+		
+		throw this.timedOut(response);
 	}	
 	
+	/*
+	 * Prepare this update call for repeated execution. The request id hashes and encoding of everything
+	 * but ingress_expiry and the nonce are computed now, with the current identity and arg.
+	 */
+	 
+	public PreparedCall prepare()
+	{
+		return new PreparedCall(this.agent, this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime);
+	}
+	
 	/*
 	 * Make a update call. This will return a byte RequestId.
 	 */
 	 
 	public CompletableFuture<RequestId> call() throws AgentError
 	{
-		return agent.updateRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime);
+		return this.bind(agent.updateRaw(this.canisterId, this.effectiveCanisterId, this.methodName, this.arg, this.ingressExpiryDatetime));
 	}
 
 	public CompletableFuture<byte[]> getState(RequestId requestId, Waiter waiter) throws AgentError
@@ -163,26 +304,18 @@ public final class UpdateBuilder {
 	public CompletableFuture<byte[]> getState(RequestId requestId, Waiter waiter, boolean disableRangeCheck) throws AgentError
 	{
 	
-		CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+		AtomicInteger polls = new AtomicInteger();
+		CompletableFuture<byte[]> response = this.recorded(new CompletableFuture<byte[]>(), polls);
 		
 		do
 		{
 				try {
-					RequestStatusResponse statusResponse = agent.requestStatusRaw(requestId, effectiveCanisterId, disableRangeCheck).get();
+					polls.incrementAndGet();
 					
-					switch(statusResponse.status)
-					{
-						case REPLIED_STATUS:
-							response.complete(statusResponse.replied.get().arg);
-							return response;
-						case REJECTED_STATUS:
-							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage));
-							return response;
-						case DONE_STATUS:	
-							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REQUEST_STATUS_DONE_NO_REPLY,requestId.toHexString()));
-							return response;							
-							
-					}
+					RequestStatusResponse statusResponse = this.bind(agent.requestStatusRaw(requestId, effectiveCanisterId, disableRangeCheck)).get();
+					
+					if(completed(statusResponse, requestId, response))
+						return response;
 				}
 				catch(AgentError e)
 				{
@@ -200,10 +333,17 @@ public final class UpdateBuilder {
 				catch (InterruptedException  e) {
 					LOG.debug(e.getLocalizedMessage(),e);
 				}				
+				catch(CancellationException e)
+				{
+					LOG.debug("Request status polling cancelled");
+				}
 
-		}while(waiter.waitUntil());
+		}while(waiter.waitUntil(this.deadline));
+		
+		if(this.stopped(response))
+			return response;
 		
-		throw AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE);
+		throw this.timedOut(response);
 	}	
 	
 	/*
@@ -213,7 +353,7 @@ public final class UpdateBuilder {
 	public CompletableFuture<Response<RequestId>> call(Map<String, String> headers) throws AgentError
 	{
 		Request<byte[]> request = new Request<byte[]>(this.arg, headers);
-		return agent.updateRaw(this.canisterId, this.effectiveCanisterId, this.methodName, request, this.ingressExpiryDatetime);
+		return this.bind(agent.updateRaw(this.canisterId, this.effectiveCanisterId, this.methodName, request, this.ingressExpiryDatetime));
 	}
 	
 	public CompletableFuture<Response<byte[]>> getState(RequestId requestId, Map<String, String> headers, Waiter waiter) throws AgentError
@@ -224,14 +364,17 @@ public final class UpdateBuilder {
 	public CompletableFuture<Response<byte[]>> getState(RequestId requestId, Map<String, String> headers, boolean disableRangeCheck, Waiter waiter) throws AgentError
 	{
 	
-		CompletableFuture<Response<byte[]>> response = new CompletableFuture<Response<byte[]>>();
+		AtomicInteger polls = new AtomicInteger();
+		CompletableFuture<Response<byte[]>> response = this.recorded(new CompletableFuture<Response<byte[]>>(), polls);
 		
 		do
 		{
 				try {
 					Request<Void> request = new Request<Void>(null, headers);
 					
-					Response<RequestStatusResponse> rawResponse = agent.requestStatusRaw(requestId, effectiveCanisterId, request).get();
+					polls.incrementAndGet();
+					
+					Response<RequestStatusResponse> rawResponse = this.bind(agent.requestStatusRaw(requestId, effectiveCanisterId, request)).get();
 					RequestStatusResponse statusResponse = rawResponse.getPayload();
 					
 					switch(statusResponse.status)
@@ -241,7 +384,7 @@ public final class UpdateBuilder {
 							response.complete(stateResponse);
 							return response;
 						case REJECTED_STATUS:
-							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage));
+							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage).withRejectCode(statusResponse.rejected.get().rejectCode));
 							return response;
 						case DONE_STATUS:	
 							response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.REQUEST_STATUS_DONE_NO_REPLY,requestId.toHexString()));
@@ -275,7 +418,7 @@ public final class UpdateBuilder {
 										e.setResponse(stateResponse);
 										break;
 									case REJECTED_STATUS:
-										e.initCause(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage));
+										e.initCause(AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR,statusResponse.rejected.get().rejectCode,statusResponse.rejected.get().rejectMessage).withRejectCode(statusResponse.rejected.get().rejectCode));
 										e.setResponse(null);
 										break;
 									case DONE_STATUS:	
@@ -294,10 +437,16 @@ public final class UpdateBuilder {
 				catch (InterruptedException  e) {
 					LOG.debug(e.getLocalizedMessage(),e);
 				}
+				catch(CancellationException e)
+				{
+					LOG.debug("Request status polling cancelled");
+				}
 
 
-		}while(waiter.waitUntil());
+		}while(waiter.waitUntil(this.deadline));
 		
+		if(this.stopped(response))
+			return response;
 		
 		response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE));
 		return response;
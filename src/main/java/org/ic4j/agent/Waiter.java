@@ -44,7 +44,36 @@ public final class Waiter{
 		}
 		catch(InterruptedException e)
 		{
-			
+			// stop waiting, a cancelled (virtual) thread must not keep polling
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		
+		waited += sleep;
+		
+		return true;
+	}
+	
+	/*
+	 * Like waitUntil(), but never sleeping past deadline and waking up as soon as it is cancelled.
+	 */
+	boolean waitUntil(Deadline deadline) 
+	{
+		if(deadline == null)
+			return this.waitUntil();
+		
+		if(deadline.isDone() || (timeout > 0 && waited >= timeout))
+			return false;
+		
+		try
+		{
+			if(deadline.sleep(sleep*1000L))
+				return false;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
 		}
 		
 		waited += sleep;
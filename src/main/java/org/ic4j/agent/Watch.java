@@ -0,0 +1,357 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.ic4j.agent.certification.Certificate;
+import org.ic4j.agent.certification.hashtree.Label;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Periodically re-issued query or read_state, reporting only changes.
+ *
+ * Each reply is reduced to its raw bytes (the reply arg of a query, the certified values of the
+ * watched paths for read_state) and hashed; listeners are called with the first reply and then
+ * only when the hash differs from the previous one. While nothing changes the interval doubles up
+ * to maxInterval, a change brings it back to interval.
+ *
+ * Watches share one timer: due times are rounded up to TICK, so all watches due in the same tick
+ * are polled together, and a watch only has a thread while its request is being sent. At most one
+ * request per watch is in flight, so listeners of a watch are never called concurrently.
+ */
+public final class Watch<T> implements AutoCloseable {
+	static final Logger LOG = LoggerFactory.getLogger(Watch.class);
+
+	public static final Duration DEFAULT_INTERVAL = Duration.ofSeconds(1);
+	public static final Duration DEFAULT_MAX_INTERVAL = Duration.ofSeconds(30);
+
+	static final long TICK = TimeUnit.MILLISECONDS.toNanos(50);
+	static final WatchTimer TIMER = new WatchTimer(TICK);
+
+	final Supplier<CompletableFuture<T>> poll;
+	final Function<T, byte[]> content;
+
+	final List<Consumer<T>> listeners = new CopyOnWriteArrayList<Consumer<T>>();
+	final List<Consumer<AgentError>> errorListeners = new CopyOnWriteArrayList<Consumer<AgentError>>();
+
+	long interval = DEFAULT_INTERVAL.toNanos();
+	long maxInterval = DEFAULT_MAX_INTERVAL.toNanos();
+
+	volatile long currentInterval;
+	volatile boolean started;
+	volatile boolean closed;
+	volatile CompletableFuture<T> polling;
+
+	// hash of the last reply, only touched by the request in flight
+	byte[] hash;
+
+	final LongAdder polls = new LongAdder();
+	final LongAdder changes = new LongAdder();
+
+	Watch(Supplier<CompletableFuture<T>> poll, Function<T, byte[]> content) {
+		this.poll = poll;
+		this.content = content;
+	}
+
+	/*
+	 * Watch the reply of a query method. The query bypasses the QueryCache.
+	 */
+	public static Watch<byte[]> query(Agent agent, Principal canisterId, String methodName, byte[] arg) {
+		return new Watch<byte[]>(() -> agent
+				.queryUncached(canisterId, canisterId, methodName, new Request<byte[]>(arg), Optional.empty(), false)
+				.thenApply(response -> response.getPayload()), reply -> reply);
+	}
+
+	/*
+	 * Watch the certified values of read_state paths. Listeners get the whole certificate, only
+	 * the values at the paths are compared, absent paths count as empty.
+	 */
+	public static Watch<Certificate> paths(Agent agent, Principal effectiveCanisterId, List<List<byte[]>> paths) {
+		List<List<Label>> labels = new ArrayList<List<Label>>(paths.size());
+
+		for (List<byte[]> path : paths) {
+			List<Label> pathLabels = new ArrayList<Label>(path.size());
+
+			for (byte[] segment : path)
+				pathLabels.add(new Label(segment));
+
+			labels.add(pathLabels);
+		}
+
+		return new Watch<Certificate>(() -> agent.readStateRaw(effectiveCanisterId, paths, null)
+				.thenApply(response -> response.certificate), certificate -> values(certificate, labels));
+	}
+
+	static byte[] values(Certificate certificate, List<List<Label>> paths) {
+		ByteArrayOutputStream values = new ByteArrayOutputStream();
+
+		for (List<Label> path : paths) {
+			byte[] value;
+
+			try {
+				value = ResponseAuthentication.lookupValue(certificate, path);
+			} catch (AgentError e) {
+				value = new byte[0];
+			}
+
+			values.write(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array(), 0, Integer.BYTES);
+			values.write(value, 0, value.length);
+		}
+
+		return values.toByteArray();
+	}
+
+	/*
+	 * Interval between requests while the reply keeps changing.
+	 */
+	public Watch<T> interval(Duration interval) {
+		this.interval = interval.toNanos();
+		return this;
+	}
+
+	/*
+	 * Longest interval the watch backs off to while the reply does not change, or the requests fail.
+	 * Set it to interval to poll at a fixed rate.
+	 */
+	public Watch<T> maxInterval(Duration maxInterval) {
+		this.maxInterval = maxInterval.toNanos();
+		return this;
+	}
+
+	public Watch<T> onChange(Consumer<T> listener) {
+		this.listeners.add(listener);
+		return this;
+	}
+
+	/*
+	 * Failed requests are reported here and retried with the backed off interval.
+	 */
+	public Watch<T> onError(Consumer<AgentError> listener) {
+		this.errorListeners.add(listener);
+		return this;
+	}
+
+	/*
+	 * Send the first request now.
+	 */
+	public Watch<T> start() {
+		if (this.started)
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, "Watch already started");
+
+		this.started = true;
+		this.currentInterval = this.interval;
+
+		TIMER.schedule(this, 0);
+
+		return this;
+	}
+
+	/*
+	 * Stop polling. A request in flight is cancelled and its reply is not reported.
+	 */
+	public void close() {
+		this.closed = true;
+
+		CompletableFuture<T> polling = this.polling;
+
+		if (polling != null)
+			polling.cancel(true);
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	public long getPolls() {
+		return this.polls.sum();
+	}
+
+	public long getChanges() {
+		return this.changes.sum();
+	}
+
+	/*
+	 * Interval until the next request, after backing off.
+	 */
+	public Duration getCurrentInterval() {
+		return Duration.ofNanos(this.currentInterval);
+	}
+
+	void poll() {
+		if (this.closed)
+			return;
+
+		this.polls.increment();
+
+		CompletableFuture<T> polling;
+
+		try {
+			polling = this.poll.get();
+		} catch (RuntimeException e) {
+			this.failed(AgentError.unwrap(e));
+			return;
+		}
+
+		this.polling = polling;
+
+		polling.whenComplete((value, ex) -> {
+			if (this.closed)
+				return;
+
+			if (ex == null)
+				this.received(value);
+			else
+				this.failed(AgentError.unwrap(ex));
+		});
+	}
+
+	void received(T value) {
+		byte[] hash;
+
+		try {
+			hash = DigestUtils.sha256(this.content.apply(value));
+		} catch (RuntimeException e) {
+			this.failed(AgentError.unwrap(e));
+			return;
+		}
+
+		if (Arrays.equals(hash, this.hash))
+			this.backOff();
+		else {
+			this.hash = hash;
+			this.changes.increment();
+			this.currentInterval = this.interval;
+
+			for (Consumer<T> listener : this.listeners) {
+				try {
+					listener.accept(value);
+				} catch (RuntimeException e) {
+					LOG.warn("Watch listener failed", e);
+				}
+			}
+		}
+
+		TIMER.schedule(this, this.currentInterval);
+	}
+
+	void failed(AgentError error) {
+		LOG.debug("Watch request failed", error);
+
+		for (Consumer<AgentError> listener : this.errorListeners) {
+			try {
+				listener.accept(error);
+			} catch (RuntimeException e) {
+				LOG.warn("Watch error listener failed", e);
+			}
+		}
+
+		this.backOff();
+
+		TIMER.schedule(this, this.currentInterval);
+	}
+
+	void backOff() {
+		long interval = this.currentInterval;
+
+		this.currentInterval = Math.max(this.interval, Math.min(interval > Long.MAX_VALUE / 2 ? Long.MAX_VALUE : interval * 2, this.maxInterval));
+	}
+
+	/*
+	 * Shared timer of all watches. Watches due in the same tick are kept in one bucket and polled
+	 * by one timer task, which only hands them to the common pool so that signing and sending
+	 * never hold up the timer thread.
+	 */
+	static final class WatchTimer {
+		final long tick;
+
+		// watches by tick they are due in, guarded by this
+		final TreeMap<Long, List<Watch<?>>> due = new TreeMap<Long, List<Watch<?>>>();
+
+		ScheduledFuture<?> timer;
+		long timerTick = Long.MAX_VALUE;
+
+		WatchTimer(long tick) {
+			this.tick = tick;
+		}
+
+		synchronized void schedule(Watch<?> watch, long delay) {
+			if (watch.closed)
+				return;
+
+			long now = System.nanoTime();
+			long tick = Math.floorDiv(now + delay + this.tick - 1, this.tick);
+
+			this.due.computeIfAbsent(tick, key -> new ArrayList<Watch<?>>()).add(watch);
+
+			if (tick < this.timerTick)
+				this.arm(tick, now);
+		}
+
+		void arm(long tick, long now) {
+			if (this.timer != null)
+				this.timer.cancel(false);
+
+			this.timerTick = tick;
+			this.timer = Timeouts.SCHEDULER.schedule(this::fire, Math.max(0, tick * this.tick - now), TimeUnit.NANOSECONDS);
+		}
+
+		void fire() {
+			List<Watch<?>> ready = new ArrayList<Watch<?>>();
+
+			synchronized (this) {
+				long now = System.nanoTime();
+				long tick = Math.floorDiv(now, this.tick);
+
+				while (!this.due.isEmpty() && this.due.firstKey() <= tick)
+					ready.addAll(this.due.pollFirstEntry().getValue());
+
+				this.timer = null;
+				this.timerTick = Long.MAX_VALUE;
+
+				Map.Entry<Long, List<Watch<?>>> next = this.due.firstEntry();
+
+				if (next != null)
+					this.arm(next.getKey(), now);
+			}
+
+			for (Watch<?> watch : ready)
+				if (!watch.closed)
+					ForkJoinPool.commonPool().execute(watch::poll);
+		}
+	}
+}
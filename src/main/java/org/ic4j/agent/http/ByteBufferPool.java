@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pool of power-of-two sized buffers used to stream response bodies without allocating
+ * a fresh array for every response. Buffers are direct by default so large bodies stay
+ * out of the Java heap. The number of bytes kept in the pool is bounded, buffers released
+ * beyond that limit are left to the garbage collector.
+ */
+public final class ByteBufferPool {
+	static final int MIN_BUFFER_SHIFT = 12;
+	static final int MAX_BUFFER_SHIFT = 26;
+
+	public static final long DEFAULT_MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+	final boolean direct;
+	final long maxRetainedBytes;
+	final AtomicLong retainedBytes = new AtomicLong();
+
+	final Queue<ByteBuffer>[] buckets;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ByteBufferPool(long maxRetainedBytes, boolean direct) {
+		this.maxRetainedBytes = maxRetainedBytes;
+		this.direct = direct;
+
+		this.buckets = new Queue[MAX_BUFFER_SHIFT + 1];
+
+		for (int i = MIN_BUFFER_SHIFT; i <= MAX_BUFFER_SHIFT; i++)
+			this.buckets[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	public static ByteBufferPool create() {
+		return new ByteBufferPool(DEFAULT_MAX_RETAINED_BYTES, true);
+	}
+
+	public static ByteBufferPool create(long maxRetainedBytes) {
+		return new ByteBufferPool(maxRetainedBytes, true);
+	}
+
+	public static ByteBufferPool create(long maxRetainedBytes, boolean direct) {
+		return new ByteBufferPool(maxRetainedBytes, direct);
+	}
+
+	/*
+	 * Get a cleared buffer with at least the requested capacity.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int shift = shift(capacity);
+
+		if (shift > MAX_BUFFER_SHIFT)
+			return this.allocate(capacity);
+
+		ByteBuffer buffer = this.buckets[shift].poll();
+
+		if (buffer == null)
+			return this.allocate(1 << shift);
+
+		this.retainedBytes.addAndGet(-buffer.capacity());
+		buffer.clear();
+
+		return buffer;
+	}
+
+	/*
+	 * Give a buffer back to the pool. The caller must not use the buffer, or any view of it, afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isDirect() != this.direct)
+			return;
+
+		int capacity = buffer.capacity();
+
+		// only buffers handed out by this pool have an exact power-of-two capacity in range
+		if (Integer.bitCount(capacity) != 1)
+			return;
+
+		int shift = Integer.numberOfTrailingZeros(capacity);
+
+		if (shift < MIN_BUFFER_SHIFT || shift > MAX_BUFFER_SHIFT)
+			return;
+
+		if (this.retainedBytes.addAndGet(capacity) > this.maxRetainedBytes) {
+			this.retainedBytes.addAndGet(-capacity);
+			return;
+		}
+
+		this.buckets[shift].offer(buffer);
+	}
+
+	public long getRetainedBytes() {
+		return this.retainedBytes.get();
+	}
+
+	ByteBuffer allocate(int capacity) {
+		return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	static int shift(int capacity) {
+		if (capacity <= 1 << MIN_BUFFER_SHIFT)
+			return MIN_BUFFER_SHIFT;
+
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * When and how often ReplicaLoadBalancingTransport sends a second copy of a query or
+ * read_state request to another endpoint. Both requests carry the same signed envelope,
+ * the first successful response wins and the other request is cancelled.
+ *
+ * The hedge is sent after a fixed delay, or after the tracked 95th percentile latency
+ * of the transport when the policy is adaptive. Hedges are budgeted, each request adds
+ * maxHedgeRatio of a token and each hedge takes a whole one, so at most that share of
+ * requests is duplicated.
+ */
+public final class HedgingPolicy {
+	static final double HEDGE_PERCENTILE = 0.95;
+
+	// hedges that can be sent in a burst before the budget runs dry
+	static final long MAX_TOKENS = 10;
+	static final long TOKEN_UNIT = 1000;
+
+	final long delayNanos;
+	final boolean adaptive;
+	final double maxHedgeRatio;
+
+	final AtomicLong tokens = new AtomicLong(MAX_TOKENS * TOKEN_UNIT);
+
+	HedgingPolicy(Duration delay, boolean adaptive, double maxHedgeRatio) {
+		this.delayNanos = delay.toNanos();
+		this.adaptive = adaptive;
+		this.maxHedgeRatio = maxHedgeRatio;
+	}
+
+	/*
+	 * Hedge after a fixed delay.
+	 */
+	public static HedgingPolicy create(Duration delay, double maxHedgeRatio) {
+		return new HedgingPolicy(delay, false, maxHedgeRatio);
+	}
+
+	/*
+	 * Hedge after the tracked p95 latency, never earlier than minDelay.
+	 */
+	public static HedgingPolicy createAdaptive(Duration minDelay, double maxHedgeRatio) {
+		return new HedgingPolicy(minDelay, true, maxHedgeRatio);
+	}
+
+	long delayNanos(LatencyTracker latencies) {
+		if (!this.adaptive)
+			return this.delayNanos;
+
+		return Math.max(this.delayNanos, latencies.percentile(HEDGE_PERCENTILE));
+	}
+
+	void onRequest() {
+		long deposit = (long) (this.maxHedgeRatio * TOKEN_UNIT);
+
+		long current;
+		do {
+			current = this.tokens.get();
+
+			if (current >= MAX_TOKENS * TOKEN_UNIT)
+				return;
+		} while (!this.tokens.compareAndSet(current, Math.min(MAX_TOKENS * TOKEN_UNIT, current + deposit)));
+	}
+
+	boolean tryAcquire() {
+		long current;
+		do {
+			current = this.tokens.get();
+
+			if (current < TOKEN_UNIT)
+				return false;
+		} while (!this.tokens.compareAndSet(current, current - TOKEN_UNIT));
+
+		return true;
+	}
+}
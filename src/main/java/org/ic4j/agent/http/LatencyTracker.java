@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Latencies of the most recent requests in a fixed ring, percentiles are recomputed
+ * every few samples rather than on every read.
+ */
+final class LatencyTracker {
+	static final int SAMPLES = 256;
+	static final int RECOMPUTE_INTERVAL = 32;
+
+	final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+	final AtomicLong count = new AtomicLong();
+
+	volatile long[] sorted = new long[0];
+	volatile long sortedAt;
+
+	void record(long nanos) {
+		long index = this.count.getAndIncrement();
+
+		this.samples.set((int) (index % SAMPLES), nanos);
+	}
+
+	long percentile(double percentile) {
+		long count = this.count.get();
+
+		if (count == 0)
+			return 0;
+
+		long[] sorted = this.sorted;
+
+		if (count - this.sortedAt >= RECOMPUTE_INTERVAL || sorted.length == 0) {
+			int size = (int) Math.min(count, SAMPLES);
+
+			sorted = new long[size];
+			for (int i = 0; i < size; i++)
+				sorted[i] = this.samples.get(i);
+
+			Arrays.sort(sorted);
+
+			this.sorted = sorted;
+			this.sortedAt = count;
+		}
+
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Response headers that are copied into a map only when somebody reads them.
+ * Most callers never look at the headers, so the copy is skipped on the hot path.
+ */
+abstract class LazyHeaders extends AbstractMap<String, String> {
+	private volatile Map<String, String> headers;
+
+	abstract void load(Map<String, String> headers);
+
+	Map<String, String> headers() {
+		Map<String, String> result = this.headers;
+
+		if (result == null) {
+			synchronized (this) {
+				result = this.headers;
+
+				if (result == null) {
+					result = new HashMap<String, String>();
+					this.load(result);
+					this.headers = result;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public String get(Object key) {
+		return this.headers().get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.headers().containsKey(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		return this.headers().put(key, value);
+	}
+
+	@Override
+	public int size() {
+		return this.headers().size();
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return this.headers().entrySet();
+	}
+}
@@ -19,15 +19,16 @@ package org.ic4j.agent.http;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang3.ArrayUtils;
+import org.apache.hc.client5.http.HttpRequestRetryStrategy;
 import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
-import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
 import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
@@ -38,7 +39,11 @@ import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.MessageHeaders;
 import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.protocol.HttpContext;
 import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
 import org.apache.hc.core5.pool.PoolReusePolicy;
 import org.apache.hc.core5.reactor.IOReactorConfig;
@@ -48,7 +53,6 @@ import org.ic4j.agent.AgentError;
 import org.ic4j.agent.ReplicaResponse;
 import org.ic4j.agent.ReplicaTransport;
 import org.ic4j.agent.requestid.RequestId;
-import org.ic4j.candid.ByteUtils;
 import org.ic4j.types.Principal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,12 +66,22 @@ public class ReplicaApacheHttpTransport implements ReplicaTransport {
 	URI uri;
 	private final ContentType dfinityContentType = ContentType.create(ReplicaHttpProperties.DFINITY_CONTENT_TYPE);
 
+	HttpHost target;
+	ReplicaEndpoints<String> endpoints;
+
+	ByteBufferPool pool;
+
+	// only used by the clients this transport builds itself, a client passed in keeps its own retries
+	final AutomaticRetryStrategy retryStrategy = new AutomaticRetryStrategy();
+
 	ReplicaApacheHttpTransport(URI url) {
 		this.uri = url;
 
 		this.ioReactorConfig = IOReactorConfig.custom().setSoTimeout(Timeout.ofSeconds(ReplicaHttpProperties.TIMEOUT)).build();
 
-		this.client = HttpAsyncClients.custom().setIOReactorConfig(ioReactorConfig).build();
+		this.client = HttpAsyncClients.custom().setRetryStrategy(this.retryStrategy).setIOReactorConfig(ioReactorConfig).build();
+
+		this.init();
 	}
 
 	ReplicaApacheHttpTransport(URI url, int maxTotal, int maxPerRoute, int connectionTimeToLive, int timeout) {
@@ -80,8 +94,10 @@ public class ReplicaApacheHttpTransport implements ReplicaTransport {
 
 		this.ioReactorConfig = IOReactorConfig.custom().setSoTimeout(Timeout.ofSeconds(timeout)).build();
 
-		this.client = HttpAsyncClients.custom().setConnectionManager(connectionManager).setIOReactorConfig(ioReactorConfig)
-				.build();
+		this.client = HttpAsyncClients.custom().setRetryStrategy(this.retryStrategy).setConnectionManager(connectionManager)
+				.setIOReactorConfig(ioReactorConfig).build();
+
+		this.init();
 	}
 
 	ReplicaApacheHttpTransport(URI url, AsyncClientConnectionManager connectionManager, int timeout) {
@@ -89,15 +105,49 @@ public class ReplicaApacheHttpTransport implements ReplicaTransport {
 
 		this.ioReactorConfig = IOReactorConfig.custom().setSoTimeout(Timeout.ofSeconds(timeout)).build();
 
-		this.client = HttpAsyncClients.custom().setConnectionManager(connectionManager).setIOReactorConfig(ioReactorConfig)
-				.build();
+		this.client = HttpAsyncClients.custom().setRetryStrategy(this.retryStrategy).setConnectionManager(connectionManager)
+				.setIOReactorConfig(ioReactorConfig).build();
+
+		this.init();
 	}
 	
+	ReplicaApacheHttpTransport(URI url, ByteBufferPool pool) {
+		this.uri = url;
+		this.pool = pool;
+
+		this.ioReactorConfig = IOReactorConfig.custom().setSoTimeout(Timeout.ofSeconds(ReplicaHttpProperties.TIMEOUT)).build();
+
+		this.client = HttpAsyncClients.custom().setRetryStrategy(this.retryStrategy).setIOReactorConfig(ioReactorConfig).build();
+
+		this.init();
+	}
+
 	ReplicaApacheHttpTransport(URI url, CloseableHttpAsyncClient client) {
 		this.uri = url;	
 		this.client = client;
+
+		this.init();
 	}	
 
+	ReplicaApacheHttpTransport(URI url, CloseableHttpAsyncClient client, ByteBufferPool pool) {
+		this.uri = url;
+		this.client = client;
+		this.pool = pool;
+
+		this.init();
+	}
+
+	/*
+	 * Resolve the target host and start the client once, so that request execution
+	 * only has to build the request itself.
+	 */
+	void init() {
+		this.target = HttpHost.create(this.uri);
+		this.endpoints = new ReplicaEndpoints<String>("", path -> path);
+
+		this.client.start();
+	}
+
 	public static ReplicaTransport create(String url) throws URISyntaxException {
 		return new ReplicaApacheHttpTransport(new URI(url));
 	}
@@ -117,151 +167,111 @@ public class ReplicaApacheHttpTransport implements ReplicaTransport {
 		return new ReplicaApacheHttpTransport(new URI(url), client);
 	}	
 
-	public CompletableFuture<ReplicaResponse> status() {
+	/*
+	 * Response bodies are streamed into buffers taken from the pool and handed over
+	 * as ReplicaResponse.body instead of ReplicaResponse.payload.
+	 */
+	public static ReplicaTransport create(String url, ByteBufferPool pool) throws URISyntaxException {
+		return new ReplicaApacheHttpTransport(new URI(url), pool);
+	}
 
-		HttpHost target = HttpHost.create(uri);
-		
-		SimpleHttpRequest httpRequest = new SimpleHttpRequest(Method.GET,target,ReplicaHttpProperties.API_VERSION_URL_PART + ReplicaHttpProperties.STATUS_URL_PART);
+	public static ReplicaTransport create(String url, CloseableHttpAsyncClient client, ByteBufferPool pool)
+			throws URISyntaxException {
+		return new ReplicaApacheHttpTransport(new URI(url), client, pool);
+	}
 
-		return this.execute(httpRequest, Optional.empty());
+	/*
+	 * HttpClient's own retries re-send 429 and 503 requests after a fixed delay, without
+	 * regard to the ingress expiry. Turn them off when the Agents using this transport retry
+	 * with a RetryPolicy.
+	 */
+	@Override
+	public void setAutomaticRetries(boolean automaticRetries) {
+		this.retryStrategy.enabled = automaticRetries;
+	}
+
+	public CompletableFuture<ReplicaResponse> status() {
+		SimpleHttpRequest httpRequest = new SimpleHttpRequest(Method.GET, this.target, this.endpoints.status);
 
+		httpRequest.setHeader(HttpHeaders.CONTENT_TYPE, ReplicaHttpProperties.DFINITY_CONTENT_TYPE);
+
+		return this.execute(httpRequest);
 	}
 
 	public CompletableFuture<ReplicaResponse> query(Principal containerId, byte[] envelope, Map<String,String> headers) {		
-		HttpHost target = HttpHost.create(uri);
-		
-		SimpleHttpRequest httpRequest = new SimpleHttpRequest(Method.POST,target,ReplicaHttpProperties.API_VERSION_URL_PART + String.format(ReplicaHttpProperties.QUERY_URL_PART, containerId.toString()));
-				
-		if(headers != null)
-		{
-			Iterator<String> names = headers.keySet().iterator();
-			
-			while(names.hasNext())
-			{
-				String name = names.next();
-				httpRequest.addHeader(name, headers.get(name));
-			}			
-		}
-		
-		return this.execute(httpRequest, Optional.of(envelope));
-
+		return this.execute(this.post(this.endpoints.canister(containerId).query, envelope, headers));
 	}
 
 	public CompletableFuture<ReplicaResponse> call(Principal containerId, byte[] envelope, RequestId requestId, Map<String,String> headers) {
-
-		HttpHost target = HttpHost.create(uri);
-		
-		SimpleHttpRequest httpRequest = new SimpleHttpRequest(Method.POST,target,ReplicaHttpProperties.API_VERSION_URL_PART + String.format(ReplicaHttpProperties.CALL_URL_PART, containerId.toString()));
-
-		if(headers != null)
-		{
-			Iterator<String> names = headers.keySet().iterator();
-			
-			while(names.hasNext())
-			{
-				String name = names.next();
-				httpRequest.addHeader(name, headers.get(name));
-			}			
-		}
-		
-		return this.execute(httpRequest, Optional.of(envelope));
-
+		return this.execute(this.post(this.endpoints.canister(containerId).call, envelope, headers));
 	}
 
 	public CompletableFuture<ReplicaResponse> readState(Principal containerId, byte[] envelope, Map<String,String> headers) {
+		return this.execute(this.post(this.endpoints.canister(containerId).readState, envelope, headers));
+	}
 
-		HttpHost target = HttpHost.create(uri);
-
-		SimpleHttpRequest httpRequest = new SimpleHttpRequest(Method.POST,target,ReplicaHttpProperties.API_VERSION_URL_PART + String.format(ReplicaHttpProperties.READ_STATE_URL_PART, containerId.toString()));
+	SimpleHttpRequest post(String path, byte[] envelope, Map<String,String> headers) {
+		SimpleHttpRequest httpRequest = new SimpleHttpRequest(Method.POST, this.target, path);
 
 		if(headers != null)
 		{
-			Iterator<String> names = headers.keySet().iterator();
+			Iterator<Map.Entry<String,String>> entries = headers.entrySet().iterator();
 			
-			while(names.hasNext())
+			while(entries.hasNext())
 			{
-				String name = names.next();
-				httpRequest.addHeader(name, headers.get(name));
+				Map.Entry<String,String> entry = entries.next();
+				httpRequest.addHeader(entry.getKey(), entry.getValue());
 			}			
 		}
-		
-		return this.execute(httpRequest, Optional.of(envelope));
 
-	}
-
-	CompletableFuture<ReplicaResponse> execute(SimpleHttpRequest httpRequest, Optional<byte[]> payload) throws AgentError {
-
-		try {
-			client.start();
-
-			URI requestUri = httpRequest.getUri();
-
-			LOG.debug("Executing request " + httpRequest.getMethod() + " " + requestUri);
+		// the envelope is handed to the client as is, without copying
+		httpRequest.setBody(envelope, dfinityContentType);
 
-			if (payload.isPresent())
-				httpRequest.setBody(payload.get(), dfinityContentType);
-			else
-				httpRequest.setHeader(HttpHeaders.CONTENT_TYPE, ReplicaHttpProperties.DFINITY_CONTENT_TYPE);
-
-
-			CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
-
-			client.execute(httpRequest, new FutureCallback<SimpleHttpResponse>() {
+		return httpRequest;
+	}
 
-				@Override
-				public void completed(SimpleHttpResponse httpResponse) {
-					try {
-						LOG.debug(requestUri + "->" + httpResponse.getCode());
+	CompletableFuture<ReplicaResponse> execute(SimpleHttpRequest httpRequest) throws AgentError {
 
-						ReplicaResponse replicaResponse = new ReplicaResponse();
-						byte[] bytes = httpResponse.getBodyBytes();
-						
-						replicaResponse.headers = new HashMap<String,String>();
-						
-						Header[] headers = httpResponse.getHeaders();
-						
-						for(Header header : headers)
-							replicaResponse.headers.put(header.getName(), header.getValue());			
+		if (LOG.isDebugEnabled())
+			LOG.debug("Executing request " + httpRequest.getMethod() + " " + httpRequest.getRequestUri());
 
-						if (bytes == null)
-							bytes = ArrayUtils.EMPTY_BYTE_ARRAY;
-						
-						int[] unsignedBytes = ByteUtils.toUnsignedIntegerArray(bytes);
-						
-						replicaResponse.payload = bytes;
+		CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
 
-						response.complete(replicaResponse);						
-					}catch(Throwable t)
-					{
-						LOG.debug(requestUri + "->" + t);
-						response.completeExceptionally(
-								AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, t, t.getLocalizedMessage()));						
-					}
+		Future<ReplicaResponse> exchange = client.execute(SimpleRequestProducer.create(httpRequest), new ReplicaResponseConsumer(this.pool),
+				new FutureCallback<ReplicaResponse>() {
 
-				}
+			@Override
+			public void completed(ReplicaResponse replicaResponse) {
+				if (LOG.isDebugEnabled())
+					LOG.debug(httpRequest.getRequestUri() + " completed");
 
-				@Override
-				public void failed(Exception ex) {
-					LOG.debug(requestUri + "->" + ex);
-					response.completeExceptionally(
-							AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, ex, ex.getLocalizedMessage()));
-				}
+				if (!response.complete(replicaResponse))
+					replicaResponse.release();
+			}
 
-				@Override
-				public void cancelled() {
-					LOG.debug(requestUri + " cancelled");
-					response.completeExceptionally(
-							AgentError.create(AgentError.AgentErrorCode.TRANSPORT_ERROR, requestUri));
-				}
+			@Override
+			public void failed(Exception ex) {
+				LOG.debug(httpRequest.getRequestUri() + "->" + ex);
+				response.completeExceptionally(
+						AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, ex, ex.getLocalizedMessage()));
+			}
 
-			});
+			@Override
+			public void cancelled() {
+				LOG.debug(httpRequest.getRequestUri() + " cancelled");
+				response.completeExceptionally(
+						AgentError.create(AgentError.AgentErrorCode.TRANSPORT_ERROR, httpRequest.getRequestUri()));
+			}
 
-			return response;
+		});
 
-		} catch (URISyntaxException e) {
-			throw AgentError.create(AgentError.AgentErrorCode.URL_PARSE_ERROR, e);
-		}
+		// cancelling the returned future aborts the exchange
+		response.whenComplete((input, ex) -> {
+			if (ex instanceof CancellationException)
+				exchange.cancel(true);
+		});
 
+		return response;
 	}
 	
 	public void close()
@@ -274,4 +284,44 @@ public class ReplicaApacheHttpTransport implements ReplicaTransport {
 			}
 	}
 
+	static final class ApacheHeaders extends LazyHeaders {
+		final MessageHeaders httpHeaders;
+
+		ApacheHeaders(MessageHeaders httpHeaders) {
+			this.httpHeaders = httpHeaders;
+		}
+
+		@Override
+		void load(Map<String, String> headers) {
+			Iterator<Header> iterator = this.httpHeaders.headerIterator();
+
+			while (iterator.hasNext()) {
+				Header header = iterator.next();
+				headers.put(header.getName(), header.getValue());
+			}
+		}
+	}
+
+	/*
+	 * HttpClient's default retry strategy, as long as automatic retries are enabled.
+	 */
+	static final class AutomaticRetryStrategy implements HttpRequestRetryStrategy {
+		volatile boolean enabled = true;
+
+		@Override
+		public boolean retryRequest(HttpRequest request, IOException exception, int execCount, HttpContext context) {
+			return this.enabled
+					&& DefaultHttpRequestRetryStrategy.INSTANCE.retryRequest(request, exception, execCount, context);
+		}
+
+		@Override
+		public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
+			return this.enabled && DefaultHttpRequestRetryStrategy.INSTANCE.retryRequest(response, execCount, context);
+		}
+
+		@Override
+		public TimeValue getRetryInterval(HttpResponse response, int execCount, HttpContext context) {
+			return DefaultHttpRequestRetryStrategy.INSTANCE.getRetryInterval(response, execCount, context);
+		}
+	}
 }
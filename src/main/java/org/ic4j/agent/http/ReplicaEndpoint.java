@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ic4j.agent.ReplicaTransport;
+
+/*
+ * One endpoint of a ReplicaLoadBalancingTransport, with the state used for routing
+ * and the per-endpoint metrics.
+ */
+public final class ReplicaEndpoint {
+	// weight of the latest sample in the latency moving average
+	static final double EWMA_ALPHA = 0.3;
+
+	final String name;
+	final ReplicaTransport transport;
+
+	final AtomicInteger inFlight = new AtomicInteger();
+	final AtomicInteger consecutiveFailures = new AtomicInteger();
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong failures = new AtomicLong();
+	final AtomicLong ejections = new AtomicLong();
+	final AtomicLong hedges = new AtomicLong();
+
+	volatile double latencyNanos;
+	volatile boolean healthy = true;
+
+	ReplicaEndpoint(String name, ReplicaTransport transport) {
+		this.name = name;
+		this.transport = transport;
+	}
+
+	/*
+	 * Routing cost, the expected latency scaled by the requests already waiting on this endpoint.
+	 */
+	double score() {
+		return (this.latencyNanos + 1) * (this.inFlight.get() + 1);
+	}
+
+	void start() {
+		this.inFlight.incrementAndGet();
+		this.requests.incrementAndGet();
+	}
+
+	void succeeded(long elapsedNanos) {
+		this.inFlight.decrementAndGet();
+		this.consecutiveFailures.set(0);
+		this.recordLatency(elapsedNanos);
+	}
+
+	void cancelled() {
+		this.inFlight.decrementAndGet();
+	}
+
+	/*
+	 * Returns true if this failure crossed the ejection threshold.
+	 */
+	boolean failed(int maxConsecutiveFailures) {
+		this.inFlight.decrementAndGet();
+		this.failures.incrementAndGet();
+
+		if (this.consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures && this.healthy) {
+			synchronized (this) {
+				if (this.healthy) {
+					this.healthy = false;
+					this.ejections.incrementAndGet();
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	synchronized void readmit(long elapsedNanos) {
+		this.consecutiveFailures.set(0);
+		this.latencyNanos = elapsedNanos;
+		this.healthy = true;
+	}
+
+	synchronized void recordLatency(long elapsedNanos) {
+		if (this.latencyNanos == 0)
+			this.latencyNanos = elapsedNanos;
+		else
+			this.latencyNanos = EWMA_ALPHA * elapsedNanos + (1 - EWMA_ALPHA) * this.latencyNanos;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public ReplicaTransport getTransport() {
+		return this.transport;
+	}
+
+	public boolean isHealthy() {
+		return this.healthy;
+	}
+
+	public double getLatencyMillis() {
+		return this.latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	public long getEjections() {
+		return this.ejections.get();
+	}
+
+	/*
+	 * Requests this endpoint received as the hedge for a slow request elsewhere.
+	 */
+	public long getHedges() {
+		return this.hedges.get();
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " healthy=" + this.healthy + " latency=" + String.format("%.2f", this.getLatencyMillis())
+				+ "ms inFlight=" + this.getInFlight() + " requests=" + this.getRequests() + " failures="
+				+ this.getFailures();
+	}
+}
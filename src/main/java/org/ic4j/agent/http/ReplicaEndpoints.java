@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.ic4j.types.Principal;
+
+/*
+ * Replica endpoint locations, computed once per transport and once per canister
+ * instead of being formatted for every request.
+ */
+final class ReplicaEndpoints<T> {
+	static final int MAX_CACHED_CANISTERS = 4096;
+
+	final String base;
+
+	final T status;
+
+	final Function<String, T> factory;
+
+	final Map<Principal, CanisterEndpoints<T>> canisters = new ConcurrentHashMap<Principal, CanisterEndpoints<T>>();
+
+	ReplicaEndpoints(String base, Function<String, T> factory) {
+		this.base = base;
+		this.factory = factory;
+		this.status = factory.apply(base + ReplicaHttpProperties.API_VERSION_URL_PART + ReplicaHttpProperties.STATUS_URL_PART);
+	}
+
+	CanisterEndpoints<T> canister(Principal canisterId) {
+		CanisterEndpoints<T> endpoints = this.canisters.get(canisterId);
+
+		if (endpoints != null)
+			return endpoints;
+
+		// keep the cache bounded when a transport talks to a very large number of canisters
+		if (this.canisters.size() >= MAX_CACHED_CANISTERS)
+			this.canisters.clear();
+
+		String prefix = this.base + ReplicaHttpProperties.API_VERSION_URL_PART;
+		String id = canisterId.toString();
+
+		endpoints = new CanisterEndpoints<T>(
+				this.factory.apply(prefix + String.format(ReplicaHttpProperties.QUERY_URL_PART, id)),
+				this.factory.apply(prefix + String.format(ReplicaHttpProperties.CALL_URL_PART, id)),
+				this.factory.apply(prefix + String.format(ReplicaHttpProperties.READ_STATE_URL_PART, id)));
+
+		this.canisters.put(canisterId, endpoints);
+
+		return endpoints;
+	}
+
+	static final class CanisterEndpoints<T> {
+		final T query;
+		final T call;
+		final T readState;
+
+		CanisterEndpoints(T query, T call, T readState) {
+			this.query = query;
+			this.call = call;
+			this.readState = readState;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Spreads requests over several replica transports, typically one per boundary node.
+ * Each request goes to the better of two randomly picked healthy endpoints, scored by
+ * their latency moving average and the requests they already have in flight.
+ * An endpoint is taken out after a number of consecutive failures and probed with
+ * status() until it answers again.
+ *
+ * With a HedgingPolicy, query and read_state requests that are still outstanding after
+ * the policy's delay are sent to a second endpoint as well.
+ */
+public class ReplicaLoadBalancingTransport implements ReplicaTransport {
+	protected static final Logger LOG = LoggerFactory.getLogger(ReplicaLoadBalancingTransport.class);
+
+	public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 3;
+	public static final Duration DEFAULT_PROBE_INTERVAL = Duration.ofSeconds(5);
+
+	static final int TOO_MANY_REQUESTS = 429;
+
+	final List<ReplicaEndpoint> endpoints;
+	final int maxConsecutiveFailures;
+
+	volatile ReplicaEndpoint[] healthyEndpoints;
+
+	final ScheduledExecutorService prober;
+
+	final HedgingPolicy hedgingPolicy;
+	final LatencyTracker latencies = new LatencyTracker();
+
+	ReplicaLoadBalancingTransport(List<ReplicaEndpoint> endpoints, int maxConsecutiveFailures, Duration probeInterval,
+			HedgingPolicy hedgingPolicy) {
+		if (endpoints.isEmpty())
+			throw AgentError.create(AgentError.AgentErrorCode.MISSING_REPLICA_TRANSPORT);
+
+		this.endpoints = Collections.unmodifiableList(endpoints);
+		this.maxConsecutiveFailures = maxConsecutiveFailures;
+		this.hedgingPolicy = hedgingPolicy;
+		this.healthyEndpoints = endpoints.toArray(new ReplicaEndpoint[endpoints.size()]);
+
+		this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ic4j-endpoint-prober");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long probeMillis = probeInterval.toMillis();
+		this.prober.scheduleWithFixedDelay(this::probe, probeMillis, probeMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public static ReplicaTransport create(String... urls) throws URISyntaxException {
+		List<ReplicaEndpoint> endpoints = new ArrayList<ReplicaEndpoint>(urls.length);
+
+		for (String url : urls)
+			endpoints.add(new ReplicaEndpoint(url, ReplicaApacheHttpTransport.create(url)));
+
+		return new ReplicaLoadBalancingTransport(endpoints, DEFAULT_MAX_CONSECUTIVE_FAILURES, DEFAULT_PROBE_INTERVAL, null);
+	}
+
+	public static ReplicaTransport create(List<ReplicaTransport> transports) {
+		return create(transports, DEFAULT_MAX_CONSECUTIVE_FAILURES, DEFAULT_PROBE_INTERVAL);
+	}
+
+	public static ReplicaTransport create(List<ReplicaTransport> transports, int maxConsecutiveFailures,
+			Duration probeInterval) {
+		return create(transports, maxConsecutiveFailures, probeInterval, null);
+	}
+
+	/*
+	 * The hedging policy keeps the hedge budget, so it should not be shared between transports.
+	 */
+	public static ReplicaTransport create(List<ReplicaTransport> transports, int maxConsecutiveFailures,
+			Duration probeInterval, HedgingPolicy hedgingPolicy) {
+		List<ReplicaEndpoint> endpoints = new ArrayList<ReplicaEndpoint>(transports.size());
+
+		for (int i = 0; i < transports.size(); i++)
+			endpoints.add(new ReplicaEndpoint("endpoint-" + i, transports.get(i)));
+
+		return new ReplicaLoadBalancingTransport(endpoints, maxConsecutiveFailures, probeInterval, hedgingPolicy);
+	}
+
+	/*
+	 * Endpoints in the order they were given, for metrics.
+	 */
+	public List<ReplicaEndpoint> getEndpoints() {
+		return this.endpoints;
+	}
+
+	public CompletableFuture<ReplicaResponse> status() {
+		return this.execute(transport -> transport.status());
+	}
+
+	public CompletableFuture<ReplicaResponse> query(Principal canisterId, byte[] envelope, Map<String, String> headers) {
+		return this.executeHedged(transport -> transport.query(canisterId, envelope, headers));
+	}
+
+	public CompletableFuture<ReplicaResponse> call(Principal canisterId, byte[] envelope, RequestId requestId,
+			Map<String, String> headers) {
+		return this.execute(transport -> transport.call(canisterId, envelope, requestId, headers));
+	}
+
+	public CompletableFuture<ReplicaResponse> readState(Principal canisterId, byte[] envelope,
+			Map<String, String> headers) {
+		return this.executeHedged(transport -> transport.readState(canisterId, envelope, headers));
+	}
+
+	CompletableFuture<ReplicaResponse> execute(Function<ReplicaTransport, CompletableFuture<ReplicaResponse>> request) {
+		return this.execute(this.select(), request);
+	}
+
+	/*
+	 * Returns the transport's own future, so that cancelling it aborts the HTTP request.
+	 */
+	CompletableFuture<ReplicaResponse> execute(ReplicaEndpoint endpoint,
+			Function<ReplicaTransport, CompletableFuture<ReplicaResponse>> request) {
+		endpoint.start();
+		long start = System.nanoTime();
+
+		CompletableFuture<ReplicaResponse> response;
+		try {
+			response = request.apply(endpoint.transport);
+		} catch (Throwable t) {
+			response = new CompletableFuture<ReplicaResponse>();
+			response.completeExceptionally(t);
+		}
+
+		response.whenComplete((input, ex) -> {
+			if (ex == null && !isError(input)) {
+				long elapsed = System.nanoTime() - start;
+
+				endpoint.succeeded(elapsed);
+				this.latencies.record(elapsed);
+			} else if (ex instanceof CancellationException)
+				endpoint.cancelled();
+			else if (endpoint.failed(this.maxConsecutiveFailures)) {
+				// 429 and 5xx answers are failures too, and their latency stays out of the moving average
+				LOG.warn("Endpoint " + endpoint.name + " taken out after " + this.maxConsecutiveFailures
+						+ " consecutive failures");
+				this.updateHealthyEndpoints();
+			}
+		});
+
+		return response;
+	}
+
+	/*
+	 * Send the request, and send it to a second endpoint as well if it is still outstanding
+	 * after the hedging delay. The first successful response wins, the loser is cancelled,
+	 * and a failure, exception or 429/5xx response, is only reported once every attempt has failed.
+	 */
+	CompletableFuture<ReplicaResponse> executeHedged(
+			Function<ReplicaTransport, CompletableFuture<ReplicaResponse>> request) {
+		if (this.hedgingPolicy == null || this.endpoints.size() < 2)
+			return this.execute(request);
+
+		this.hedgingPolicy.onRequest();
+
+		ReplicaEndpoint primaryEndpoint = this.select();
+
+		HedgedRequest hedged = new HedgedRequest();
+
+		hedged.attempt(this.execute(primaryEndpoint, request));
+
+		long delay = this.hedgingPolicy.delayNanos(this.latencies);
+
+		if (!hedged.result.isDone())
+			this.prober.schedule(() -> {
+				if (hedged.result.isDone() || !this.hedgingPolicy.tryAcquire())
+					return;
+
+				ReplicaEndpoint hedgeEndpoint = this.selectOther(primaryEndpoint);
+
+				if (hedgeEndpoint == null)
+					return;
+
+				if (LOG.isDebugEnabled())
+					LOG.debug("Hedging request to " + hedgeEndpoint.name);
+
+				hedgeEndpoint.hedges.incrementAndGet();
+				hedged.attempt(this.execute(hedgeEndpoint, request));
+			}, delay, TimeUnit.NANOSECONDS);
+
+		return hedged.result;
+	}
+
+	/*
+	 * Best healthy endpoint other than the given one, null if there is none.
+	 */
+	ReplicaEndpoint selectOther(ReplicaEndpoint excluded) {
+		ReplicaEndpoint best = null;
+
+		for (ReplicaEndpoint candidate : this.healthyEndpoints)
+			if (candidate != excluded && (best == null || candidate.score() < best.score()))
+				best = candidate;
+
+		return best;
+	}
+
+	/*
+	 * Power of two choices. With every endpoint out, pick among all of them rather than fail outright.
+	 */
+	ReplicaEndpoint select() {
+		ReplicaEndpoint[] candidates = this.healthyEndpoints;
+
+		if (candidates.length == 0)
+			candidates = this.endpoints.toArray(new ReplicaEndpoint[this.endpoints.size()]);
+
+		if (candidates.length == 1)
+			return candidates[0];
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		int first = random.nextInt(candidates.length);
+		int second = random.nextInt(candidates.length - 1);
+
+		if (second >= first)
+			second++;
+
+		return candidates[first].score() <= candidates[second].score() ? candidates[first] : candidates[second];
+	}
+
+	void probe() {
+		for (ReplicaEndpoint endpoint : this.endpoints) {
+			if (endpoint.healthy)
+				continue;
+
+			long start = System.nanoTime();
+
+			try {
+				endpoint.transport.status().whenComplete((input, ex) -> {
+					if (ex != null) {
+						LOG.debug("Endpoint " + endpoint.name + " probe failed: " + ex);
+						return;
+					}
+
+					input.release();
+
+					if (isError(input)) {
+						LOG.debug("Endpoint " + endpoint.name + " probe failed with HTTP status " + input.statusCode);
+						return;
+					}
+
+					endpoint.readmit(System.nanoTime() - start);
+					this.updateHealthyEndpoints();
+
+					LOG.info("Endpoint " + endpoint.name + " back in rotation");
+				});
+			} catch (Throwable t) {
+				LOG.debug("Endpoint " + endpoint.name + " probe failed: " + t);
+			}
+		}
+	}
+
+	/*
+	 * Responses the boundary node answers with when it is overloaded or the replica is unavailable.
+	 */
+	static boolean isError(ReplicaResponse response) {
+		return response.statusCode == TOO_MANY_REQUESTS || response.statusCode >= 500;
+	}
+
+	synchronized void updateHealthyEndpoints() {
+		List<ReplicaEndpoint> healthy = new ArrayList<ReplicaEndpoint>(this.endpoints.size());
+
+		for (ReplicaEndpoint endpoint : this.endpoints)
+			if (endpoint.healthy)
+				healthy.add(endpoint);
+
+		this.healthyEndpoints = healthy.toArray(new ReplicaEndpoint[healthy.size()]);
+	}
+
+	static final class HedgedRequest {
+		final CompletableFuture<ReplicaResponse> result = new CompletableFuture<ReplicaResponse>();
+
+		final List<CompletableFuture<ReplicaResponse>> attempts = new ArrayList<CompletableFuture<ReplicaResponse>>(2);
+		final AtomicInteger pending = new AtomicInteger();
+
+		// the latest 429/5xx response or exception, reported only if no attempt succeeds
+		ReplicaResponse lastErrorResponse;
+		Throwable lastError;
+
+		HedgedRequest() {
+			// the winner cancels the loser, and cancelling the result cancels every attempt
+			this.result.whenComplete((input, ex) -> {
+				this.cancelAttempts();
+				this.releaseLastErrorResponse();
+			});
+		}
+
+		void attempt(CompletableFuture<ReplicaResponse> attempt) {
+			this.pending.incrementAndGet();
+
+			synchronized (this.attempts) {
+				this.attempts.add(attempt);
+			}
+
+			attempt.whenComplete((input, ex) -> {
+				int remaining = this.pending.decrementAndGet();
+
+				if (ex == null && !isError(input)) {
+					if (!this.result.complete(input))
+						input.release();
+
+					return;
+				}
+
+				this.failed(input, ex instanceof CompletionException ? ex.getCause() : ex, remaining == 0);
+			});
+
+			if (this.result.isDone())
+				attempt.cancel(true);
+		}
+
+		synchronized void failed(ReplicaResponse response, Throwable error, boolean last) {
+			if (this.lastErrorResponse != null)
+				this.lastErrorResponse.release();
+
+			this.lastErrorResponse = response;
+			this.lastError = error;
+
+			if (this.result.isDone()) {
+				this.releaseLastErrorResponse();
+				return;
+			}
+
+			if (!last)
+				return;
+
+			// every attempt is done, hand back what the last one answered
+			if (this.lastErrorResponse != null) {
+				ReplicaResponse errorResponse = this.lastErrorResponse;
+				this.lastErrorResponse = null;
+
+				if (!this.result.complete(errorResponse))
+					errorResponse.release();
+			} else
+				this.result.completeExceptionally(this.lastError);
+		}
+
+		synchronized void releaseLastErrorResponse() {
+			if (this.lastErrorResponse != null) {
+				this.lastErrorResponse.release();
+				this.lastErrorResponse = null;
+			}
+		}
+
+		void cancelAttempts() {
+			synchronized (this.attempts) {
+				for (CompletableFuture<ReplicaResponse> attempt : this.attempts)
+					attempt.cancel(true);
+			}
+		}
+	}
+
+	@Override
+	public void setAutomaticRetries(boolean automaticRetries) {
+		for (ReplicaEndpoint endpoint : this.endpoints)
+			endpoint.transport.setAutomaticRetries(automaticRetries);
+	}
+
+	public void close() {
+		this.prober.shutdownNow();
+
+		for (ReplicaEndpoint endpoint : this.endpoints)
+			endpoint.transport.close();
+	}
+}
@@ -19,13 +19,12 @@ package org.ic4j.agent.http;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.ic4j.agent.AgentError;
 import org.ic4j.agent.ReplicaResponse;
 import org.ic4j.agent.ReplicaTransport;
@@ -38,12 +37,14 @@ import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Dispatcher;
 import okhttp3.Headers;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Request.Builder;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class ReplicaOkHttpTransport implements ReplicaTransport {
 
@@ -55,6 +56,12 @@ public class ReplicaOkHttpTransport implements ReplicaTransport {
 	
 	private final MediaType dfinityContentType = MediaType.parse(ReplicaHttpProperties.DFINITY_CONTENT_TYPE);
 
+	ReplicaEndpoints<HttpUrl> endpoints;
+
+	Request statusRequest;
+
+	ByteBufferPool pool;
+
 	ReplicaOkHttpTransport(URI url) {
 		
 		//check if url ends with /	
@@ -64,6 +71,8 @@ public class ReplicaOkHttpTransport implements ReplicaTransport {
 			this.uri = url;
 
 		client = new OkHttpClient();
+
+		this.init();
 	}
 
 	ReplicaOkHttpTransport(URI url, int timeout) {
@@ -74,6 +83,25 @@ public class ReplicaOkHttpTransport implements ReplicaTransport {
 			this.uri = url;
 
 		client = new OkHttpClient.Builder().readTimeout(timeout, TimeUnit.SECONDS).build();
+
+		this.init();
+	}
+
+	ReplicaOkHttpTransport(URI url, ByteBufferPool pool) {
+		this(url);
+
+		this.pool = pool;
+	}
+
+	/*
+	 * Parse endpoint URLs once; OkHttp requests are immutable, so the status request
+	 * can be reused as well.
+	 */
+	void init() {
+		this.endpoints = new ReplicaEndpoints<HttpUrl>(this.uri.toString(), HttpUrl::get);
+
+		this.statusRequest = new Request.Builder().url(this.endpoints.status).get()
+				.addHeader(ReplicaHttpProperties.CONTENT_TYPE, ReplicaHttpProperties.DFINITY_CONTENT_TYPE).build();
 	}
 
 	public static ReplicaTransport create(String url) throws URISyntaxException {
@@ -85,83 +113,54 @@ public class ReplicaOkHttpTransport implements ReplicaTransport {
 		return new ReplicaOkHttpTransport(new URI(url), timeout);
 	}
 
-	public CompletableFuture<ReplicaResponse> status() {
-		
-		Request httpRequest = new Request.Builder().url(uri.toString() + ReplicaHttpProperties.API_VERSION_URL_PART + ReplicaHttpProperties.STATUS_URL_PART).get().addHeader(ReplicaHttpProperties.CONTENT_TYPE, ReplicaHttpProperties.DFINITY_CONTENT_TYPE).build();		
+	/*
+	 * Response bodies are streamed into buffers taken from the pool and handed over
+	 * as ReplicaResponse.body instead of ReplicaResponse.payload.
+	 */
+	public static ReplicaTransport create(String url, ByteBufferPool pool) throws URISyntaxException {
+		return new ReplicaOkHttpTransport(new URI(url), pool);
+	}
 
-		return this.execute(httpRequest);
+	public CompletableFuture<ReplicaResponse> status() {
+		return this.execute(this.statusRequest);
 	}
 
 	public CompletableFuture<ReplicaResponse> query(Principal containerId, byte[] envelope, Map<String,String> headers) {
-		RequestBody requestBody =RequestBody.create(envelope,dfinityContentType);
-			
-		Builder builder = new Request.Builder().url(uri.toString() + ReplicaHttpProperties.API_VERSION_URL_PART + String.format(ReplicaHttpProperties.QUERY_URL_PART, containerId.toString())).post(requestBody);		
-				
-		if(headers != null)
-		{
-			Iterator<String> names = headers.keySet().iterator();
-			
-			while(names.hasNext())
-			{
-				String name = names.next();
-				builder.addHeader(name, headers.get(name));
-			}			
-		}
-		
-		Request httpRequest =  builder.build();		
-		
-		return this.execute(httpRequest);
+		return this.execute(this.post(this.endpoints.canister(containerId).query, envelope, headers));
 	}
 
 	public CompletableFuture<ReplicaResponse> call(Principal containerId, byte[] envelope, RequestId requestId, Map<String,String> headers) {
-		RequestBody requestBody =RequestBody.create(envelope,dfinityContentType);
-		
-		Builder builder  = new Request.Builder().url(uri.toString() + ReplicaHttpProperties.API_VERSION_URL_PART + String.format(ReplicaHttpProperties.CALL_URL_PART, containerId.toString())).post(requestBody);		
-				
-		
-		if(headers != null)
-		{
-			Iterator<String> names = headers.keySet().iterator();
-			
-			while(names.hasNext())
-			{
-				String name = names.next();
-				builder.addHeader(name, headers.get(name));
-			}			
-		}
-		
-		Request httpRequest =  builder.build();
-		
-		return this.execute(httpRequest);
+		return this.execute(this.post(this.endpoints.canister(containerId).call, envelope, headers));
 	}
 
 	public CompletableFuture<ReplicaResponse> readState(Principal containerId, byte[] envelope, Map<String,String> headers) {
-		RequestBody requestBody =RequestBody.create(envelope,dfinityContentType);
+		return this.execute(this.post(this.endpoints.canister(containerId).readState, envelope, headers));
+	}
+
+	Request post(HttpUrl url, byte[] envelope, Map<String,String> headers) {
+		RequestBody requestBody = RequestBody.create(envelope,dfinityContentType);
 		
-		Builder builder = new Request.Builder().url(uri.toString() + ReplicaHttpProperties.API_VERSION_URL_PART + String.format(ReplicaHttpProperties.READ_STATE_URL_PART, containerId.toString())).post(requestBody);		
+		Builder builder = new Request.Builder().url(url).post(requestBody);		
 				
 		if(headers != null)
 		{
-			Iterator<String> names = headers.keySet().iterator();
+			Iterator<Map.Entry<String,String>> entries = headers.entrySet().iterator();
 			
-			while(names.hasNext())
+			while(entries.hasNext())
 			{
-				String name = names.next();
-				builder.addHeader(name, headers.get(name));
+				Map.Entry<String,String> entry = entries.next();
+				builder.addHeader(entry.getKey(), entry.getValue());
 			}			
 		}
 		
-		Request httpRequest =  builder.build();
-		
-		return this.execute(httpRequest);
+		return builder.build();
 	}
 
 	CompletableFuture<ReplicaResponse> execute(Request httpRequest) throws AgentError {
 
 		try {
-			URI requestUri = httpRequest.url().uri();
-
-			LOG.debug("Executing request " + httpRequest.method() + " " + requestUri);
+			if (LOG.isDebugEnabled())
+				LOG.debug("Executing request " + httpRequest.method() + " " + httpRequest.url());
 
 			CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
 
@@ -172,47 +171,52 @@ public class ReplicaOkHttpTransport implements ReplicaTransport {
 
 				@Override
 				public void onResponse(Call call, Response httpResponse) {
-					LOG.debug(requestUri + "->" + httpResponse.code());
+					if (LOG.isDebugEnabled())
+						LOG.debug(httpRequest.url() + "->" + httpResponse.code());
 
-					byte[] bytes;
+					ResponseBodyBuffer bodyBuffer = new ResponseBodyBuffer(pool);
 					try {
 						ReplicaResponse replicaResponse = new ReplicaResponse();
 						
-						replicaResponse.headers = new HashMap<String,String>();
-						
-						Headers headers = httpResponse.headers();
-						
-						Iterator<String> names = headers.names().iterator();
-						
-						while(names.hasNext())
-						{
-							String name = names.next();
-							replicaResponse.headers.put(name, headers.get(name));
+						replicaResponse.headers = new OkHttpHeaders(httpResponse.headers());
+						replicaResponse.statusCode = httpResponse.code();
+
+						ResponseBody body = httpResponse.body();
+
+						if (body != null) {
+							bodyBuffer.start(body.contentLength());
+							bodyBuffer.readFrom(body.source());
 						}
-						
-						bytes = httpResponse.body().bytes();
-						if (bytes == null)
-							bytes = ArrayUtils.EMPTY_BYTE_ARRAY;
-						
-						replicaResponse.payload = bytes;
 
-						response.complete(replicaResponse);						
+						bodyBuffer.complete(replicaResponse);
+
+						if (!response.complete(replicaResponse))
+							replicaResponse.release();
 					} catch (Throwable t) {
-						LOG.debug(requestUri + "->" + t);
+						bodyBuffer.discard();
+						LOG.debug(httpRequest.url() + "->" + t);
 						response.completeExceptionally(
 								AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, t, t.getLocalizedMessage()));
+					} finally {
+						httpResponse.close();
 					}
 
 				}
 
 				@Override
 				public void onFailure(Call call, IOException ex) {
-					LOG.debug(requestUri + "->" + ex);
+					LOG.debug(httpRequest.url() + "->" + ex);
 					response.completeExceptionally(
 							AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, ex, ex.getLocalizedMessage()));
 				}
 			});
 
+			// cancelling the returned future aborts the call
+			response.whenComplete((input, ex) -> {
+				if (ex instanceof CancellationException)
+					call.cancel();
+			});
+
 			return response;
 
 		} catch (Exception e) {
@@ -250,4 +254,18 @@ public class ReplicaOkHttpTransport implements ReplicaTransport {
 		}
 	}
 
+	static final class OkHttpHeaders extends LazyHeaders {
+		final Headers httpHeaders;
+
+		OkHttpHeaders(Headers httpHeaders) {
+			this.httpHeaders = httpHeaders;
+		}
+
+		@Override
+		void load(Map<String, String> headers) {
+			for (int i = 0; i < this.httpHeaders.size(); i++)
+				headers.put(this.httpHeaders.name(i), this.httpHeaders.value(i));
+		}
+	}
+
 }
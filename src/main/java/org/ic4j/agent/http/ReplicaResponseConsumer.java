@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.ic4j.agent.ReplicaResponse;
+
+/*
+ * Streams the response body straight into a ResponseBodyBuffer, instead of collecting it
+ * into a SimpleHttpResponse first.
+ */
+final class ReplicaResponseConsumer implements AsyncResponseConsumer<ReplicaResponse> {
+	final ResponseBodyBuffer bodyBuffer;
+
+	volatile ReplicaResponse response;
+	volatile FutureCallback<ReplicaResponse> resultCallback;
+
+	ReplicaResponseConsumer(ByteBufferPool pool) {
+		this.bodyBuffer = new ResponseBodyBuffer(pool);
+	}
+
+	@Override
+	public void consumeResponse(HttpResponse httpResponse, EntityDetails entityDetails, HttpContext context,
+			FutureCallback<ReplicaResponse> resultCallback) throws HttpException, IOException {
+		ReplicaResponse replicaResponse = new ReplicaResponse();
+		replicaResponse.headers = new ReplicaApacheHttpTransport.ApacheHeaders(httpResponse);
+		replicaResponse.statusCode = httpResponse.getCode();
+
+		if (entityDetails == null) {
+			this.bodyBuffer.complete(replicaResponse);
+			resultCallback.completed(replicaResponse);
+			return;
+		}
+
+		this.response = replicaResponse;
+		this.resultCallback = resultCallback;
+
+		this.bodyBuffer.start(entityDetails.getContentLength());
+	}
+
+	@Override
+	public void informationResponse(HttpResponse response, HttpContext context) throws HttpException, IOException {
+	}
+
+	@Override
+	public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+		capacityChannel.update(Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void consume(ByteBuffer src) throws IOException {
+		this.bodyBuffer.append(src);
+	}
+
+	@Override
+	public void streamEnd(List<? extends Header> trailers) throws HttpException, IOException {
+		ReplicaResponse replicaResponse = this.response;
+		FutureCallback<ReplicaResponse> resultCallback = this.resultCallback;
+
+		this.response = null;
+		this.resultCallback = null;
+
+		this.bodyBuffer.complete(replicaResponse);
+
+		if (resultCallback != null)
+			resultCallback.completed(replicaResponse);
+	}
+
+	@Override
+	public void failed(Exception cause) {
+		this.releaseResources();
+	}
+
+	@Override
+	public void releaseResources() {
+		this.bodyBuffer.discard();
+	}
+}
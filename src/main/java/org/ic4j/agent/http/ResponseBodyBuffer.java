@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.ic4j.agent.ReplicaResponse;
+
+/*
+ * Accumulates a response body as it streams in. Without a pool the body is read into
+ * a heap array sized from the Content-Length header, so the common case needs no copy.
+ * With a pool the body is read into a pooled buffer and handed over as a read-only view
+ * that goes back to the pool when the response is released.
+ */
+final class ResponseBodyBuffer {
+	static final int DEFAULT_CAPACITY = 8 * 1024;
+
+	final ByteBufferPool pool;
+
+	ByteBuffer buffer;
+	long contentLength = -1;
+
+	ResponseBodyBuffer(ByteBufferPool pool) {
+		this.pool = pool;
+	}
+
+	void start(long contentLength) {
+		this.contentLength = contentLength;
+
+		int capacity = contentLength >= 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : DEFAULT_CAPACITY;
+
+		this.buffer = this.allocate(capacity);
+	}
+
+	void append(ByteBuffer src) {
+		this.ensureCapacity(src.remaining());
+
+		this.buffer.put(src);
+	}
+
+	/*
+	 * Read the whole channel into the buffer.
+	 */
+	void readFrom(ReadableByteChannel channel) throws IOException {
+		while (true) {
+			// a full buffer of the announced length is complete, growing it to probe for the end would double it
+			if (this.buffer != null && this.buffer.position() == this.contentLength)
+				return;
+
+			this.ensureCapacity(1);
+
+			if (channel.read(this.buffer) < 0)
+				return;
+		}
+	}
+
+	void complete(ReplicaResponse response) {
+		ByteBuffer body = this.buffer;
+		this.buffer = null;
+
+		if (body == null) {
+			response.payload = ArrayUtils.EMPTY_BYTE_ARRAY;
+			return;
+		}
+
+		body.flip();
+
+		if (this.pool == null) {
+			if (body.limit() == body.capacity())
+				response.payload = body.array();
+			else
+				response.payload = Arrays.copyOf(body.array(), body.limit());
+		} else {
+			response.body = body.asReadOnlyBuffer();
+			response.onRelease(() -> this.pool.release(body));
+		}
+	}
+
+	void discard() {
+		if (this.pool != null && this.buffer != null)
+			this.pool.release(this.buffer);
+
+		this.buffer = null;
+	}
+
+	void ensureCapacity(int required) {
+		if (this.buffer == null)
+			this.buffer = this.allocate(Math.max(required, DEFAULT_CAPACITY));
+
+		if (this.buffer.remaining() >= required)
+			return;
+
+		int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + required);
+
+		ByteBuffer expanded = this.allocate(capacity);
+
+		this.buffer.flip();
+		expanded.put(this.buffer);
+
+		if (this.pool != null)
+			this.pool.release(this.buffer);
+
+		this.buffer = expanded;
+	}
+
+	ByteBuffer allocate(int capacity) {
+		if (this.pool == null)
+			return ByteBuffer.allocate(capacity);
+		else
+			return this.pool.acquire(capacity);
+	}
+}
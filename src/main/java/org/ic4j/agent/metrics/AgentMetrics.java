@@ -0,0 +1,31 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+/*
+ * Receives the measurements of every request an Agent makes, set with AgentBuilder.metrics().
+ * HistogramMetrics keeps them in histograms, Slf4jAgentMetrics shows how to forward them to
+ * another metrics library. Implementations are called on the thread that ran the phase,
+ * often a transport or completion thread, so they should be quick and must not throw.
+ */
+public interface AgentMetrics {
+	/*
+	 * value is in nanoseconds, or a count for phases where Phase.isCount() is true.
+	 */
+	void record(Phase phase, RequestTags tags, Outcome outcome, long value);
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Lock-free log-linear histogram of non negative values. Values below 16 are counted exactly,
+ * above that every power of two is split into 16 buckets, so a percentile is at most 1/16 above
+ * the actual value. Recording is a few atomic increments, readers see a consistent enough view
+ * without stopping writers.
+ */
+public final class Histogram {
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	final LongAdder count = new LongAdder();
+	final LongAdder sum = new LongAdder();
+	final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		this.counts.incrementAndGet(index(value));
+		this.count.increment();
+		this.sum.add(value);
+
+		long max = this.max.get();
+
+		while (value > max && !this.max.compareAndSet(max, value))
+			max = this.max.get();
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	public double getMean() {
+		long count = this.getCount();
+
+		return count == 0 ? 0 : (double) this.getSum() / count;
+	}
+
+	/*
+	 * Value below which the given fraction of the recorded values fall, percentile between 0 and 1.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+			total += this.counts.get(i);
+
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+
+			if (seen >= rank)
+				return Math.min(highestValue(i), this.getMax());
+		}
+
+		return this.getMax();
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	// largest value counted in bucket index
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+		return lowest + (1L << shift) - 1;
+	}
+}
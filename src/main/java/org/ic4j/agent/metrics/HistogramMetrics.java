@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Built-in AgentMetrics keeping a Histogram per phase, request type, outcome and, unless turned
+ * off, canister and method. Turn byCanister and byMethod off for agents calling many canisters,
+ * every combination seen keeps its own histogram.
+ */
+public final class HistogramMetrics implements AgentMetrics {
+	boolean byCanister = true;
+	boolean byMethod = true;
+
+	final ConcurrentMap<Series, Histogram> histograms = new ConcurrentHashMap<Series, Histogram>();
+
+	HistogramMetrics() {
+	}
+
+	public static HistogramMetrics create() {
+		return new HistogramMetrics();
+	}
+
+	public HistogramMetrics byCanister(boolean byCanister) {
+		this.byCanister = byCanister;
+		return this;
+	}
+
+	public HistogramMetrics byMethod(boolean byMethod) {
+		this.byMethod = byMethod;
+		return this;
+	}
+
+	@Override
+	public void record(Phase phase, RequestTags tags, Outcome outcome, long value) {
+		Series series = this.series(phase, tags, outcome);
+
+		Histogram histogram = this.histograms.get(series);
+
+		if (histogram == null)
+			histogram = this.histograms.computeIfAbsent(series, s -> new Histogram());
+
+		histogram.record(value);
+	}
+
+	/*
+	 * Histogram of phase for requests with these tags, null if there were none. Tags that are
+	 * not tracked are ignored.
+	 */
+	public Histogram getHistogram(Phase phase, RequestTags tags, Outcome outcome) {
+		return this.histograms.get(this.series(phase, tags, outcome));
+	}
+
+	public Map<Series, Histogram> getHistograms() {
+		return Collections.unmodifiableMap(this.histograms);
+	}
+
+	Series series(Phase phase, RequestTags tags, Outcome outcome) {
+		if (!this.byCanister || !this.byMethod)
+			tags = RequestTags.create(this.byCanister ? tags.canisterId : null, this.byMethod ? tags.method : null,
+					tags.requestType);
+
+		return new Series(phase, tags, outcome);
+	}
+
+	public static final class Series {
+		final Phase phase;
+		final RequestTags tags;
+		final Outcome outcome;
+
+		Series(Phase phase, RequestTags tags, Outcome outcome) {
+			this.phase = phase;
+			this.tags = tags;
+			this.outcome = outcome;
+		}
+
+		public Phase getPhase() {
+			return this.phase;
+		}
+
+		public RequestTags getTags() {
+			return this.tags;
+		}
+
+		public Outcome getOutcome() {
+			return this.outcome;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Series))
+				return false;
+
+			Series series = (Series) other;
+
+			return this.phase == series.phase && this.tags.equals(series.tags) && this.outcome == series.outcome;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.phase, this.tags, this.outcome);
+		}
+
+		@Override
+		public String toString() {
+			return this.phase + " " + this.tags + " " + this.outcome;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import org.ic4j.agent.AgentError;
+
+public enum Outcome {
+	SUCCESS,
+	// the replica rejected the call
+	REJECTED,
+	// cancelled, or stopped by its Deadline
+	CANCELLED,
+	ERROR;
+
+	/*
+	 * Outcome of something that ended with error, error is null if it succeeded.
+	 */
+	public static Outcome of(Throwable error) {
+		if (error == null)
+			return SUCCESS;
+
+		Throwable cause = error;
+
+		while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null)
+			cause = cause.getCause();
+
+		if (cause instanceof CancellationException)
+			return CANCELLED;
+
+		if (cause instanceof AgentError) {
+			switch (((AgentError) cause).getCode()) {
+			case REPLICA_ERROR:
+				return REJECTED;
+			case DEADLINE_EXCEEDED:
+				return CANCELLED;
+			default:
+				return ERROR;
+			}
+		}
+
+		return ERROR;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+public enum Phase {
+	// hashing the request content into its RequestId
+	REQUEST_ID,
+	// signing the RequestId with the identity
+	SIGN,
+	// CBOR encoding of the signed envelope
+	ENCODE,
+	// a single transport request, every retry attempt is measured on its own
+	ROUND_TRIP,
+	// CBOR decoding of the response body
+	DECODE,
+	// CBOR decoding of a read_state certificate
+	CERTIFICATE_PARSE,
+	// BLS verification of a certificate and its delegation
+	BLS_VERIFY,
+	// verification of node signatures on a query response
+	QUERY_SIGNATURE_VERIFY,
+	// request status polls until an update call ended
+	POLLS(true),
+	// update call from submission, or from the first poll of getState, until it ended
+	UPDATE_LATENCY;
+
+	final boolean count;
+
+	Phase() {
+		this(false);
+	}
+
+	Phase(boolean count) {
+		this.count = count;
+	}
+
+	/*
+	 * true if the value recorded for this phase is a count rather than nanoseconds.
+	 */
+	public boolean isCount() {
+		return this.count;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+import java.util.Objects;
+
+import org.ic4j.types.Principal;
+
+/*
+ * What a measurement was taken for. The canister is the effective canister id for read_state
+ * requests, which have no method, and both are null for status requests.
+ */
+public final class RequestTags {
+	final Principal canisterId;
+	final String method;
+	final RequestType requestType;
+
+	RequestTags(Principal canisterId, String method, RequestType requestType) {
+		this.canisterId = canisterId;
+		this.method = method;
+		this.requestType = requestType;
+	}
+
+	public static RequestTags create(Principal canisterId, String method, RequestType requestType) {
+		return new RequestTags(canisterId, method, requestType);
+	}
+
+	public Principal getCanisterId() {
+		return this.canisterId;
+	}
+
+	public String getMethod() {
+		return this.method;
+	}
+
+	public RequestType getRequestType() {
+		return this.requestType;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof RequestTags))
+			return false;
+
+		RequestTags tags = (RequestTags) other;
+
+		return Objects.equals(this.canisterId, tags.canisterId) && Objects.equals(this.method, tags.method)
+				&& this.requestType == tags.requestType;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(this.canisterId, this.method, this.requestType);
+	}
+
+	@Override
+	public String toString() {
+		return this.requestType + " " + this.canisterId + " " + this.method;
+	}
+}
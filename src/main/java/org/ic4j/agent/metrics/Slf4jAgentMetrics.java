@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Adapter example: forwards every measurement to an SLF4J logger at debug level, one key=value
+ * line each, for log based metrics pipelines. An adapter to a metrics library looks the same,
+ * it maps the phase to a timer, or a distribution summary for counts, the tags and outcome to
+ * the library's tags, and records the value.
+ */
+public final class Slf4jAgentMetrics implements AgentMetrics {
+	final Logger log;
+
+	Slf4jAgentMetrics(Logger log) {
+		this.log = log;
+	}
+
+	public static Slf4jAgentMetrics create() {
+		return new Slf4jAgentMetrics(LoggerFactory.getLogger(Slf4jAgentMetrics.class));
+	}
+
+	public static Slf4jAgentMetrics create(Logger log) {
+		return new Slf4jAgentMetrics(log);
+	}
+
+	@Override
+	public void record(Phase phase, RequestTags tags, Outcome outcome, long value) {
+		if (!this.log.isDebugEnabled())
+			return;
+
+		this.log.debug("phase={} type={} canister={} method={} outcome={} {}={}", phase, tags.requestType,
+				tags.canisterId, tags.method, outcome, phase.isCount() ? "count" : "nanos", value);
+	}
+}
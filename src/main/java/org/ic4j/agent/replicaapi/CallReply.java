@@ -16,14 +16,21 @@
 
 package org.ic4j.agent.replicaapi;
 
+import java.nio.ByteBuffer;
+
 import org.ic4j.agent.Serialize;
 import org.ic4j.agent.Serializer;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public final class CallReply extends Response implements Serialize {
 	@JsonProperty("arg")
 	public byte[] arg;
+
+	// read-only view into the response body, set when the reply was read from a pooled buffer
+	@JsonIgnore
+	ByteBuffer argBuffer;
 	
 	public CallReply()
 	{
@@ -35,8 +42,35 @@ public final class CallReply extends Response implements Serialize {
 		this.arg = arg;
 	}
 
+	/*
+	 * Reply argument as a read-only buffer, without copying it out of the response body.
+	 */
+	@JsonIgnore
+	public ByteBuffer getArgBuffer() {
+		if (this.argBuffer != null)
+			return this.argBuffer.duplicate();
+
+		if (this.arg != null)
+			return ByteBuffer.wrap(this.arg).asReadOnlyBuffer();
+
+		return null;
+	}
+
+	/*
+	 * Reply argument as an array, copied out of the response body on first use.
+	 */
+	public byte[] getArg() {
+		if (this.arg == null && this.argBuffer != null) {
+			ByteBuffer buffer = this.argBuffer.duplicate();
+			this.arg = new byte[buffer.remaining()];
+			buffer.get(this.arg);
+		}
+
+		return this.arg;
+	}
+
 	@Override
 	public void serialize(Serializer serializer) {
-		serializer.serializeField("arg", this.arg);	
+		serializer.serializeField("arg", this.getArg());	
 	}
 }
@@ -17,6 +17,7 @@
 package org.ic4j.agent.replicaapi;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -32,7 +33,11 @@ import org.ic4j.types.PrincipalError;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonSetter;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -51,17 +56,8 @@ public final class QueryResponse extends Response {
 
 	@JsonSetter("status")
 	void setStatus(JsonNode statusNode) {
-		if (statusNode != null && statusNode.isTextual()) {
-			if (REJECTED_STATUS_VALUE.equals(statusNode.asText())) {
-				this.rejected = Optional.of(new Rejected());
-				this.replied = Optional.empty();
-				this.status = InnerStatus.REJECTED_STATUS;
-			} else if (REPLIED_STATUS_VALUE.equals(statusNode.asText())) {
-				this.replied = Optional.of(new CallReply());
-				this.rejected = Optional.empty();
-				this.status = InnerStatus.REPLIED_STATUS;
-			}
-		}
+		if (statusNode != null && statusNode.isTextual())
+			this.initStatus(statusNode.asText());
 	}
 
 	@JsonSetter("reject_code")
@@ -141,6 +137,147 @@ public final class QueryResponse extends Response {
 		}
 	}
 
+	/*
+	 * Streaming alternative to ObjectMapper.readValue for responses held in a pooled buffer,
+	 * objectMapper has to be backed by a CBORFactory.
+	 * The reply arg is not copied, CallReply.getArgBuffer() returns a read-only view into body,
+	 * so it is only valid as long as body is.
+	 */
+	public static QueryResponse read(ObjectMapper objectMapper, ByteBuffer body) throws IOException {
+		QueryResponse queryResponse = new QueryResponse();
+
+		Integer rejectCode = null;
+		String rejectMessage = null;
+		String errorCode = null;
+		ByteBuffer arg = null;
+
+		try (JsonParser parser = objectMapper.getFactory().createParser(new ByteBufferBackedInputStream(body.duplicate()))) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw AgentError.create(AgentError.AgentErrorCode.INVALID_CBOR_DATA, "Expected CBOR map");
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				JsonToken token = parser.nextToken();
+
+				switch (field) {
+				case "status":
+					if (token == JsonToken.VALUE_STRING)
+						queryResponse.initStatus(parser.getText());
+					break;
+				case "reject_code":
+					if (token == JsonToken.VALUE_NUMBER_INT)
+						rejectCode = parser.getIntValue();
+					break;
+				case "reject_message":
+					if (token == JsonToken.VALUE_STRING)
+						rejectMessage = parser.getText();
+					break;
+				case "error_code":
+					if (token == JsonToken.VALUE_STRING)
+						errorCode = parser.getText();
+					break;
+				case "reply":
+					if (token != JsonToken.START_OBJECT) {
+						parser.skipChildren();
+						break;
+					}
+
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String replyField = parser.currentName();
+						JsonToken replyToken = parser.nextToken();
+
+						if ("arg".equals(replyField) && replyToken == JsonToken.VALUE_EMBEDDED_OBJECT)
+							arg = binaryView(parser, body);
+						else
+							parser.skipChildren();
+					}
+					break;
+				case "signatures":
+					if (token == JsonToken.START_ARRAY)
+						queryResponse.setSignatures(parser.<JsonNode>readValueAsTree());
+					else
+						parser.skipChildren();
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+		}
+
+		if (queryResponse.replied != null && queryResponse.replied.isPresent())
+			queryResponse.replied.get().argBuffer = arg;
+
+		if (queryResponse.rejected != null && queryResponse.rejected.isPresent()) {
+			Rejected rejected = queryResponse.rejected.get();
+
+			if (rejectCode != null)
+				rejected.rejectCode = RejectCode.create(rejectCode);
+
+			rejected.rejectMessage = rejectMessage;
+
+			// like readValue, which only sets it if the field is there
+			if (errorCode != null)
+				rejected.errorCode = Optional.of(errorCode);
+		}
+
+		return queryResponse;
+	}
+
+	/*
+	 * Slice the current byte string out of body. The parser is positioned on the string's
+	 * header, so its contents are located by decoding the CBOR length from the header;
+	 * tagged or indefinite length strings fall back to a copy.
+	 */
+	static ByteBuffer binaryView(JsonParser parser, ByteBuffer body) throws IOException {
+		long offset = parser.currentTokenLocation().getByteOffset();
+
+		if (offset >= 0 && offset < body.remaining()) {
+			int start = body.position() + (int) offset;
+			int header = body.get(start) & 0xFF;
+
+			// major type 2, definite length
+			if (header >> 5 == 2) {
+				int info = header & 0x1F;
+				long length = -1;
+				int headerSize = 1;
+
+				if (info < 24) {
+					length = info;
+				} else if (info <= 27) {
+					int size = 1 << (info - 24);
+
+					length = 0;
+					for (int i = 0; i < size; i++)
+						length = (length << 8) | (body.get(start + 1 + i) & 0xFF);
+
+					headerSize += size;
+				}
+
+				if (length >= 0 && start + headerSize + length <= body.limit()) {
+					ByteBuffer view = body.duplicate();
+					view.position(start + headerSize);
+					view.limit(start + headerSize + (int) length);
+
+					return view.slice().asReadOnlyBuffer();
+				}
+			}
+		}
+
+		return ByteBuffer.wrap(parser.getBinaryValue()).asReadOnlyBuffer();
+	}
+
+	void initStatus(String status) {
+		if (REJECTED_STATUS_VALUE.equals(status)) {
+			this.rejected = Optional.of(new Rejected());
+			this.replied = Optional.empty();
+			this.status = InnerStatus.REJECTED_STATUS;
+		} else if (REPLIED_STATUS_VALUE.equals(status)) {
+			this.replied = Optional.of(new CallReply());
+			this.rejected = Optional.empty();
+			this.status = InnerStatus.REPLIED_STATUS;
+		}
+	}
+
 	public byte[] signable(RequestId requestId, long timestamp) {
 		QueryResponseSignable responseSignable = new QueryResponseSignable(this, requestId, timestamp);
 
@@ -156,6 +293,10 @@ public final class QueryResponse extends Response {
 		public RejectCode rejectCode;
 		public String rejectMessage;
 		public Optional<String> errorCode;
+
+		public Integer getRejectCode() {
+			return this.rejectCode != null ? this.rejectCode.getValue() : null;
+		}
 	}
 
 	public enum InnerStatus {
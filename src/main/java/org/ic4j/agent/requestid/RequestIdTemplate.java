@@ -0,0 +1,166 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.requestid;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ic4j.agent.DigestUtils;
+import org.ic4j.agent.Serialize;
+import org.ic4j.agent.Serializer;
+
+/*
+ * Request id of requests that differ only in a few fields, typically ingress_expiry and nonce.
+ * The key and value hashes of the fixed fields are computed once; each request id only hashes
+ * the variable fields and the final concatenation.
+ */
+public final class RequestIdTemplate {
+	static final int HASH_LENGTH = 32;
+
+	final RequestIdSerializer hasher = new RequestIdSerializer();
+
+	// key hash followed by value hash of each fixed field, in request id order
+	final byte[][] fixedFields;
+	final String[] fixedKeys;
+
+	final byte[][] variableKeyHashes;
+
+	RequestIdTemplate(String[] fixedKeys, byte[][] fixedFields, byte[][] variableKeyHashes) {
+		this.fixedKeys = fixedKeys;
+		this.fixedFields = fixedFields;
+		this.variableKeyHashes = variableKeyHashes;
+	}
+
+	/*
+	 * Template with all fields of value except variableKeys, whose values are passed to
+	 * toRequestId in the same order.
+	 */
+	public static RequestIdTemplate create(Serialize value, String... variableKeys) {
+		RequestIdSerializer hasher = new RequestIdSerializer();
+
+		List<String> keys = new ArrayList<String>();
+		List<byte[]> fields = new ArrayList<byte[]>();
+		List<String> variable = Arrays.asList(variableKeys);
+
+		value.serialize(new Serializer() {
+			@Override
+			public <T> void serializeField(String key, T fieldValue) {
+				if (variable.contains(key))
+					return;
+
+				keys.add(key);
+				fields.add(field(hasher.hashValue(key), hasher.hashValue(fieldValue)));
+			}
+		});
+
+		byte[][] variableKeyHashes = new byte[variableKeys.length][];
+
+		for (int i = 0; i < variableKeys.length; i++)
+			variableKeyHashes[i] = hasher.hashValue(variableKeys[i]);
+
+		String[] fixedKeys = keys.toArray(new String[keys.size()]);
+		byte[][] fixedFields = fields.toArray(new byte[fields.size()][]);
+
+		sort(fixedKeys, fixedFields);
+
+		return new RequestIdTemplate(fixedKeys, fixedFields, variableKeyHashes);
+	}
+
+	/*
+	 * Same template with one fixed field changed, e.g. a new arg.
+	 */
+	public RequestIdTemplate with(String key, Object value) {
+		int index = Arrays.asList(this.fixedKeys).indexOf(key);
+
+		if (index < 0)
+			throw RequestIdError.create(RequestIdError.RequestIdErrorCode.CUSTOM_SERIALIZER_ERROR, key);
+
+		byte[][] fixedFields = this.fixedFields.clone();
+
+		fixedFields[index] = field(Arrays.copyOf(this.fixedFields[index], HASH_LENGTH), this.hasher.hashValue(value));
+
+		return new RequestIdTemplate(this.fixedKeys, fixedFields, this.variableKeyHashes);
+	}
+
+	/*
+	 * Values of the variable keys, null for a field the request does not have.
+	 */
+	public RequestId toRequestId(Object... variableValues) {
+		byte[][] fields = Arrays.copyOf(this.fixedFields, this.fixedFields.length + variableValues.length);
+		int count = this.fixedFields.length;
+
+		for (int i = 0; i < variableValues.length; i++) {
+			if (variableValues[i] == null)
+				continue;
+
+			byte[] field = field(this.variableKeyHashes[i], this.hasher.hashValue(variableValues[i]));
+
+			// insertion into the sorted fields, there are only a couple of variable ones
+			int position = count;
+
+			while (position > 0 && compare(fields[position - 1], field) > 0) {
+				fields[position] = fields[position - 1];
+				position--;
+			}
+
+			fields[position] = field;
+			count++;
+		}
+
+		MessageDigest messageDigest = DigestUtils.getSha256Digest();
+
+		for (int i = 0; i < count; i++)
+			messageDigest.update(fields[i]);
+
+		return new RequestId(messageDigest.digest());
+	}
+
+	static byte[] field(byte[] keyHash, byte[] valueHash) {
+		byte[] field = Arrays.copyOf(keyHash, keyHash.length + valueHash.length);
+		System.arraycopy(valueHash, 0, field, keyHash.length, valueHash.length);
+
+		return field;
+	}
+
+	static void sort(String[] keys, byte[][] fields) {
+		for (int i = 1; i < fields.length; i++)
+			for (int j = i; j > 0 && compare(fields[j - 1], fields[j]) > 0; j--) {
+				byte[] field = fields[j];
+				fields[j] = fields[j - 1];
+				fields[j - 1] = field;
+
+				String key = keys[j];
+				keys[j] = keys[j - 1];
+				keys[j - 1] = key;
+			}
+	}
+
+	// unsigned, as in RequestIdSerializer.hashFields
+	static int compare(byte[] field1, byte[] field2) {
+		for (int i = 0; i < field1.length && i < field2.length; i++) {
+			int result = Integer.compare(Byte.toUnsignedInt(field1[i]), Byte.toUnsignedInt(field2[i]));
+
+			if (result != 0)
+				return result;
+		}
+
+		return Integer.compare(field1.length, field2.length);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Blocking calls for virtual threads, Java 21 layer of the multi-release jar.
+ *
+ * queryBlocking and updateAndWait wait on the futures the Agent returns without chaining further
+ * stages onto them, and poll the request status with Thread.sleep outside any monitor, so a
+ * virtual thread parks instead of pinning its carrier. A service can then run one call per
+ * virtual thread in plain sequential code. executor() is the matching ProxyBuilder.executor.
+ */
+public final class VirtualThreads {
+	static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+	public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofMillis(500);
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
+	VirtualThreads() {
+	}
+
+	static final class ExecutorHolder {
+		static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+	}
+
+	/*
+	 * Shared executor starting a virtual thread per task.
+	 */
+	public static ExecutorService executor() {
+		return ExecutorHolder.EXECUTOR;
+	}
+
+	public static byte[] queryBlocking(Agent agent, Principal canisterId, String methodName, byte[] arg)
+			throws AgentError {
+		return queryBlocking(agent, canisterId, canisterId, methodName, arg);
+	}
+
+	/*
+	 * Query through the QueryCache and QueryCoalescer of the Agent, if it has them.
+	 */
+	public static byte[] queryBlocking(Agent agent, Principal canisterId, Principal effectiveCanisterId,
+			String methodName, byte[] arg) throws AgentError {
+		return await(agent.queryRaw(canisterId, effectiveCanisterId, methodName, new Request<byte[]>(arg),
+				Optional.empty(), false, null)).getPayload();
+	}
+
+	public static byte[] updateAndWait(Agent agent, Principal canisterId, String methodName, byte[] arg)
+			throws AgentError {
+		return updateAndWait(agent, canisterId, canisterId, methodName, arg, DEFAULT_POLL_INTERVAL, DEFAULT_TIMEOUT);
+	}
+
+	/*
+	 * Submit an update call and poll its status every pollInterval until it is final or timeout passed.
+	 * Like UpdateBuilder.callAndWait it reports the call to the CircuitBreaker and its latency and
+	 * polls to the AgentMetrics of the Agent.
+	 */
+	public static byte[] updateAndWait(Agent agent, Principal canisterId, Principal effectiveCanisterId,
+			String methodName, byte[] arg, Duration pollInterval, Duration timeout) throws AgentError {
+		long deadline = System.nanoTime() + timeout.toNanos();
+
+		UpdateBuilder update = UpdateBuilder.create(agent, canisterId, methodName).effectiveCanisterId(effectiveCanisterId)
+				.arg(arg);
+
+		AtomicInteger polls = new AtomicInteger();
+		CompletableFuture<byte[]> response = update.recorded(new CompletableFuture<byte[]>(), polls);
+
+		RequestId requestId;
+
+		try {
+			requestId = await(agent.updateRaw(canisterId, effectiveCanisterId, methodName, new Request<byte[]>(arg),
+					Optional.empty())).getPayload();
+		} catch (AgentError e) {
+			// the circuit of the canister is open, recorded like any other call to it
+			if (e.getCode() == AgentError.AgentErrorCode.CIRCUIT_OPEN)
+				response.completeExceptionally(e);
+
+			throw e;
+		}
+
+		while (true) {
+			polls.incrementAndGet();
+
+			try {
+				if (UpdateBuilder.completed(await(agent.requestStatusRaw(requestId, effectiveCanisterId)), requestId,
+						response))
+					return await(response);
+			} catch (AgentError e) {
+				LOG.debug(e.getLocalizedMessage(), e);
+
+				// with a retry policy transient errors were already retried, what gets here is final
+				if (agent.retryPolicy.isPresent() || Thread.currentThread().isInterrupted()) {
+					response.completeExceptionally(e);
+					throw e;
+				}
+			}
+
+			if (System.nanoTime() - deadline > 0)
+				throw update.timedOut(response);
+
+			try {
+				Thread.sleep(pollInterval);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				AgentError error = AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+				response.completeExceptionally(error);
+
+				throw error;
+			}
+		}
+	}
+
+	/*
+	 * Park until the future completes. Unlike join() this gives up, cancelling the future, when the
+	 * thread is interrupted.
+	 */
+	static <T> T await(CompletableFuture<T> future) throws AgentError {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw AgentError.unwrap(e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw AgentError.create(AgentError.AgentErrorCode.CUSTOM_ERROR, e);
+		}
+	}
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * java.util.concurrent.Flow facade of an Agent, for consumers that stream requests.
+ *
+ * queries() and updates() are processors: subscribed to a publisher of calls, they only request
+ * calls from it while their subscriber has demand and fewer than maxInFlight calls are running,
+ * so a fast producer is held back to what the replicas absorb. requestStatus() publishes the
+ * status transitions of one update call.
+ *
+ * Errors polling a request status end the polling only with a retry policy on the agent, which
+ * already retried the transient ones. Without one, polling goes on until the timeout, as in
+ * UpdateBuilder.callAndWait.
+ *
+ * Java 9 layer of the multi-release jar.
+ */
+public final class AgentFlow {
+	static final Logger LOG = LoggerFactory.getLogger(AgentFlow.class);
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofMillis(500);
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
+	final Agent agent;
+
+	int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	Duration pollInterval = DEFAULT_POLL_INTERVAL;
+	Duration timeout = DEFAULT_TIMEOUT;
+
+	AgentFlow(Agent agent) {
+		this.agent = agent;
+	}
+
+	public static AgentFlow create(Agent agent) {
+		return new AgentFlow(agent);
+	}
+
+	/*
+	 * Calls a processor runs at once, each processor has its own window.
+	 */
+	public AgentFlow maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public AgentFlow pollInterval(Duration pollInterval) {
+		this.pollInterval = pollInterval;
+		return this;
+	}
+
+	/*
+	 * Time an update call may take from submission to its reply before it fails.
+	 */
+	public AgentFlow timeout(Duration timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/*
+	 * Processor running each call as a query, results are published as completed.
+	 */
+	public Flow.Processor<Call, Result> queries() {
+		return new CallProcessor(this.maxInFlight, call -> this.agent.queryRaw(call.canisterId, call.effectiveCanisterId,
+				call.methodName, call.arg, Optional.empty()));
+	}
+
+	/*
+	 * Processor submitting each call as an update and publishing its reply once the request status
+	 * is final. Calls waiting for their reply count against maxInFlight.
+	 */
+	public Flow.Processor<Call, Result> updates() {
+		return new CallProcessor(this.maxInFlight, call -> {
+			long deadline = System.nanoTime() + this.timeout.toNanos();
+
+			return this.agent.updateRaw(call.canisterId, call.effectiveCanisterId, call.methodName, call.arg, Optional.empty())
+					.thenCompose(requestId -> {
+						CompletableFuture<byte[]> reply = new CompletableFuture<byte[]>();
+
+						this.waitForReply(requestId, call.effectiveCanisterId, deadline, reply);
+
+						return reply;
+					});
+		});
+	}
+
+	/*
+	 * Publisher of the status transitions of an update call, completing after the final status.
+	 * Statuses are only polled while the subscriber has demand, transitions in between are skipped.
+	 */
+	public Flow.Publisher<RequestStatusResponse> requestStatus(RequestId requestId, Principal effectiveCanisterId) {
+		return subscriber -> {
+			StatusSubscription subscription = new StatusSubscription(requestId, effectiveCanisterId, subscriber,
+					System.nanoTime() + this.timeout.toNanos());
+
+			subscriber.onSubscribe(subscription);
+		};
+	}
+
+	void waitForReply(RequestId requestId, Principal effectiveCanisterId, long deadline, CompletableFuture<byte[]> reply) {
+		this.delayed().execute(() -> {
+			try {
+				this.agent.requestStatusRaw(requestId, effectiveCanisterId).whenComplete(
+						(status, ex) -> this.polled(requestId, effectiveCanisterId, deadline, reply, status, ex));
+			} catch (AgentError e) {
+				this.polled(requestId, effectiveCanisterId, deadline, reply, null, e);
+			}
+		});
+	}
+
+	void polled(RequestId requestId, Principal effectiveCanisterId, long deadline, CompletableFuture<byte[]> reply,
+			RequestStatusResponse status, Throwable ex) {
+		if (ex != null && this.isFinal(ex))
+			reply.completeExceptionally(ex);
+		else if (ex == null && isFinal(status.status)) {
+			if (status.status == RequestStatusResponse.InnerStatus.REPLIED_STATUS)
+				reply.complete(status.replied.get().arg);
+			else
+				reply.completeExceptionally(error(status, requestId));
+		} else if (System.nanoTime() - deadline > 0)
+			reply.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE));
+		else
+			this.waitForReply(requestId, effectiveCanisterId, deadline, reply);
+	}
+
+	/*
+	 * True if an error polling a request status ends the polling.
+	 */
+	boolean isFinal(Throwable ex) {
+		LOG.debug(ex.getLocalizedMessage(), ex);
+
+		// with a retry policy transient errors were already retried, what gets here is final
+		return this.agent.retryPolicy.isPresent();
+	}
+
+	Executor delayed() {
+		return CompletableFuture.delayedExecutor(this.pollInterval.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	static boolean isFinal(RequestStatusResponse.InnerStatus status) {
+		return status == RequestStatusResponse.InnerStatus.REPLIED_STATUS
+				|| status == RequestStatusResponse.InnerStatus.REJECTED_STATUS
+				|| status == RequestStatusResponse.InnerStatus.DONE_STATUS;
+	}
+
+	static AgentError error(RequestStatusResponse status, RequestId requestId) {
+		if (status.status == RequestStatusResponse.InnerStatus.REJECTED_STATUS)
+			return AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR, status.rejected.get().rejectCode,
+					status.rejected.get().rejectMessage).withRejectCode(status.rejected.get().rejectCode);
+
+		return AgentError.create(AgentError.AgentErrorCode.REQUEST_STATUS_DONE_NO_REPLY, requestId.toHexString());
+	}
+
+	public static final class Call {
+		final Principal canisterId;
+		final Principal effectiveCanisterId;
+		final String methodName;
+		final byte[] arg;
+
+		Call(Principal canisterId, Principal effectiveCanisterId, String methodName, byte[] arg) {
+			this.canisterId = canisterId;
+			this.effectiveCanisterId = effectiveCanisterId;
+			this.methodName = methodName;
+			this.arg = arg;
+		}
+
+		public static Call create(Principal canisterId, String methodName, byte[] arg) {
+			return new Call(canisterId, canisterId, methodName, arg);
+		}
+
+		public static Call create(Principal canisterId, Principal effectiveCanisterId, String methodName, byte[] arg) {
+			return new Call(canisterId, effectiveCanisterId, methodName, arg);
+		}
+
+		public Principal getCanisterId() {
+			return this.canisterId;
+		}
+
+		public String getMethodName() {
+			return this.methodName;
+		}
+	}
+
+	public static final class Result {
+		final long index;
+		final Call call;
+		final byte[] reply;
+		final AgentError error;
+
+		Result(long index, Call call, byte[] reply, AgentError error) {
+			this.index = index;
+			this.call = call;
+			this.reply = reply;
+			this.error = error;
+		}
+
+		/*
+		 * Position of the call in the upstream publisher, starting at 0.
+		 */
+		public long getIndex() {
+			return this.index;
+		}
+
+		public Call getCall() {
+			return this.call;
+		}
+
+		public boolean isSuccess() {
+			return this.error == null;
+		}
+
+		public byte[] getReply() {
+			return this.reply;
+		}
+
+		public AgentError getError() {
+			return this.error;
+		}
+	}
+
+	/*
+	 * Unicast processor with a window of maxInFlight calls. Calls requested from upstream, calls
+	 * running and results not yet delivered all count against both the window and the demand of the
+	 * subscriber. Signals to the subscriber are serialized by drain().
+	 */
+	static final class CallProcessor implements Flow.Processor<Call, Result>, Flow.Subscription {
+		final int maxInFlight;
+		final Function<Call, CompletableFuture<byte[]>> execute;
+
+		// guarded by this
+		Flow.Subscription upstream;
+		Flow.Subscriber<? super Result> downstream;
+		final ArrayDeque<Result> ready = new ArrayDeque<Result>();
+		long demand;
+		long requested;
+		int inFlight;
+		long index;
+		boolean upstreamDone;
+		Throwable upstreamError;
+		Throwable failure;
+		boolean cancelled;
+		boolean terminated;
+		boolean draining;
+		boolean missed;
+
+		CallProcessor(int maxInFlight, Function<Call, CompletableFuture<byte[]>> execute) {
+			this.maxInFlight = maxInFlight;
+			this.execute = execute;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+			synchronized (this) {
+				if (this.downstream == null) {
+					this.downstream = subscriber;
+					subscriber = null;
+				}
+			}
+
+			if (subscriber != null) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(long n) {
+					}
+
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+				return;
+			}
+
+			this.downstream.onSubscribe(this);
+			this.drain();
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			synchronized (this) {
+				if (this.upstream == null && !this.cancelled) {
+					this.upstream = subscription;
+					subscription = null;
+				}
+			}
+
+			if (subscription != null)
+				subscription.cancel();
+			else
+				this.drain();
+		}
+
+		@Override
+		public void onNext(Call call) {
+			long index;
+
+			synchronized (this) {
+				if (this.cancelled)
+					return;
+
+				this.requested--;
+				this.inFlight++;
+				index = this.index++;
+			}
+
+			CompletableFuture<byte[]> reply;
+
+			try {
+				reply = this.execute.apply(call);
+			} catch (RuntimeException e) {
+				reply = CompletableFuture.failedFuture(e);
+			}
+
+			reply.whenComplete((value, ex) -> {
+				synchronized (this) {
+					this.inFlight--;
+
+					if (!this.cancelled)
+						this.ready.add(new Result(index, call, value, ex == null ? null : AgentError.unwrap(ex)));
+				}
+
+				this.drain();
+			});
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			synchronized (this) {
+				this.upstreamDone = true;
+				this.upstreamError = throwable;
+			}
+
+			this.drain();
+		}
+
+		@Override
+		public void onComplete() {
+			synchronized (this) {
+				this.upstreamDone = true;
+			}
+
+			this.drain();
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if (n <= 0)
+					this.failure = new IllegalArgumentException("Requested " + n + " results");
+				else
+					this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+			}
+
+			this.drain();
+		}
+
+		@Override
+		public void cancel() {
+			Flow.Subscription upstream;
+
+			synchronized (this) {
+				this.cancelled = true;
+				this.ready.clear();
+				upstream = this.upstream;
+			}
+
+			if (upstream != null)
+				upstream.cancel();
+		}
+
+		/*
+		 * Deliver results, complete, or request more calls, one step at a time on whichever thread
+		 * got here first; others only flag that there is more to do.
+		 */
+		void drain() {
+			synchronized (this) {
+				if (this.draining) {
+					this.missed = true;
+					return;
+				}
+
+				this.draining = true;
+			}
+
+			while (true) {
+				Flow.Subscriber<? super Result> downstream;
+				Flow.Subscription upstream = null;
+				Result next = null;
+				Throwable error = null;
+				boolean terminate = false;
+				boolean complete = false;
+				long pull = 0;
+
+				synchronized (this) {
+					downstream = this.downstream;
+
+					if (this.cancelled || this.terminated || downstream == null) {
+						this.draining = false;
+						return;
+					}
+
+					if (this.failure != null) {
+						this.terminated = true;
+						terminate = true;
+						error = this.failure;
+						upstream = this.upstream;
+					} else if (this.demand > 0 && !this.ready.isEmpty()) {
+						next = this.ready.poll();
+						this.demand--;
+					} else if (this.upstreamDone && this.inFlight == 0 && this.ready.isEmpty()) {
+						this.terminated = true;
+						terminate = true;
+						complete = true;
+						error = this.upstreamError;
+					} else {
+						if (!this.upstreamDone && this.upstream != null) {
+							long window = Math.min(this.maxInFlight, this.demand) - this.inFlight - this.requested
+									- this.ready.size();
+
+							if (window > 0) {
+								this.requested += window;
+								pull = window;
+								upstream = this.upstream;
+							}
+						}
+
+						if (pull == 0 && !this.missed) {
+							this.draining = false;
+							return;
+						}
+
+						this.missed = false;
+					}
+				}
+
+				if (next != null)
+					downstream.onNext(next);
+				else if (terminate) {
+					if (upstream != null)
+						upstream.cancel();
+
+					if (complete && error == null)
+						downstream.onComplete();
+					else
+						downstream.onError(error);
+
+					return;
+				} else if (upstream != null)
+					upstream.request(pull);
+			}
+		}
+	}
+
+	/*
+	 * Polls the request status while the subscriber has demand, one read_state at a time.
+	 */
+	final class StatusSubscription implements Flow.Subscription {
+		final RequestId requestId;
+		final Principal effectiveCanisterId;
+		final Flow.Subscriber<? super RequestStatusResponse> subscriber;
+		final long deadline;
+
+		// guarded by this
+		long demand;
+		boolean polling;
+		boolean done;
+		boolean first = true;
+		RequestStatusResponse.InnerStatus last;
+		Throwable failure;
+
+		StatusSubscription(RequestId requestId, Principal effectiveCanisterId,
+				Flow.Subscriber<? super RequestStatusResponse> subscriber, long deadline) {
+			this.requestId = requestId;
+			this.effectiveCanisterId = effectiveCanisterId;
+			this.subscriber = subscriber;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if (this.done)
+					return;
+
+				if (n <= 0) {
+					this.done = true;
+
+					// a poll in flight reports it
+					if (this.polling) {
+						this.failure = new IllegalArgumentException("Requested " + n + " statuses");
+						return;
+					}
+				} else {
+					this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+
+					if (this.polling)
+						return;
+
+					this.polling = true;
+				}
+			}
+
+			if (n <= 0)
+				this.subscriber.onError(new IllegalArgumentException("Requested " + n + " statuses"));
+			else
+				this.poll();
+		}
+
+		@Override
+		public synchronized void cancel() {
+			this.done = true;
+		}
+
+		void poll() {
+			boolean first;
+
+			synchronized (this) {
+				first = this.first;
+				this.first = false;
+			}
+
+			Executor executor = first ? Runnable::run : AgentFlow.this.delayed();
+
+			executor.execute(() -> {
+				if (this.stopped())
+					return;
+
+				try {
+					AgentFlow.this.agent.requestStatusRaw(this.requestId, this.effectiveCanisterId)
+							.whenComplete(this::received);
+				} catch (AgentError e) {
+					this.received(null, e);
+				}
+			});
+		}
+
+		/*
+		 * True if cancelled or failed while polling, reporting the failure.
+		 */
+		boolean stopped() {
+			Throwable failure;
+
+			synchronized (this) {
+				if (!this.done)
+					return false;
+
+				this.polling = false;
+				failure = this.failure;
+				this.failure = null;
+			}
+
+			if (failure != null)
+				this.subscriber.onError(failure);
+
+			return true;
+		}
+
+		void received(RequestStatusResponse status, Throwable ex) {
+			boolean emit = false;
+			boolean complete = false;
+			boolean again = false;
+			AgentError error = null;
+
+			if (this.stopped())
+				return;
+
+			synchronized (this) {
+				if (ex != null) {
+					if (AgentFlow.this.isFinal(ex))
+						error = AgentError.unwrap(ex);
+					else if (System.nanoTime() - this.deadline > 0)
+						error = AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE);
+					else
+						again = this.demand > 0;
+				} else {
+					if (status.status != this.last) {
+						this.last = status.status;
+						this.demand--;
+						emit = true;
+					}
+
+					if (isFinal(status.status))
+						complete = true;
+					else if (System.nanoTime() - this.deadline > 0)
+						error = AgentError.create(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE);
+					else
+						again = this.demand > 0;
+				}
+
+				if (complete || error != null)
+					this.done = true;
+
+				this.polling = again;
+			}
+
+			if (emit)
+				this.subscriber.onNext(status);
+
+			if (complete)
+				this.subscriber.onComplete();
+			else if (error != null)
+				this.subscriber.onError(error);
+			else if (again)
+				this.poll();
+		}
+	}
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright 2024 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.agent.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/*
+ * Generates a concrete implementation of every interface annotated with @Canister or declaring
+ * @QUERY, @UPDATE or @Modes methods. The generated class extends org.ic4j.agent.GeneratedProxy and
+ * keeps one InvocationPlan per method, built from the annotations at compile time, so calls go
+ * straight to QueryBuilder/UpdateBuilder without java.lang.reflect.Proxy or runtime annotation lookups.
+ *
+ * Annotations are matched by name, the processor has no dependency on ic4j-agent itself.
+ */
+@SupportedAnnotationTypes({ ProxyProcessor.CANISTER, ProxyProcessor.QUERY, ProxyProcessor.UPDATE,
+		ProxyProcessor.MODES })
+public class ProxyProcessor extends AbstractProcessor {
+	static final String CANISTER = "org.ic4j.agent.annotations.Canister";
+	static final String QUERY = "org.ic4j.agent.annotations.QUERY";
+	static final String UPDATE = "org.ic4j.agent.annotations.UPDATE";
+	static final String VERIFY = "org.ic4j.agent.annotations.Verify";
+	static final String WAITER = "org.ic4j.agent.annotations.Waiter";
+	static final String CACHED = "org.ic4j.agent.annotations.Cached";
+	static final String PRIORITY = "org.ic4j.agent.annotations.Priority";
+	static final String RESPONSE_CLASS = "org.ic4j.agent.annotations.ResponseClass";
+	static final String ARGUMENT = "org.ic4j.agent.annotations.Argument";
+	static final String MODES = "org.ic4j.candid.annotations.Modes";
+	static final String NAME = "org.ic4j.candid.annotations.Name";
+	static final String IGNORE = "org.ic4j.candid.annotations.Ignore";
+	static final String SERIALIZER = "org.ic4j.candid.annotations.Serializer";
+	static final String DESERIALIZER = "org.ic4j.candid.annotations.Deserializer";
+
+	static final String SUFFIX = "Impl";
+
+	static final String INDENT = "\t";
+
+	final Set<String> generated = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		Set<TypeElement> interfaces = new LinkedHashSet<TypeElement>();
+
+		for (TypeElement annotation : annotations)
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() == ElementKind.INTERFACE)
+					interfaces.add((TypeElement) element);
+				else if (element.getKind() == ElementKind.METHOD
+						&& element.getEnclosingElement().getKind() == ElementKind.INTERFACE)
+					interfaces.add((TypeElement) element.getEnclosingElement());
+			}
+
+		for (TypeElement type : interfaces) {
+			if (!this.generated.add(type.getQualifiedName().toString()))
+				continue;
+
+			if (type.getModifiers().contains(Modifier.PRIVATE)) {
+				this.processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+						"Private interface, no proxy class generated", type);
+				continue;
+			}
+
+			try {
+				this.generate(type);
+			} catch (IOException | RuntimeException e) {
+				this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+						"Cannot generate proxy class: " + e, type);
+			}
+		}
+
+		// other processors may want the same annotations
+		return false;
+	}
+
+	void generate(TypeElement type) throws IOException {
+		PackageElement packageElement = this.processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+
+		String className = className(type);
+		String qualifiedName = packageName.isEmpty() ? className : packageName + '.' + className;
+
+		StringBuilder source = new StringBuilder();
+
+		if (!packageName.isEmpty())
+			source.append("package ").append(packageName).append(";\n\n");
+
+		String typeParameters = typeParameters(type.getTypeParameters());
+		String typeArguments = typeArguments(type.getTypeParameters());
+
+		source.append("/*\n * Generated by ").append(ProxyProcessor.class.getName()).append(" from ")
+				.append(type.getQualifiedName()).append(", do not edit.\n */\n");
+		source.append("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })\n");
+		source.append("public final class ").append(className).append(typeParameters)
+				.append(" extends org.ic4j.agent.GeneratedProxy implements ").append(type.getQualifiedName())
+				.append(typeArguments).append(" {\n");
+
+		List<ExecutableElement> methods = this.methods(type);
+		DeclaredType declaredType = (DeclaredType) type.asType();
+
+		for (int i = 0; i < methods.size(); i++)
+			source.append(INDENT).append("static final org.ic4j.agent.InvocationPlan PLAN_").append(i).append(" = ")
+					.append(this.plan(methods.get(i), declaredType)).append(";\n\n");
+
+		source.append(INDENT).append("public ").append(className).append("(org.ic4j.agent.Agent agent, ")
+				.append("org.ic4j.types.Principal canisterId, org.ic4j.types.Principal effectiveCanisterId,\n")
+				.append(INDENT).append(INDENT).append(INDENT)
+				.append("java.util.Optional<java.lang.Long> ingressExpiryDatetime, org.ic4j.agent.Waiter waiter) {\n")
+				.append(INDENT).append(INDENT)
+				.append("super(agent, canisterId, effectiveCanisterId, ingressExpiryDatetime, waiter);\n")
+				.append(INDENT).append("}\n");
+
+		for (int i = 0; i < methods.size(); i++)
+			source.append('\n').append(this.method(methods.get(i), declaredType, "PLAN_" + i));
+
+		source.append("}\n");
+
+		try (Writer writer = this.processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()) {
+			writer.write(source.toString());
+		}
+	}
+
+	/*
+	 * Same naming as GeneratedProxy.className: nested interfaces are flattened with '_'.
+	 */
+	static String className(TypeElement type) {
+		StringBuilder name = new StringBuilder(type.getSimpleName());
+
+		Element enclosing = type.getEnclosingElement();
+
+		while (enclosing instanceof TypeElement) {
+			name.insert(0, '_').insert(0, enclosing.getSimpleName());
+			enclosing = enclosing.getEnclosingElement();
+		}
+
+		return name.append(SUFFIX).toString();
+	}
+
+	/*
+	 * Abstract methods of the interface and its super interfaces, each signature once.
+	 */
+	List<ExecutableElement> methods(TypeElement type) {
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		Set<String> signatures = new HashSet<String>();
+
+		for (ExecutableElement method : ElementFilter.methodsIn(this.processingEnv.getElementUtils().getAllMembers(type))) {
+			if (!method.getModifiers().contains(Modifier.ABSTRACT))
+				continue;
+
+			if (isObjectMethod(method))
+				continue;
+
+			StringBuilder signature = new StringBuilder(method.getSimpleName()).append('(');
+
+			for (VariableElement parameter : method.getParameters())
+				signature.append(this.processingEnv.getTypeUtils().erasure(parameter.asType())).append(',');
+
+			if (signatures.add(signature.toString()))
+				methods.add(method);
+		}
+
+		return methods;
+	}
+
+	/*
+	 * equals, hashCode and toString are inherited from Object, as in a java.lang.reflect.Proxy.
+	 */
+	static boolean isObjectMethod(ExecutableElement method) {
+		String name = method.getSimpleName().toString();
+		int parameters = method.getParameters().size();
+
+		return (parameters == 0 && (name.equals("hashCode") || name.equals("toString")))
+				|| (parameters == 1 && name.equals("equals")
+						&& method.getParameters().get(0).asType().toString().equals("java.lang.Object"));
+	}
+
+	/*
+	 * InvocationPlan builder expression, mirroring what InvocationPlan(Method) reads at run time.
+	 */
+	String plan(ExecutableElement method, DeclaredType declaredType) {
+		StringBuilder plan = new StringBuilder("org.ic4j.agent.InvocationPlan.");
+
+		plan.append(methodType(method)).append('(');
+
+		AnnotationMirror name = annotation(method, NAME);
+		String methodName = name != null ? (String) value(name, "value") : method.getSimpleName().toString();
+
+		plan.append(this.processingEnv.getElementUtils().getConstantExpression(methodName)).append(')');
+
+		String continuation = "\n" + INDENT + INDENT + INDENT;
+
+		if (annotation(method, VERIFY) != null)
+			plan.append(continuation).append(".verify()");
+
+		AnnotationMirror update = annotation(method, UPDATE);
+
+		if (update != null && Boolean.TRUE.equals(value(update, "disableRangeCheck")))
+			plan.append(continuation).append(".disableRangeCheck()");
+
+		for (VariableElement parameter : method.getParameters()) {
+			if (annotation(parameter, IGNORE) != null) {
+				plan.append(continuation).append(".ignore()");
+				continue;
+			}
+
+			AnnotationMirror serializer = annotation(parameter, SERIALIZER);
+			String serializerExpression = serializer != null ? "new " + value(serializer, "value") + "()"
+					: "new org.ic4j.candid.pojo.PojoSerializer()";
+
+			String idlType = "null";
+			AnnotationMirror argument = annotation(parameter, ARGUMENT);
+
+			if (argument != null) {
+				idlType = "org.ic4j.candid.parser.IDLType.createType(org.ic4j.candid.types.Type."
+						+ ((VariableElement) value(argument, "value")).getSimpleName() + ")";
+
+				if (parameter.asType().getKind() == TypeKind.ARRAY)
+					idlType = "org.ic4j.candid.parser.IDLType.createType(org.ic4j.candid.types.Type.VEC, " + idlType
+							+ ")";
+			}
+
+			plan.append(continuation).append(".argument(").append(serializerExpression).append(", ").append(idlType)
+					.append(')');
+		}
+
+		AnnotationMirror deserializer = annotation(method, DESERIALIZER);
+
+		if (deserializer != null)
+			plan.append(continuation).append(".deserializer(new ").append(value(deserializer, "value")).append("())");
+
+		ExecutableType executableType = (ExecutableType) this.processingEnv.getTypeUtils().asMemberOf(declaredType,
+				method);
+
+		plan.append(continuation).append(".returns(").append(this.classLiteral(method.getReturnType())).append(", ")
+				.append(this.responseClass(method, executableType.getReturnType())).append(')');
+
+		AnnotationMirror waiter = annotation(method, WAITER);
+
+		if (waiter != null)
+			plan.append(continuation).append(".waiter(").append(value(waiter, "timeout")).append(", ")
+					.append(value(waiter, "sleep")).append(')');
+
+		AnnotationMirror cached = annotation(method, CACHED);
+
+		if (cached != null)
+			plan.append(continuation).append(".cached(").append(value(cached, "ttl")).append(')');
+
+		AnnotationMirror priority = annotation(method, PRIORITY);
+
+		if (priority != null)
+			plan.append(continuation).append(".priority(org.ic4j.agent.Priority.")
+					.append(((VariableElement) value(priority, "value")).getSimpleName()).append(')');
+
+		return plan.append(continuation).append(".build()").toString();
+	}
+
+	/*
+	 * @QUERY, @UPDATE, then the first of @Modes wins, methods without any are updates.
+	 */
+	static String methodType(ExecutableElement method) {
+		String methodType = "update";
+
+		if (annotation(method, QUERY) != null)
+			methodType = "query";
+
+		AnnotationMirror modes = annotation(method, MODES);
+
+		if (modes != null) {
+			@SuppressWarnings("unchecked")
+			List<? extends AnnotationValue> values = (List<? extends AnnotationValue>) value(modes, "value");
+
+			if (!values.isEmpty()) {
+				String mode = ((VariableElement) values.get(0).getValue()).getSimpleName().toString();
+
+				if (mode.equals("QUERY"))
+					methodType = "query";
+				else if (mode.equals("ONEWAY"))
+					methodType = "oneway";
+				else
+					methodType = "update";
+			}
+		}
+
+		return methodType;
+	}
+
+	/*
+	 * Same rules as ProxyBuilder.getMethodClass: @ResponseClass, else the (raw) first type argument
+	 * of the return type, else none.
+	 */
+	String responseClass(ExecutableElement method, TypeMirror returnType) {
+		AnnotationMirror responseClass = annotation(method, RESPONSE_CLASS);
+
+		if (responseClass != null)
+			return this.classLiteral((TypeMirror) value(responseClass, "value"));
+
+		if (returnType.getKind() != TypeKind.DECLARED)
+			return "null";
+
+		List<? extends TypeMirror> typeArguments = ((DeclaredType) returnType).getTypeArguments();
+
+		if (typeArguments.isEmpty())
+			return "null";
+
+		TypeMirror typeArgument = typeArguments.get(0);
+
+		if (typeArgument.getKind() == TypeKind.DECLARED)
+			return this.classLiteral(typeArgument);
+
+		// arrays are classes at run time unless their component type is generic
+		if (typeArgument.getKind() == TypeKind.ARRAY && isReifiable(typeArgument))
+			return this.classLiteral(typeArgument);
+
+		return "null";
+	}
+
+	static boolean isReifiable(TypeMirror type) {
+		while (type.getKind() == TypeKind.ARRAY)
+			type = ((ArrayType) type).getComponentType();
+
+		if (type.getKind().isPrimitive())
+			return true;
+
+		return type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).getTypeArguments().isEmpty();
+	}
+
+	String classLiteral(TypeMirror type) {
+		if (type.getKind() == TypeKind.VOID)
+			return "void.class";
+
+		return this.processingEnv.getTypeUtils().erasure(type) + ".class";
+	}
+
+	String method(ExecutableElement method, DeclaredType declaredType, String plan) {
+		ExecutableType executableType = (ExecutableType) this.processingEnv.getTypeUtils().asMemberOf(declaredType,
+				method);
+
+		StringBuilder source = new StringBuilder();
+
+		source.append(INDENT).append("@Override\n").append(INDENT).append("public ");
+
+		if (!executableType.getTypeVariables().isEmpty()) {
+			List<String> typeVariables = new ArrayList<String>();
+
+			for (TypeVariable typeVariable : executableType.getTypeVariables())
+				typeVariables.add(typeVariable(typeVariable.toString(), typeVariable.getUpperBound()));
+
+			source.append('<').append(String.join(", ", typeVariables)).append("> ");
+		}
+
+		TypeMirror returnType = executableType.getReturnType();
+
+		source.append(returnType).append(' ').append(method.getSimpleName()).append('(');
+
+		List<? extends TypeMirror> parameterTypes = executableType.getParameterTypes();
+		List<String> parameters = new ArrayList<String>();
+		List<String> arguments = new ArrayList<String>();
+
+		for (int i = 0; i < parameterTypes.size(); i++) {
+			String parameterType = parameterTypes.get(i).toString();
+
+			if (method.isVarArgs() && i == parameterTypes.size() - 1)
+				parameterType = parameterType.substring(0, parameterType.length() - 2) + "...";
+
+			parameters.add(parameterType + " arg" + i);
+			arguments.add("arg" + i);
+		}
+
+		source.append(String.join(", ", parameters)).append(')');
+
+		if (!executableType.getThrownTypes().isEmpty()) {
+			List<String> thrownTypes = new ArrayList<String>();
+
+			for (TypeMirror thrownType : executableType.getThrownTypes())
+				thrownTypes.add(thrownType.toString());
+
+			source.append(" throws ").append(String.join(", ", thrownTypes));
+		}
+
+		source.append(" {\n").append(INDENT).append(INDENT);
+
+		String invocation = "this.invoke(" + plan + ", new Object[] { " + String.join(", ", arguments) + " })";
+
+		if (returnType.getKind() == TypeKind.VOID)
+			source.append(invocation).append(";\n");
+		else if (returnType.getKind().isPrimitive())
+			source.append("return (")
+					.append(this.processingEnv.getTypeUtils().boxedClass((PrimitiveType) returnType).getQualifiedName())
+					.append(") ").append(invocation).append(";\n");
+		else
+			source.append("return (").append(returnType).append(") ").append(invocation).append(";\n");
+
+		return source.append(INDENT).append("}\n").toString();
+	}
+
+	static String typeParameters(List<? extends TypeParameterElement> typeParameters) {
+		if (typeParameters.isEmpty())
+			return "";
+
+		List<String> declarations = new ArrayList<String>();
+
+		for (TypeParameterElement typeParameter : typeParameters)
+			declarations.add(typeVariable(typeParameter.getSimpleName().toString(),
+					((TypeVariable) typeParameter.asType()).getUpperBound()));
+
+		return "<" + String.join(", ", declarations) + ">";
+	}
+
+	static String typeArguments(List<? extends TypeParameterElement> typeParameters) {
+		if (typeParameters.isEmpty())
+			return "";
+
+		List<String> names = new ArrayList<String>();
+
+		for (TypeParameterElement typeParameter : typeParameters)
+			names.add(typeParameter.getSimpleName().toString());
+
+		return "<" + String.join(", ", names) + ">";
+	}
+
+	static String typeVariable(String name, TypeMirror upperBound) {
+		String bound = upperBound.toString();
+
+		if (bound.equals("java.lang.Object"))
+			return name;
+
+		// intersection bounds print as A&B
+		return name + " extends " + bound.replace("&", " & ");
+	}
+
+	static AnnotationMirror annotation(Element element, String annotationName) {
+		for (AnnotationMirror annotation : element.getAnnotationMirrors())
+			if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName()
+					.contentEquals(annotationName))
+				return annotation;
+
+		return null;
+	}
+
+	/*
+	 * Annotation member value, including defaults.
+	 */
+	static Object value(AnnotationMirror annotation, String name) {
+		for (ExecutableElement member : ElementFilter.methodsIn(annotation.getAnnotationType().asElement()
+				.getEnclosedElements())) {
+			if (!member.getSimpleName().contentEquals(name))
+				continue;
+
+			Map<? extends ExecutableElement, ? extends AnnotationValue> values = annotation.getElementValues();
+
+			AnnotationValue value = values.get(member);
+
+			if (value == null)
+				value = member.getDefaultValue();
+
+			return value != null ? value.getValue() : null;
+		}
+
+		return null;
+	}
+}
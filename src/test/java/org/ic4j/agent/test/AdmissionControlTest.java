@@ -0,0 +1,279 @@
+package org.ic4j.agent.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.ic4j.agent.AdmissionControl;
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * AdmissionControl on an Agent whose transport answers queries locally. Limits are either so low
+ * that no token is refilled during a test, or so high that none runs out, so results do not
+ * depend on timing.
+ */
+public class AdmissionControlTest {
+	static final String OTHER_CANISTER_ID = "ryjl3-tyaaa-aaaaa-aaaba-cai";
+
+	// a token every 1000 seconds
+	static final double NO_REFILL = 0.001;
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+	final Principal otherCanisterId = Principal.fromString(OTHER_CANISTER_ID);
+
+	@Test
+	public void testTokenBuckets() throws Exception {
+		StubReplica replica = new StubReplica();
+		AdmissionControl admissionControl = AdmissionControl.create().canisterLimit(NO_REFILL, 2);
+
+		Agent agent = new AgentBuilder().transport(replica).admissionControl(admissionControl).build();
+
+		this.query(agent, this.canisterId).get(30, TimeUnit.SECONDS);
+		this.query(agent, this.canisterId).get(30, TimeUnit.SECONDS);
+
+		// the burst is used up
+		CompletableFuture<byte[]> queued = this.query(agent, this.canisterId);
+
+		Assertions.assertFalse(queued.isDone());
+		Assertions.assertEquals(1, admissionControl.getQueued());
+
+		// other canisters have buckets of their own, and are not held up by the queued request
+		this.query(agent, this.otherCanisterId).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(3, replica.queries.get());
+		Assertions.assertEquals(3, admissionControl.getAdmitted());
+		Assertions.assertFalse(queued.isDone());
+
+		queued.cancel(true);
+
+		// the endpoint bucket is shared by all canisters
+		StubReplica endpointReplica = new StubReplica();
+		AdmissionControl endpointControl = AdmissionControl.create().endpointLimit(NO_REFILL, 2);
+
+		Agent endpointAgent = new AgentBuilder().transport(endpointReplica).admissionControl(endpointControl).build();
+
+		this.query(endpointAgent, this.canisterId).get(30, TimeUnit.SECONDS);
+		this.query(endpointAgent, this.otherCanisterId).get(30, TimeUnit.SECONDS);
+
+		CompletableFuture<byte[]> endpointQueued = this.query(endpointAgent, this.otherCanisterId);
+
+		Assertions.assertFalse(endpointQueued.isDone());
+		Assertions.assertEquals(1, endpointControl.getQueued());
+		Assertions.assertEquals(2, endpointReplica.queries.get());
+
+		endpointQueued.cancel(true);
+
+		// a refilled token admits the queued request
+		StubReplica refillReplica = new StubReplica();
+		AdmissionControl refillControl = AdmissionControl.create().canisterLimit(20, 1);
+
+		Agent refillAgent = new AgentBuilder().transport(refillReplica).admissionControl(refillControl).build();
+
+		this.query(refillAgent, this.canisterId).get(30, TimeUnit.SECONDS);
+
+		long start = System.nanoTime();
+
+		this.query(refillAgent, this.canisterId).get(30, TimeUnit.SECONDS);
+
+		// 50ms for a token at 20 per second
+		Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+		Assertions.assertEquals(2, refillReplica.queries.get());
+		Assertions.assertTrue(refillControl.getQueueWaitTime().toMillis() >= 40);
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		StubReplica replica = new StubReplica();
+		AdmissionControl admissionControl = AdmissionControl.create().canisterLimit(NO_REFILL, 1).maxQueued(2);
+
+		Agent agent = new AgentBuilder().transport(replica).admissionControl(admissionControl).build();
+
+		this.query(agent, this.canisterId).get(30, TimeUnit.SECONDS);
+
+		List<CompletableFuture<byte[]>> queued = new ArrayList<CompletableFuture<byte[]>>();
+
+		queued.add(this.query(agent, this.canisterId));
+		queued.add(this.query(agent, this.canisterId));
+
+		Assertions.assertEquals(2, admissionControl.getQueued());
+
+		// fails fast, without waiting
+		CompletableFuture<byte[]> rejected = this.query(agent, this.canisterId);
+
+		Assertions.assertTrue(rejected.isDone());
+		assertError(rejected, AgentError.AgentErrorCode.ADMISSION_REJECTED);
+
+		Assertions.assertEquals(1, admissionControl.getRejected());
+		Assertions.assertEquals(2, admissionControl.getQueued());
+		Assertions.assertEquals(1, replica.queries.get());
+
+		for (CompletableFuture<byte[]> response : queued)
+			Assertions.assertFalse(response.isDone());
+
+		for (CompletableFuture<byte[]> response : queued)
+			response.cancel(true);
+	}
+
+	@Test
+	public void testAdaptive() throws Exception {
+		StubReplica replica = new StubReplica();
+		AdmissionControl admissionControl = AdmissionControl.create().canisterLimit(100, 100).adaptive(true);
+
+		Agent agent = new AgentBuilder().transport(replica).admissionControl(admissionControl).build();
+
+		Assertions.assertEquals(100, admissionControl.getCanisterRate(this.canisterId), 0.001);
+
+		replica.statusCode = 429;
+
+		this.query(agent, this.canisterId).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(50, admissionControl.getCanisterRate(this.canisterId), 0.001);
+
+		// one decrease per interval
+		replica.statusCode = 503;
+
+		this.query(agent, this.canisterId).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(50, admissionControl.getCanisterRate(this.canisterId), 0.001);
+		Assertions.assertEquals(2, admissionControl.getThrottled());
+
+		Thread.sleep(150);
+
+		this.query(agent, this.canisterId).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(25, admissionControl.getCanisterRate(this.canisterId), 0.001);
+
+		// additive increase of 1% of the configured rate per success
+		replica.statusCode = 200;
+
+		for (int i = 0; i < 5; i++)
+			this.query(agent, this.canisterId).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(30, admissionControl.getCanisterRate(this.canisterId), 0.001);
+
+		// other errors do not change the rate
+		replica.statusCode = 500;
+
+		this.query(agent, this.canisterId).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(30, admissionControl.getCanisterRate(this.canisterId), 0.001);
+		Assertions.assertEquals(3, admissionControl.getThrottled());
+
+		// not below 5% of the configured rate
+		replica.statusCode = 429;
+
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(110);
+			this.query(agent, this.canisterId).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+		}
+
+		Assertions.assertEquals(5, admissionControl.getCanisterRate(this.canisterId), 0.001);
+
+		// without adaptive(true) throttling only counts
+		StubReplica fixedReplica = new StubReplica();
+		AdmissionControl fixedControl = AdmissionControl.create().canisterLimit(100, 100);
+
+		Agent fixedAgent = new AgentBuilder().transport(fixedReplica).admissionControl(fixedControl).build();
+
+		fixedReplica.statusCode = 429;
+
+		this.query(fixedAgent, this.canisterId).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(100, fixedControl.getCanisterRate(this.canisterId), 0.001);
+		Assertions.assertEquals(1, fixedControl.getThrottled());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		StubReplica replica = new StubReplica();
+		AdmissionControl admissionControl = AdmissionControl.create().canisterLimit(NO_REFILL, 1);
+
+		Agent agent = new AgentBuilder().transport(replica).admissionControl(admissionControl).build();
+
+		this.query(agent, this.canisterId).get(30, TimeUnit.SECONDS);
+
+		CompletableFuture<byte[]> first = this.query(agent, this.canisterId);
+		CompletableFuture<byte[]> second = this.query(agent, this.canisterId);
+
+		Assertions.assertEquals(2, admissionControl.getQueued());
+
+		Assertions.assertTrue(first.cancel(true));
+
+		await(() -> admissionControl.getQueued() == 1);
+
+		Assertions.assertTrue(second.cancel(true));
+
+		await(() -> admissionControl.getQueued() == 0);
+
+		// cancelled requests never reach the transport
+		Assertions.assertEquals(1, replica.queries.get());
+		Assertions.assertEquals(1, admissionControl.getAdmitted());
+	}
+
+	@Test
+	public void testMaxInFlight() throws Exception {
+		StubReplica replica = new StubReplica();
+		AdmissionControl admissionControl = AdmissionControl.create().maxInFlight(2);
+
+		Agent agent = new AgentBuilder().transport(replica).admissionControl(admissionControl).build();
+
+		replica.hold = true;
+
+		List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+
+		for (int i = 0; i < 5; i++)
+			responses.add(this.query(agent, i % 2 == 0 ? this.canisterId : this.otherCanisterId));
+
+		Assertions.assertEquals(2, replica.queries.get());
+		Assertions.assertEquals(3, admissionControl.getQueued());
+
+		// each completed request frees a slot for one queued request
+		replica.release(1);
+
+		await(() -> replica.queries.get() == 3);
+
+		Assertions.assertEquals(2, admissionControl.getQueued());
+		Assertions.assertEquals(2, replica.held.size());
+
+		replica.hold = false;
+		replica.release(2);
+
+		for (CompletableFuture<byte[]> response : responses)
+			response.get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(5, replica.queries.get());
+		Assertions.assertEquals(0, admissionControl.getQueued());
+		Assertions.assertEquals(5, admissionControl.getAdmitted());
+	}
+
+	CompletableFuture<byte[]> query(Agent agent, Principal canisterId) {
+		return agent.queryRaw(canisterId, canisterId, "echo", new byte[0], Optional.empty());
+	}
+
+	static void assertError(CompletableFuture<byte[]> response, AgentError.AgentErrorCode code) {
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+				() -> response.get(30, TimeUnit.SECONDS));
+
+		Assertions.assertTrue(e.getCause() instanceof AgentError, String.valueOf(e.getCause()));
+		Assertions.assertEquals(code, ((AgentError) e.getCause()).getCode());
+	}
+
+	// queued requests are started on another thread
+	static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+}
@@ -0,0 +1,104 @@
+package org.ic4j.agent.test;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.ProxyBuilder;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.HttpStatusCode;
+import org.mockserver.model.MediaType;
+
+/*
+ * Proxies for an interface annotated with @Agent share one Agent, closed with the last proxy
+ * released.
+ */
+public class AgentRegistryTest extends MockTest {
+	static final BigInteger VALUE = new BigInteger("10000");
+	static final BigInteger RESULT = BigInteger.valueOf(10001);
+
+	@Test
+	public void testReferenceCounting() throws Exception {
+		this.runMockServer();
+
+		try {
+			SharedProxy first = ProxyBuilder.create().getProxy(SharedProxy.class);
+			SharedProxy second = ProxyBuilder.create().getProxy(SharedProxy.class);
+
+			Assertions.assertEquals(RESULT, first.getInt(VALUE));
+			Assertions.assertEquals(RESULT, second.getInt(VALUE));
+
+			// the Agent is still used by the second proxy, the first one keeps working with it
+			ProxyBuilder.release(first);
+
+			Assertions.assertEquals(RESULT, second.getInt(VALUE));
+			Assertions.assertEquals(RESULT, first.getInt(VALUE));
+
+			// a proxy is released once
+			ProxyBuilder.release(first);
+
+			Assertions.assertEquals(RESULT, second.getInt(VALUE));
+
+			// the last one closes it, for both proxies
+			ProxyBuilder.release(second);
+
+			Assertions.assertThrows(AgentError.class, () -> second.getInt(VALUE));
+			Assertions.assertThrows(AgentError.class, () -> first.getInt(VALUE));
+
+			// and a new proxy gets a new Agent
+			SharedProxy third = ProxyBuilder.create().getProxy(SharedProxy.class);
+
+			try {
+				Assertions.assertEquals(RESULT, third.getInt(VALUE));
+			} finally {
+				ProxyBuilder.release(third);
+			}
+
+			Assertions.assertThrows(AgentError.class, () -> third.getInt(VALUE));
+		} finally {
+			mockServerClient.reset();
+		}
+	}
+
+	@Test
+	public void testExplicitAgent() throws Exception {
+		this.runMockServer();
+
+		ReplicaTransport transport = ReplicaApacheHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+
+		try {
+			Agent agent = new AgentBuilder().transport(transport).build();
+
+			SharedProxy proxy = ProxyBuilder.create(agent).getProxy(SharedProxy.class);
+
+			// the caller owns the Agent, releasing the proxy leaves it open
+			ProxyBuilder.release(proxy);
+
+			Assertions.assertEquals(RESULT, proxy.getInt(VALUE));
+		} finally {
+			transport.close();
+			mockServerClient.reset();
+		}
+	}
+
+	void runMockServer() throws Exception {
+		mockServerClient.reset();
+
+		byte[] reply = Files.readAllBytes(Paths.get(
+				getClass().getClassLoader().getResource(TestProperties.CBOR_ECHOINT_QUERY_RESPONSE_FILE).getPath()));
+
+		mockServerClient
+				.when(new HttpRequest().withMethod("POST")
+						.withPath("/api/v2/canister/" + TestProperties.CANISTER_ID + "/query"))
+				.respond(HttpResponse.response().withStatusCode(HttpStatusCode.OK_200.code())
+						.withContentType(MediaType.create("application", "cbor")).withBody(reply));
+	}
+}
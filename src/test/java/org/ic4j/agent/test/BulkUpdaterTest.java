@@ -0,0 +1,180 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.BulkUpdater;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * BulkUpdater against a stub replica that accepts every call and answers the first status poll
+ * with the call's request status.
+ */
+public class BulkUpdaterTest {
+	static final String OTHER_CANISTER_ID = "ryjl3-tyaaa-aaaaa-aaaba-cai";
+
+	static final Duration POLL_INTERVAL = Duration.ofMillis(10);
+
+	@Test
+	public void testReplies() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		List<BulkUpdater.Item> items = items(10);
+
+		List<BulkUpdater.Result> results = new ArrayList<BulkUpdater.Result>();
+
+		try (BulkUpdater.Run run = BulkUpdater.create(agent(replica)).maxInFlight(4).maxInFlightPerCanister(2)
+				.pollInterval(POLL_INTERVAL).ordered(true).submit(items.iterator())) {
+			run.forEachRemaining(results::add);
+
+			Assertions.assertTrue(run.isDone());
+			Assertions.assertEquals(10, run.getSubmitted());
+			Assertions.assertEquals(10, run.getCompleted());
+			Assertions.assertEquals(0, run.getFailed());
+			Assertions.assertEquals(0, run.getInFlight());
+		}
+
+		Assertions.assertEquals(10, results.size());
+		Assertions.assertEquals(10, replica.calls.get());
+		Assertions.assertEquals(10, replica.readStates.get());
+
+		for (int i = 0; i < results.size(); i++) {
+			BulkUpdater.Result result = results.get(i);
+
+			Assertions.assertEquals(i, result.getIndex());
+			Assertions.assertTrue(result.isSuccess(), String.valueOf(result.getError()));
+			Assertions.assertArrayEquals(("item " + i).getBytes(StandardCharsets.UTF_8), result.getReply());
+		}
+
+		// a finished run stops polling
+		Thread.sleep(10 * POLL_INTERVAL.toMillis());
+
+		Assertions.assertEquals(10, replica.readStates.get());
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.callStatus = "rejected";
+		replica.rejectCode = 5;
+
+		try (BulkUpdater.Run run = BulkUpdater.create(agent(replica)).pollInterval(POLL_INTERVAL)
+				.submit(items(4).iterator())) {
+			while (run.hasNext()) {
+				BulkUpdater.Result result = run.next();
+
+				Assertions.assertFalse(result.isSuccess());
+				Assertions.assertEquals(AgentError.AgentErrorCode.REPLICA_ERROR, result.getError().getCode());
+				Assertions.assertEquals(5, result.getError().getRejectCode());
+			}
+
+			Assertions.assertEquals(4, run.getFailed());
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.callStatus = "processing";
+
+		try (BulkUpdater.Run run = BulkUpdater.create(agent(replica)).pollInterval(POLL_INTERVAL)
+				.timeout(Duration.ofSeconds(1)).submit(items(2).iterator())) {
+			while (run.hasNext())
+				Assertions.assertEquals(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE,
+						run.next().getError().getCode());
+
+			Assertions.assertEquals(2, run.getFailed());
+		}
+
+		int readStates = replica.readStates.get();
+
+		Assertions.assertTrue(readStates > 2, readStates + " polls");
+
+		Thread.sleep(10 * POLL_INTERVAL.toMillis());
+
+		// a poll may have been in flight when the calls timed out
+		Assertions.assertTrue(replica.readStates.get() <= readStates + 2);
+	}
+
+	@Test
+	public void testRejectedExecution() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		Agent agent = agent(replica);
+
+		// rejects every other item
+		AtomicInteger executions = new AtomicInteger();
+
+		Executor executor = runnable -> {
+			if (executions.getAndIncrement() % 2 == 1)
+				throw new RejectedExecutionException("Saturated");
+
+			ForkJoinPool.commonPool().execute(runnable);
+		};
+
+		List<BulkUpdater.Result> results = new ArrayList<BulkUpdater.Result>();
+
+		try (BulkUpdater.Run run = BulkUpdater.create(agent).signingExecutor(executor).maxInFlight(2)
+				.pollInterval(POLL_INTERVAL).ordered(true).submit(items(6).iterator())) {
+			run.forEachRemaining(results::add);
+
+			Assertions.assertTrue(run.isDone());
+			Assertions.assertEquals(6, run.getSubmitted());
+			Assertions.assertEquals(3, run.getCompleted());
+			Assertions.assertEquals(3, run.getFailed());
+			Assertions.assertEquals(0, run.getInFlight());
+		}
+
+		Assertions.assertEquals(6, results.size());
+		Assertions.assertEquals(3, replica.calls.get());
+
+		for (BulkUpdater.Result result : results)
+			if (!result.isSuccess())
+				Assertions.assertTrue(result.getError().getCause() instanceof RejectedExecutionException,
+						String.valueOf(result.getError()));
+
+		// an executor rejecting everything fails every item, without leaving them in flight
+		try (BulkUpdater.Run run = BulkUpdater.create(agent).signingExecutor(runnable -> {
+			throw new RejectedExecutionException("Shut down");
+		}).maxInFlight(2).submit(items(100).iterator())) {
+			int failed = 0;
+
+			while (run.hasNext())
+				if (!run.next().isSuccess())
+					failed++;
+
+			Assertions.assertEquals(100, failed);
+			Assertions.assertEquals(0, run.getInFlight());
+			Assertions.assertTrue(run.isDone());
+		}
+	}
+
+	static Agent agent(StubReplica replica) {
+		Agent agent = new AgentBuilder().transport(replica).build();
+		agent.setVerify(false);
+
+		return agent;
+	}
+
+	static List<BulkUpdater.Item> items(int count) {
+		List<BulkUpdater.Item> items = new ArrayList<BulkUpdater.Item>();
+
+		for (int i = 0; i < count; i++)
+			items.add(BulkUpdater.Item.create(
+					Principal.fromString(i % 2 == 0 ? TestProperties.CANISTER_ID : OTHER_CANISTER_ID), "update",
+					("item " + i).getBytes(StandardCharsets.UTF_8)));
+
+		return items;
+	}
+}
@@ -0,0 +1,364 @@
+package org.ic4j.agent.test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.CircuitBreaker;
+import org.ic4j.agent.Deadline;
+import org.ic4j.agent.PreparedCall;
+import org.ic4j.agent.QueryBuilder;
+import org.ic4j.agent.UpdateBuilder;
+import org.ic4j.agent.Waiter;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * CircuitBreaker on an Agent whose stub replica replies to, rejects or holds queries. Open
+ * durations are short enough to wait out, and long enough for the steps in between.
+ */
+public class CircuitBreakerTest {
+	static final Duration OPEN_DURATION = Duration.ofMillis(300);
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testStateMachine() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		CircuitBreaker breaker = CircuitBreaker.create().windowSize(4).minimumCalls(4).failureRate(0.5)
+				.openDuration(OPEN_DURATION).halfOpenCalls(2);
+
+		Agent agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+
+		// below minimumCalls
+		replica.rejectCode = 5;
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		replica.rejectCode = 0;
+
+		this.query(agent).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId));
+
+		// 2 of 4
+		this.query(agent).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+		Assertions.assertEquals(1, breaker.getOpened());
+
+		// open: fails fast, without a request
+		assertError(this.query(agent), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		Assertions.assertEquals(4, replica.queries.get());
+
+		// half open after openDuration, with halfOpenCalls probes
+		Thread.sleep(OPEN_DURATION.toMillis() + 50);
+
+		replica.hold = true;
+
+		List<CompletableFuture<byte[]>> probes = new ArrayList<CompletableFuture<byte[]>>();
+
+		probes.add(this.query(agent));
+		probes.add(this.query(agent));
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(this.canisterId));
+		Assertions.assertEquals(6, replica.queries.get());
+
+		// all probes succeed
+		replica.release();
+
+		for (CompletableFuture<byte[]> probe : probes)
+			probe.get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId));
+
+		// the window starts over
+		replica.rejectCode = 5;
+
+		for (int i = 0; i < 3; i++)
+			assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId));
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+		Assertions.assertEquals(2, breaker.getOpened());
+
+		// a failed probe reopens it for another openDuration
+		Thread.sleep(OPEN_DURATION.toMillis() + 50);
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+		Assertions.assertEquals(3, breaker.getOpened());
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		Assertions.assertEquals(3, breaker.getShortCircuited());
+	}
+
+	@Test
+	public void testProbeExpiry() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		CircuitBreaker breaker = CircuitBreaker.create().windowSize(1).minimumCalls(1).openDuration(OPEN_DURATION);
+
+		Agent agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+
+		replica.rejectCode = 5;
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+
+		// the single probe goes, and does not report back
+		Thread.sleep(OPEN_DURATION.toMillis() + 50);
+
+		replica.rejectCode = 0;
+		replica.hold = true;
+
+		CompletableFuture<byte[]> lost = this.query(agent);
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		// after another openDuration the lost probe is given up, the next one goes
+		Thread.sleep(OPEN_DURATION.toMillis() + 50);
+
+		replica.hold = false;
+
+		this.query(agent).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId));
+		Assertions.assertEquals(3, replica.queries.get());
+
+		lost.cancel(true);
+	}
+
+	@Test
+	public void testFailOn() throws Exception {
+		// the canister's own reject does not count, the other reject codes do
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, this.stateAfter(CircuitBreaker.create(), 4));
+
+		for (int code : new int[] { 1, 2, 3, 5 })
+			Assertions.assertEquals(CircuitBreaker.State.OPEN, this.stateAfter(CircuitBreaker.create(), code),
+					"reject code " + code);
+
+		// transport errors count
+		StubReplica replica = new StubReplica();
+		replica.unavailable = true;
+
+		CircuitBreaker breaker = CircuitBreaker.create().windowSize(1).minimumCalls(1);
+
+		assertError(this.query(new AgentBuilder().transport(replica).circuitBreaker(breaker).build()),
+				AgentError.AgentErrorCode.HTTP_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+
+		// calls past their Deadline say nothing about the canister
+		StubReplica held = new StubReplica();
+		held.hold = true;
+
+		CircuitBreaker deadlineBreaker = CircuitBreaker.create().windowSize(1).minimumCalls(1);
+
+		Agent agent = new AgentBuilder().transport(held).circuitBreaker(deadlineBreaker).build();
+
+		assertError(QueryBuilder.create(agent, this.canisterId, "echo").deadline(Deadline.after(Duration.ofMillis(50)))
+				.call(), AgentError.AgentErrorCode.DEADLINE_EXCEEDED);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, deadlineBreaker.getState(this.canisterId));
+
+		// failOn replaces the codes counted
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, this.stateAfter(CircuitBreaker.create().failOn(3, 4), 4));
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, this.stateAfter(CircuitBreaker.create().failOn(3, 4), 5));
+	}
+
+	@Test
+	public void testPerMethod() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		CircuitBreaker breaker = CircuitBreaker.create().windowSize(2).minimumCalls(2).perMethod(true)
+				.openDuration(Duration.ofMinutes(1));
+
+		Agent agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+
+		// the canister's own rejects leave the circuit closed
+		replica.rejectCode = 4;
+
+		for (int i = 0; i < 3; i++)
+			assertError(this.query(agent, "echo"), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId, "echo"));
+
+		replica.rejectCode = 5;
+
+		assertError(this.query(agent, "echo"), AgentError.AgentErrorCode.REPLICA_ERROR);
+		assertError(this.query(agent, "echo"), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId, "echo"));
+		Assertions.assertEquals(1, breaker.getOpened());
+		Assertions.assertEquals(1, breaker.getOpenCircuits());
+
+		// fails fast, without a request
+		assertError(this.query(agent, "echo"), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		Assertions.assertEquals(5, replica.queries.get());
+		Assertions.assertEquals(1, breaker.getShortCircuited());
+
+		// other methods have their own circuit
+		assertError(this.query(agent, "other"), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(6, replica.queries.get());
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId, "other"));
+	}
+
+	@Test
+	public void testCleanup() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		CircuitBreaker breaker = CircuitBreaker.create().windowSize(4).minimumCalls(4);
+
+		Agent agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+
+		// dropped once its last failure slides out of the window
+		replica.rejectCode = 5;
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(1, breaker.getCircuits());
+
+		replica.rejectCode = 0;
+
+		for (int i = 0; i < 3; i++)
+			this.query(agent).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(1, breaker.getCircuits());
+
+		this.query(agent).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(0, breaker.getCircuits());
+
+		// and once it closes
+		breaker = CircuitBreaker.create().windowSize(1).minimumCalls(1).openDuration(OPEN_DURATION);
+
+		agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+
+		replica.rejectCode = 5;
+
+		assertError(this.query(agent), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+
+		Thread.sleep(OPEN_DURATION.toMillis() + 50);
+
+		replica.rejectCode = 0;
+
+		this.query(agent).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId));
+		Assertions.assertEquals(0, breaker.getCircuits());
+
+		// idle circuits are dropped when another one is made, open ones included
+		breaker = CircuitBreaker.create().windowSize(1).minimumCalls(1).perMethod(true)
+				.openDuration(Duration.ofMinutes(1)).idleTimeout(Duration.ofMillis(100));
+
+		agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+
+		replica.rejectCode = 5;
+
+		assertError(this.query(agent, "echo"), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId, "echo"));
+
+		Thread.sleep(150);
+
+		assertError(this.query(agent, "other"), AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(this.canisterId, "echo"));
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId, "other"));
+		Assertions.assertEquals(1, breaker.getCircuits());
+	}
+
+	@Test
+	public void testUpdates() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.unavailable = true;
+
+		CircuitBreaker breaker = CircuitBreaker.create().windowSize(1).minimumCalls(1)
+				.openDuration(Duration.ofMinutes(1));
+
+		Agent agent = new AgentBuilder().transport(replica).circuitBreaker(breaker).build();
+		agent.setVerify(false);
+
+		// a failed submission fails the returned future, as CIRCUIT_OPEN does
+		assertError(this.update(agent), AgentError.AgentErrorCode.HTTP_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+
+		assertError(this.update(agent), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		Assertions.assertEquals(1, replica.calls.get());
+
+		// prepared calls as well
+		PreparedCall call = UpdateBuilder.create(agent, this.canisterId, "update").arg(new byte[0]).prepare();
+
+		assertError(call.callAndWait(Waiter.create(60, 1)), AgentError.AgentErrorCode.CIRCUIT_OPEN);
+
+		breaker = CircuitBreaker.create().windowSize(1).minimumCalls(1).openDuration(Duration.ofMinutes(1));
+
+		call = UpdateBuilder.create(new AgentBuilder().transport(replica).circuitBreaker(breaker).build(), this.canisterId,
+				"update").arg(new byte[0]).prepare();
+
+		assertError(call.callAndWait(Waiter.create(60, 1)), AgentError.AgentErrorCode.HTTP_ERROR);
+
+		Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(this.canisterId));
+		Assertions.assertEquals(2, replica.calls.get());
+	}
+
+	// state of a circuit opening on its first failure, after one query rejected with rejectCode
+	CircuitBreaker.State stateAfter(CircuitBreaker breaker, int rejectCode) throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.rejectCode = rejectCode;
+
+		breaker.windowSize(1).minimumCalls(1);
+
+		assertError(this.query(new AgentBuilder().transport(replica).circuitBreaker(breaker).build()),
+				AgentError.AgentErrorCode.REPLICA_ERROR);
+
+		return breaker.getState(this.canisterId);
+	}
+
+	CompletableFuture<byte[]> query(Agent agent) {
+		return this.query(agent, "echo");
+	}
+
+	CompletableFuture<byte[]> query(Agent agent, String method) {
+		return agent.queryRaw(this.canisterId, this.canisterId, method, new byte[0], Optional.empty());
+	}
+
+	CompletableFuture<byte[]> update(Agent agent) {
+		return UpdateBuilder.create(agent, this.canisterId, "update").arg(new byte[0])
+				.callAndWait(Waiter.create(60, 1));
+	}
+
+	static void assertError(CompletableFuture<byte[]> response, AgentError.AgentErrorCode code) {
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+				() -> response.get(30, TimeUnit.SECONDS));
+
+		Assertions.assertTrue(e.getCause() instanceof AgentError, String.valueOf(e.getCause()));
+		Assertions.assertEquals(code, ((AgentError) e.getCause()).getCode());
+	}
+}
@@ -0,0 +1,103 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Threads the futures of an Agent complete on, with replies held by a stub replica and released
+ * from the test thread.
+ */
+public class CompletionExecutorTest {
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testExecutor() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "completion"));
+
+		try {
+			StubReplica replica = new StubReplica();
+			replica.hold = true;
+
+			Agent agent = new AgentBuilder().transport(replica).completionExecutor(executor).build();
+
+			CompletableFuture<String> thread = this.query(agent).thenApply(reply -> Thread.currentThread().getName());
+
+			replica.release();
+
+			Assertions.assertEquals("completion", thread.get(30, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testInline() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		Agent agent = new AgentBuilder().transport(replica).completionExecutor(runnable -> {
+			throw new RejectedExecutionException("Shut down");
+		}).completeInline().build();
+
+		CompletableFuture<String> thread = this.query(agent).thenApply(reply -> Thread.currentThread().getName());
+
+		replica.release();
+
+		// completed by the thread releasing the reply
+		Assertions.assertEquals(Thread.currentThread().getName(), thread.get(30, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		Agent agent = new AgentBuilder().transport(replica).completionExecutor(runnable -> {
+			throw new RejectedExecutionException("Shut down");
+		}).build();
+
+		CompletableFuture<String> thread = this.query(agent).thenApply(reply -> Thread.currentThread().getName());
+
+		replica.release();
+
+		// a saturated executor does not lose the reply, it is completed inline
+		Assertions.assertEquals(Thread.currentThread().getName(), thread.get(30, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			StubReplica replica = new StubReplica();
+			replica.hold = true;
+
+			Agent agent = new AgentBuilder().transport(replica).completionExecutor(executor).build();
+
+			CompletableFuture<byte[]> response = this.query(agent);
+
+			Assertions.assertTrue(response.cancel(true));
+
+			// cancelling the caller's future cancels the request
+			Assertions.assertTrue(replica.held.get(0).isCancelled());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	CompletableFuture<byte[]> query(Agent agent) throws Exception {
+		return agent.queryRaw(this.canisterId, this.canisterId, "echo", "echo".getBytes(StandardCharsets.UTF_8),
+				Optional.empty());
+	}
+}
@@ -0,0 +1,217 @@
+package org.ic4j.agent.test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.Deadline;
+import org.ic4j.agent.QueryBuilder;
+import org.ic4j.agent.UpdateBuilder;
+import org.ic4j.agent.Waiter;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Deadline against a stub replica that accepts calls and either holds its replies or answers
+ * every request status poll with processing.
+ */
+public class DeadlineTest {
+	// scheduling slack
+	static final long TOLERANCE_MILLIS = 500;
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testQueryCancel() throws Exception {
+		StubReplica replica = held();
+
+		Deadline deadline = Deadline.none();
+
+		CompletableFuture<byte[]> response = QueryBuilder.create(this.agent(replica), this.canisterId, "echo")
+				.deadline(deadline).call();
+
+		Assertions.assertEquals(1, replica.held.size());
+		Assertions.assertFalse(response.isDone());
+
+		deadline.cancel();
+
+		Assertions.assertTrue(response.isCancelled());
+		Assertions.assertTrue(replica.held.get(0).isCancelled());
+	}
+
+	@Test
+	public void testQueryExpiry() throws Exception {
+		StubReplica replica = held();
+
+		Deadline deadline = Deadline.after(Duration.ofMillis(100));
+
+		CompletableFuture<byte[]> response = QueryBuilder.create(this.agent(replica), this.canisterId, "echo")
+				.deadline(deadline).call();
+
+		assertDeadlineExceeded(response);
+
+		Assertions.assertTrue(deadline.isExpired());
+		Assertions.assertFalse(deadline.isCancelled());
+		awaitCancelled(replica.held.get(0));
+
+		// binding to a done deadline does not send anything
+		CompletableFuture<byte[]> late = QueryBuilder.create(this.agent(replica), this.canisterId, "echo")
+				.deadline(deadline).call();
+
+		assertDeadlineExceeded(late);
+		Assertions.assertTrue(replica.held.get(1).isCancelled());
+	}
+
+	@Test
+	public void testUpdateCancelWhilePolling() throws Exception {
+		StubReplica replica = held();
+
+		Deadline deadline = Deadline.none();
+
+		CompletableFuture<CompletableFuture<byte[]>> call = this.callAndWait(replica, deadline, Waiter.create(60, 1));
+
+		awaitReadStates(replica, 1);
+
+		deadline.cancel();
+
+		CompletableFuture<byte[]> response = call.get(TOLERANCE_MILLIS, TimeUnit.MILLISECONDS);
+
+		Assertions.assertTrue(response.isCancelled());
+		Assertions.assertTrue(replica.held.get(0).isCancelled());
+
+		// the Waiter loop stopped
+		Thread.sleep(1500);
+
+		Assertions.assertEquals(1, replica.readStates.get());
+	}
+
+	@Test
+	public void testUpdateCancelWhileWaiting() throws Exception {
+		StubReplica replica = processing();
+
+		Deadline deadline = Deadline.none();
+
+		long start = System.nanoTime();
+
+		// a five second sleep between polls
+		CompletableFuture<CompletableFuture<byte[]>> call = this.callAndWait(replica, deadline, Waiter.create(60, 5));
+
+		awaitReadStates(replica, 1);
+
+		deadline.cancel();
+
+		CompletableFuture<byte[]> response = call.get(TOLERANCE_MILLIS, TimeUnit.MILLISECONDS);
+
+		Assertions.assertTrue(response.isCancelled());
+		Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+		Assertions.assertEquals(1, replica.readStates.get());
+	}
+
+	@Test
+	public void testUpdateExpiry() throws Exception {
+		// a poll held past the deadline is cancelled
+		StubReplica held = held();
+
+		long start = System.nanoTime();
+
+		CompletableFuture<byte[]> response = this
+				.callAndWait(held, Deadline.after(Duration.ofMillis(300)), Waiter.create(60, 1)).get(30, TimeUnit.SECONDS);
+
+		assertDeadlineExceeded(response);
+
+		Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 300 + TOLERANCE_MILLIS);
+		Assertions.assertEquals(1, held.readStates.get());
+		awaitCancelled(held.held.get(0));
+
+		// the Waiter does not sleep past the deadline, polls at 0 and 1s, then gives up at 1.5s
+		StubReplica processing = processing();
+
+		start = System.nanoTime();
+
+		response = this.callAndWait(processing, Deadline.after(Duration.ofMillis(1500)), Waiter.create(60, 1))
+				.get(30, TimeUnit.SECONDS);
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertDeadlineExceeded(response);
+
+		Assertions.assertTrue(elapsed >= 1500 && elapsed < 1500 + TOLERANCE_MILLIS, elapsed + "ms");
+		Assertions.assertEquals(2, processing.readStates.get());
+
+		Thread.sleep(1500);
+
+		Assertions.assertEquals(2, processing.readStates.get());
+	}
+
+	Agent agent(StubReplica replica) {
+		Agent agent = new AgentBuilder().transport(replica).build();
+		agent.setVerify(false);
+
+		return agent;
+	}
+
+	CompletableFuture<CompletableFuture<byte[]>> callAndWait(StubReplica replica, Deadline deadline, Waiter waiter) {
+		UpdateBuilder update = UpdateBuilder.create(this.agent(replica), this.canisterId, "update").deadline(deadline);
+
+		CompletableFuture<CompletableFuture<byte[]>> call = new CompletableFuture<CompletableFuture<byte[]>>();
+
+		Thread thread = new Thread(() -> {
+			try {
+				call.complete(update.callAndWait(waiter));
+			} catch (Throwable e) {
+				call.completeExceptionally(e);
+			}
+		}, "ic4j-deadline-test");
+		thread.setDaemon(true);
+		thread.start();
+
+		return call;
+	}
+
+	static void assertDeadlineExceeded(CompletableFuture<byte[]> response) throws Exception {
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+				() -> response.get(30, TimeUnit.SECONDS));
+
+		Assertions.assertTrue(e.getCause() instanceof AgentError, String.valueOf(e.getCause()));
+		Assertions.assertEquals(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, ((AgentError) e.getCause()).getCode());
+	}
+
+	static StubReplica held() {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		return replica;
+	}
+
+	static StubReplica processing() {
+		StubReplica replica = new StubReplica();
+		replica.callStatus = "processing";
+
+		return replica;
+	}
+
+	static void awaitReadStates(StubReplica replica, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 30000;
+
+		while (replica.readStates.get() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		// the poll is in flight, give the caller time to wait on it
+		Thread.sleep(50);
+	}
+
+	// cancelled by the timer thread right after it failed the caller's future
+	static void awaitCancelled(CompletableFuture<?> future) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TOLERANCE_MILLIS;
+
+		while (!future.isCancelled() && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+
+		Assertions.assertTrue(future.isCancelled());
+	}
+}
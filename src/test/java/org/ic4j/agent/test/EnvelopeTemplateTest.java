@@ -0,0 +1,171 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.NonceFactory;
+import org.ic4j.agent.PreparedCall;
+import org.ic4j.agent.PreparedQuery;
+import org.ic4j.agent.QueryBuilder;
+import org.ic4j.agent.UpdateBuilder;
+import org.ic4j.agent.identity.AnonymousIdentity;
+import org.ic4j.agent.identity.BasicIdentity;
+import org.ic4j.agent.identity.Identity;
+import org.ic4j.agent.identity.Signature;
+import org.ic4j.agent.replicaapi.CallRequestContent;
+import org.ic4j.agent.replicaapi.Envelope;
+import org.ic4j.agent.replicaapi.QueryContent;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+
+/*
+ * PreparedQuery and PreparedCall encode their envelopes from a template. Sent to a stub replica,
+ * they have to carry the same request ids as RequestId.toRequestId and the same bytes as the
+ * ObjectMapper writes for Envelope.
+ */
+public class EnvelopeTemplateTest {
+	static final byte[] IC_REQUEST_DOMAIN_SEPARATOR = "\nic-request".getBytes(StandardCharsets.UTF_8);
+
+	// one of each CBOR header width, and a current ingress expiry, in the seconds expireAt sets
+	static final long[] EXPIRIES = { 0, 23, 24, 255, 256, 65535, 65536, 4294967295L, 4294967296L,
+			TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + TimeUnit.MINUTES.toSeconds(5) };
+
+	static final byte[][] ARGS = { new byte[0], { 0x44, 0x49, 0x44, 0x4c, 0x00, 0x00 }, new byte[300] };
+
+	final ObjectMapper objectMapper = new ObjectMapper(new CBORFactory()).registerModule(new Jdk8Module());
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testQuery() throws Exception {
+		for (Identity identity : identities())
+			for (long ingressExpiry : EXPIRIES) {
+				StubReplica replica = new StubReplica();
+
+				Agent agent = new AgentBuilder().transport(replica).identity(identity).build();
+
+				PreparedQuery query = QueryBuilder.create(agent, this.canisterId, "echoInt").arg(ARGS[0])
+						.expireAt(expiry(ingressExpiry)).prepare();
+
+				for (byte[] arg : ARGS) {
+					query.call(arg).get(30, TimeUnit.SECONDS);
+
+					QueryContent content = new QueryContent();
+
+					content.queryRequest.sender = identity.sender();
+					content.queryRequest.canisterId = this.canisterId;
+					content.queryRequest.methodName = "echoInt";
+					content.queryRequest.arg = arg;
+					content.queryRequest.ingressExpiry = ingressExpiry;
+
+					RequestId requestId = RequestId.toRequestId(content);
+
+					// Ed25519 signatures are deterministic, equal bytes mean an equal request id
+					Assertions.assertArrayEquals(this.encode(content, "query", sign(identity, requestId)), last(replica));
+				}
+			}
+	}
+
+	@Test
+	public void testCall() throws Exception {
+		for (Identity identity : identities())
+			for (NonceFactory nonceFactory : new NonceFactory[] { null, new NonceFactory() })
+				for (long ingressExpiry : EXPIRIES) {
+					StubReplica replica = new StubReplica();
+
+					// without a nonce factory calls go without a nonce
+					Agent agent = new AgentBuilder().transport(replica).identity(identity).nonceFactory(nonceFactory)
+							.build();
+
+					PreparedCall call = UpdateBuilder.create(agent, this.canisterId, "updateGreeting").arg(ARGS[0])
+							.expireAt(expiry(ingressExpiry)).prepare();
+
+					for (byte[] arg : ARGS) {
+						RequestId sent = call.call(arg).get(30, TimeUnit.SECONDS);
+
+						byte[] envelope = last(replica);
+						JsonNode nonce = this.objectMapper.readTree(envelope).get("content").get("nonce");
+
+						Assertions.assertEquals(nonceFactory != null, nonce != null);
+
+						CallRequestContent content = new CallRequestContent();
+
+						content.callRequest.nonce = Optional.ofNullable(nonce != null ? nonce.binaryValue() : null);
+						content.callRequest.sender = identity.sender();
+						content.callRequest.canisterId = this.canisterId;
+						content.callRequest.methodName = "updateGreeting";
+						content.callRequest.arg = arg;
+						content.callRequest.ingressExpiry = ingressExpiry;
+
+						RequestId requestId = RequestId.toRequestId(content);
+
+						Assertions.assertArrayEquals(requestId.get(), sent.get());
+						Assertions.assertArrayEquals(this.encode(content, "call", sign(identity, requestId)), envelope);
+					}
+				}
+	}
+
+	@Test
+	public void testWithArg() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		Agent agent = new AgentBuilder().transport(replica).identity(identities()[1]).build();
+
+		PreparedQuery query = QueryBuilder.create(agent, this.canisterId, "echoInt").arg(ARGS[1]).prepare();
+
+		Assertions.assertArrayEquals(ARGS[2], query.call(ARGS[2]).get(30, TimeUnit.SECONDS));
+
+		// the prepared query keeps its own arg
+		Assertions.assertArrayEquals(ARGS[1], query.call().get(30, TimeUnit.SECONDS));
+		Assertions.assertArrayEquals(ARGS[1],
+				this.objectMapper.readTree(last(replica)).get("content").get("arg").binaryValue());
+	}
+
+	byte[] encode(Object content, String requestType, Signature signature) throws Exception {
+		Envelope<Object> envelope = new Envelope<Object>();
+
+		envelope.content = content;
+		envelope.senderPubkey = signature.publicKey;
+		envelope.senderSig = signature.signature;
+
+		return this.objectMapper.writerFor(Envelope.class).withAttribute("request_type", requestType)
+				.writeValueAsBytes(envelope);
+	}
+
+	static Signature sign(Identity identity, RequestId requestId) {
+		return identity.sign(ArrayUtils.addAll(IC_REQUEST_DOMAIN_SEPARATOR, requestId.get()));
+	}
+
+	static byte[] last(StubReplica replica) {
+		return replica.envelopes.get(replica.envelopes.size() - 1);
+	}
+
+	static LocalDateTime expiry(long seconds) {
+		return LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+	}
+
+	static Identity[] identities() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+
+		KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+
+		return new Identity[] { new AnonymousIdentity(), BasicIdentity.fromKeyPair(keyPair) };
+	}
+}
@@ -0,0 +1,67 @@
+package org.ic4j.agent.test;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.GeneratedProxy;
+import org.ic4j.agent.ProxyBuilder;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.ic4j.agent.http.ReplicaOkHttpTransport;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.HttpStatusCode;
+import org.mockserver.model.MediaType;
+
+/*
+ * Test sources are compiled with the proxy processor, so ProxyBuilder returns HelloProxyImpl
+ * rather than a java.lang.reflect.Proxy.
+ */
+public class GeneratedProxyTest extends MockTest {
+
+	@Test
+	public void test() throws Exception {
+		mockServerClient.reset();
+
+		byte[] reply = Files.readAllBytes(Paths.get(
+				getClass().getClassLoader().getResource(TestProperties.CBOR_ECHOINT_QUERY_RESPONSE_FILE).getPath()));
+
+		mockServerClient
+				.when(new HttpRequest().withMethod("POST")
+						.withPath("/api/v2/canister/" + TestProperties.CANISTER_ID + "/query"))
+				.respond(HttpResponse.response().withStatusCode(HttpStatusCode.OK_200.code())
+						.withContentType(MediaType.create("application", "cbor")).withBody(reply));
+
+		ReplicaTransport transport;
+
+		switch (TestProperties.TRANSPORT_TYPE) {
+		case "http.ok":
+			transport = ReplicaOkHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+			break;
+		default:
+			transport = ReplicaApacheHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+			break;
+		}
+
+		try {
+			Agent agent = new AgentBuilder().transport(transport).build();
+
+			HelloProxy hello = ProxyBuilder.create(agent, Principal.fromString(TestProperties.CANISTER_ID))
+					.getProxy(HelloProxy.class);
+
+			Assertions.assertTrue(hello instanceof GeneratedProxy);
+			Assertions.assertEquals(HelloProxy.class.getName() + "Impl", hello.getClass().getName());
+
+			Assertions.assertEquals(BigInteger.valueOf(10001), hello.getInt(new BigInteger("10000")));
+		} finally {
+			transport.close();
+			mockServerClient.reset();
+		}
+	}
+}
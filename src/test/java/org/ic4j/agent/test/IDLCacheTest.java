@@ -0,0 +1,115 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.IDLCache;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * IDLCache reading module hash and candid:service from a stub replica, counting its read_state
+ * requests.
+ */
+public class IDLCacheTest {
+	static final String IDL = "service : { echo : (text) -> (text) query }";
+	static final String OTHER_IDL = "service : { echo : (text) -> (text) query; hello : (text) -> (text) }";
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void testMemory() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.candidService = IDL;
+
+		Agent agent = agent(replica);
+
+		IDLCache cache = IDLCache.create(16, Duration.ofMinutes(1));
+
+		Assertions.assertEquals(IDL, cache.getIDL(agent, this.canisterId));
+		Assertions.assertNotNull(cache.getServiceType(agent, this.canisterId));
+
+		// module hash, then module hash and candid:service together
+		Assertions.assertEquals(2, replica.readStates.get());
+
+		// fresh entries are not revalidated
+		Assertions.assertEquals(IDL, cache.getIDL(agent, this.canisterId));
+		Assertions.assertEquals(2, replica.readStates.get());
+
+		// revalidated entries are kept while the module hash stays the same
+		IDLCache revalidated = IDLCache.create(16, Duration.ZERO);
+
+		revalidated.getIDL(agent, this.canisterId);
+		replica.readStates.set(0);
+
+		replica.candidService = OTHER_IDL;
+
+		Assertions.assertEquals(IDL, revalidated.getIDL(agent, this.canisterId));
+		Assertions.assertEquals(1, replica.readStates.get());
+
+		// and loaded again once it changed
+		replica.moduleHash = new byte[] { 2 };
+
+		Assertions.assertEquals(OTHER_IDL, revalidated.getIDL(agent, this.canisterId));
+		Assertions.assertEquals(3, replica.readStates.get());
+	}
+
+	@Test
+	public void testDisk() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.candidService = IDL;
+
+		Agent agent = agent(replica);
+
+		Assertions.assertEquals(IDL, IDLCache.create(this.directory).getIDL(agent, this.canisterId));
+
+		Path file = this.directory.resolve(TestProperties.CANISTER_ID + "-01.did");
+
+		Assertions.assertEquals(IDL, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+		// a new cache, as after a restart, only reads the module hash
+		replica.readStates.set(0);
+
+		IDLCache restarted = IDLCache.create(this.directory);
+
+		Assertions.assertEquals(IDL, restarted.getIDL(agent, this.canisterId));
+		Assertions.assertEquals(1, replica.readStates.get());
+
+		// a new module replaces the file of the previous one
+		replica.moduleHash = new byte[] { 2 };
+		replica.candidService = OTHER_IDL;
+
+		restarted.invalidate(this.canisterId);
+
+		Assertions.assertEquals(OTHER_IDL, restarted.getIDL(agent, this.canisterId));
+		Assertions.assertFalse(Files.exists(file));
+		Assertions.assertTrue(Files.exists(this.directory.resolve(TestProperties.CANISTER_ID + "-02.did")));
+	}
+
+	@Test
+	public void testMissingMetadata() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		AgentError error = Assertions.assertThrows(AgentError.class,
+				() -> IDLCache.create().getServiceType(agent(replica), this.canisterId));
+
+		Assertions.assertEquals(AgentError.AgentErrorCode.LOOKUP_PATH_ABSENT, error.getCode());
+	}
+
+	static Agent agent(StubReplica replica) {
+		Agent agent = new AgentBuilder().transport(replica).build();
+		agent.setVerify(false);
+
+		return agent;
+	}
+}
@@ -0,0 +1,99 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.QueryBuilder;
+import org.ic4j.agent.UpdateBuilder;
+import org.ic4j.agent.Waiter;
+import org.ic4j.agent.identity.AnonymousIdentity;
+import org.ic4j.agent.identity.Identity;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Calls signed with another identity than their Agent's, read from the envelopes a stub replica
+ * received.
+ */
+public class IdentityOverrideTest {
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testQuery() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		Identity user = ReadStateEnvelopeCacheTest.identity();
+
+		Agent agent = new AgentBuilder().transport(replica).identity(new AnonymousIdentity()).build();
+
+		byte[] arg = "query".getBytes(StandardCharsets.UTF_8);
+
+		Assertions.assertArrayEquals(arg, QueryBuilder.create(agent, this.canisterId, "echo").identity(user).arg(arg)
+				.call().get(30, TimeUnit.SECONDS));
+
+		Assertions.assertArrayEquals(arg,
+				QueryBuilder.create(agent, this.canisterId, "echo").arg(arg).call().get(30, TimeUnit.SECONDS));
+
+		// the override applies to its own call only
+		Assertions.assertEquals(user.sender(), senders(replica).get(0));
+		Assertions.assertEquals(Principal.anonymous(), senders(replica).get(1));
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		Identity user = ReadStateEnvelopeCacheTest.identity();
+
+		Agent agent = new AgentBuilder().transport(replica).identity(new AnonymousIdentity()).build();
+		agent.setVerify(false);
+
+		byte[] arg = "update".getBytes(StandardCharsets.UTF_8);
+
+		Assertions.assertArrayEquals(arg, UpdateBuilder.create(agent, this.canisterId, "update").identity(user)
+				.arg(arg).callAndWait(Waiter.create(60, 1)).get(30, TimeUnit.SECONDS));
+
+		Assertions.assertEquals(1, replica.calls.get());
+		Assertions.assertTrue(replica.readStates.get() > 0);
+
+		// request status is read with the caller's sender as well
+		for (Principal sender : senders(replica))
+			Assertions.assertEquals(user.sender(), sender);
+	}
+
+	@Test
+	public void testSharedTransport() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		Agent agent = new AgentBuilder().transport(replica).identity(new AnonymousIdentity()).build();
+
+		Identity user = ReadStateEnvelopeCacheTest.identity();
+
+		Agent userAgent = agent.withIdentity(user);
+
+		byte[] arg = "shared".getBytes(StandardCharsets.UTF_8);
+
+		Assertions.assertArrayEquals(arg, userAgent.queryRaw(this.canisterId, this.canisterId, "echo", arg,
+				Optional.empty()).get(30, TimeUnit.SECONDS));
+
+		Assertions.assertEquals(1, replica.queries.get());
+		Assertions.assertEquals(user.sender(), senders(replica).get(0));
+	}
+
+	static List<Principal> senders(StubReplica replica) throws Exception {
+		List<Principal> senders = new ArrayList<Principal>();
+
+		synchronized (replica.envelopes) {
+			for (byte[] envelope : replica.envelopes)
+				senders.add(Principal.from(StubReplica.content(envelope).get("sender").binaryValue()));
+		}
+
+		return senders;
+	}
+}
@@ -0,0 +1,111 @@
+package org.ic4j.agent.test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.GeneratedProxy;
+import org.ic4j.agent.ProxyBuilder;
+import org.ic4j.candid.ObjectDeserializer;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.pojo.PojoDeserializer;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Proxy methods read their annotations once: the deserializer a method declares is created for
+ * its first call and shared by all later calls, whatever proxy they go through. The stub replica
+ * echoes each query's arg.
+ */
+public class InvocationPlanTest {
+	static final int CALLS = 5;
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testGeneratedProxy() throws Exception {
+		Agent agent = new AgentBuilder().transport(new StubReplica()).build();
+
+		PlanProxy proxy = ProxyBuilder.create(agent, this.canisterId).getProxy(PlanProxy.class);
+
+		Assertions.assertTrue(proxy instanceof GeneratedProxy);
+
+		Assertions.assertEquals(BigInteger.ONE, proxy.echo(BigInteger.ONE));
+
+		int instances = CountingDeserializer.INSTANCES.get();
+		int calls = CountingDeserializer.CALLS.get();
+
+		for (int i = 0; i < CALLS; i++) {
+			PlanProxy other = ProxyBuilder.create(agent, this.canisterId).getProxy(PlanProxy.class);
+
+			Assertions.assertEquals(BigInteger.valueOf(i), other.echo(BigInteger.valueOf(i)));
+		}
+
+		Assertions.assertEquals(instances, CountingDeserializer.INSTANCES.get());
+		Assertions.assertEquals(calls + CALLS, CountingDeserializer.CALLS.get());
+	}
+
+	@Test
+	public void testReflectionProxy() throws Exception {
+		Agent agent = new AgentBuilder().transport(new StubReplica()).build();
+
+		Class<?> interfaceClass = new ReflectionProxyTest.HidingClassLoader(PlanProxy.class)
+				.loadClass(PlanProxy.class.getName());
+
+		Method echo = interfaceClass.getMethod("echo", BigInteger.class);
+
+		Object proxy = ProxyBuilder.create(agent, this.canisterId).getProxy(interfaceClass);
+
+		Assertions.assertTrue(Proxy.isProxyClass(proxy.getClass()));
+
+		int instances = CountingDeserializer.INSTANCES.get();
+		int calls = CountingDeserializer.CALLS.get();
+
+		Assertions.assertEquals(BigInteger.ONE, echo.invoke(proxy, BigInteger.ONE));
+
+		// created for the first call
+		Assertions.assertEquals(instances + 1, CountingDeserializer.INSTANCES.get());
+
+		for (int i = 0; i < CALLS; i++) {
+			Object other = ProxyBuilder.create(agent, this.canisterId).getProxy(interfaceClass);
+
+			Assertions.assertEquals(BigInteger.valueOf(i), echo.invoke(other, BigInteger.valueOf(i)));
+		}
+
+		Assertions.assertEquals(instances + 1, CountingDeserializer.INSTANCES.get());
+		Assertions.assertEquals(calls + 1 + CALLS, CountingDeserializer.CALLS.get());
+	}
+
+	public static final class CountingDeserializer implements ObjectDeserializer {
+		static final AtomicInteger INSTANCES = new AtomicInteger();
+		static final AtomicInteger CALLS = new AtomicInteger();
+
+		final PojoDeserializer deserializer = new PojoDeserializer();
+
+		public CountingDeserializer() {
+			INSTANCES.incrementAndGet();
+		}
+
+		@Override
+		public <T> T deserialize(IDLValue value, Class<T> clazz) {
+			CALLS.incrementAndGet();
+
+			return this.deserializer.deserialize(value, clazz);
+		}
+
+		@Override
+		public void setIDLType(IDLType idlType) {
+			this.deserializer.setIDLType(idlType);
+		}
+
+		@Override
+		public Class<?> getDefaultResponseClass() {
+			return this.deserializer.getDefaultResponseClass();
+		}
+	}
+}
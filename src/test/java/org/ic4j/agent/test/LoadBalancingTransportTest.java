@@ -0,0 +1,331 @@
+package org.ic4j.agent.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.http.HedgingPolicy;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.ic4j.agent.http.ReplicaEndpoint;
+import org.ic4j.agent.http.ReplicaLoadBalancingTransport;
+import org.ic4j.agent.http.ReplicaOkHttpTransport;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Runs the load balancing transport against local stand-in boundary nodes with injected latency.
+ */
+public class LoadBalancingTransportTest {
+	static final Logger LOG = LoggerFactory.getLogger(LoadBalancingTransportTest.class);
+
+	static final int REQUESTS = 200;
+	static final int CONCURRENCY = 8;
+
+	@Test
+	public void test() throws Exception {
+		StandInServer fast1 = new StandInServer(0, 2);
+		StandInServer fast2 = new StandInServer(0, 2);
+		StandInServer slow = new StandInServer(0, 100);
+
+		List<ReplicaTransport> transports = new ArrayList<ReplicaTransport>();
+		transports.add(this.createTransport(fast1.port));
+		transports.add(this.createTransport(fast2.port));
+		transports.add(this.createTransport(slow.port));
+
+		ReplicaLoadBalancingTransport transport = (ReplicaLoadBalancingTransport) ReplicaLoadBalancingTransport
+				.create(transports, 3, Duration.ofMillis(200));
+
+		Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+		byte[] envelope = new byte[64];
+
+		try {
+			this.run(transport, canisterId, envelope, REQUESTS);
+
+			ReplicaEndpoint fastEndpoint1 = transport.getEndpoints().get(0);
+			ReplicaEndpoint fastEndpoint2 = transport.getEndpoints().get(1);
+			ReplicaEndpoint slowEndpoint = transport.getEndpoints().get(2);
+
+			for (ReplicaEndpoint endpoint : transport.getEndpoints())
+				LOG.info(endpoint.toString());
+
+			Assertions.assertEquals(REQUESTS, fastEndpoint1.getRequests() + fastEndpoint2.getRequests() + slowEndpoint.getRequests());
+			Assertions.assertTrue(slowEndpoint.getRequests() < fastEndpoint1.getRequests());
+			Assertions.assertTrue(slowEndpoint.getRequests() < fastEndpoint2.getRequests());
+			Assertions.assertTrue(slowEndpoint.getLatencyMillis() > fastEndpoint1.getLatencyMillis());
+
+			// take one fast node down, it has to be ejected after consecutive failures
+			int port = fast1.port;
+			fast1.stop();
+
+			for (int i = 0; i < 100 && fastEndpoint1.isHealthy(); i++)
+				this.run(transport, canisterId, envelope, CONCURRENCY);
+
+			Assertions.assertFalse(fastEndpoint1.isHealthy());
+			Assertions.assertEquals(1, fastEndpoint1.getEjections());
+
+			long requests = fastEndpoint1.getRequests();
+			this.run(transport, canisterId, envelope, REQUESTS / 4);
+			Assertions.assertEquals(requests, fastEndpoint1.getRequests());
+
+			// bring it back, the status probe has to readmit it
+			fast1 = new StandInServer(port, 2);
+
+			for (int i = 0; i < 50 && !fastEndpoint1.isHealthy(); i++)
+				Thread.sleep(100);
+
+			Assertions.assertTrue(fastEndpoint1.isHealthy());
+
+			this.run(transport, canisterId, envelope, REQUESTS / 4);
+			Assertions.assertTrue(fastEndpoint1.getRequests() > requests);
+
+			for (ReplicaEndpoint endpoint : transport.getEndpoints())
+				LOG.info(endpoint.toString());
+		} finally {
+			transport.close();
+			fast1.stop();
+			fast2.stop();
+			slow.stop();
+		}
+	}
+
+	@Test
+	public void testErrorStatus() throws Exception {
+		// the broken node answers 503 right away, it must not win on latency
+		StandInServer broken = new StandInServer(0, 1);
+		StandInServer healthy = new StandInServer(0, 20);
+
+		broken.status = 503;
+
+		List<ReplicaTransport> transports = new ArrayList<ReplicaTransport>();
+		transports.add(this.createTransport(broken.port));
+		transports.add(this.createTransport(healthy.port));
+
+		ReplicaLoadBalancingTransport transport = (ReplicaLoadBalancingTransport) ReplicaLoadBalancingTransport
+				.create(transports, 3, Duration.ofMillis(200));
+
+		Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+		byte[] envelope = new byte[64];
+
+		try {
+			ReplicaEndpoint brokenEndpoint = transport.getEndpoints().get(0);
+			ReplicaEndpoint healthyEndpoint = transport.getEndpoints().get(1);
+
+			for (int i = 0; i < 100 && brokenEndpoint.isHealthy(); i++)
+				this.run(transport, canisterId, envelope, CONCURRENCY);
+
+			for (ReplicaEndpoint endpoint : transport.getEndpoints())
+				LOG.info(endpoint.toString());
+
+			Assertions.assertFalse(brokenEndpoint.isHealthy());
+			Assertions.assertEquals(1, brokenEndpoint.getEjections());
+			Assertions.assertTrue(brokenEndpoint.getFailures() >= 3);
+			Assertions.assertEquals(0, brokenEndpoint.getLatencyMillis());
+			Assertions.assertTrue(healthyEndpoint.isHealthy());
+
+			// probes answered with 503 must not readmit it
+			Thread.sleep(600);
+			Assertions.assertFalse(brokenEndpoint.isHealthy());
+
+			long requests = brokenEndpoint.getRequests();
+			this.run(transport, canisterId, envelope, REQUESTS / 4);
+			Assertions.assertEquals(requests, brokenEndpoint.getRequests());
+
+			broken.status = 200;
+
+			for (int i = 0; i < 50 && !brokenEndpoint.isHealthy(); i++)
+				Thread.sleep(100);
+
+			Assertions.assertTrue(brokenEndpoint.isHealthy());
+		} finally {
+			transport.close();
+			broken.stop();
+			healthy.stop();
+		}
+	}
+
+	@Test
+	public void testHedging() throws Exception {
+		// every fourth request across both nodes stalls, the hedge that follows it never does
+		LongSupplier delay = stall(4, 2, 400);
+
+		StandInServer node1 = new StandInServer(0, delay);
+		StandInServer node2 = new StandInServer(0, delay);
+
+		List<ReplicaTransport> transports = new ArrayList<ReplicaTransport>();
+		transports.add(this.createTransport(node1.port));
+		transports.add(this.createTransport(node2.port));
+
+		ReplicaLoadBalancingTransport transport = (ReplicaLoadBalancingTransport) ReplicaLoadBalancingTransport
+				.create(transports, 3, Duration.ofMillis(200), HedgingPolicy.create(Duration.ofMillis(50), 0.5));
+
+		Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+		byte[] envelope = new byte[64];
+
+		try {
+			long slowest = 0;
+
+			for (int i = 0; i < 40; i++) {
+				long start = System.nanoTime();
+
+				ReplicaResponse response = transport.query(canisterId, envelope, null).get(30, TimeUnit.SECONDS);
+				response.release();
+
+				slowest = Math.max(slowest, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+
+			long hedges = 0;
+			for (ReplicaEndpoint endpoint : transport.getEndpoints()) {
+				LOG.info(endpoint.toString() + " hedges=" + endpoint.getHedges());
+				hedges += endpoint.getHedges();
+			}
+
+			LOG.info("Slowest hedged request took " + slowest + "ms");
+
+			Assertions.assertTrue(hedges > 0);
+			Assertions.assertTrue(slowest < 300, "Slowest request took " + slowest + "ms");
+
+			// cancelled losers must not be left counted as in flight
+			for (int i = 0; i < 50 && (transport.getEndpoints().get(0).getInFlight() > 0
+					|| transport.getEndpoints().get(1).getInFlight() > 0); i++)
+				Thread.sleep(20);
+
+			Assertions.assertEquals(0, transport.getEndpoints().get(0).getInFlight());
+			Assertions.assertEquals(0, transport.getEndpoints().get(1).getInFlight());
+			Assertions.assertEquals(0, transport.getEndpoints().get(0).getFailures() + transport.getEndpoints().get(1).getFailures());
+		} finally {
+			transport.close();
+			node1.stop();
+			node2.stop();
+		}
+	}
+
+	@Test
+	public void testHedgingErrorStatus() throws Exception {
+		// a 503 from one node must not win over the other node's later reply
+		StandInServer broken = new StandInServer(0, 150);
+		StandInServer healthy = new StandInServer(0, 150);
+
+		broken.status = 503;
+
+		List<ReplicaTransport> transports = new ArrayList<ReplicaTransport>();
+		transports.add(this.createTransport(broken.port));
+		transports.add(this.createTransport(healthy.port));
+
+		ReplicaLoadBalancingTransport transport = (ReplicaLoadBalancingTransport) ReplicaLoadBalancingTransport
+				.create(transports, 100, Duration.ofMillis(200), HedgingPolicy.create(Duration.ofMillis(20), 1.0));
+
+		Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+		byte[] envelope = new byte[64];
+
+		try {
+			for (int i = 0; i < 10; i++) {
+				ReplicaResponse response = transport.query(canisterId, envelope, null).get(30, TimeUnit.SECONDS);
+				response.release();
+
+				Assertions.assertEquals(200, response.statusCode);
+			}
+
+			Assertions.assertTrue(transport.getEndpoints().get(0).getRequests() > 0);
+
+			// with every attempt answering 503, the caller gets the 503 once both are done
+			healthy.status = 503;
+
+			ReplicaResponse response = transport.query(canisterId, envelope, null).get(30, TimeUnit.SECONDS);
+			response.release();
+
+			Assertions.assertEquals(503, response.statusCode);
+		} finally {
+			transport.close();
+			broken.stop();
+			healthy.stop();
+		}
+	}
+
+	static LongSupplier stall(int every, long delayMillis, long stallMillis) {
+		AtomicInteger requests = new AtomicInteger();
+
+		return () -> requests.incrementAndGet() % every == 0 ? stallMillis : delayMillis;
+	}
+
+	void run(ReplicaTransport transport, Principal canisterId, byte[] envelope, int count) throws Exception {
+		for (int sent = 0; sent < count; sent += CONCURRENCY) {
+			List<CompletableFuture<?>> batch = new ArrayList<CompletableFuture<?>>();
+
+			for (int i = sent; i < Math.min(count, sent + CONCURRENCY); i++)
+				batch.add(transport.query(canisterId, envelope, null).handle((response, ex) -> response));
+
+			CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[batch.size()])).get(30, TimeUnit.SECONDS);
+		}
+	}
+
+	ReplicaTransport createTransport(int port) throws URISyntaxException {
+		String url = "http://localhost:" + port;
+
+		switch (TestProperties.TRANSPORT_TYPE) {
+		case "http.ok":
+			return ReplicaOkHttpTransport.create(url);
+		default:
+			return ReplicaApacheHttpTransport.create(url);
+		}
+	}
+
+	/*
+	 * Answers every request with a small CBOR body after a delay.
+	 */
+	static final class StandInServer {
+		final HttpServer server;
+		final int port;
+
+		volatile int status = 200;
+
+		StandInServer(int port, long delayMillis) throws IOException {
+			this(port, () -> delayMillis);
+		}
+
+		StandInServer(int port, LongSupplier delayMillis) throws IOException {
+			this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+
+			this.server.createContext("/", exchange -> {
+				try {
+					Thread.sleep(delayMillis.getAsLong());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				byte[] body = new byte[] { (byte) 0xa0 };
+
+				exchange.getResponseHeaders().add("Content-Type", "application/cbor");
+				exchange.sendResponseHeaders(this.status, body.length);
+
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+
+			this.server.setExecutor(Executors.newCachedThreadPool());
+			this.server.start();
+
+			this.port = this.server.getAddress().getPort();
+		}
+
+		void stop() {
+			this.server.stop(0);
+		}
+	}
+}
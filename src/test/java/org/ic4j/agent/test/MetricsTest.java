@@ -0,0 +1,208 @@
+package org.ic4j.agent.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.metrics.Histogram;
+import org.ic4j.agent.metrics.HistogramMetrics;
+import org.ic4j.agent.metrics.Outcome;
+import org.ic4j.agent.metrics.Phase;
+import org.ic4j.agent.metrics.RequestTags;
+import org.ic4j.agent.metrics.RequestType;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Histogram buckets and percentiles, HistogramMetrics series and Outcome classification.
+ */
+public class MetricsTest {
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testBuckets() {
+		long previous = -1;
+
+		for (long value = 0; value < 1 << 16; value++) {
+			long highest = highestValue(value);
+
+			// exact below 16, at most 1/16 above from there
+			Assertions.assertTrue(highest >= value && highest - value <= value / 16, value + " in " + highest);
+
+			// buckets are contiguous and ordered
+			Assertions.assertTrue(highest == previous || highest >= value, value + " in " + highest);
+
+			previous = highest;
+		}
+
+		for (int shift = 16; shift < 62; shift++) {
+			long value = (1L << shift) + 12345;
+			long highest = highestValue(value);
+
+			Assertions.assertTrue(highest >= value && highest - value <= value / 16, value + " in " + highest);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+
+		Assertions.assertEquals(0, histogram.getPercentile(0.5));
+		Assertions.assertEquals(0, histogram.getMean());
+
+		for (long value = 1; value <= 100000; value++)
+			histogram.record(value);
+
+		Assertions.assertEquals(100000, histogram.getCount());
+		Assertions.assertEquals(100000L * 100001 / 2, histogram.getSum());
+		Assertions.assertEquals(100000, histogram.getMax());
+		Assertions.assertEquals(50000.5, histogram.getMean());
+
+		for (double percentile : new double[] { 0.001, 0.1, 0.5, 0.9, 0.99, 0.999 }) {
+			long exact = (long) Math.ceil(percentile * 100000);
+			long value = histogram.getPercentile(percentile);
+
+			Assertions.assertTrue(value >= exact && value - exact <= exact / 16, percentile + ": " + value);
+		}
+
+		// never above the largest value recorded
+		Assertions.assertEquals(100000, histogram.getPercentile(1));
+
+		// negative values count as 0
+		Histogram negative = new Histogram();
+		negative.record(-5);
+
+		Assertions.assertEquals(0, negative.getPercentile(1));
+		Assertions.assertEquals(0, negative.getSum());
+		Assertions.assertEquals(1, negative.getCount());
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		Histogram histogram = new Histogram();
+
+		int threads = 8;
+		int values = 100000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+
+			for (int t = 0; t < threads; t++) {
+				int offset = t;
+
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < values; i++)
+						histogram.record(i * threads + offset);
+				}));
+			}
+
+			for (Future<?> future : futures)
+				future.get(30, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+
+		long total = (long) threads * values;
+
+		Assertions.assertEquals(total, histogram.getCount());
+		Assertions.assertEquals(total * (total - 1) / 2, histogram.getSum());
+		Assertions.assertEquals(total - 1, histogram.getMax());
+		Assertions.assertEquals(total - 1, histogram.getPercentile(1));
+
+		long exact = total / 2 - 1;
+		long median = histogram.getPercentile(0.5);
+
+		Assertions.assertTrue(median >= exact && median - exact <= exact / 16, String.valueOf(median));
+	}
+
+	@Test
+	public void testSeries() throws Exception {
+		RequestTags echo = RequestTags.create(this.canisterId, "echo", RequestType.QUERY);
+		RequestTags other = RequestTags.create(this.canisterId, "other", RequestType.QUERY);
+
+		HistogramMetrics metrics = HistogramMetrics.create();
+
+		metrics.record(Phase.ROUND_TRIP, echo, Outcome.SUCCESS, 10);
+		metrics.record(Phase.ROUND_TRIP, echo, Outcome.SUCCESS, 20);
+		metrics.record(Phase.ROUND_TRIP, other, Outcome.SUCCESS, 30);
+		metrics.record(Phase.ROUND_TRIP, echo, Outcome.ERROR, 40);
+
+		Assertions.assertEquals(2, metrics.getHistogram(Phase.ROUND_TRIP, echo, Outcome.SUCCESS).getCount());
+		Assertions.assertEquals(1, metrics.getHistogram(Phase.ROUND_TRIP, other, Outcome.SUCCESS).getCount());
+		Assertions.assertEquals(1, metrics.getHistogram(Phase.ROUND_TRIP, echo, Outcome.ERROR).getCount());
+		Assertions.assertNull(metrics.getHistogram(Phase.SIGN, echo, Outcome.SUCCESS));
+		Assertions.assertEquals(3, metrics.getHistograms().size());
+
+		// without methods the series of a canister are merged, lookups ignore the method
+		HistogramMetrics byCanister = HistogramMetrics.create().byMethod(false);
+
+		byCanister.record(Phase.ROUND_TRIP, echo, Outcome.SUCCESS, 10);
+		byCanister.record(Phase.ROUND_TRIP, other, Outcome.SUCCESS, 30);
+
+		Assertions.assertEquals(1, byCanister.getHistograms().size());
+		Assertions.assertEquals(2, byCanister.getHistogram(Phase.ROUND_TRIP, echo, Outcome.SUCCESS).getCount());
+		Assertions.assertNull(byCanister.getHistograms().keySet().iterator().next().getTags().getMethod());
+
+		HistogramMetrics byType = HistogramMetrics.create().byCanister(false).byMethod(false);
+
+		byType.record(Phase.ROUND_TRIP, echo, Outcome.SUCCESS, 10);
+		byType.record(Phase.ROUND_TRIP, RequestTags.create(Principal.fromString(BulkUpdaterTest.OTHER_CANISTER_ID),
+				"echo", RequestType.QUERY), Outcome.SUCCESS, 10);
+
+		Assertions.assertEquals(2,
+				byType.getHistogram(Phase.ROUND_TRIP, RequestTags.create(null, null, RequestType.QUERY), Outcome.SUCCESS)
+						.getCount());
+
+		// an Agent records its queries
+		StubReplica replica = new StubReplica();
+
+		HistogramMetrics agentMetrics = HistogramMetrics.create();
+
+		Agent agent = new AgentBuilder().transport(replica).metrics(agentMetrics).build();
+
+		agent.queryRaw(this.canisterId, this.canisterId, "echo", new byte[0], Optional.empty()).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(1, agentMetrics.getHistogram(Phase.ROUND_TRIP, echo, Outcome.SUCCESS).getCount());
+	}
+
+	@Test
+	public void testOutcome() {
+		AgentError rejected = AgentError.create(AgentError.AgentErrorCode.REPLICA_ERROR, 5, "Rejected");
+
+		Assertions.assertEquals(Outcome.SUCCESS, Outcome.of(null));
+		Assertions.assertEquals(Outcome.REJECTED, Outcome.of(rejected));
+		Assertions.assertEquals(Outcome.CANCELLED, Outcome.of(new CancellationException()));
+		Assertions.assertEquals(Outcome.CANCELLED, Outcome.of(AgentError.create(AgentError.AgentErrorCode.DEADLINE_EXCEEDED)));
+		Assertions.assertEquals(Outcome.ERROR, Outcome.of(AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, "Unavailable")));
+		Assertions.assertEquals(Outcome.ERROR, Outcome.of(new IllegalStateException()));
+
+		// the causes of wrapped errors count
+		Assertions.assertEquals(Outcome.REJECTED, Outcome.of(new CompletionException(rejected)));
+		Assertions.assertEquals(Outcome.REJECTED, Outcome.of(new ExecutionException(new CompletionException(rejected))));
+		Assertions.assertEquals(Outcome.CANCELLED, Outcome.of(new CompletionException(new CancellationException())));
+		Assertions.assertEquals(Outcome.ERROR, Outcome.of(new CompletionException(null)));
+	}
+
+	// largest value in the bucket of value, the median of value and a larger one
+	static long highestValue(long value) {
+		Histogram histogram = new Histogram();
+
+		histogram.record(value);
+		histogram.record(Long.MAX_VALUE);
+
+		return histogram.getPercentile(0.5);
+	}
+}
@@ -0,0 +1,15 @@
+package org.ic4j.agent.test;
+
+import java.math.BigInteger;
+
+import org.ic4j.agent.annotations.QUERY;
+import org.ic4j.candid.annotations.Deserializer;
+import org.ic4j.candid.annotations.Name;
+
+public interface PlanProxy {
+
+	@QUERY
+	@Name("echo")
+	@Deserializer(InvocationPlanTest.CountingDeserializer.class)
+	public BigInteger echo(BigInteger value);
+}
@@ -0,0 +1,102 @@
+package org.ic4j.agent.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Priority;
+import org.ic4j.agent.PriorityExecutor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * PriorityExecutor with a single thread, held by a first task while the others queue up.
+ */
+public class PriorityExecutorTest {
+
+	@Test
+	public void testOrdering() throws Exception {
+		PriorityExecutor executor = PriorityExecutor.create(1);
+
+		try {
+			LinkedBlockingQueue<String> executed = new LinkedBlockingQueue<String>();
+
+			CountDownLatch running = this.hold(executor);
+
+			executor.execute(Priority.BULK, () -> executed.add("bulk 1"));
+			executor.execute(Priority.BULK, () -> executed.add("bulk 2"));
+			executor.execute(() -> executed.add("normal 1"));
+			executor.execute(Priority.INTERACTIVE, () -> executed.add("interactive 1"));
+			executor.execute(Priority.NORMAL, () -> executed.add("normal 2"));
+			executor.execute(Priority.INTERACTIVE, () -> executed.add("interactive 2"));
+
+			Assertions.assertEquals(6, executor.getQueued());
+
+			running.countDown();
+
+			// higher classes first, in arrival order within a class
+			Assertions.assertEquals(Arrays.asList("interactive 1", "interactive 2", "normal 1", "normal 2", "bulk 1",
+					"bulk 2"), take(executed, 6));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSlack() throws Exception {
+		PriorityExecutor executor = PriorityExecutor.create(1);
+
+		try {
+			LinkedBlockingQueue<String> executed = new LinkedBlockingQueue<String>();
+
+			CountDownLatch running = this.hold(executor);
+
+			executor.execute(Priority.BULK, () -> executed.add("bulk"));
+
+			// arriving more than BULK's slack later, an interactive task does not overtake it
+			Thread.sleep(1100);
+
+			executor.execute(Priority.INTERACTIVE, () -> executed.add("interactive"));
+
+			running.countDown();
+
+			Assertions.assertEquals(Arrays.asList("bulk", "interactive"), take(executed, 2));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// occupies the thread until the returned latch is counted down
+	CountDownLatch hold(PriorityExecutor executor) throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch running = new CountDownLatch(1);
+
+		executor.execute(Priority.INTERACTIVE, () -> {
+			started.countDown();
+
+			try {
+				running.await(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		Assertions.assertTrue(started.await(30, TimeUnit.SECONDS));
+
+		return running;
+	}
+
+	static List<String> take(LinkedBlockingQueue<String> executed, int count) throws InterruptedException {
+		String[] items = new String[count];
+
+		for (int i = 0; i < count; i++) {
+			items[i] = executed.poll(30, TimeUnit.SECONDS);
+
+			Assertions.assertNotNull(items[i], "Nothing executed");
+		}
+
+		return Arrays.asList(items);
+	}
+}
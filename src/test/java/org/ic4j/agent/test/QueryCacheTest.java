@@ -0,0 +1,201 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.QueryCache;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * QueryCache on an Agent whose transport answers queries and read_state requests locally.
+ */
+public class QueryCacheTest {
+	static final String METHOD = "echo";
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testTtl() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCache cache = QueryCache.create().ttl(METHOD, Duration.ofMillis(200));
+
+		Agent agent = new AgentBuilder().transport(replica).queryCache(cache).build();
+
+		this.query(agent, "a");
+		this.query(agent, "a");
+
+		Assertions.assertEquals(1, replica.queries.get());
+		Assertions.assertEquals(1, cache.getHits());
+		Assertions.assertEquals(1, cache.getMisses());
+
+		Thread.sleep(300);
+
+		this.query(agent, "a");
+
+		Assertions.assertEquals(2, replica.queries.get());
+		Assertions.assertEquals(2, cache.getMisses());
+		Assertions.assertEquals(1, cache.getSize());
+
+		// methods without a TTL are not cached
+		agent.queryRaw(this.canisterId, this.canisterId, "other", new byte[0], Optional.empty()).get(30,
+				TimeUnit.SECONDS);
+		agent.queryRaw(this.canisterId, this.canisterId, "other", new byte[0], Optional.empty()).get(30,
+				TimeUnit.SECONDS);
+
+		Assertions.assertEquals(4, replica.queries.get());
+		Assertions.assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		StubReplica replica = new StubReplica(1000);
+
+		// room for two of the ~1.2KB entries
+		QueryCache cache = QueryCache.create(2500, Duration.ofMinutes(1));
+
+		Agent agent = new AgentBuilder().transport(replica).queryCache(cache).build();
+
+		this.query(agent, "a");
+		this.query(agent, "b");
+
+		long bytes = cache.getBytes();
+
+		Assertions.assertEquals(2, cache.getSize());
+		Assertions.assertTrue(bytes > 2000 && bytes <= 2500, bytes + " bytes");
+
+		// a becomes the most recently used, so c evicts b
+		this.query(agent, "a");
+		this.query(agent, "c");
+
+		Assertions.assertEquals(2, cache.getSize());
+		Assertions.assertEquals(1, cache.getEvictions());
+		Assertions.assertTrue(cache.getBytes() <= 2500);
+
+		int queries = replica.queries.get();
+
+		this.query(agent, "a");
+		Assertions.assertEquals(queries, replica.queries.get());
+
+		this.query(agent, "b");
+		Assertions.assertEquals(queries + 1, replica.queries.get());
+
+		// a reply larger than the whole cache is never stored
+		StubReplica large = new StubReplica(4000);
+		QueryCache small = QueryCache.create(2500, Duration.ofMinutes(1));
+
+		Agent largeAgent = new AgentBuilder().transport(large).queryCache(small).build();
+
+		this.query(largeAgent, "a");
+
+		Assertions.assertEquals(0, small.getSize());
+		Assertions.assertEquals(0, small.getBytes());
+	}
+
+	@Test
+	public void testInvalidationDuringQuery() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCache cache = QueryCache.create(QueryCache.DEFAULT_MAX_BYTES, Duration.ofMinutes(1));
+
+		Agent agent = new AgentBuilder().transport(replica).queryCache(cache).build();
+
+		replica.hold = true;
+
+		CompletableFuture<byte[]> response = agent.queryRaw(this.canisterId, this.canisterId, METHOD,
+				"a".getBytes(StandardCharsets.UTF_8), Optional.empty());
+
+		// the reply was produced before the invalidation, it must not be stored after it
+		cache.invalidate(this.canisterId);
+
+		replica.release();
+
+		Assertions.assertNotNull(response.get(30, TimeUnit.SECONDS));
+		Assertions.assertEquals(0, cache.getSize());
+
+		this.query(agent, "a");
+		this.query(agent, "a");
+
+		Assertions.assertEquals(2, replica.queries.get());
+		Assertions.assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void testModuleHashChange() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCache cache = QueryCache.create(QueryCache.DEFAULT_MAX_BYTES, Duration.ofMinutes(1))
+				.invalidateOnModuleHashChange().validateAfter(Duration.ZERO);
+
+		Agent agent = new AgentBuilder().transport(replica).queryCache(cache).build();
+		agent.setVerify(false);
+
+		this.query(agent, "a");
+		this.query(agent, "a");
+
+		Assertions.assertEquals(1, replica.queries.get());
+		Assertions.assertTrue(replica.readStates.get() >= 2);
+		Assertions.assertEquals(0, cache.getInvalidations());
+
+		// upgrade
+		replica.moduleHash = new byte[] { 2 };
+
+		this.query(agent, "a");
+
+		Assertions.assertEquals(1, cache.getInvalidations());
+		Assertions.assertEquals(2, replica.queries.get());
+
+		this.query(agent, "a");
+
+		Assertions.assertEquals(2, replica.queries.get());
+		Assertions.assertEquals(1, cache.getInvalidations());
+	}
+
+	@Test
+	public void testPathChange() throws Exception {
+		StubReplica replica = new StubReplica(16);
+
+		List<byte[]> path = Arrays.asList("canister".getBytes(StandardCharsets.UTF_8), this.canisterId.getValue(),
+				"certified_data".getBytes(StandardCharsets.UTF_8));
+
+		QueryCache cache = QueryCache.create(QueryCache.DEFAULT_MAX_BYTES, Duration.ofMinutes(1))
+				.invalidateOnPathChange(this.canisterId, path).validateAfter(Duration.ZERO);
+
+		Agent agent = new AgentBuilder().transport(replica).queryCache(cache).build();
+		agent.setVerify(false);
+
+		this.query(agent, "a");
+		this.query(agent, "b");
+		this.query(agent, "a");
+
+		Assertions.assertEquals(2, replica.queries.get());
+
+		// the module hash is not watched
+		replica.moduleHash = new byte[] { 2 };
+
+		this.query(agent, "a");
+
+		Assertions.assertEquals(2, replica.queries.get());
+		Assertions.assertEquals(0, cache.getInvalidations());
+
+		replica.certifiedData = new byte[] { 2 };
+
+		this.query(agent, "a");
+
+		// both entries of the canister are gone
+		Assertions.assertEquals(2, cache.getInvalidations());
+		Assertions.assertEquals(3, replica.queries.get());
+		Assertions.assertEquals(1, cache.getSize());
+	}
+
+	byte[] query(Agent agent, String arg) throws Exception {
+		return agent.queryRaw(this.canisterId, this.canisterId, METHOD, arg.getBytes(StandardCharsets.UTF_8),
+				Optional.empty()).get(30, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,217 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.Deadline;
+import org.ic4j.agent.Priority;
+import org.ic4j.agent.QueryBuilder;
+import org.ic4j.agent.QueryCoalescer;
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * QueryCoalescer on an Agent whose transport holds query replies until released.
+ */
+public class QueryCoalescerTest {
+	static final String METHOD = "echo";
+
+	static final int CALLERS = 8;
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testCoalesce() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCoalescer coalescer = QueryCoalescer.create();
+
+		Agent agent = new AgentBuilder().transport(replica).queryCoalescer(coalescer).build();
+
+		replica.hold = true;
+
+		List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+
+		for (int i = 0; i < CALLERS; i++)
+			responses.add(this.query(agent, "a"));
+
+		Assertions.assertEquals(1, replica.queries.get());
+		Assertions.assertEquals(1, coalescer.getSent());
+		Assertions.assertEquals(CALLERS - 1, coalescer.getCoalesced());
+		Assertions.assertEquals(1, coalescer.getInFlight());
+
+		// every caller has its own future
+		for (int i = 1; i < CALLERS; i++)
+			Assertions.assertNotSame(responses.get(0), responses.get(i));
+
+		replica.release();
+
+		for (CompletableFuture<byte[]> response : responses)
+			Assertions.assertEquals(16, response.get(30, TimeUnit.SECONDS).length);
+
+		Assertions.assertEquals(0, coalescer.getInFlight());
+
+		// nothing in flight any more, the next query is sent
+		this.query(agent, "a").get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(2, replica.queries.get());
+		Assertions.assertEquals(2, coalescer.getSent());
+		Assertions.assertEquals(CALLERS - 1, coalescer.getCoalesced());
+	}
+
+	@Test
+	public void testDifferentQueries() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCoalescer coalescer = QueryCoalescer.create();
+
+		Agent agent = new AgentBuilder().transport(replica).queryCoalescer(coalescer).build();
+		Agent other = agent.withIdentity(ReadStateEnvelopeCacheTest.identity());
+		Agent interactive = agent.withPriority(Priority.INTERACTIVE);
+
+		replica.hold = true;
+
+		List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+
+		responses.add(this.query(agent, "a"));
+		responses.add(this.query(agent, "b"));
+		responses.add(agent.queryRaw(this.canisterId, this.canisterId, "other", "a".getBytes(StandardCharsets.UTF_8),
+				Optional.empty()));
+
+		// replies are never shared across senders
+		responses.add(this.query(other, "a"));
+
+		// nor across priorities, an interactive query does not wait for a normal one
+		responses.add(this.query(interactive, "a"));
+		responses.add(this.query(interactive, "a"));
+
+		Assertions.assertEquals(5, replica.queries.get());
+		Assertions.assertEquals(5, coalescer.getSent());
+		Assertions.assertEquals(1, coalescer.getCoalesced());
+		Assertions.assertEquals(5, coalescer.getInFlight());
+
+		replica.release();
+
+		for (CompletableFuture<byte[]> response : responses)
+			Assertions.assertNotNull(response.get(30, TimeUnit.SECONDS));
+
+		Assertions.assertEquals(0, coalescer.getInFlight());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCoalescer coalescer = QueryCoalescer.create();
+
+		Agent agent = new AgentBuilder().transport(replica).queryCoalescer(coalescer).build();
+
+		replica.hold = true;
+
+		CompletableFuture<byte[]> leader = this.query(agent, "a");
+		CompletableFuture<byte[]> follower = this.query(agent, "a");
+		CompletableFuture<byte[]> cancelled = this.query(agent, "a");
+
+		// neither the leader nor a follower cancelling takes the reply from the others
+		Assertions.assertTrue(leader.cancel(true));
+		Assertions.assertTrue(cancelled.cancel(true));
+
+		Assertions.assertEquals(1, coalescer.getInFlight());
+
+		CompletableFuture<byte[]> late = this.query(agent, "a");
+
+		Assertions.assertEquals(1, replica.queries.get());
+
+		replica.release();
+
+		Assertions.assertEquals(16, follower.get(30, TimeUnit.SECONDS).length);
+		Assertions.assertEquals(16, late.get(30, TimeUnit.SECONDS).length);
+		Assertions.assertEquals(0, coalescer.getInFlight());
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCoalescer coalescer = QueryCoalescer.create();
+
+		Agent agent = new AgentBuilder().transport(replica).queryCoalescer(coalescer).build();
+
+		replica.hold = true;
+
+		Deadline cancelled = Deadline.none();
+
+		CompletableFuture<byte[]> leader = QueryBuilder.create(agent, this.canisterId, METHOD)
+				.arg("a".getBytes(StandardCharsets.UTF_8)).deadline(Deadline.after(Duration.ofMillis(100))).call();
+		CompletableFuture<byte[]> follower = this.query(agent, "a");
+		CompletableFuture<byte[]> abandoned = QueryBuilder.create(agent, this.canisterId, METHOD)
+				.arg("a".getBytes(StandardCharsets.UTF_8)).deadline(cancelled).call();
+
+		Assertions.assertEquals(1, replica.queries.get());
+
+		// the leader's deadline expiring fails the leader only
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+				() -> leader.get(30, TimeUnit.SECONDS));
+
+		Assertions.assertEquals(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, ((AgentError) e.getCause()).getCode());
+
+		// and a cancelled deadline the call bound to it
+		cancelled.cancel();
+
+		Assertions.assertTrue(abandoned.isCancelled());
+
+		Assertions.assertEquals(1, coalescer.getInFlight());
+		Assertions.assertFalse(replica.held.get(0).isCancelled());
+
+		replica.release();
+
+		Assertions.assertEquals(16, follower.get(30, TimeUnit.SECONDS).length);
+		Assertions.assertEquals(0, coalescer.getInFlight());
+		Assertions.assertEquals(1, replica.queries.get());
+	}
+
+	@Test
+	public void testError() throws Exception {
+		StubReplica replica = new StubReplica(16);
+		QueryCoalescer coalescer = QueryCoalescer.create();
+
+		Agent agent = new AgentBuilder().transport(replica).queryCoalescer(coalescer).build();
+
+		replica.hold = true;
+
+		List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+
+		for (int i = 0; i < CALLERS; i++)
+			responses.add(this.query(agent, "a"));
+
+		for (CompletableFuture<ReplicaResponse> response : replica.held)
+			response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, "Unavailable"));
+
+		replica.release();
+
+		for (CompletableFuture<byte[]> response : responses) {
+			ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+					() -> response.get(30, TimeUnit.SECONDS));
+
+			Assertions.assertTrue(e.getCause() instanceof AgentError, String.valueOf(e.getCause()));
+		}
+
+		Assertions.assertEquals(0, coalescer.getInFlight());
+
+		// a failed query is not remembered
+		Assertions.assertEquals(16, this.query(agent, "a").get(30, TimeUnit.SECONDS).length);
+		Assertions.assertEquals(2, replica.queries.get());
+	}
+
+	CompletableFuture<byte[]> query(Agent agent, String arg) throws Exception {
+		return agent.queryRaw(this.canisterId, this.canisterId, METHOD, arg.getBytes(StandardCharsets.UTF_8),
+				Optional.empty());
+	}
+}
@@ -0,0 +1,108 @@
+package org.ic4j.agent.test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ic4j.agent.replicaapi.QueryResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/*
+ * QueryResponse.read parses pooled response bodies by hand, it has to agree with ObjectMapper.readValue.
+ */
+public class QueryResponseReadTest {
+	ObjectMapper objectMapper = new ObjectMapper(new CBORFactory());
+
+	@Test
+	public void test() throws Exception {
+		// arg lengths with 1, 2, 3 and 5 byte CBOR headers
+		for (int size : new int[] { 0, 5, 23, 24, 255, 300, 70000 })
+			this.compare(this.replied(size));
+
+		this.compare(this.rejected(3, "Canister has no query method", null));
+		this.compare(this.rejected(5, "Canister trapped", "IC0503"));
+	}
+
+	void compare(byte[] bytes) throws Exception {
+		QueryResponse expected = this.objectMapper.readValue(bytes, QueryResponse.class);
+
+		this.compare(expected, ByteBuffer.wrap(bytes));
+
+		// body at an offset in a larger buffer, followed by bytes that are not part of it
+		ByteBuffer offset = ByteBuffer.allocate(bytes.length + 64);
+		offset.position(17);
+		offset.put(bytes);
+		offset.put(new byte[] { 1, 2, 3 });
+		offset.position(17);
+		offset.limit(17 + bytes.length);
+
+		this.compare(expected, offset);
+		this.compare(expected, offset.duplicate());
+		this.compare(expected, offset.slice().asReadOnlyBuffer());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 8);
+		direct.position(8);
+		direct.put(bytes);
+		direct.position(8);
+
+		this.compare(expected, direct);
+	}
+
+	void compare(QueryResponse expected, ByteBuffer body) throws Exception {
+		int position = body.position();
+
+		QueryResponse actual = QueryResponse.read(this.objectMapper, body);
+
+		// the body is not consumed
+		Assertions.assertEquals(position, body.position());
+
+		Assertions.assertEquals(expected.status, actual.status);
+		Assertions.assertEquals(expected.replied.isPresent(), actual.replied.isPresent());
+		Assertions.assertEquals(expected.rejected.isPresent(), actual.rejected.isPresent());
+
+		if (expected.replied.isPresent()) {
+			Assertions.assertArrayEquals(expected.replied.get().getArg(), actual.replied.get().getArg());
+
+			ByteBuffer view = actual.replied.get().getArgBuffer();
+			byte[] viewed = new byte[view.remaining()];
+			view.get(viewed);
+
+			Assertions.assertArrayEquals(expected.replied.get().getArg(), viewed);
+		}
+
+		if (expected.rejected.isPresent()) {
+			Assertions.assertEquals(expected.rejected.get().getRejectCode(), actual.rejected.get().getRejectCode());
+			Assertions.assertEquals(expected.rejected.get().rejectMessage, actual.rejected.get().rejectMessage);
+			Assertions.assertEquals(expected.rejected.get().errorCode, actual.rejected.get().errorCode);
+		}
+	}
+
+	byte[] replied(int size) throws Exception {
+		byte[] arg = new byte[size];
+		Arrays.fill(arg, (byte) 0x2a);
+
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("status", "replied");
+		response.put("reply", Collections.singletonMap("arg", arg));
+
+		return this.objectMapper.writeValueAsBytes(response);
+	}
+
+	byte[] rejected(int rejectCode, String rejectMessage, String errorCode) throws Exception {
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("status", "rejected");
+		response.put("reject_code", rejectCode);
+		response.put("reject_message", rejectMessage);
+
+		if (errorCode != null)
+			response.put("error_code", errorCode);
+
+		return this.objectMapper.writeValueAsBytes(response);
+	}
+}
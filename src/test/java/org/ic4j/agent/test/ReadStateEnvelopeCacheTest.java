@@ -0,0 +1,123 @@
+package org.ic4j.agent.test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.identity.BasicIdentity;
+import org.ic4j.agent.identity.Identity;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/*
+ * Request status polls with AgentBuilder.readStateEnvelopeCache, against a stub replica recording
+ * the read_state envelopes.
+ */
+public class ReadStateEnvelopeCacheTest {
+	static final Duration BUCKET = Duration.ofMinutes(1);
+
+	final ObjectMapper objectMapper = new ObjectMapper(new CBORFactory());
+
+	@Test
+	public void testSameBucket() throws Exception {
+		StubReplica transport = unavailable();
+
+		Agent agent = new AgentBuilder().transport(transport).identity(identity()).readStateEnvelopeCache(BUCKET)
+				.build();
+
+		List<byte[]> envelopes = this.poll(agent, transport, 3);
+
+		long bucket = TimeUnit.MILLISECONDS.toNanos(BUCKET.toMillis());
+
+		for (int i = 0; i < envelopes.size(); i++) {
+			long ingressExpiry = this.ingressExpiry(envelopes.get(i));
+
+			Assertions.assertEquals(0, ingressExpiry % bucket);
+
+			// polls straddling the end of a bucket are the only ones allowed to differ
+			if (i > 0 && ingressExpiry == this.ingressExpiry(envelopes.get(i - 1)))
+				Assertions.assertArrayEquals(envelopes.get(i - 1), envelopes.get(i));
+		}
+
+		Assertions.assertTrue(
+				this.ingressExpiry(envelopes.get(0)) != this.ingressExpiry(envelopes.get(2))
+						|| envelopes.get(0) == envelopes.get(2),
+				"Polls within one bucket have to reuse the signed envelope");
+	}
+
+	@Test
+	public void testWithoutCache() throws Exception {
+		StubReplica transport = unavailable();
+
+		Agent agent = new AgentBuilder().transport(transport).identity(identity()).build();
+
+		List<byte[]> envelopes = this.poll(agent, transport, 2);
+
+		Assertions.assertNotSame(envelopes.get(0), envelopes.get(1));
+	}
+
+	@Test
+	public void testValidation() {
+		ReplicaTransport transport = new StubReplica();
+
+		Assertions.assertThrows(AgentError.class,
+				() -> new AgentBuilder().transport(transport).readStateEnvelopeCache(Duration.ZERO));
+		Assertions.assertThrows(AgentError.class,
+				() -> new AgentBuilder().transport(transport).readStateEnvelopeCache(Duration.ofSeconds(-1)));
+		Assertions.assertThrows(AgentError.class,
+				() -> new AgentBuilder().transport(transport).readStateEnvelopeCache(BUCKET, 0));
+
+		// the default ingress expiry is 5 minutes, less one minute of permitted drift
+		Assertions.assertThrows(AgentError.class,
+				() -> new AgentBuilder().transport(transport).readStateEnvelopeCache(Duration.ofMinutes(4)).build());
+		Assertions.assertThrows(AgentError.class, () -> new AgentBuilder().transport(transport)
+				.readStateEnvelopeCache(BUCKET).ingresExpiry(Duration.ofSeconds(90)).build());
+
+		Assertions.assertNotNull(new AgentBuilder().transport(transport).readStateEnvelopeCache(BUCKET).build());
+	}
+
+	List<byte[]> poll(Agent agent, StubReplica transport, int polls) throws Exception {
+		RequestId requestId = RequestId.fromHexString("6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a6f7a");
+		Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+		for (int i = 0; i < polls; i++)
+			agent.requestStatusRaw(requestId, canisterId).handle((status, ex) -> status).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(polls, transport.envelopes.size());
+
+		return transport.envelopes;
+	}
+
+	long ingressExpiry(byte[] envelope) throws Exception {
+		return this.objectMapper.readTree(envelope).get("content").get("ingress_expiry").asLong();
+	}
+
+	// failing every request, after recording its envelope
+	static StubReplica unavailable() {
+		StubReplica replica = new StubReplica();
+		replica.unavailable = true;
+
+		return replica;
+	}
+
+	static Identity identity() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+
+		KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+
+		return BasicIdentity.fromKeyPair(keyPair);
+	}
+}
@@ -0,0 +1,130 @@
+package org.ic4j.agent.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.GeneratedProxy;
+import org.ic4j.agent.ProxyBuilder;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.ic4j.agent.http.ReplicaOkHttpTransport;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.HttpStatusCode;
+import org.mockserver.model.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Test sources are compiled with the proxy processor, so ProxyBuilder always finds HelloProxyImpl.
+ * This loads HelloProxy through a class loader that hides the generated class, forcing the
+ * java.lang.reflect.Proxy fallback.
+ */
+public class ReflectionProxyTest extends MockTest {
+	static final Logger LOG = LoggerFactory.getLogger(ReflectionProxyTest.class);
+
+	@Test
+	public void test() throws Exception {
+		mockServerClient.reset();
+
+		byte[] reply = Files.readAllBytes(Paths.get(
+				getClass().getClassLoader().getResource(TestProperties.CBOR_ECHOINT_QUERY_RESPONSE_FILE).getPath()));
+
+		mockServerClient
+				.when(new HttpRequest().withMethod("POST")
+						.withPath("/api/v2/canister/" + TestProperties.CANISTER_ID + "/query"))
+				.respond(HttpResponse.response().withStatusCode(HttpStatusCode.OK_200.code())
+						.withContentType(MediaType.create("application", "cbor")).withBody(reply));
+
+		ReplicaTransport transport;
+
+		switch (TestProperties.TRANSPORT_TYPE) {
+		case "http.ok":
+			transport = ReplicaOkHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+			break;
+		default:
+			transport = ReplicaApacheHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+			break;
+		}
+
+		try {
+			Agent agent = new AgentBuilder().transport(transport).build();
+
+			Class<?> interfaceClass = new HidingClassLoader(HelloProxy.class).loadClass(HelloProxy.class.getName());
+
+			Assertions.assertNotSame(HelloProxy.class, interfaceClass);
+
+			Object hello = ProxyBuilder.create(agent, Principal.fromString(TestProperties.CANISTER_ID))
+					.getProxy(interfaceClass);
+
+			Assertions.assertFalse(hello instanceof GeneratedProxy);
+			Assertions.assertTrue(Proxy.isProxyClass(hello.getClass()));
+
+			Method getInt = interfaceClass.getMethod("getInt", BigInteger.class);
+
+			BigInteger result = (BigInteger) getInt.invoke(hello, new BigInteger("10000"));
+
+			LOG.info(result.toString());
+			Assertions.assertEquals(BigInteger.valueOf(10001), result);
+		} finally {
+			transport.close();
+			mockServerClient.reset();
+		}
+	}
+
+	/*
+	 * Defines the interface itself and refuses its generated class, everything else comes from the parent.
+	 */
+	static final class HidingClassLoader extends ClassLoader {
+		final String interfaceName;
+		final String generatedName;
+
+		HidingClassLoader(Class<?> interfaceClass) {
+			super(interfaceClass.getClassLoader());
+
+			this.interfaceName = interfaceClass.getName();
+			this.generatedName = interfaceClass.getName() + "Impl";
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.equals(this.generatedName))
+				throw new ClassNotFoundException(name);
+
+			if (!name.equals(this.interfaceName))
+				return super.loadClass(name, resolve);
+
+			synchronized (this.getClassLoadingLock(name)) {
+				Class<?> loaded = this.findLoadedClass(name);
+
+				if (loaded != null)
+					return loaded;
+
+				try (InputStream in = this.getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buffer = new byte[4096];
+
+					for (int read; (read = in.read(buffer)) > 0;)
+						out.write(buffer, 0, read);
+
+					byte[] bytes = out.toByteArray();
+
+					return this.defineClass(name, bytes, 0, bytes.length);
+				} catch (IOException e) {
+					throw new ClassNotFoundException(name, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.ic4j.agent.test;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.RetryPolicy;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.ic4j.agent.http.ReplicaOkHttpTransport;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.HttpStatusCode;
+import org.mockserver.model.MediaType;
+import org.mockserver.model.RequestDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Retries against the mock replica and against a stub replica answering with 503, which records
+ * when each attempt went out.
+ */
+public class RetryPolicyTest extends MockTest {
+	static final Logger LOG = LoggerFactory.getLogger(RetryPolicyTest.class);
+
+	static final String QUERY_PATH = "/api/v2/canister/" + TestProperties.CANISTER_ID + "/query";
+
+	// scheduling slack on top of the backoff, and clock granularity below it
+	static final long TOLERANCE_MILLIS = 100;
+
+	@Test
+	public void testSameEnvelope() throws Exception {
+		mockServerClient.reset();
+
+		HttpRequest queryRequest = new HttpRequest().withMethod("POST").withPath(QUERY_PATH);
+
+		mockServerClient.when(queryRequest, Times.exactly(2))
+				.respond(HttpResponse.response().withStatusCode(HttpStatusCode.SERVICE_UNAVAILABLE_503.code()));
+
+		byte[] reply = Files.readAllBytes(Paths.get(
+				getClass().getClassLoader().getResource(TestProperties.CBOR_ECHOINT_QUERY_RESPONSE_FILE).getPath()));
+
+		mockServerClient.when(queryRequest).respond(HttpResponse.response().withStatusCode(HttpStatusCode.OK_200.code())
+				.withContentType(MediaType.create("application", "cbor")).withBody(reply));
+
+		ReplicaTransport transport;
+
+		switch (TestProperties.TRANSPORT_TYPE) {
+		case "http.ok":
+			transport = ReplicaOkHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+			break;
+		default:
+			transport = ReplicaApacheHttpTransport.create("http://localhost:" + TestProperties.MOCK_PORT);
+			break;
+		}
+
+		// HttpClient's own retries would wait a second before re-sending the 503s themselves
+		transport.setAutomaticRetries(false);
+
+		Agent agent = new AgentBuilder().transport(transport)
+				.retryPolicy(RetryPolicy.create(4, Duration.ofMillis(50), Duration.ofMillis(200))).build();
+
+		try {
+			long start = System.nanoTime();
+
+			byte[] output = this.echoInt(agent).get(30, TimeUnit.SECONDS);
+
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			Assertions.assertEquals(BigInteger.valueOf(10001), IDLArgs.fromBytes(output).getArgs().get(0).getValue());
+
+			Assertions.assertTrue(elapsed < 1000, "Retries took " + elapsed + "ms");
+
+			RequestDefinition[] requests = mockServerClient.retrieveRecordedRequests(queryRequest);
+
+			Assertions.assertEquals(3, requests.length);
+
+			byte[] envelope = ((HttpRequest) requests[0]).getBodyAsRawBytes();
+
+			for (RequestDefinition request : requests)
+				Assertions.assertArrayEquals(envelope, ((HttpRequest) request).getBodyAsRawBytes());
+		} finally {
+			transport.close();
+			mockServerClient.reset();
+		}
+	}
+
+	@Test
+	public void testBackoff() throws Exception {
+		StubReplica transport = unavailable();
+
+		Agent agent = new AgentBuilder().transport(transport)
+				.retryPolicy(RetryPolicy.create(4, Duration.ofMillis(100), Duration.ofMillis(150))).build();
+
+		this.echoInt(agent).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		List<Long> gaps = gaps(transport);
+
+		LOG.info("Backoff " + gaps + "ms");
+
+		Assertions.assertEquals(4, transport.sent.size());
+
+		// between half and all of 100ms, then of 200ms capped at 150ms
+		assertBetween(gaps.get(0), 50, 100);
+		assertBetween(gaps.get(1), 75, 150);
+		assertBetween(gaps.get(2), 75, 150);
+
+		for (byte[] envelope : transport.envelopes)
+			Assertions.assertArrayEquals(transport.envelopes.get(0), envelope);
+	}
+
+	@Test
+	public void testJitter() throws Exception {
+		List<Long> backoffs = new ArrayList<Long>();
+
+		for (int i = 0; i < 8; i++) {
+			StubReplica transport = unavailable();
+
+			Agent agent = new AgentBuilder().transport(transport)
+					.retryPolicy(RetryPolicy.create(2, Duration.ofMillis(100), Duration.ofMillis(100))).build();
+
+			this.echoInt(agent).handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+			Assertions.assertEquals(2, transport.sent.size());
+
+			long gap = gaps(transport).get(0);
+			assertBetween(gap, 50, 100);
+
+			backoffs.add(gap);
+		}
+
+		LOG.info("Jittered backoff " + backoffs + "ms");
+
+		Assertions.assertTrue(Collections.max(backoffs) - Collections.min(backoffs) > 5, "No jitter in " + backoffs);
+	}
+
+	@Test
+	public void testIngressExpiry() throws Exception {
+		StubReplica transport = unavailable();
+
+		Agent agent = new AgentBuilder().transport(transport)
+				.retryPolicy(RetryPolicy.create(10, Duration.ofMillis(400), Duration.ofSeconds(2))).build();
+
+		// warm up, so that building the first request does not eat into the expiry
+		new AgentBuilder().transport(new StubReplica()).build().queryRaw(Principal.fromString(TestProperties.CANISTER_ID),
+				Principal.fromString(TestProperties.CANISTER_ID), "echoInt", new byte[0], Optional.empty())
+				.handle((output, ex) -> output).get(30, TimeUnit.SECONDS);
+
+		long expiryMillis = System.currentTimeMillis() + 600;
+
+		// the first retry, 200 to 400ms later, fits before the expiry, the second one, 400 to 800ms after that, does not
+		this.echoInt(agent, Optional.of(TimeUnit.MILLISECONDS.toNanos(expiryMillis))).handle((output, ex) -> output)
+				.get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(2, transport.sent.size());
+
+		for (long sent : transport.sent)
+			Assertions.assertTrue(sent < expiryMillis);
+
+		Thread.sleep(800);
+
+		Assertions.assertEquals(2, transport.sent.size());
+	}
+
+	CompletableFuture<byte[]> echoInt(Agent agent) {
+		return this.echoInt(agent, Optional.empty());
+	}
+
+	CompletableFuture<byte[]> echoInt(Agent agent, Optional<Long> ingressExpiry) {
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(IDLValue.create(new BigInteger("10000")));
+
+		Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+		return agent.queryRaw(canisterId, canisterId, "echoInt", IDLArgs.create(args).toBytes(), ingressExpiry);
+	}
+
+	// a transport answering every request with 503
+	static StubReplica unavailable() {
+		StubReplica replica = new StubReplica();
+		replica.statusCode = HttpStatusCode.SERVICE_UNAVAILABLE_503.code();
+
+		return replica;
+	}
+
+	// milliseconds between attempts
+	static List<Long> gaps(StubReplica replica) {
+		List<Long> gaps = new ArrayList<Long>();
+
+		for (int i = 1; i < replica.sent.size(); i++)
+			gaps.add(replica.sent.get(i) - replica.sent.get(i - 1));
+
+		return gaps;
+	}
+
+	static void assertBetween(long value, long min, long max) {
+		Assertions.assertTrue(value >= min - 2 && value <= max + TOLERANCE_MILLIS,
+				value + "ms not between " + min + "ms and " + max + "ms");
+	}
+}
@@ -0,0 +1,154 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.agent.ScatterQuery;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * ScatterQuery against a stub replica echoing each canister's arg, or holding the queries.
+ */
+public class ScatterQueryTest {
+	static final String[] CANISTER_IDS = { TestProperties.CANISTER_ID, BulkUpdaterTest.OTHER_CANISTER_ID,
+			"r7inp-6aaaa-aaaaa-aaabq-cai", "ivg37-qiaaa-aaaab-aaaga-cai" };
+
+	@Test
+	public void testReplies() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		ScatterQuery.Results results = ScatterQuery.create(agent(replica), "echo").call(args()).get(30,
+				TimeUnit.SECONDS);
+
+		Assertions.assertTrue(results.isComplete());
+		Assertions.assertEquals(CANISTER_IDS.length, results.getReplies().size());
+
+		for (Map.Entry<Principal, byte[]> reply : results.getReplies().entrySet())
+			Assertions.assertEquals(reply.getKey().toString(), new String(reply.getValue(), StandardCharsets.UTF_8));
+
+		// errors of single canisters are results too
+		replica.rejectCode = 5;
+
+		results = ScatterQuery.create(agent(replica), "echo").call(args()).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertFalse(results.isComplete());
+		Assertions.assertEquals(CANISTER_IDS.length, results.getErrors().size());
+
+		for (AgentError error : results.getErrors().values())
+			Assertions.assertEquals(AgentError.AgentErrorCode.REPLICA_ERROR, error.getCode());
+	}
+
+	@Test
+	public void testMaxConcurrency() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		CompletableFuture<ScatterQuery.Results> results = ScatterQuery.create(agent(replica), "echo").maxConcurrency(2)
+				.call(args());
+
+		Assertions.assertEquals(2, replica.queries.get());
+
+		// a completed query makes room for the next one
+		replica.release(1);
+
+		Assertions.assertEquals(3, replica.queries.get());
+
+		replica.release();
+
+		Assertions.assertTrue(results.get(30, TimeUnit.SECONDS).isComplete());
+		Assertions.assertEquals(CANISTER_IDS.length, replica.queries.get());
+	}
+
+	@Test
+	public void testTimeouts() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		// each query gets callTimeout
+		ScatterQuery.Results results = ScatterQuery.create(agent(replica), "echo").callTimeout(Duration.ofMillis(100))
+				.call(args()).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CANISTER_IDS.length, results.getErrors().size());
+
+		for (AgentError error : results.getErrors().values())
+			Assertions.assertEquals(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, error.getCode());
+
+		assertCancelled(replica.held);
+
+		// the whole call gets timeout, canisters never started included
+		StubReplica held = new StubReplica();
+		held.hold = true;
+
+		results = ScatterQuery.create(agent(held), "echo").maxConcurrency(1).timeout(Duration.ofMillis(100))
+				.call(args()).get(30, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(CANISTER_IDS.length, results.getErrors().size());
+		Assertions.assertEquals(1, held.queries.get());
+
+		for (AgentError error : results.getErrors().values())
+			Assertions.assertEquals(AgentError.AgentErrorCode.DEADLINE_EXCEEDED, error.getCode());
+
+		assertCancelled(held.held);
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		CompletableFuture<ScatterQuery.Results> results = ScatterQuery.create(agent(replica), "echo").maxConcurrency(2)
+				.call(args());
+
+		Assertions.assertEquals(2, replica.queries.get());
+
+		results.cancel(true);
+
+		// the running queries are cancelled, no other one starts
+		assertCancelled(replica.held);
+
+		replica.release();
+
+		Thread.sleep(100);
+
+		Assertions.assertEquals(2, replica.queries.get());
+	}
+
+	// the results may complete just before the queries are cancelled
+	static void assertCancelled(List<CompletableFuture<ReplicaResponse>> held) throws InterruptedException {
+		List<CompletableFuture<ReplicaResponse>> responses = new ArrayList<CompletableFuture<ReplicaResponse>>(held);
+
+		Assertions.assertFalse(responses.isEmpty());
+
+		for (CompletableFuture<ReplicaResponse> response : responses) {
+			for (int i = 0; i < 100 && !response.isCancelled(); i++)
+				Thread.sleep(10);
+
+			Assertions.assertTrue(response.isCancelled());
+		}
+	}
+
+	static Map<Principal, byte[]> args() {
+		Map<Principal, byte[]> args = new LinkedHashMap<Principal, byte[]>();
+
+		for (String canisterId : CANISTER_IDS)
+			args.put(Principal.fromString(canisterId), canisterId.getBytes(StandardCharsets.UTF_8));
+
+		return args;
+	}
+
+	static Agent agent(StubReplica replica) {
+		return new AgentBuilder().transport(replica).build();
+	}
+}
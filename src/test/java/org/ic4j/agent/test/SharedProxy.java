@@ -0,0 +1,20 @@
+package org.ic4j.agent.test;
+
+import java.math.BigInteger;
+
+import org.ic4j.agent.annotations.Agent;
+import org.ic4j.agent.annotations.Canister;
+import org.ic4j.agent.annotations.Identity;
+import org.ic4j.agent.annotations.IdentityType;
+import org.ic4j.agent.annotations.QUERY;
+import org.ic4j.agent.annotations.Transport;
+import org.ic4j.candid.annotations.Name;
+
+@Agent(identity = @Identity(type = IdentityType.ANONYMOUS), transport = @Transport(url = "http://localhost:8777/"))
+@Canister("rrkah-fqaaa-aaaaa-aaaaq-cai")
+public interface SharedProxy {
+
+	@QUERY
+	@Name("echoInt")
+	public BigInteger getInt(BigInteger value);
+}
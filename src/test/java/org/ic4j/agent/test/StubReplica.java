@@ -0,0 +1,313 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/*
+ * Transport answering every request locally, for tests of what the Agent does around the replica.
+ *
+ * Queries are replied with reply, or with their own arg, or rejected with rejectCode. Calls are
+ * accepted, and read_state requests get an unsigned certificate holding the request status of a
+ * call, callStatus with the call's arg as its reply, or the module hash, certified data and
+ * candid:service metadata of a canister. Agents using it have to skip certificate verification.
+ * Every field can be changed while a test runs, held responses are built when they are released.
+ */
+public final class StubReplica implements ReplicaTransport {
+	static final ObjectMapper MAPPER = new ObjectMapper(new CBORFactory());
+
+	final AtomicInteger queries = new AtomicInteger();
+	final AtomicInteger calls = new AtomicInteger();
+	final AtomicInteger readStates = new AtomicInteger();
+
+	// envelopes of all requests, and when each was sent, in milliseconds
+	final List<byte[]> envelopes = Collections.synchronizedList(new ArrayList<byte[]>());
+	final List<Long> sent = Collections.synchronizedList(new ArrayList<Long>());
+
+	// HTTP status of every response, replies only come with 200
+	volatile int statusCode = 200;
+
+	// fail every request with HTTP_ERROR instead
+	volatile boolean unavailable;
+
+	// fail this many read_state requests with HTTP_ERROR, before answering the next ones
+	final AtomicInteger readStateFailures = new AtomicInteger();
+
+	// reply of every query, the query's arg if null
+	volatile byte[] reply;
+
+	// reject queries with this code, unless 0
+	volatile int rejectCode;
+
+	// request status of every call: processing, replied, rejected with rejectCode, or done
+	volatile String callStatus = "replied";
+
+	volatile byte[] moduleHash = { 1 };
+	volatile byte[] certifiedData = { 1 };
+
+	// candid:service metadata of every canister, none if null
+	volatile String candidService;
+
+	// hold query and read_state responses until released
+	volatile boolean hold;
+	final List<CompletableFuture<ReplicaResponse>> held = new CopyOnWriteArrayList<CompletableFuture<ReplicaResponse>>();
+	final ConcurrentMap<CompletableFuture<ReplicaResponse>, Supplier<ReplicaResponse>> pending = new ConcurrentHashMap<CompletableFuture<ReplicaResponse>, Supplier<ReplicaResponse>>();
+
+	// call args by request id
+	final ConcurrentMap<String, byte[]> args = new ConcurrentHashMap<String, byte[]>();
+
+	public StubReplica() {
+	}
+
+	// replying to every query with replySize bytes
+	public StubReplica(int replySize) {
+		this.reply = new byte[replySize];
+	}
+
+	public CompletableFuture<ReplicaResponse> status() {
+		return failed();
+	}
+
+	public CompletableFuture<ReplicaResponse> query(Principal canisterId, byte[] envelope,
+			Map<String, String> headers) {
+		this.queries.incrementAndGet();
+		this.record(envelope);
+
+		return this.respond(() -> this.queryResponse(envelope));
+	}
+
+	public CompletableFuture<ReplicaResponse> call(Principal canisterId, byte[] envelope, RequestId requestId,
+			Map<String, String> headers) {
+		this.calls.incrementAndGet();
+		this.record(envelope);
+
+		if (this.unavailable)
+			return failed();
+
+		try {
+			this.args.put(requestId.toHexString(), content(envelope).get("arg").binaryValue());
+		} catch (Exception e) {
+			return failed();
+		}
+
+		ReplicaResponse response = new ReplicaResponse();
+		response.statusCode = this.statusCode == 200 ? 202 : this.statusCode;
+		response.payload = new byte[0];
+
+		return CompletableFuture.completedFuture(response);
+	}
+
+	public CompletableFuture<ReplicaResponse> readState(Principal canisterId, byte[] envelope,
+			Map<String, String> headers) {
+		this.readStates.incrementAndGet();
+		this.record(envelope);
+
+		if (this.readStateFailures.getAndUpdate(failures -> Math.max(failures - 1, 0)) > 0)
+			return failed();
+
+		return this.respond(() -> this.readStateResponse(envelope));
+	}
+
+	public void close() {
+	}
+
+	/*
+	 * Complete every held response, and stop holding.
+	 */
+	void release() {
+		this.hold = false;
+		this.release(Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Complete the count oldest held responses.
+	 */
+	void release(int count) {
+		for (CompletableFuture<ReplicaResponse> response : this.held) {
+			if (count-- <= 0)
+				return;
+
+			this.held.remove(response);
+
+			Supplier<ReplicaResponse> supplier = this.pending.remove(response);
+
+			try {
+				response.complete(supplier.get());
+			} catch (RuntimeException e) {
+				response.completeExceptionally(e);
+			}
+		}
+	}
+
+	void record(byte[] envelope) {
+		this.sent.add(System.currentTimeMillis());
+		this.envelopes.add(envelope);
+	}
+
+	CompletableFuture<ReplicaResponse> respond(Supplier<ReplicaResponse> supplier) {
+		if (this.unavailable)
+			return failed();
+
+		if (this.hold) {
+			CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
+
+			this.pending.put(response, supplier);
+			this.held.add(response);
+
+			return response;
+		}
+
+		try {
+			return CompletableFuture.completedFuture(supplier.get());
+		} catch (RuntimeException e) {
+			CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
+			response.completeExceptionally(e);
+
+			return response;
+		}
+	}
+
+	ReplicaResponse queryResponse(byte[] envelope) {
+		Map<String, Object> body = new LinkedHashMap<String, Object>();
+
+		if (this.rejectCode != 0) {
+			body.put("status", "rejected");
+			body.put("reject_code", this.rejectCode);
+			body.put("reject_message", "Rejected");
+		} else {
+			Map<String, Object> reply = new LinkedHashMap<String, Object>();
+
+			try {
+				reply.put("arg", this.reply != null ? this.reply : content(envelope).get("arg").binaryValue());
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+
+			body.put("status", "replied");
+			body.put("reply", reply);
+		}
+
+		return this.response(body);
+	}
+
+	ReplicaResponse readStateResponse(byte[] envelope) {
+		try {
+			JsonNode path = content(envelope).get("paths").get(0);
+
+			String label = new String(path.get(0).binaryValue(), StandardCharsets.UTF_8);
+			byte[] id = path.get(1).binaryValue();
+
+			List<Object> tree;
+
+			if ("request_status".equals(label))
+				tree = labeled(label, labeled(id, this.requestStatus(RequestId.fromHex(id))));
+			else
+				tree = labeled(label, labeled(id, this.canister()));
+
+			Map<String, Object> certificate = new LinkedHashMap<String, Object>();
+			certificate.put("tree", tree);
+			certificate.put("signature", new byte[48]);
+
+			Map<String, Object> body = new LinkedHashMap<String, Object>();
+			body.put("certificate", MAPPER.writeValueAsBytes(certificate));
+
+			return this.response(body);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// labels in order, as the certificate lookup expects
+	Object canister() {
+		String candidService = this.candidService;
+
+		Object certifiedData = labeled("certified_data", leaf(this.certifiedData));
+
+		if (candidService != null)
+			certifiedData = Arrays.asList(1, certifiedData, labeled("metadata",
+					labeled("candid:service", leaf(candidService.getBytes(StandardCharsets.UTF_8)))));
+
+		return Arrays.asList(1, certifiedData, labeled("module_hash", leaf(this.moduleHash)));
+	}
+
+	Object requestStatus(RequestId requestId) {
+		String status = this.callStatus;
+
+		List<Object> statusLeaf = labeled("status", leaf(status.getBytes(StandardCharsets.UTF_8)));
+
+		switch (status) {
+		case "replied":
+			byte[] arg = this.args.get(requestId.toHexString());
+
+			return Arrays.asList(1, labeled("reply", leaf(arg != null ? arg : new byte[0])), statusLeaf);
+		case "rejected":
+			return Arrays.asList(1,
+					Arrays.asList(1, labeled("reject_code", leaf(new byte[] { (byte) this.rejectCode })),
+							labeled("reject_message", leaf("Rejected".getBytes(StandardCharsets.UTF_8)))),
+					statusLeaf);
+		default:
+			return statusLeaf;
+		}
+	}
+
+	ReplicaResponse response(Object body) {
+		ReplicaResponse response = new ReplicaResponse();
+		response.statusCode = this.statusCode;
+
+		if (response.statusCode != 200) {
+			response.payload = new byte[0];
+			return response;
+		}
+
+		try {
+			response.payload = MAPPER.writeValueAsBytes(body);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+
+		return response;
+	}
+
+	static JsonNode content(byte[] envelope) throws Exception {
+		return MAPPER.readTree(envelope).get("content");
+	}
+
+	static List<Object> labeled(String label, Object subtree) {
+		return labeled(label.getBytes(StandardCharsets.UTF_8), subtree);
+	}
+
+	static List<Object> labeled(byte[] label, Object subtree) {
+		return Arrays.asList(2, label, subtree);
+	}
+
+	static List<Object> leaf(byte[] value) {
+		return Arrays.asList(3, value);
+	}
+
+	static CompletableFuture<ReplicaResponse> failed() {
+		CompletableFuture<ReplicaResponse> response = new CompletableFuture<ReplicaResponse>();
+		response.completeExceptionally(AgentError.create(AgentError.AgentErrorCode.HTTP_ERROR, "Unavailable"));
+
+		return response;
+	}
+}
@@ -0,0 +1,135 @@
+package org.ic4j.agent.test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+import org.ic4j.agent.ReplicaResponse;
+import org.ic4j.agent.ReplicaTransport;
+import org.ic4j.agent.http.ByteBufferPool;
+import org.ic4j.agent.http.ReplicaApacheHttpTransport;
+import org.ic4j.agent.http.ReplicaOkHttpTransport;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.HttpStatusCode;
+import org.mockserver.model.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Guards the number of bytes the transport allocates per request on the client side
+ * (calling thread and HTTP client I/O threads). The mock server runs in the same JVM,
+ * so its threads are excluded from the measurement.
+ */
+public class TransportAllocationTest extends MockTest {
+	static final Logger LOG = LoggerFactory.getLogger(TransportAllocationTest.class);
+
+	static final int PAYLOAD_SIZE = 64 * 1024;
+	static final int WARMUP_REQUESTS = 100;
+	static final int MEASURED_REQUESTS = 100;
+
+	// the body array sized from Content-Length plus debug logging,
+	// a per request int[] copy of the body alone costs four times the payload
+	static final long MAX_BYTES_PER_REQUEST = 5L * PAYLOAD_SIZE;
+
+	// with a pool the body buffers are reused, what is left is mostly debug logging
+	static final long MAX_POOLED_BYTES_PER_REQUEST = 3L * PAYLOAD_SIZE;
+
+	@Test
+	public void test() throws Exception {
+		try {
+			this.measure(null, MAX_BYTES_PER_REQUEST);
+			this.measure(ByteBufferPool.create(), MAX_POOLED_BYTES_PER_REQUEST);
+		} finally {
+			mockServerClient.stop();
+		}
+	}
+
+	void measure(ByteBufferPool pool, long maxBytesPerRequest) throws Exception {
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+
+		if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+			LOG.info("Thread allocation measurement is not supported, skipping");
+			return;
+		}
+
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		Arrays.fill(payload, (byte) 7);
+
+		mockServerClient.when(new HttpRequest().withMethod("POST")
+				.withPath("/api/v2/canister/" + TestProperties.CANISTER_ID + "/query"))
+				.respond(HttpResponse.response().withStatusCode(HttpStatusCode.OK_200.code())
+						.withContentType(MediaType.create("application", "cbor")).withBody(payload));
+
+		ReplicaTransport transport = null;
+		try {
+			transport = this.createTransport(pool);
+
+			Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+			byte[] envelope = new byte[128];
+
+			for (int i = 0; i < WARMUP_REQUESTS; i++)
+				this.execute(transport, canisterId, envelope);
+
+			long before = this.clientAllocatedBytes(threadMXBean);
+
+			for (int i = 0; i < MEASURED_REQUESTS; i++)
+				this.execute(transport, canisterId, envelope);
+
+			long bytesPerRequest = (this.clientAllocatedBytes(threadMXBean) - before) / MEASURED_REQUESTS;
+
+			LOG.info("Transport allocated " + bytesPerRequest + " bytes per request for a " + PAYLOAD_SIZE
+					+ " bytes response");
+
+			Assertions.assertTrue(bytesPerRequest < maxBytesPerRequest,
+					"Transport allocated " + bytesPerRequest + " bytes per request");
+		} finally {
+			if (transport != null)
+				transport.close();
+		}
+	}
+
+	void execute(ReplicaTransport transport, Principal canisterId, byte[] envelope) throws Exception {
+		ReplicaResponse response = transport.query(canisterId, envelope, null).get();
+
+		try {
+			if (response.body != null) {
+				Assertions.assertTrue(response.body.isReadOnly());
+				Assertions.assertEquals(PAYLOAD_SIZE, response.body.remaining());
+			} else
+				Assertions.assertEquals(PAYLOAD_SIZE, response.payload.length);
+		} finally {
+			response.release();
+		}
+	}
+
+	ReplicaTransport createTransport(ByteBufferPool pool) throws URISyntaxException {
+		String url = "http://localhost:" + TestProperties.MOCK_PORT;
+
+		switch (TestProperties.TRANSPORT_TYPE) {
+		case "http.ok":
+			return pool == null ? ReplicaOkHttpTransport.create(url) : ReplicaOkHttpTransport.create(url, pool);
+		default:
+			return pool == null ? ReplicaApacheHttpTransport.create(url) : ReplicaApacheHttpTransport.create(url, pool);
+		}
+	}
+
+	long clientAllocatedBytes(com.sun.management.ThreadMXBean threadMXBean) {
+		long total = 0;
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			String name = thread.getName();
+
+			if (thread == Thread.currentThread() || name.startsWith("httpclient-") || name.startsWith("OkHttp"))
+				total += threadMXBean.getThreadAllocatedBytes(thread.getId());
+		}
+
+		return total;
+	}
+}
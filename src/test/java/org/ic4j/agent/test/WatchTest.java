@@ -0,0 +1,143 @@
+package org.ic4j.agent.test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.Watch;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Watch on the shared timer against a stub replica whose reply is changed while it runs. The
+ * timer ticks every 50 milliseconds, intervals are multiples of that.
+ */
+public class WatchTest {
+	static final Duration INTERVAL = Duration.ofMillis(50);
+	static final Duration MAX_INTERVAL = Duration.ofMillis(400);
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testChanges() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.reply = new byte[] { 1 };
+
+		LinkedBlockingQueue<byte[]> changes = new LinkedBlockingQueue<byte[]>();
+		LinkedBlockingQueue<Duration> intervals = new LinkedBlockingQueue<Duration>();
+
+		List<Watch<byte[]>> watches = new ArrayList<Watch<byte[]>>();
+
+		try (Watch<byte[]> watch = this.watch(replica)) {
+			watches.add(watch);
+
+			watch.onChange(reply -> {
+				intervals.add(watches.get(0).getCurrentInterval());
+				changes.add(reply);
+			}).start();
+
+			// the first reply is a change
+			Assertions.assertArrayEquals(new byte[] { 1 }, take(changes));
+
+			// unchanged replies back off to maxInterval
+			Thread.sleep(2 * MAX_INTERVAL.toMillis());
+
+			Assertions.assertTrue(changes.isEmpty());
+			Assertions.assertEquals(MAX_INTERVAL, watch.getCurrentInterval());
+
+			long polls = watch.getPolls();
+
+			// 50, 100, 200, 400 and 400 milliseconds at most
+			Assertions.assertTrue(polls >= 3 && polls <= 6, polls + " polls");
+
+			// a change brings it back to interval
+			replica.reply = new byte[] { 2 };
+
+			Assertions.assertArrayEquals(new byte[] { 2 }, take(changes));
+			Assertions.assertEquals(INTERVAL, intervals.poll());
+			Assertions.assertEquals(INTERVAL, intervals.poll());
+			Assertions.assertEquals(2, watch.getChanges());
+		}
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.unavailable = true;
+
+		LinkedBlockingQueue<AgentError> errors = new LinkedBlockingQueue<AgentError>();
+		LinkedBlockingQueue<byte[]> changes = new LinkedBlockingQueue<byte[]>();
+
+		try (Watch<byte[]> watch = this.watch(replica).onError(errors::add).onChange(changes::add).start()) {
+			Assertions.assertEquals(AgentError.AgentErrorCode.HTTP_ERROR, take(errors).getCode());
+
+			// failures back off as well
+			Thread.sleep(2 * MAX_INTERVAL.toMillis());
+
+			Assertions.assertEquals(MAX_INTERVAL, watch.getCurrentInterval());
+			Assertions.assertTrue(changes.isEmpty());
+
+			// and are retried
+			replica.unavailable = false;
+
+			take(changes);
+
+			Assertions.assertEquals(INTERVAL, watch.getCurrentInterval());
+		}
+	}
+
+	@Test
+	public void testSharedTimer() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		List<Watch<byte[]>> watches = new ArrayList<Watch<byte[]>>();
+
+		// polling at a fixed rate
+		for (int i = 0; i < 50; i++)
+			watches.add(this.watch(replica).maxInterval(INTERVAL).start());
+
+		Thread.sleep(20 * INTERVAL.toMillis());
+
+		for (Watch<byte[]> watch : watches)
+			watch.close();
+
+		for (Watch<byte[]> watch : watches) {
+			long polls = watch.getPolls();
+
+			Assertions.assertTrue(polls >= 3 && polls <= 21, polls + " polls");
+			Assertions.assertTrue(watch.isClosed());
+		}
+
+		// closed watches stop polling, once the polls handed to the pool before went out
+		Thread.sleep(2 * INTERVAL.toMillis());
+
+		int queries = replica.queries.get();
+
+		Thread.sleep(5 * INTERVAL.toMillis());
+
+		Assertions.assertEquals(queries, replica.queries.get());
+
+		// a watch starts once
+		Assertions.assertThrows(AgentError.class, () -> watches.get(0).start());
+	}
+
+	Watch<byte[]> watch(StubReplica replica) {
+		Agent agent = new AgentBuilder().transport(replica).build();
+
+		return Watch.query(agent, this.canisterId, "echo", new byte[0]).interval(INTERVAL).maxInterval(MAX_INTERVAL);
+	}
+
+	static <T> T take(LinkedBlockingQueue<T> queue) throws InterruptedException {
+		T item = queue.poll(30, TimeUnit.SECONDS);
+
+		Assertions.assertNotNull(item, "Nothing received");
+
+		return item;
+	}
+}
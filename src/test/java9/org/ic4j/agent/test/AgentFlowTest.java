@@ -0,0 +1,404 @@
+package org.ic4j.agent.test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ic4j.agent.Agent;
+import org.ic4j.agent.AgentBuilder;
+import org.ic4j.agent.AgentError;
+import org.ic4j.agent.AgentFlow;
+import org.ic4j.agent.RequestStatusResponse;
+import org.ic4j.agent.RetryPolicy;
+import org.ic4j.agent.requestid.RequestId;
+import org.ic4j.types.Principal;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/*
+ * AgentFlow processors and the request status publisher against a stub replica: calls are only
+ * requested while the subscriber has demand and the window has room, cancelling stops both sides,
+ * and errors end up in results or as onError.
+ */
+public class AgentFlowTest {
+	static final Duration POLL_INTERVAL = Duration.ofMillis(10);
+
+	final Principal canisterId = Principal.fromString(TestProperties.CANISTER_ID);
+
+	@Test
+	public void testDemand() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		CallPublisher calls = new CallPublisher(10);
+		Collector<AgentFlow.Result> results = new Collector<AgentFlow.Result>();
+
+		Flow.Processor<AgentFlow.Call, AgentFlow.Result> queries = AgentFlow.create(agent(replica)).maxInFlight(4)
+				.queries();
+
+		calls.subscribe(queries);
+		queries.subscribe(results);
+
+		// nothing is requested before the subscriber asks
+		Assertions.assertEquals(0, calls.requested.get());
+
+		results.subscription.request(2);
+
+		Assertions.assertEquals(0, results.take().getIndex());
+		Assertions.assertEquals(1, results.take().getIndex());
+		Assertions.assertEquals(2, calls.requested.get());
+		Assertions.assertEquals(2, replica.queries.get());
+
+		// at most maxInFlight calls run at once
+		replica.hold = true;
+
+		results.subscription.request(Long.MAX_VALUE);
+
+		Assertions.assertEquals(6, calls.requested.get());
+		Assertions.assertEquals(6, replica.queries.get());
+
+		replica.release();
+
+		for (int i = 2; i < 10; i++) {
+			AgentFlow.Result result = results.take();
+
+			Assertions.assertTrue(result.isSuccess(), String.valueOf(result.getError()));
+			Assertions.assertEquals("call " + result.getIndex(), new String(result.getReply(), StandardCharsets.UTF_8));
+		}
+
+		results.completed.get(30, TimeUnit.SECONDS);
+		Assertions.assertEquals(10, replica.queries.get());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.hold = true;
+
+		CallPublisher calls = new CallPublisher(10);
+		Collector<AgentFlow.Result> results = new Collector<AgentFlow.Result>();
+
+		Flow.Processor<AgentFlow.Call, AgentFlow.Result> queries = AgentFlow.create(agent(replica)).maxInFlight(4)
+				.queries();
+
+		calls.subscribe(queries);
+		queries.subscribe(results);
+
+		results.subscription.request(10);
+
+		Assertions.assertEquals(4, replica.queries.get());
+
+		results.subscription.cancel();
+
+		Assertions.assertTrue(calls.cancelled.get());
+
+		// calls still running complete without signals
+		replica.release();
+
+		Thread.sleep(10 * POLL_INTERVAL.toMillis());
+
+		Assertions.assertTrue(results.items.isEmpty());
+		Assertions.assertFalse(results.completed.isDone());
+		Assertions.assertEquals(4, replica.queries.get());
+
+		// a status subscription cancelled before polling sends no read_state
+		Collector<RequestStatusResponse> statuses = new Collector<RequestStatusResponse>();
+
+		AgentFlow.create(agent(replica)).requestStatus(this.call(replica), this.canisterId).subscribe(statuses);
+
+		statuses.subscription.cancel();
+		statuses.subscription.request(1);
+
+		Assertions.assertEquals(0, replica.readStates.get());
+		Assertions.assertTrue(statuses.items.isEmpty());
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.rejectCode = 5;
+
+		AgentFlow flow = AgentFlow.create(agent(replica));
+
+		// rejected calls are results, the stream goes on
+		CallPublisher calls = new CallPublisher(3);
+		Collector<AgentFlow.Result> results = new Collector<AgentFlow.Result>();
+
+		Flow.Processor<AgentFlow.Call, AgentFlow.Result> queries = flow.queries();
+
+		calls.subscribe(queries);
+		queries.subscribe(results);
+
+		results.subscription.request(Long.MAX_VALUE);
+
+		for (int i = 0; i < 3; i++) {
+			AgentFlow.Result result = results.take();
+
+			Assertions.assertFalse(result.isSuccess());
+			Assertions.assertEquals(AgentError.AgentErrorCode.REPLICA_ERROR, result.getError().getCode());
+		}
+
+		results.completed.get(30, TimeUnit.SECONDS);
+
+		// an upstream error is passed on
+		CallPublisher failing = new CallPublisher(1);
+		failing.error = new IllegalStateException("Failed");
+
+		Collector<AgentFlow.Result> failed = new Collector<AgentFlow.Result>();
+
+		queries = flow.queries();
+
+		failing.subscribe(queries);
+		queries.subscribe(failed);
+
+		failed.subscription.request(Long.MAX_VALUE);
+
+		Assertions.assertFalse(failed.take().isSuccess());
+		Assertions.assertSame(failing.error, failed.error());
+
+		// requesting nothing is an error, upstream is cancelled
+		CallPublisher cancelled = new CallPublisher(1);
+		Collector<AgentFlow.Result> invalid = new Collector<AgentFlow.Result>();
+
+		queries = flow.queries();
+
+		cancelled.subscribe(queries);
+		queries.subscribe(invalid);
+
+		invalid.subscription.request(0);
+
+		Assertions.assertTrue(invalid.error() instanceof IllegalArgumentException);
+		Assertions.assertTrue(cancelled.cancelled.get());
+
+		// and so for request statuses
+		Collector<RequestStatusResponse> statuses = new Collector<RequestStatusResponse>();
+
+		flow.requestStatus(this.call(replica), this.canisterId).subscribe(statuses);
+
+		statuses.subscription.request(-1);
+
+		Assertions.assertTrue(statuses.error() instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void testUpdates() throws Exception {
+		StubReplica replica = new StubReplica();
+
+		AgentFlow flow = AgentFlow.create(agent(replica)).pollInterval(POLL_INTERVAL);
+
+		// failed polls are polled again
+		replica.readStateFailures.set(2);
+
+		AgentFlow.Result result = this.update(flow);
+
+		Assertions.assertTrue(result.isSuccess(), String.valueOf(result.getError()));
+		Assertions.assertEquals("call 0", new String(result.getReply(), StandardCharsets.UTF_8));
+		Assertions.assertEquals(3, replica.readStates.get());
+
+		// rejected calls carry the reject code
+		replica.callStatus = "rejected";
+		replica.rejectCode = 5;
+
+		result = this.update(flow);
+
+		Assertions.assertEquals(AgentError.AgentErrorCode.REPLICA_ERROR, result.getError().getCode());
+		Assertions.assertEquals(5, result.getError().getRejectCode());
+
+		// until the timeout
+		replica.callStatus = "processing";
+
+		result = this.update(AgentFlow.create(agent(replica)).pollInterval(POLL_INTERVAL).timeout(Duration.ofMillis(200)));
+
+		Assertions.assertEquals(AgentError.AgentErrorCode.TIMEOUT_WAITING_FOR_RESPONSE, result.getError().getCode());
+
+		// with a retry policy a failed poll is final
+		replica.callStatus = "replied";
+
+		Agent agent = new AgentBuilder().transport(replica)
+				.retryPolicy(RetryPolicy.create(1, POLL_INTERVAL, POLL_INTERVAL)).build();
+		agent.setVerify(false);
+
+		replica.readStateFailures.set(1);
+
+		result = this.update(AgentFlow.create(agent).pollInterval(POLL_INTERVAL));
+
+		Assertions.assertEquals(AgentError.AgentErrorCode.HTTP_ERROR, result.getError().getCode());
+	}
+
+	@Test
+	public void testRequestStatus() throws Exception {
+		StubReplica replica = new StubReplica();
+		replica.callStatus = "processing";
+
+		AgentFlow flow = AgentFlow.create(agent(replica)).pollInterval(POLL_INTERVAL);
+
+		RequestId requestId = this.call(replica);
+
+		Collector<RequestStatusResponse> statuses = new Collector<RequestStatusResponse>();
+
+		flow.requestStatus(requestId, this.canisterId).subscribe(statuses);
+
+		// one poll per demand, a status is only published when it changes
+		statuses.subscription.request(1);
+
+		Assertions.assertEquals(RequestStatusResponse.InnerStatus.PROCESSING_STATUS, statuses.take().status);
+
+		Thread.sleep(10 * POLL_INTERVAL.toMillis());
+
+		Assertions.assertEquals(1, replica.readStates.get());
+
+		// failed polls are polled again
+		replica.readStateFailures.set(2);
+		replica.callStatus = "replied";
+
+		statuses.subscription.request(1);
+
+		Assertions.assertEquals(RequestStatusResponse.InnerStatus.REPLIED_STATUS, statuses.take().status);
+		statuses.completed.get(30, TimeUnit.SECONDS);
+		Assertions.assertEquals(4, replica.readStates.get());
+	}
+
+	AgentFlow.Result update(AgentFlow flow) throws Exception {
+		CallPublisher calls = new CallPublisher(1);
+		Collector<AgentFlow.Result> results = new Collector<AgentFlow.Result>();
+
+		Flow.Processor<AgentFlow.Call, AgentFlow.Result> updates = flow.updates();
+
+		calls.subscribe(updates);
+		updates.subscribe(results);
+
+		results.subscription.request(1);
+
+		return results.take();
+	}
+
+	RequestId call(StubReplica replica) throws Exception {
+		return agent(replica).updateRaw(this.canisterId, this.canisterId, "update", new byte[0], Optional.empty())
+				.get(30, TimeUnit.SECONDS);
+	}
+
+	static Agent agent(StubReplica replica) {
+		Agent agent = new AgentBuilder().transport(replica).build();
+		agent.setVerify(false);
+
+		return agent;
+	}
+
+	/*
+	 * Publishes count calls as requested, then completes, or fails with error.
+	 */
+	final class CallPublisher implements Flow.Publisher<AgentFlow.Call> {
+		final int count;
+		final AtomicLong requested = new AtomicLong();
+		final AtomicBoolean cancelled = new AtomicBoolean();
+
+		volatile Throwable error;
+
+		CallPublisher(int count) {
+			this.count = count;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super AgentFlow.Call> subscriber) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				int published;
+				long demand;
+				boolean emitting;
+
+				public void request(long n) {
+					synchronized (this) {
+						CallPublisher.this.requested.addAndGet(n);
+						this.demand += n;
+
+						if (this.emitting)
+							return;
+
+						this.emitting = true;
+					}
+
+					while (true) {
+						int index;
+
+						synchronized (this) {
+							if (CallPublisher.this.cancelled.get() || this.demand == 0
+									|| this.published == CallPublisher.this.count) {
+								this.emitting = false;
+								break;
+							}
+
+							this.demand--;
+							index = this.published++;
+						}
+
+						subscriber.onNext(AgentFlow.Call.create(AgentFlowTest.this.canisterId, "echo",
+								("call " + index).getBytes(StandardCharsets.UTF_8)));
+					}
+
+					synchronized (this) {
+						if (this.published < CallPublisher.this.count || CallPublisher.this.cancelled.get())
+							return;
+
+						// completes once
+						this.published++;
+					}
+
+					if (CallPublisher.this.error != null)
+						subscriber.onError(CallPublisher.this.error);
+					else
+						subscriber.onComplete();
+				}
+
+				public void cancel() {
+					CallPublisher.this.cancelled.set(true);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Subscriber keeping what it receives, requesting nothing by itself.
+	 */
+	static final class Collector<T> implements Flow.Subscriber<T> {
+		final LinkedBlockingQueue<T> items = new LinkedBlockingQueue<T>();
+		final CompletableFuture<Void> completed = new CompletableFuture<Void>();
+
+		volatile Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(T item) {
+			this.items.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			this.completed.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			this.completed.complete(null);
+		}
+
+		T take() throws InterruptedException {
+			T item = this.items.poll(30, TimeUnit.SECONDS);
+
+			Assertions.assertNotNull(item, "Nothing received");
+
+			return item;
+		}
+
+		Throwable error() throws Exception {
+			return Assertions.assertThrows(Exception.class, () -> this.completed.get(30, TimeUnit.SECONDS)).getCause();
+		}
+	}
+}